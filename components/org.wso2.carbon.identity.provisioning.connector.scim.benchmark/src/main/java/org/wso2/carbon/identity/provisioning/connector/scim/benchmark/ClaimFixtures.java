@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmark;
+
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.charon.core.config.SCIMConfigConstants;
+import org.wso2.charon.core.config.SCIMProvider;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Users and groups shaped like the ones a typical enterprise user store provisions: names, work and home emails,
+ * phone numbers, a work address, enterprise extension attributes, the meta data claims the SCIM endpoint assigns and
+ * the role, user name and password claims provisioned separately. Values differ from user to user, so the
+ * benchmarks do not run on a single constant-folded input.
+ */
+public final class ClaimFixtures {
+
+    public static final String USER_ENDPOINT = "https://scim.example.com/scim/Users";
+    public static final String GROUP_ENDPOINT = "https://scim.example.com/scim/Groups";
+
+    private static final String CORE = "urn:scim:schemas:core:1.0:";
+    private static final String ENTERPRISE = "urn:scim:schemas:extension:enterprise:1.0:";
+    private static final String LOCAL = "http://wso2.org/claims/";
+
+    // Local claim URI and remote claim URI in the SCIM 1.1 dialect of each provisioned attribute.
+    private static final String[][] ATTRIBUTE_CLAIMS = {
+            {LOCAL + "givenname", CORE + "name.givenName"},
+            {LOCAL + "lastname", CORE + "name.familyName"},
+            {LOCAL + "middleName", CORE + "name.middleName"},
+            {LOCAL + "fullname", CORE + "displayName"},
+            {LOCAL + "nickname", CORE + "nickName"},
+            {LOCAL + "emailaddress", CORE + "emails.work"},
+            {LOCAL + "emails.home", CORE + "emails.home"},
+            {LOCAL + "mobile", CORE + "phoneNumbers.mobile"},
+            {LOCAL + "telephone", CORE + "phoneNumbers.work"},
+            {LOCAL + "streetaddress", CORE + "addresses.work.streetAddress"},
+            {LOCAL + "locality", CORE + "addresses.work.locality"},
+            {LOCAL + "region", CORE + "addresses.work.region"},
+            {LOCAL + "postalcode", CORE + "addresses.work.postalCode"},
+            {LOCAL + "country", CORE + "addresses.work.country"},
+            {LOCAL + "title", CORE + "title"},
+            {LOCAL + "userType", CORE + "userType"},
+            {LOCAL + "preferredLanguage", CORE + "preferredLanguage"},
+            {LOCAL + "local", CORE + "locale"},
+            {LOCAL + "timeZone", CORE + "timezone"},
+            {LOCAL + "active", CORE + "active"},
+            {LOCAL + "url", CORE + "profileUrl"},
+            {LOCAL + "employeeNumber", ENTERPRISE + "employeeNumber"},
+            {LOCAL + "costCenter", ENTERPRISE + "costCenter"},
+            {LOCAL + "organization", ENTERPRISE + "organization"},
+            {LOCAL + "division", ENTERPRISE + "division"},
+            {LOCAL + "department", ENTERPRISE + "department"},
+            {LOCAL + "manager", ENTERPRISE + "manager.displayName"}
+    };
+
+    private static final String[] META_DATA_CLAIMS = {SCIMConstants.ID_URI, SCIMConstants.META_CREATED_URI,
+            SCIMConstants.META_LAST_MODIFIED_URI, SCIMConstants.META_LOCATION_URI};
+
+    private static final String[] DEPARTMENTS = {"Engineering", "Sales", "Marketing", "Finance", "Support"};
+    private static final String[] CITIES = {"Colombo", "Mountain View", "London", "São Paulo", "Zürich"};
+
+    private ClaimFixtures() {
+    }
+
+    /**
+     * @param index
+     * @return user name of the index-th fixture user
+     */
+    public static String userName(int index) {
+        return "user" + index + "@example.com";
+    }
+
+    /**
+     * @param count
+     * @return user names of count fixture users
+     */
+    public static List<String> userNames(int count) {
+
+        List<String> userNames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            userNames.add(userName(i));
+        }
+        return userNames;
+    }
+
+    /**
+     * @param index
+     * @return claims of the index-th fixture user keyed by the remote claim URIs, as handed to the SCIM clients
+     */
+    public static Map<String, String> userClaims(int index) {
+
+        Map<String, String> claims = new HashMap<>(ATTRIBUTE_CLAIMS.length * 2);
+        for (String[] claim : ATTRIBUTE_CLAIMS) {
+            claims.put(claim[1], value(claim[0], index));
+        }
+        return claims;
+    }
+
+    /**
+     * @param index
+     * @return attributes of the index-th fixture user as the provisioning framework hands them to the connector,
+     * including the meta data and separately provisioned claims the connector leaves out
+     */
+    public static Map<ClaimMapping, List<String>> userAttributes(int index) {
+
+        Map<ClaimMapping, List<String>> attributes = new LinkedHashMap<>();
+        for (String[] claim : ATTRIBUTE_CLAIMS) {
+            attributes.put(ClaimMapping.build(claim[0], claim[1], null, false),
+                    Collections.singletonList(value(claim[0], index)));
+        }
+        for (String claimUri : META_DATA_CLAIMS) {
+            attributes.put(ClaimMapping.build(claimUri, claimUri, null, false),
+                    Collections.singletonList("meta-" + index));
+        }
+        attributes.put(ClaimMapping.build(LOCAL + "role", IdentityProvisioningConstants.GROUP_CLAIM_URI, null,
+                false), Arrays.asList("Internal/everyone", DEPARTMENTS[index % DEPARTMENTS.length]));
+        attributes.put(ClaimMapping.build(LOCAL + "username", IdentityProvisioningConstants.USERNAME_CLAIM_URI,
+                null, false), Collections.singletonList(userName(index)));
+        attributes.put(ClaimMapping.build(LOCAL + "password", IdentityProvisioningConstants.PASSWORD_CLAIM_URI,
+                null, false), Collections.singletonList("Passw0rd!" + index));
+        // A claim without a value, provisioned with its default value.
+        attributes.put(ClaimMapping.build(LOCAL + "im", CORE + "ims.skype", "none", false),
+                Collections.<String>emptyList());
+        return attributes;
+    }
+
+    /**
+     * Returns the provider of a connector provisioning to the fixture endpoints. Member chunks are sent on the
+     * calling thread and the id caches hold idCacheSize ids, so that ids remembered up front are never looked up.
+     *
+     * @param idCacheSize
+     * @return
+     */
+    public static SCIMProvider scimProvider(int idCacheSize) {
+
+        SCIMProvider scimProvider = new SCIMProvider();
+        scimProvider.setProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT, USER_ENDPOINT);
+        scimProvider.setProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT, GROUP_ENDPOINT);
+        scimProvider.setProperty(SCIMConfigConstants.ELEMENT_NAME_USERNAME, "admin");
+        scimProvider.setProperty(SCIMConfigConstants.ELEMENT_NAME_PASSWORD, "admin");
+        scimProvider.setProperty(SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_SIZE,
+                String.valueOf(idCacheSize));
+        scimProvider.setProperty(SCIMProvisioningConnectorConstants.SCIM_GROUP_MEMBER_CHUNK_PARALLELISM, "1");
+        return scimProvider;
+    }
+
+    /**
+     * @param scimProvider
+     * @return transport of the provider, never used to send a request by the benchmarks
+     */
+    public static SCIMHttpTransport transport(SCIMProvider scimProvider) {
+        return new SCIMHttpTransport(scimProvider);
+    }
+
+    /**
+     * @param count
+     * @return id of each of the first count fixture users, keyed by user name
+     */
+    public static Map<String, String> userIds(int count) {
+
+        Map<String, String> userIds = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            userIds.put(userName(i), String.format("%08x-0000-4000-8000-%012x", i, (long) i * 7919));
+        }
+        return userIds;
+    }
+
+    private static String value(String localClaimUri, int index) {
+
+        String claim = localClaimUri.substring(LOCAL.length());
+        switch (claim) {
+            case "givenname":
+                return "Given" + index;
+            case "lastname":
+                return "Family" + index;
+            case "fullname":
+                return "Given" + index + " Family" + index;
+            case "emailaddress":
+                return userName(index);
+            case "emails.home":
+                return "user" + index + "@home.example.org";
+            case "mobile":
+            case "telephone":
+                return String.format("+94 77 %03d %04d", index % 1000, index % 10000);
+            case "locality":
+                return CITIES[index % CITIES.length];
+            case "postalcode":
+                return String.format("%05d", index % 100000);
+            case "active":
+                return String.valueOf(index % 10 != 0);
+            case "url":
+                return "https://people.example.com/user" + index;
+            case "employeeNumber":
+                return String.valueOf(100000 + index);
+            case "department":
+                return DEPARTMENTS[index % DEPARTMENTS.length];
+            case "manager":
+                return "Given" + index / 10 + " Family" + index / 10;
+            default:
+                return claim + " of user " + index;
+        }
+    }
+}
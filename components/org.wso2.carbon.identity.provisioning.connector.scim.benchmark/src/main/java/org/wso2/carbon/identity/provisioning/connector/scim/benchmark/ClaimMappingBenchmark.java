@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonWriter;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan;
+import org.wso2.carbon.identity.scim.common.utils.AttributeMapper;
+import org.wso2.charon.core.client.SCIMClient;
+import org.wso2.charon.core.objects.User;
+import org.wso2.charon.core.schema.SCIMConstants;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping the claims of a user to SCIM attributes and writing them, through the {@link ClaimMappingPlan} the clients
+ * use and through the Charon {@link AttributeMapper} and encoder the SCIM 1.1 client used before, which are kept as
+ * the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ClaimMappingBenchmark {
+
+    private static final int USERS = 256;
+
+    private ClaimMappingPlan claimMappingPlan;
+    private SCIMClient charonClient;
+    private Map<String, String>[] users;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        claimMappingPlan = new ClaimMappingPlan("urn:ietf:params:scim:schemas:extension:enterprise:2.0:User",
+                new HashSet<>(Arrays.asList("id", "userName", "password", "meta", "schemas", "groups",
+                        "externalId")));
+        charonClient = new SCIMClient();
+        users = new Map[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = ClaimFixtures.userClaims(i);
+        }
+    }
+
+    @Benchmark
+    public ClaimMappingPlan.MappedClaims mapClaims() {
+        return claimMappingPlan.map(nextUser());
+    }
+
+    @Benchmark
+    public String mapAndWriteClaims() {
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        claimMappingPlan.write(writer, claimMappingPlan.map(nextUser()));
+        return writer.endObject().toString();
+    }
+
+    @Benchmark
+    public Object charonAttributeMapper() throws Exception {
+        return AttributeMapper.constructSCIMObjectFromAttributes(nextUser(), SCIMConstants.USER_INT);
+    }
+
+    @Benchmark
+    public String charonEncodeUser() throws Exception {
+
+        User user = (User) AttributeMapper.constructSCIMObjectFromAttributes(nextUser(), SCIMConstants.USER_INT);
+        user.setSchemaList(Collections.singletonList(SCIMConstants.CORE_SCHEMA_URI));
+        user.setUserName("user@example.com");
+        return charonClient.encodeSCIMObject(user, SCIMConstants.JSON);
+    }
+
+    private Map<String, String> nextUser() {
+
+        next = (next + 1) % USERS;
+        return users[next];
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.AbstractSCIMProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIM1ProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIM2ProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the request bodies of a group create and of a membership update adding and removing half of the members
+ * each, for groups of 10, 1k and 100k members. The ids of all the members are remembered up front, so SCIM 2.0
+ * groups, which refer to members by id, are measured without the id lookups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class GroupSerializationBenchmark {
+
+    private static final String GROUP_NAME = "Engineering";
+
+    @Param({"1.1", "2.0"})
+    public String scimVersion;
+
+    @Param({"10", "1000", "100000"})
+    public int members;
+
+    private SCIMHttpTransport transport;
+    private AbstractSCIMProvisioningClient client;
+    private List<String> memberNames;
+    private List<String> addedMemberNames;
+    private List<String> removedMemberNames;
+
+    @Setup
+    public void setUp() {
+
+        SCIMProvider scimProvider = ClaimFixtures.scimProvider(members);
+        transport = ClaimFixtures.transport(scimProvider);
+        client = "2.0".equals(scimVersion) ? new SCIM2ProvisioningClient(scimProvider, transport) :
+                new SCIM1ProvisioningClient(scimProvider, transport);
+        for (Map.Entry<String, String> userId : ClaimFixtures.userIds(members).entrySet()) {
+            client.rememberUserId(userId.getKey(), userId.getValue());
+        }
+        client.rememberGroupId(GROUP_NAME, "a8b3c2d1-0000-4000-8000-000000000001");
+        memberNames = ClaimFixtures.userNames(members);
+        addedMemberNames = memberNames.subList(0, members / 2);
+        removedMemberNames = memberNames.subList(members / 2, members);
+    }
+
+    @TearDown
+    public void tearDown() {
+        transport.shutdown();
+    }
+
+    @Benchmark
+    public String encodeGroup() throws IdentitySCIMException {
+        return client.buildCreateGroupOperation(null, GROUP_NAME, memberNames).getData();
+    }
+
+    @Benchmark
+    public String encodeGroupUpdate() throws IdentitySCIMException {
+        return client.buildUpdateGroupOperation(null, GROUP_NAME, addedMemberNames, removedMemberNames,
+                ProvisioningOperation.PATCH, null).getData();
+    }
+}
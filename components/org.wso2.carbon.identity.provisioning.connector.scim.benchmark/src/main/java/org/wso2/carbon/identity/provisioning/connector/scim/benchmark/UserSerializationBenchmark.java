@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.identity.provisioning.connector.scim.AbstractSCIMProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIM1ProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIM2ProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the request body of a user create, the mapping of its claims included, as the bulk dispatcher and the
+ * single resource requests send it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class UserSerializationBenchmark {
+
+    private static final int USERS = 256;
+
+    @Param({"1.1", "2.0"})
+    public String scimVersion;
+
+    private SCIMHttpTransport transport;
+    private AbstractSCIMProvisioningClient client;
+    private Map<String, String>[] users;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        SCIMProvider scimProvider = ClaimFixtures.scimProvider(USERS);
+        transport = ClaimFixtures.transport(scimProvider);
+        client = "2.0".equals(scimVersion) ? new SCIM2ProvisioningClient(scimProvider, transport) :
+                new SCIM1ProvisioningClient(scimProvider, transport);
+        users = new Map[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = ClaimFixtures.userClaims(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        transport.shutdown();
+    }
+
+    @Benchmark
+    public String encodeUser() throws IdentitySCIMException {
+
+        next = (next + 1) % USERS;
+        return client.buildCreateUserOperation(null, ClaimFixtures.userName(next), users[next], "Passw0rd!")
+                .getData();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+/**
+ * Faults the {@link StandInSCIMServer} injects into the requests it serves. Each fault is drawn independently per
+ * request with the given rate, between 0 and 1, in the order: connection reset, throttling, server error, slow
+ * body. Requests for the service provider configuration are served without faults. Gzip encoded request bodies can
+ * also be rejected with 415 Unsupported Media Type, as endpoints not supporting them do.
+ */
+public class FaultProfile {
+
+    private long latency;
+    private long latencyJitter;
+    private double resetRate;
+    private double throttleRate;
+    private int retryAfterSeconds = 1;
+    private double serverErrorRate;
+    private double slowBodyRate;
+    private int slowBodyChunkSize = 64;
+    private long slowBodyChunkDelay = 10;
+    private boolean rejectGzipRequests;
+
+    /**
+     * @return a profile injecting no faults and no latency
+     */
+    public static FaultProfile none() {
+        return new FaultProfile();
+    }
+
+    /**
+     * @return fixed latency in milliseconds added to each request
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    public FaultProfile setLatency(long latency) {
+
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @return upper bound in milliseconds of a random latency added to the fixed one
+     */
+    public long getLatencyJitter() {
+        return latencyJitter;
+    }
+
+    public FaultProfile setLatencyJitter(long latencyJitter) {
+
+        this.latencyJitter = latencyJitter;
+        return this;
+    }
+
+    /**
+     * @return rate of requests whose connection is reset, with a TCP RST, instead of being answered
+     */
+    public double getResetRate() {
+        return resetRate;
+    }
+
+    public FaultProfile setResetRate(double resetRate) {
+
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * @return rate of requests answered with 429 Too Many Requests
+     */
+    public double getThrottleRate() {
+        return throttleRate;
+    }
+
+    public FaultProfile setThrottleRate(double throttleRate) {
+
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    /**
+     * @return Retry-After sent with throttled responses, in seconds
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public FaultProfile setRetryAfterSeconds(int retryAfterSeconds) {
+
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * @return rate of requests answered with 503 Service Unavailable
+     */
+    public double getServerErrorRate() {
+        return serverErrorRate;
+    }
+
+    public FaultProfile setServerErrorRate(double serverErrorRate) {
+
+        this.serverErrorRate = serverErrorRate;
+        return this;
+    }
+
+    /**
+     * @return rate of responses whose body is written in small chunks with a delay between them
+     */
+    public double getSlowBodyRate() {
+        return slowBodyRate;
+    }
+
+    public FaultProfile setSlowBodyRate(double slowBodyRate) {
+
+        this.slowBodyRate = slowBodyRate;
+        return this;
+    }
+
+    /**
+     * @return bytes written per chunk of a slow body
+     */
+    public int getSlowBodyChunkSize() {
+        return slowBodyChunkSize;
+    }
+
+    public FaultProfile setSlowBodyChunkSize(int slowBodyChunkSize) {
+
+        this.slowBodyChunkSize = Math.max(1, slowBodyChunkSize);
+        return this;
+    }
+
+    /**
+     * @return delay in milliseconds between the chunks of a slow body
+     */
+    public long getSlowBodyChunkDelay() {
+        return slowBodyChunkDelay;
+    }
+
+    public FaultProfile setSlowBodyChunkDelay(long slowBodyChunkDelay) {
+
+        this.slowBodyChunkDelay = slowBodyChunkDelay;
+        return this;
+    }
+
+    /**
+     * @return whether requests with a gzip encoded body are answered with 415 Unsupported Media Type
+     */
+    public boolean isRejectGzipRequests() {
+        return rejectGzipRequests;
+    }
+
+    public FaultProfile setRejectGzipRequests(boolean rejectGzipRequests) {
+
+        this.rejectGzipRequests = rejectGzipRequests;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "latency: " + latency + "ms (+" + latencyJitter + "ms jitter), reset rate: " + resetRate +
+                ", throttle rate: " + throttleRate + " (Retry-After: " + retryAfterSeconds + "s), server error " +
+                "rate: " + serverErrorRate + ", slow body rate: " + slowBodyRate + " (" + slowBodyChunkSize +
+                " bytes every " + slowBodyChunkDelay + "ms), reject gzip requests: " + rejectGzipRequests;
+    }
+}
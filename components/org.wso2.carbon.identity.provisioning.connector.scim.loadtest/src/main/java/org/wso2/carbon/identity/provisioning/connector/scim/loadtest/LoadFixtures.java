@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provisioning entities shaped the way the provisioning framework hands them to a connector: user attributes keyed
+ * by their local claim mapped to the SCIM 1.1 dialect, with the user name, password, group names and members under
+ * the framework's own claim URIs.
+ */
+final class LoadFixtures {
+
+    private static final String CORE = "urn:scim:schemas:core:1.0:";
+    private static final String ENTERPRISE = "urn:scim:schemas:extension:enterprise:1.0:";
+    private static final String LOCAL = "http://wso2.org/claims/";
+
+    // Local and remote claim URI of each provisioned attribute.
+    private static final String[][] ATTRIBUTE_CLAIMS = {
+            {LOCAL + "givenname", CORE + "name.givenName"},
+            {LOCAL + "lastname", CORE + "name.familyName"},
+            {LOCAL + "fullname", CORE + "displayName"},
+            {LOCAL + "emailaddress", CORE + "emails.work"},
+            {LOCAL + "mobile", CORE + "phoneNumbers.mobile"},
+            {LOCAL + "telephone", CORE + "phoneNumbers.work"},
+            {LOCAL + "streetaddress", CORE + "addresses.work.streetAddress"},
+            {LOCAL + "locality", CORE + "addresses.work.locality"},
+            {LOCAL + "country", CORE + "addresses.work.country"},
+            {LOCAL + "title", CORE + "title"},
+            {LOCAL + "preferredLanguage", CORE + "preferredLanguage"},
+            {LOCAL + "active", CORE + "active"},
+            {LOCAL + "employeeNumber", ENTERPRISE + "employeeNumber"},
+            {LOCAL + "department", ENTERPRISE + "department"},
+            {LOCAL + "manager", ENTERPRISE + "manager.displayName"}
+    };
+    // Attributes changed by an update, so each revision of a user differs in a few claims only.
+    private static final String[] UPDATED_CLAIMS = {LOCAL + "title", LOCAL + "department", LOCAL + "telephone"};
+    private static final String[] DEPARTMENTS = {"Engineering", "Sales", "Marketing", "Finance", "Support"};
+
+    private LoadFixtures() {
+    }
+
+    /**
+     * @param operation
+     * @param userName
+     * @param revision   number of updates the user went through, varying the updated claims
+     * @param identifier identifier of the provisioned user, null if not provisioned yet
+     * @return
+     */
+    static ProvisioningEntity user(ProvisioningOperation operation, String userName, int revision,
+                                   ProvisionedIdentifier identifier) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(frameworkClaim(IdentityProvisioningConstants.USERNAME_CLAIM_URI),
+                Collections.singletonList(userName));
+        if (operation != ProvisioningOperation.DELETE) {
+            for (String[] claim : ATTRIBUTE_CLAIMS) {
+                attributes.put(ClaimMapping.build(claim[0], claim[1], null, false),
+                        Collections.singletonList(value(claim[0], userName, revision)));
+            }
+        }
+        if (operation == ProvisioningOperation.POST) {
+            attributes.put(frameworkClaim(IdentityProvisioningConstants.PASSWORD_CLAIM_URI),
+                    Collections.singletonList("Passw0rd!" + userName.hashCode()));
+        }
+        return entity(ProvisioningEntityType.USER, operation, userName, attributes, identifier);
+    }
+
+    /**
+     * @param operation
+     * @param groupName
+     * @param addedMembers   members of a created group or members added to an updated one
+     * @param removedMembers members removed from an updated group
+     * @param identifier     identifier of the provisioned group, null if not provisioned yet
+     * @return
+     */
+    static ProvisioningEntity group(ProvisioningOperation operation, String groupName, List<String> addedMembers,
+                                    List<String> removedMembers, ProvisionedIdentifier identifier) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(frameworkClaim(IdentityProvisioningConstants.GROUP_CLAIM_URI),
+                Collections.singletonList(groupName));
+        if (addedMembers != null && !addedMembers.isEmpty()) {
+            attributes.put(frameworkClaim(IdentityProvisioningConstants.USERNAME_CLAIM_URI), addedMembers);
+        }
+        if (removedMembers != null && !removedMembers.isEmpty()) {
+            attributes.put(frameworkClaim(IdentityProvisioningConstants.DELETED_USER_CLAIM_URI), removedMembers);
+        }
+        return entity(ProvisioningEntityType.GROUP, operation, groupName, attributes, identifier);
+    }
+
+    private static ProvisioningEntity entity(ProvisioningEntityType entityType, ProvisioningOperation operation,
+                                             String entityName, Map<ClaimMapping, List<String>> attributes,
+                                             ProvisionedIdentifier identifier) {
+
+        ProvisioningEntity entity = new ProvisioningEntity(entityType, entityName, operation, attributes);
+        if (identifier != null) {
+            entity.setIdentifier(identifier);
+        }
+        return entity;
+    }
+
+    private static ClaimMapping frameworkClaim(String claimUri) {
+        return ClaimMapping.build(claimUri, null, null, false);
+    }
+
+    private static String value(String localClaimUri, String userName, int revision) {
+
+        int index = (userName.hashCode() & Integer.MAX_VALUE) % 1000000;
+        String claim = localClaimUri.substring(LOCAL.length());
+        for (String updatedClaim : UPDATED_CLAIMS) {
+            if (updatedClaim.equals(localClaimUri)) {
+                index += revision;
+            }
+        }
+        switch (claim) {
+            case "givenname":
+                return "Given " + userName;
+            case "lastname":
+                return "Family " + userName;
+            case "fullname":
+                return "Given Family " + userName;
+            case "emailaddress":
+                return userName + "@example.com";
+            case "mobile":
+            case "telephone":
+                return String.format("+94 77 %03d %04d", index % 1000, index % 10000);
+            case "active":
+                return "true";
+            case "department":
+                return DEPARTMENTS[index % DEPARTMENTS.length];
+            case "title":
+                return "Engineer grade " + index % 7;
+            case "employeeNumber":
+                return String.valueOf(100000 + index % 900000);
+            default:
+                return claim + " of " + userName;
+        }
+    }
+}
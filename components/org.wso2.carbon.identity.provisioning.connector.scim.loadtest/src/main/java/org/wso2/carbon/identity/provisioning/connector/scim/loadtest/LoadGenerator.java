@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.AbstractOutboundProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a provisioning connector with a weighted mix of user and group operations from a number of concurrent
+ * workers, the way the provisioning framework calls it for changes in the user store.
+ * <p>
+ * {@link #seed(int, int)} first provisions a population of users, which groups draw their members from, and of
+ * groups. During a run each worker draws operations from the mix: creates provision new entities, while updates and
+ * deletes take an existing entity out of a shared pool for the duration of the operation, so no two workers ever
+ * work on the same entity at the same time. An update or delete with no entity available creates one instead. User
+ * updates change a few claims each time; group updates add and remove a tenth of the group size of members.
+ */
+public class LoadGenerator {
+
+    private static final Log log = LogFactory.getLog(LoadGenerator.class);
+
+    private static final ProvisioningOperation[] OPERATIONS = {ProvisioningOperation.POST,
+            ProvisioningOperation.PUT, ProvisioningOperation.PATCH, ProvisioningOperation.DELETE};
+
+    private final AbstractOutboundProvisioningConnector connector;
+    private final OperationMix mix;
+    private final int concurrency;
+    private final int groupSize;
+    private final AtomicLong userSequence = new AtomicLong();
+    private final AtomicLong groupSequence = new AtomicLong();
+    private final ConcurrentLinkedQueue<Entity> idleUsers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Entity> idleGroups = new ConcurrentLinkedQueue<>();
+    private volatile String[] memberPool = new String[0];
+
+    /**
+     * @param connector   initialized connector to drive
+     * @param mix
+     * @param concurrency number of workers provisioning concurrently
+     * @param groupSize   number of members of created groups
+     */
+    public LoadGenerator(AbstractOutboundProvisioningConnector connector, OperationMix mix, int concurrency,
+                         int groupSize) {
+
+        this.connector = connector;
+        this.mix = mix;
+        this.concurrency = Math.max(1, concurrency);
+        this.groupSize = Math.max(0, groupSize);
+    }
+
+    /**
+     * Provisions the users groups draw their members from and an initial set of groups.
+     *
+     * @param userCount
+     * @param groupCount
+     * @return report of the seeding operations
+     * @throws InterruptedException
+     */
+    public LoadReport seed(final int userCount, final int groupCount) throws InterruptedException {
+
+        final LoadReport report = createReport();
+        final AtomicInteger nextUser = new AtomicInteger();
+        runWorkers(new Runnable() {
+            @Override
+            public void run() {
+                while (nextUser.getAndIncrement() < userCount) {
+                    createUser(report);
+                }
+            }
+        }, report);
+
+        List<String> members = new ArrayList<>();
+        for (Entity user : idleUsers) {
+            members.add(user.name);
+        }
+        memberPool = members.toArray(new String[members.size()]);
+
+        final AtomicInteger nextGroup = new AtomicInteger();
+        runWorkers(new Runnable() {
+            @Override
+            public void run() {
+                while (nextGroup.getAndIncrement() < groupCount) {
+                    createGroup(report, ThreadLocalRandom.current());
+                }
+            }
+        }, report);
+        return report;
+    }
+
+    /**
+     * Runs the operation mix for the given time.
+     *
+     * @param durationMillis
+     * @return report of the operations run
+     * @throws InterruptedException
+     */
+    public LoadReport run(long durationMillis) throws InterruptedException {
+
+        final LoadReport report = createReport();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        runWorkers(new Runnable() {
+            @Override
+            public void run() {
+                Random random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    execute(mix.next(random), report, random);
+                }
+            }
+        }, report);
+        return report;
+    }
+
+    private LoadReport createReport() {
+
+        LoadReport report = new LoadReport(concurrency);
+        for (ProvisioningEntityType entityType : new ProvisioningEntityType[]{ProvisioningEntityType.USER,
+                ProvisioningEntityType.GROUP}) {
+            for (ProvisioningOperation operation : OPERATIONS) {
+                report.addOperation(new OperationMix.Operation(entityType, operation));
+            }
+        }
+        return report;
+    }
+
+    private void runWorkers(Runnable worker, LoadReport report) throws InterruptedException {
+
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        List<Thread> threads = new ArrayList<>(concurrency);
+        SCIMConnectorThreadFactory threadFactory = new SCIMConnectorThreadFactory("SCIMLoadGenerator");
+        final Runnable task = worker;
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+        report.setDuration(System.nanoTime() - start);
+    }
+
+    private void execute(OperationMix.Operation operation, LoadReport report, Random random) {
+
+        if (operation.getEntityType() == ProvisioningEntityType.USER) {
+            if (operation.getOperation() == ProvisioningOperation.POST) {
+                createUser(report);
+                return;
+            }
+            Entity user = idleUsers.poll();
+            if (user == null) {
+                createUser(report);
+            } else if (operation.getOperation() == ProvisioningOperation.DELETE) {
+                if (!provision(operation, LoadFixtures.user(ProvisioningOperation.DELETE, user.name, user.revision,
+                        user.identifier), user, report)) {
+                    idleUsers.offer(user);
+                }
+            } else {
+                user.revision++;
+                provision(operation, LoadFixtures.user(operation.getOperation(), user.name, user.revision,
+                        user.identifier), user, report);
+                idleUsers.offer(user);
+            }
+        } else {
+            if (operation.getOperation() == ProvisioningOperation.POST) {
+                createGroup(report, random);
+                return;
+            }
+            Entity group = idleGroups.poll();
+            if (group == null) {
+                createGroup(report, random);
+            } else if (operation.getOperation() == ProvisioningOperation.DELETE) {
+                if (!provision(operation, LoadFixtures.group(ProvisioningOperation.DELETE, group.name, null, null,
+                        group.identifier), group, report)) {
+                    idleGroups.offer(group);
+                }
+            } else {
+                updateGroup(operation, group, report, random);
+                idleGroups.offer(group);
+            }
+        }
+    }
+
+    private void createUser(LoadReport report) {
+
+        Entity user = new Entity("load-user-" + userSequence.incrementAndGet());
+        if (provision(new OperationMix.Operation(ProvisioningEntityType.USER, ProvisioningOperation.POST),
+                LoadFixtures.user(ProvisioningOperation.POST, user.name, 0, null), user, report)) {
+            idleUsers.offer(user);
+        }
+    }
+
+    private void createGroup(LoadReport report, Random random) {
+
+        Entity group = new Entity("load-group-" + groupSequence.incrementAndGet());
+        group.members.addAll(sampleMembers(groupSize, group.members, random));
+        if (provision(new OperationMix.Operation(ProvisioningEntityType.GROUP, ProvisioningOperation.POST),
+                LoadFixtures.group(ProvisioningOperation.POST, group.name, new ArrayList<>(group.members), null,
+                        null), group, report)) {
+            idleGroups.offer(group);
+        }
+    }
+
+    private void updateGroup(OperationMix.Operation operation, Entity group, LoadReport report, Random random) {
+
+        int changed = Math.max(1, groupSize / 10);
+        List<String> removed = new ArrayList<>(changed);
+        for (String member : group.members) {
+            if (removed.size() >= changed / 2 + changed % 2) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                removed.add(member);
+            }
+        }
+        List<String> added = sampleMembers(changed - removed.size(), group.members, random);
+        if (provision(operation, LoadFixtures.group(operation.getOperation(), group.name, added, removed,
+                group.identifier), group, report)) {
+            group.members.removeAll(removed);
+            group.members.addAll(added);
+        }
+    }
+
+    /**
+     * @return up to count members from the member pool which are not in the given members
+     */
+    private List<String> sampleMembers(int count, Set<String> members, Random random) {
+
+        String[] pool = memberPool;
+        List<String> sample = new ArrayList<>(count);
+        if (pool.length == 0) {
+            return sample;
+        }
+        Set<String> sampled = new HashSet<>();
+        for (int attempt = 0; attempt < count * 2 && sample.size() < count; attempt++) {
+            String member = pool[random.nextInt(pool.length)];
+            if (!members.contains(member) && sampled.add(member)) {
+                sample.add(member);
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * @return whether the operation succeeded
+     */
+    private boolean provision(OperationMix.Operation operation, ProvisioningEntity entity, Entity target,
+                              LoadReport report) {
+
+        long start = System.nanoTime();
+        try {
+            ProvisionedIdentifier identifier = connector.provision(entity);
+            report.recordSuccess(operation, System.nanoTime() - start);
+            if (identifier != null && identifier.getIdentifier() != null) {
+                target.identifier = identifier;
+            }
+            return true;
+        } catch (IdentityProvisioningException | RuntimeException e) {
+            report.recordFailure(operation, System.nanoTime() - start, e);
+            if (log.isDebugEnabled()) {
+                log.debug("Error while provisioning " + operation + " of: " + entity.getEntityName(), e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A provisioned user or group, owned by at most one worker at a time.
+     */
+    private static final class Entity {
+
+        private final String name;
+        private final Set<String> members = new HashSet<>();
+        private ProvisionedIdentifier identifier;
+        private int revision;
+
+        private Entity(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of a load run: throughput and latency percentiles per operation, the errors the operations failed with
+ * and, when run against the {@link StandInSCIMServer}, the HTTP requests it received and the faults it injected.
+ */
+public class LoadReport {
+
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 160;
+
+    private final int concurrency;
+    private final Map<OperationMix.Operation, OperationStats> operations = new LinkedHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private long durationNanos;
+    private long drainNanos;
+    private Map<String, Long> httpRequests;
+    private long bulkOperations;
+    private String injectedFaults;
+    private long connectionsOpened = -1;
+    private int peakConnections;
+
+    LoadReport(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return total operations run, failed ones included
+     */
+    public long getOperations() {
+
+        long count = 0;
+        for (OperationStats stats : operations.values()) {
+            count += stats.latencies.getCount();
+        }
+        return count;
+    }
+
+    public long getFailures() {
+
+        long failures = 0;
+        for (OperationStats stats : operations.values()) {
+            failures += stats.failures.get();
+        }
+        return failures;
+    }
+
+    /**
+     * @return operations per second over the run and the drain of queued operations
+     */
+    public double getThroughput() {
+
+        long elapsed = durationNanos + drainNanos;
+        return elapsed == 0 ? 0 : getOperations() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * @param operation
+     * @param percentile between 0 and 100
+     * @return latency of the operation at the percentile in nanoseconds, 0 if it did not run
+     */
+    public long getLatency(OperationMix.Operation operation, double percentile) {
+
+        OperationStats stats = operations.get(operation);
+        return stats != null ? stats.latencies.getValueAtPercentile(percentile) : 0;
+    }
+
+    /**
+     * @return HTTP requests received, -1 if not known
+     */
+    public long getHttpRequests() {
+
+        if (httpRequests == null) {
+            return -1;
+        }
+        long count = 0;
+        for (long requests : httpRequests.values()) {
+            count += requests;
+        }
+        return count;
+    }
+
+    /**
+     * @return HTTP requests per provisioning operation, -1 if not known
+     */
+    public double getAmplification() {
+
+        long operationCount = getOperations();
+        long requests = getHttpRequests();
+        return requests < 0 || operationCount == 0 ? -1 : (double) requests / operationCount;
+    }
+
+    /**
+     * @return failures by the root cause they failed with
+     */
+    public Map<String, Long> getErrors() {
+
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+            counts.put(error.getKey(), error.getValue().get());
+        }
+        return counts;
+    }
+
+    void recordSuccess(OperationMix.Operation operation, long latencyNanos) {
+        getStats(operation).latencies.record(latencyNanos);
+    }
+
+    void recordFailure(OperationMix.Operation operation, long latencyNanos, Throwable error) {
+
+        OperationStats stats = getStats(operation);
+        stats.latencies.record(latencyNanos);
+        stats.failures.incrementAndGet();
+
+        Throwable cause = error;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        String message = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        if (message.length() > MAX_ERROR_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_ERROR_MESSAGE_LENGTH) + "...";
+        }
+        AtomicLong count = errors.putIfAbsent(message, new AtomicLong(1));
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    void setDuration(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @param drainNanos time taken to send operations queued by the connector when the run ended
+     */
+    public void setDrainTime(long drainNanos) {
+        this.drainNanos = drainNanos;
+    }
+
+    /**
+     * @param httpRequests   HTTP requests received during the run by method and resource
+     * @param bulkOperations operations received in bulk requests during the run
+     * @param injectedFaults description of the faults injected during the run
+     */
+    public void setHttpRequests(Map<String, Long> httpRequests, long bulkOperations, String injectedFaults) {
+
+        this.httpRequests = httpRequests;
+        this.bulkOperations = bulkOperations;
+        this.injectedFaults = injectedFaults;
+    }
+
+    /**
+     * @param connectionsOpened connections the server accepted during the run
+     * @param peakConnections   largest number of connections open at the same time during the run
+     */
+    public void setConnections(long connectionsOpened, int peakConnections) {
+
+        this.connectionsOpened = connectionsOpened;
+        this.peakConnections = peakConnections;
+    }
+
+    /**
+     * Registers the operations of the mix up front, so the operations are reported in a stable order and lookups
+     * while running never add to the map.
+     */
+    void addOperation(OperationMix.Operation operation) {
+
+        if (!operations.containsKey(operation)) {
+            operations.put(operation, new OperationStats());
+        }
+    }
+
+    private OperationStats getStats(OperationMix.Operation operation) {
+        return operations.get(operation);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Duration: %.1fs, drain: %.1fs, concurrency: %d, operations: %d, failed: %d, " +
+                        "throughput: %.1f ops/s%n", durationNanos / 1e9, drainNanos / 1e9, concurrency,
+                getOperations(), getFailures(), getThroughput()));
+        report.append(String.format("%n%-14s %9s %7s %10s %9s %9s %9s %9s %9s%n", "Operation", "Count", "Failed",
+                "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        double seconds = (durationNanos + drainNanos) / 1e9;
+        for (Map.Entry<OperationMix.Operation, OperationStats> entry : operations.entrySet()) {
+            LatencyHistogram latencies = entry.getValue().latencies;
+            if (latencies.getCount() == 0) {
+                continue;
+            }
+            report.append(String.format("%-14s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(),
+                    latencies.getCount(), entry.getValue().failures.get(), seconds > 0 ? latencies.getCount() /
+                            seconds : 0, millis(latencies.getValueAtPercentile(50)),
+                    millis(latencies.getValueAtPercentile(90)), millis(latencies.getValueAtPercentile(99)),
+                    millis(latencies.getValueAtPercentile(99.9)), millis(latencies.getMax())));
+        }
+
+        if (httpRequests != null) {
+            report.append(String.format("%nHTTP requests: %d, %.2f per operation, bulk operations: %d%n",
+                    getHttpRequests(), getAmplification(), bulkOperations));
+            for (Map.Entry<String, Long> requests : httpRequests.entrySet()) {
+                report.append(String.format("  %-24s %9d%n", requests.getKey(), requests.getValue()));
+            }
+            if (connectionsOpened >= 0) {
+                report.append(String.format("Connections opened: %d, peak open: %d%n", connectionsOpened,
+                        peakConnections));
+            }
+            if (injectedFaults != null) {
+                report.append("Injected faults: ").append(injectedFaults).append(String.format("%n"));
+            }
+        }
+
+        Map<String, Long> errorCounts = getErrors();
+        if (!errorCounts.isEmpty()) {
+            report.append(String.format("%nErrors:%n"));
+            for (Map.Entry<String, Long> error : errorCounts.entrySet()) {
+                report.append(String.format("  %9d  %s%n", error.getValue(), error.getKey()));
+            }
+        }
+        return report.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class OperationStats {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+    }
+}
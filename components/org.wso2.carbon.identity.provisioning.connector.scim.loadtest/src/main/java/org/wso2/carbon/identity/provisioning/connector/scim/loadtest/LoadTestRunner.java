@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.wso2.carbon.identity.application.common.model.Property;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the connector against a {@link StandInSCIMServer} from the command line and prints a {@link LoadReport}.
+ * <p>
+ * Usage: {@code java -jar scim-load-test.jar [--option=value ...]} with the options
+ * <ul>
+ * <li>--duration, --warmup: measured and warm up run time in seconds, 60 and 10 by default</li>
+ * <li>--concurrency: number of concurrent provisioning workers, 16 by default</li>
+ * <li>--users, --groups, --group-size: seeded users and groups and the members per group, 1000, 50 and 100 by
+ * default</li>
+ * <li>--mix: weighted operation mix, see {@link OperationMix#parse(String)}</li>
+ * <li>--latency, --jitter: added server latency and its jitter in milliseconds</li>
+ * <li>--reset-rate, --throttle-rate, --error-rate, --slow-rate: fractions of the requests answered with a
+ * connection reset, a 429, a 503 and a slow body</li>
+ * <li>--retry-after: Retry-After of throttled requests in seconds</li>
+ * <li>--reject-gzip: true to answer gzip encoded request bodies with a 415</li>
+ * <li>--connector.&lt;property&gt;: passed to the connector as the provisioning property &lt;property&gt;, e.g.
+ * --connector.scim-request-multiplexing-enabled=true to compare multiplexing operations into bulk requests with
+ * sending each of them in its own request</li>
+ * </ul>
+ */
+public class LoadTestRunner {
+
+    private static final String CONNECTOR_PREFIX = "--connector.";
+    private static final String ADMIN = "admin";
+    private static final long DRAIN_TIMEOUT = 120000;
+
+    private LoadTestRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new LinkedHashMap<>();
+        Map<String, String> connectorProperties = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Invalid argument: " + arg + ". Expected --option=value.");
+            }
+            if (arg.startsWith(CONNECTOR_PREFIX)) {
+                connectorProperties.put(arg.substring(CONNECTOR_PREFIX.length(), separator),
+                        arg.substring(separator + 1));
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+
+        FaultProfile faults = FaultProfile.none()
+                .setLatency(getLong(options, "latency", 0))
+                .setLatencyJitter(getLong(options, "jitter", 0))
+                .setResetRate(getDouble(options, "reset-rate", 0))
+                .setThrottleRate(getDouble(options, "throttle-rate", 0))
+                .setRetryAfterSeconds((int) getLong(options, "retry-after", 1))
+                .setServerErrorRate(getDouble(options, "error-rate", 0))
+                .setSlowBodyRate(getDouble(options, "slow-rate", 0))
+                .setRejectGzipRequests(Boolean.parseBoolean(options.get("reject-gzip")));
+        OperationMix mix = OperationMix.parse(options.containsKey("mix") ? options.get("mix")
+                : OperationMix.DEFAULT_MIX);
+
+        LoadReport report = run(faults, mix, connectorProperties, (int) getLong(options, "concurrency", 16),
+                (int) getLong(options, "users", 1000), (int) getLong(options, "groups", 50),
+                (int) getLong(options, "group-size", 100), getLong(options, "warmup", 10) * 1000,
+                getLong(options, "duration", 60) * 1000);
+        System.out.println(report);
+    }
+
+    /**
+     * Seeds a stand-in server, warms the connector up and measures a run of the operation mix against it.
+     *
+     * @param faults              faults the server injects during the warm up and the measured run
+     * @param mix
+     * @param connectorProperties additional provisioning properties of the connector
+     * @param concurrency
+     * @param users               number of seeded users
+     * @param groups              number of seeded groups
+     * @param groupSize           number of members of created groups
+     * @param warmupMillis
+     * @param durationMillis
+     * @return report of the measured run, including the time taken to drain the connector after it
+     * @throws IOException
+     * @throws IdentityProvisioningException
+     * @throws InterruptedException
+     */
+    public static LoadReport run(FaultProfile faults, OperationMix mix, Map<String, String> connectorProperties,
+                                 int concurrency, int users, int groups, int groupSize, long warmupMillis,
+                                 long durationMillis)
+            throws IOException, IdentityProvisioningException, InterruptedException {
+
+        // Seed without faults, they are only meant to disturb the measured operations.
+        StandInSCIMServer server = new StandInSCIMServer(FaultProfile.none());
+        server.start();
+        try {
+            SCIMProvisioningConnector connector = createConnector(server, connectorProperties);
+            try {
+                LoadGenerator generator = new LoadGenerator(connector, mix, concurrency, groupSize);
+                generator.seed(users, groups);
+                server.setFaults(faults);
+                if (warmupMillis > 0) {
+                    generator.run(warmupMillis);
+                }
+                server.resetCounters();
+
+                LoadReport report = generator.run(durationMillis);
+                long drainStart = System.nanoTime();
+                connector.close(DRAIN_TIMEOUT);
+                connector = null;
+                report.setDrainTime(System.nanoTime() - drainStart);
+                report.setHttpRequests(server.getRequestCounts(), server.getBulkOperations(), faults + " (resets: "
+                        + server.getResets() + ", throttled: " + server.getThrottledRequests() + ", server errors: "
+                        + server.getServerErrors() + ", slow bodies: " + server.getSlowBodies() + ", rejected gzip " +
+                        "requests: " + server.getRejectedGzipRequests() + ")");
+                report.setConnections(server.getConnectionsOpened(), server.getPeakConnections());
+                return report;
+            } finally {
+                if (connector != null) {
+                    connector.close(0);
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Creates a SCIM 2.0 connector provisioning to the stand-in server.
+     *
+     * @param server
+     * @param connectorProperties additional provisioning properties, overriding the ones set here
+     * @return
+     * @throws IdentityProvisioningException
+     */
+    public static SCIMProvisioningConnector createConnector(StandInSCIMServer server,
+                                                            Map<String, String> connectorProperties)
+            throws IdentityProvisioningException {
+
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(SCIMProvisioningConnectorConstants.SCIM_USER_EP, server.getUserEndpoint());
+        values.put(SCIMProvisioningConnectorConstants.SCIM_GROUP_EP, server.getGroupEndpoint());
+        values.put(SCIMProvisioningConnectorConstants.SCIM_USERNAME, ADMIN);
+        values.put(SCIMProvisioningConnectorConstants.SCIM_PASSWORD, ADMIN);
+        values.put(SCIMProvisioningConnectorConstants.SCIM_VERSION, SCIMProvisioningConnectorConstants.SCIM_VERSION2);
+        if (connectorProperties != null) {
+            values.putAll(connectorProperties);
+        }
+
+        List<Property> properties = new ArrayList<>(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            Property property = new Property();
+            property.setName(entry.getKey());
+            property.setValue(entry.getValue());
+            properties.add(property);
+        }
+        SCIMProvisioningConnector connector = new SCIMProvisioningConnector();
+        connector.init(properties.toArray(new Property[properties.size()]));
+        return connector;
+    }
+
+    private static long getLong(Map<String, String> options, String name, long defaultValue) {
+
+        String value = options.get(name);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value: " + value + " of option: --" + name, e);
+        }
+    }
+
+    private static double getDouble(Map<String, String> options, String name, double defaultValue) {
+
+        String value = options.get(name);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value: " + value + " of option: --" + name, e);
+        }
+    }
+}
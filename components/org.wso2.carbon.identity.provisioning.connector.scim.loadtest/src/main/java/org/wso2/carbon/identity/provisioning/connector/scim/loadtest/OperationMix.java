@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Weighted mix of the provisioning operations a {@link LoadGenerator} runs, written as a comma separated list of
+ * {entity type}:{operation}={weight}, e.g. USER:POST=20,USER:PATCH=60,GROUP:PATCH=20.
+ */
+public class OperationMix {
+
+    /**
+     * Mix of a directory in steady state: profile updates dominate, users join and leave and group memberships
+     * change, while groups themselves are rarely created or deleted.
+     */
+    public static final String DEFAULT_MIX = "USER:POST=20,USER:PUT=10,USER:PATCH=40,USER:DELETE=5,GROUP:POST=2," +
+            "GROUP:PUT=3,GROUP:PATCH=18,GROUP:DELETE=2";
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+
+    private OperationMix(Operation[] operations, int[] cumulativeWeights) {
+
+        this.operations = operations;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    /**
+     * @param mix
+     * @return
+     * @throws IllegalArgumentException if the mix is malformed or has no positive weight
+     */
+    public static OperationMix parse(String mix) {
+
+        List<Operation> operations = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] operationAndWeight = entry.split("=");
+            String[] typeAndOperation = operationAndWeight[0].split(":");
+            if (operationAndWeight.length != 2 || typeAndOperation.length != 2) {
+                throw new IllegalArgumentException("Invalid operation mix entry: " + entry + ". Expected " +
+                        "{entity type}:{operation}={weight}");
+            }
+            int weight = Integer.parseInt(operationAndWeight[1].trim());
+            if (weight <= 0) {
+                continue;
+            }
+            operations.add(new Operation(
+                    ProvisioningEntityType.valueOf(typeAndOperation[0].trim().toUpperCase(Locale.ENGLISH)),
+                    ProvisioningOperation.valueOf(typeAndOperation[1].trim().toUpperCase(Locale.ENGLISH))));
+            weights.add(weight);
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("Operation mix: " + mix + " has no operation with a positive weight.");
+        }
+
+        int[] cumulativeWeights = new int[weights.size()];
+        int total = 0;
+        for (int i = 0; i < weights.size(); i++) {
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+        return new OperationMix(operations.toArray(new Operation[operations.size()]), cumulativeWeights);
+    }
+
+    /**
+     * @param random
+     * @return an operation drawn by weight
+     */
+    public Operation next(Random random) {
+
+        int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder mix = new StringBuilder();
+        for (int i = 0; i < operations.length; i++) {
+            if (i > 0) {
+                mix.append(',');
+            }
+            mix.append(operations[i].getEntityType()).append(':').append(operations[i].getOperation()).append('=')
+                    .append(cumulativeWeights[i] - (i > 0 ? cumulativeWeights[i - 1] : 0));
+        }
+        return mix.toString();
+    }
+
+    /**
+     * A provisioning operation on an entity type.
+     */
+    public static final class Operation {
+
+        private final ProvisioningEntityType entityType;
+        private final ProvisioningOperation operation;
+
+        public Operation(ProvisioningEntityType entityType, ProvisioningOperation operation) {
+
+            this.entityType = entityType;
+            this.operation = operation;
+        }
+
+        public ProvisioningEntityType getEntityType() {
+            return entityType;
+        }
+
+        public ProvisioningOperation getOperation() {
+            return operation;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+
+            if (!(other instanceof Operation)) {
+                return false;
+            }
+            return entityType == ((Operation) other).entityType && operation == ((Operation) other).operation;
+        }
+
+        @Override
+        public int hashCode() {
+            return entityType.hashCode() * 31 + operation.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return entityType + " " + operation;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In memory users or groups of the {@link StandInSCIMServer}. Resources are kept as they were sent, with the id and
+ * meta attributes the server assigns. Patches are applied to top level attributes and to group members; patches of
+ * sub-attributes or filtered multi-valued attributes, e.g. emails[type eq "work"].value, are accepted and change the
+ * version of the resource but are not applied, as the load tests do not read user attributes back.
+ */
+final class StandInResourceStore {
+
+    static final String ERROR_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:Error";
+    private static final String LIST_RESPONSE_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:ListResponse";
+
+    private static final String SCHEMAS = "schemas";
+    private static final String ID = "id";
+    private static final String META = "meta";
+    private static final String RESOURCE_TYPE = "resourceType";
+    private static final String LOCATION = "location";
+    private static final String VERSION = "version";
+    private static final String PASSWORD = "password";
+    private static final String MEMBERS = "members";
+    private static final String VALUE = "value";
+    private static final String OPERATIONS = "Operations";
+    private static final String OP_ADD = "add";
+    private static final String OP_REPLACE = "replace";
+    private static final String OP_REMOVE = "remove";
+
+    private static final Pattern FILTER = Pattern.compile("^\\s*(\\w+)\\s+eq\\s+\"((?:[^\"\\\\]|\\\\.)*)\"\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern MEMBER_FILTER = Pattern.compile("^members\\[\\s*value\\s+eq\\s+\"([^\"]*)\"\\s*]$",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String resourceType;
+    private final String nameAttribute;
+    private final String endpoint;
+    private final AtomicLong versionSequence = new AtomicLong();
+    // Resources by id in creation order, and the ids by the unique name of the resources.
+    private final Map<String, JSONObject> resources = new LinkedHashMap<>();
+    private final Map<String, String> ids = new HashMap<>();
+
+    /**
+     * @param resourceType  e.g. User
+     * @param nameAttribute unique attribute resources are looked up by, e.g. userName
+     * @param endpoint      URL of the resource endpoint, which resource locations are relative to
+     */
+    StandInResourceStore(String resourceType, String nameAttribute, String endpoint) {
+
+        this.resourceType = resourceType;
+        this.nameAttribute = nameAttribute;
+        this.endpoint = endpoint;
+    }
+
+    synchronized int size() {
+        return resources.size();
+    }
+
+    synchronized StandInResponse create(JSONObject resource) throws JSONException {
+
+        String name = resource.optString(nameAttribute, null);
+        if (name == null || name.isEmpty()) {
+            return error(400, "invalidValue", "Attribute: " + nameAttribute + " is required.");
+        }
+        if (ids.containsKey(name)) {
+            return error(409, "uniqueness", resourceType + ": " + name + " already exists.");
+        }
+        String id = UUID.randomUUID().toString();
+        resource.put(ID, id);
+        resource.remove(PASSWORD);
+        String version = updateMeta(resource, id);
+        resources.put(id, resource);
+        ids.put(name, id);
+        return new StandInResponse(201, resource.toString(), version, getLocation(id));
+    }
+
+    /**
+     * @param id
+     * @param ifNoneMatch version the client has, null if it has none
+     * @return the resource, or 304 if it still has the version the client has
+     */
+    synchronized StandInResponse get(String id, String ifNoneMatch) throws JSONException {
+
+        JSONObject resource = resources.get(id);
+        if (resource == null) {
+            return notFound(id);
+        }
+        String version = getVersion(resource);
+        if (version.equals(ifNoneMatch)) {
+            return new StandInResponse(304, null, version, null);
+        }
+        return new StandInResponse(200, resource.toString(), version, null);
+    }
+
+    synchronized StandInResponse replace(String id, JSONObject replacement, String ifMatch) throws JSONException {
+
+        JSONObject resource = resources.get(id);
+        if (resource == null) {
+            return notFound(id);
+        }
+        if (!matches(resource, ifMatch)) {
+            return preconditionFailed(id);
+        }
+        String name = replacement.optString(nameAttribute, null);
+        if (name == null || name.isEmpty()) {
+            return error(400, "invalidValue", "Attribute: " + nameAttribute + " is required.");
+        }
+        StandInResponse conflict = rename(resource, id, name);
+        if (conflict != null) {
+            return conflict;
+        }
+        replacement.put(ID, id);
+        replacement.remove(PASSWORD);
+        String version = updateMeta(replacement, id);
+        resources.put(id, replacement);
+        return new StandInResponse(200, replacement.toString(), version, null);
+    }
+
+    synchronized StandInResponse patch(String id, JSONObject patch, String ifMatch) throws JSONException {
+
+        JSONObject resource = resources.get(id);
+        if (resource == null) {
+            return notFound(id);
+        }
+        if (!matches(resource, ifMatch)) {
+            return preconditionFailed(id);
+        }
+        JSONArray operations = patch.optJSONArray(OPERATIONS);
+        if (operations == null || operations.length() == 0) {
+            return error(400, "invalidSyntax", "A patch needs at least one operation.");
+        }
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.optJSONObject(i);
+            if (operation == null) {
+                return error(400, "invalidSyntax", "Patch operation: " + i + " is not an object.");
+            }
+            StandInResponse failure = apply(resource, id, operation.optString("op", "").toLowerCase(),
+                    operation.optString("path", null), operation.opt(VALUE));
+            if (failure != null) {
+                return failure;
+            }
+        }
+        String version = updateMeta(resource, id);
+        return new StandInResponse(200, resource.toString(), version, null);
+    }
+
+    synchronized StandInResponse delete(String id, String ifMatch) throws JSONException {
+
+        JSONObject resource = resources.get(id);
+        if (resource == null) {
+            return notFound(id);
+        }
+        if (!matches(resource, ifMatch)) {
+            return preconditionFailed(id);
+        }
+        resources.remove(id);
+        ids.remove(resource.optString(nameAttribute));
+        return new StandInResponse(204, null);
+    }
+
+    /**
+     * @param filter filter of the form {attribute} eq "{value}", on the id or the name attribute
+     * @return list response holding the matching resource, if any
+     */
+    synchronized StandInResponse filter(String filter) throws JSONException {
+
+        Matcher matcher = FILTER.matcher(filter);
+        if (!matcher.matches()) {
+            return error(400, "invalidFilter", "Unsupported filter: " + filter);
+        }
+        String attribute = matcher.group(1);
+        String value = matcher.group(2).replace("\\\"", "\"").replace("\\\\", "\\");
+        String id;
+        if (ID.equals(attribute)) {
+            id = value;
+        } else if (nameAttribute.equalsIgnoreCase(attribute)) {
+            id = ids.get(value);
+        } else {
+            return error(400, "invalidFilter", "Filtering on attribute: " + attribute + " is not supported.");
+        }
+        List<JSONObject> matches = new ArrayList<>(1);
+        if (id != null && resources.containsKey(id)) {
+            matches.add(resources.get(id));
+        }
+        return listResponse(matches, matches.size(), 1);
+    }
+
+    /**
+     * @param startIndex 1-based index of the first resource, in creation order
+     * @param count      maximum resources to return
+     * @return
+     */
+    synchronized StandInResponse list(int startIndex, int count) throws JSONException {
+
+        List<JSONObject> page = new ArrayList<>(Math.max(0, Math.min(count, resources.size())));
+        int index = 0;
+        for (JSONObject resource : resources.values()) {
+            index++;
+            if (index >= startIndex && page.size() < count) {
+                page.add(resource);
+            }
+        }
+        return listResponse(page, resources.size(), startIndex);
+    }
+
+    /**
+     * @return null if the operation was applied, the error response otherwise
+     */
+    private StandInResponse apply(JSONObject resource, String id, String op, String path, Object value)
+            throws JSONException {
+
+        if (!OP_ADD.equals(op) && !OP_REPLACE.equals(op) && !OP_REMOVE.equals(op)) {
+            return error(400, "invalidSyntax", "Unsupported patch operation: " + op);
+        }
+        if (path == null) {
+            if (OP_REMOVE.equals(op) || !(value instanceof JSONObject)) {
+                return error(400, "noTarget", "Patch operation: " + op + " needs a path or an object value.");
+            }
+            JSONObject attributes = (JSONObject) value;
+            Iterator<?> names = attributes.keys();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                StandInResponse failure = apply(resource, id, op, name, attributes.opt(name));
+                if (failure != null) {
+                    return failure;
+                }
+            }
+            return null;
+        }
+
+        Matcher memberFilter = MEMBER_FILTER.matcher(path);
+        if (memberFilter.matches() && OP_REMOVE.equals(op)) {
+            removeMember(resource, memberFilter.group(1));
+        } else if (MEMBERS.equals(path)) {
+            if (OP_REMOVE.equals(op)) {
+                resource.remove(MEMBERS);
+            } else if (OP_REPLACE.equals(op)) {
+                resource.put(MEMBERS, value instanceof JSONArray ? value : new JSONArray());
+            } else if (value instanceof JSONArray) {
+                addMembers(resource, (JSONArray) value);
+            }
+        } else if (path.indexOf('[') < 0 && path.indexOf('.') < 0 && !ID.equals(path) && !META.equals(path) &&
+                !SCHEMAS.equals(path)) {
+            if (OP_REMOVE.equals(op)) {
+                if (nameAttribute.equals(path)) {
+                    return error(400, "mutability", "Attribute: " + path + " can not be removed.");
+                }
+                resource.remove(path);
+            } else {
+                if (nameAttribute.equals(path)) {
+                    StandInResponse conflict = rename(resource, id, String.valueOf(value));
+                    if (conflict != null) {
+                        return conflict;
+                    }
+                }
+                resource.put(path, value);
+            }
+        }
+        // Sub-attribute and filtered paths are accepted without being applied.
+        return null;
+    }
+
+    private void addMembers(JSONObject resource, JSONArray added) throws JSONException {
+
+        JSONArray members = resource.optJSONArray(MEMBERS);
+        if (members == null) {
+            members = new JSONArray();
+            resource.put(MEMBERS, members);
+        }
+        for (int i = 0; i < added.length(); i++) {
+            JSONObject member = added.optJSONObject(i);
+            if (member != null && indexOfMember(members, member.optString(VALUE)) < 0) {
+                members.put(member);
+            }
+        }
+    }
+
+    private void removeMember(JSONObject resource, String value) throws JSONException {
+
+        JSONArray members = resource.optJSONArray(MEMBERS);
+        if (members == null) {
+            return;
+        }
+        int index = indexOfMember(members, value);
+        if (index < 0) {
+            return;
+        }
+        JSONArray remaining = new JSONArray();
+        for (int i = 0; i < members.length(); i++) {
+            if (i != index) {
+                remaining.put(members.opt(i));
+            }
+        }
+        resource.put(MEMBERS, remaining);
+    }
+
+    private static int indexOfMember(JSONArray members, String value) {
+
+        for (int i = 0; i < members.length(); i++) {
+            JSONObject member = members.optJSONObject(i);
+            if (member != null && value.equals(member.optString(VALUE))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return null if the resource can take the name, the conflict response otherwise
+     */
+    private StandInResponse rename(JSONObject resource, String id, String name) throws JSONException {
+
+        String currentName = resource.optString(nameAttribute);
+        if (name.equals(currentName)) {
+            return null;
+        }
+        String otherId = ids.get(name);
+        if (otherId != null && !otherId.equals(id)) {
+            return error(409, "uniqueness", resourceType + ": " + name + " already exists.");
+        }
+        ids.remove(currentName);
+        ids.put(name, id);
+        return null;
+    }
+
+    /**
+     * Assigns a new version to the resource.
+     *
+     * @return the new version
+     */
+    private String updateMeta(JSONObject resource, String id) throws JSONException {
+
+        String version = "W/\"" + versionSequence.incrementAndGet() + "\"";
+        JSONObject meta = new JSONObject();
+        meta.put(RESOURCE_TYPE, resourceType);
+        meta.put(LOCATION, getLocation(id));
+        meta.put(VERSION, version);
+        resource.put(META, meta);
+        return version;
+    }
+
+    private static String getVersion(JSONObject resource) {
+
+        JSONObject meta = resource.optJSONObject(META);
+        return meta != null ? meta.optString(VERSION, "") : "";
+    }
+
+    private static boolean matches(JSONObject resource, String ifMatch) {
+        return ifMatch == null || "*".equals(ifMatch) || ifMatch.equals(getVersion(resource));
+    }
+
+    private String getLocation(String id) {
+        return endpoint + "/" + id;
+    }
+
+    private StandInResponse listResponse(List<JSONObject> page, int totalResults, int startIndex)
+            throws JSONException {
+
+        JSONObject response = new JSONObject();
+        response.put(SCHEMAS, new JSONArray().put(LIST_RESPONSE_SCHEMA));
+        response.put("totalResults", totalResults);
+        response.put("itemsPerPage", page.size());
+        response.put("startIndex", startIndex);
+        JSONArray listed = new JSONArray();
+        for (JSONObject resource : page) {
+            listed.put(resource);
+        }
+        response.put("Resources", listed);
+        return new StandInResponse(200, response.toString());
+    }
+
+    private StandInResponse notFound(String id) throws JSONException {
+        return error(404, null, resourceType + ": " + id + " not found.");
+    }
+
+    private StandInResponse preconditionFailed(String id) throws JSONException {
+        return error(412, null, resourceType + ": " + id + " was modified since the version in If-Match.");
+    }
+
+    /**
+     * @param status
+     * @param scimType SCIM error type, null if there is none
+     * @param detail
+     * @return
+     */
+    static StandInResponse error(int status, String scimType, String detail) throws JSONException {
+
+        JSONObject error = new JSONObject();
+        error.put(SCHEMAS, new JSONArray().put(ERROR_SCHEMA));
+        error.put("status", String.valueOf(status));
+        if (scimType != null) {
+            error.put("scimType", scimType);
+        }
+        error.put("detail", detail);
+        return new StandInResponse(status, error.toString());
+    }
+}
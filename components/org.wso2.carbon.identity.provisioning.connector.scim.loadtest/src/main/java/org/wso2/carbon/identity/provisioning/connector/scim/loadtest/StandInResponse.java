@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+/**
+ * Response of the {@link StandInSCIMServer} to a request or to an operation of a bulk request.
+ */
+final class StandInResponse {
+
+    private final int status;
+    private final String body;
+    private final String version;
+    private final String location;
+    private int retryAfter = -1;
+
+    StandInResponse(int status, String body) {
+        this(status, body, null, null);
+    }
+
+    /**
+     * @param status
+     * @param body     JSON body, null if there is none
+     * @param version  version of the resource sent as ETag, null if there is none
+     * @param location location of a created resource, null if there is none
+     */
+    StandInResponse(int status, String body, String version, String location) {
+
+        this.status = status;
+        this.body = body;
+        this.version = version;
+        this.location = location;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getBody() {
+        return body;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return seconds sent in Retry-After, -1 if not sent
+     */
+    int getRetryAfter() {
+        return retryAfter;
+    }
+
+    StandInResponse setRetryAfter(int retryAfter) {
+
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+}
@@ -0,0 +1,776 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process SCIM 2.0 stand-in for the SaaS endpoints the connector provisions to, serving /Users, /Groups, /Bulk
+ * and /ServiceProviderConfig under {@link #BASE_PATH} on a loopback port. It speaks HTTP/1.1 with persistent
+ * connections straight over sockets, so that faults can be injected below the HTTP level too: a reset connection is
+ * closed with a TCP RST and a slow body is dribbled out in small chunks. Every request received is counted by method
+ * and resource, so the HTTP calls the connector makes per provisioned entity can be measured. Gzip encoded request
+ * bodies are accepted unless the faults reject them, and responses are gzip encoded for clients accepting it.
+ */
+public class StandInSCIMServer implements Closeable {
+
+    private static final Log log = LogFactory.getLog(StandInSCIMServer.class);
+
+    public static final String BASE_PATH = "/scim/v2";
+    public static final String USERS = "/Users";
+    public static final String GROUPS = "/Groups";
+    public static final String BULK = "/Bulk";
+    public static final String SERVICE_PROVIDER_CONFIG = "/ServiceProviderConfig";
+
+    private static final String BULK_RESPONSE_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+    private static final String SERVICE_PROVIDER_CONFIG_SCHEMA =
+            "urn:ietf:params:scim:schemas:core:2.0:ServiceProviderConfig";
+    private static final String CONTENT_TYPE = "application/scim+json;charset=UTF-8";
+    private static final int MAX_BULK_OPERATIONS = 1000;
+    private static final int MAX_BULK_PAYLOAD_SIZE = 1048576;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int BACKLOG = 1024;
+    // Smaller response bodies are sent unencoded even if the client accepts gzip.
+    private static final int MIN_GZIP_RESPONSE_SIZE = 1024;
+    private static final Pattern BULK_ID_REFERENCE = Pattern.compile("bulkId:([\\w.-]+)");
+
+    private static final Map<Integer, String> REASON_PHRASES = new HashMap<>();
+
+    static {
+        REASON_PHRASES.put(200, "OK");
+        REASON_PHRASES.put(201, "Created");
+        REASON_PHRASES.put(204, "No Content");
+        REASON_PHRASES.put(304, "Not Modified");
+        REASON_PHRASES.put(400, "Bad Request");
+        REASON_PHRASES.put(404, "Not Found");
+        REASON_PHRASES.put(405, "Method Not Allowed");
+        REASON_PHRASES.put(409, "Conflict");
+        REASON_PHRASES.put(412, "Precondition Failed");
+        REASON_PHRASES.put(413, "Payload Too Large");
+        REASON_PHRASES.put(415, "Unsupported Media Type");
+        REASON_PHRASES.put(429, "Too Many Requests");
+        REASON_PHRASES.put(500, "Internal Server Error");
+        REASON_PHRASES.put(503, "Service Unavailable");
+    }
+
+    private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong bulkOperations = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong slowBodies = new AtomicLong();
+    private final AtomicLong rejectedGzipRequests = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile FaultProfile faults;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private ExecutorService connectionExecutor;
+    private String baseUrl;
+    private StandInResourceStore users;
+    private StandInResourceStore groups;
+
+    /**
+     * @param faults faults to inject
+     */
+    public StandInSCIMServer(FaultProfile faults) {
+        this.faults = faults;
+    }
+
+    /**
+     * Replaces the faults injected into the requests received from now on.
+     *
+     * @param faults
+     */
+    public void setFaults(FaultProfile faults) {
+        this.faults = faults;
+    }
+
+    /**
+     * Starts serving on a free loopback port.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+        baseUrl = "http://" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort() +
+                BASE_PATH;
+        users = new StandInResourceStore("User", "userName", baseUrl + USERS);
+        groups = new StandInResourceStore("Group", "displayName", baseUrl + GROUPS);
+        connectionExecutor = Executors.newCachedThreadPool(new SCIMConnectorThreadFactory("SCIMStandInConnection"));
+        running = true;
+
+        new SCIMConnectorThreadFactory("SCIMStandInAcceptor").newThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }).start();
+        if (log.isDebugEnabled()) {
+            log.debug("SCIM stand-in server started at: " + baseUrl + " with faults: " + faults);
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public synchronized void close() {
+
+        running = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.warn("Error while closing the SCIM stand-in server socket.", e);
+            }
+        }
+        for (Socket connection : connections) {
+            closeQuietly(connection);
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return URL the SCIM resource endpoints are under, e.g. http://127.0.0.1:port/scim/v2
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getUserEndpoint() {
+        return baseUrl + USERS;
+    }
+
+    public String getGroupEndpoint() {
+        return baseUrl + GROUPS;
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return requests received by method and resource, e.g. "PATCH /Groups", faulted ones included
+     */
+    public Map<String, Long> getRequestCounts() {
+
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> count : requestCounts.entrySet()) {
+            counts.put(count.getKey(), count.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return operations received in bulk requests
+     */
+    public long getBulkOperations() {
+        return bulkOperations.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getSlowBodies() {
+        return slowBodies.get();
+    }
+
+    public long getRejectedGzipRequests() {
+        return rejectedGzipRequests.get();
+    }
+
+    /**
+     * @return connections accepted, a measure of how well the client reuses its connections
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return largest number of connections open at the same time
+     */
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    /**
+     * Clears the request and fault counters, keeping the users and groups.
+     */
+    public void resetCounters() {
+
+        requestCounts.clear();
+        bulkOperations.set(0);
+        resets.set(0);
+        throttledRequests.set(0);
+        serverErrors.set(0);
+        slowBodies.set(0);
+        rejectedGzipRequests.set(0);
+        connectionsOpened.set(0);
+        peakConnections.set(connections.size());
+    }
+
+    private void accept() {
+
+        while (running) {
+            try {
+                final Socket connection = serverSocket.accept();
+                connections.add(connection);
+                connectionsOpened.incrementAndGet();
+                int open = connections.size();
+                int peak;
+                while (open > (peak = peakConnections.get()) && !peakConnections.compareAndSet(peak, open)) {
+                    // Retry until the peak is at least the connections open now.
+                }
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Error while accepting a connection to the SCIM stand-in server.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a persistent connection until the client closes it or a fault resets it.
+     */
+    private void serve(Socket connection) {
+
+        try {
+            connection.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+            HttpRequest request;
+            while (running && (request = HttpRequest.read(in)) != null) {
+                if (!serve(connection, request, out)) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Connection to the SCIM stand-in server closed: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            log.warn("Error while serving a connection of the SCIM stand-in server.", e);
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * @return whether the connection stays open for further requests
+     */
+    private boolean serve(Socket connection, HttpRequest request, OutputStream out) throws IOException {
+
+        String resource = getResource(request.path);
+        count(request.method + " " + (resource != null ? resource : request.path));
+        boolean faulty = !SERVICE_PROVIDER_CONFIG.equals(resource);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        FaultProfile faults = this.faults;
+
+        if (faulty) {
+            long latency = faults.getLatency() + (faults.getLatencyJitter() > 0 ? random.nextLong(faults
+                    .getLatencyJitter() + 1) : 0);
+            if (latency > 0) {
+                sleep(latency);
+            }
+            if (random.nextDouble() < faults.getResetRate()) {
+                resets.incrementAndGet();
+                connection.setSoLinger(true, 0);
+                connection.close();
+                return false;
+            }
+        }
+
+        StandInResponse response;
+        if (faults.isRejectGzipRequests() && request.isGzipEncoded()) {
+            rejectedGzipRequests.incrementAndGet();
+            response = error(415, "Gzip encoded request bodies are not supported.");
+        } else if (faulty && random.nextDouble() < faults.getThrottleRate()) {
+            throttledRequests.incrementAndGet();
+            response = error(429, "Too many requests.").setRetryAfter(faults.getRetryAfterSeconds());
+        } else if (faulty && random.nextDouble() < faults.getServerErrorRate()) {
+            serverErrors.incrementAndGet();
+            response = error(503, "Service temporarily unavailable.");
+        } else {
+            response = handle(request.method, request.path, request.query, request.getHeader("if-match"),
+                    request.getHeader("if-none-match"), request.body);
+        }
+
+        boolean slowBody = faulty && response.getBody() != null && random.nextDouble() < faults.getSlowBodyRate();
+        if (slowBody) {
+            slowBodies.incrementAndGet();
+        }
+        boolean keepAlive = !"close".equalsIgnoreCase(request.getHeader("connection"));
+        write(out, response, slowBody ? faults : null, request.acceptsGzip(), keepAlive);
+        return keepAlive;
+    }
+
+    private StandInResponse handle(String method, String path, String query, String ifMatch, String ifNoneMatch,
+                                   String body) {
+
+        try {
+            String resource = getResource(path);
+            if (resource == null) {
+                return StandInResourceStore.error(404, null, "No resource at: " + path);
+            }
+            if (SERVICE_PROVIDER_CONFIG.equals(resource)) {
+                return "GET".equals(method) ? getServiceProviderConfig() : methodNotAllowed(method, path);
+            }
+            if (BULK.equals(resource)) {
+                return "POST".equals(method) ? bulk(body) : methodNotAllowed(method, path);
+            }
+
+            StandInResourceStore store = USERS.equals(resource) ? users : groups;
+            String id = path.substring(BASE_PATH.length() + resource.length());
+            id = id.startsWith("/") ? id.substring(1) : id;
+            if (id.isEmpty()) {
+                if ("GET".equals(method)) {
+                    Map<String, String> parameters = parseQuery(query);
+                    if (parameters.containsKey("filter")) {
+                        return store.filter(parameters.get("filter"));
+                    }
+                    return store.list(parseInt(parameters.get("startIndex"), 1), parseInt(parameters.get("count"),
+                            DEFAULT_PAGE_SIZE));
+                } else if ("POST".equals(method)) {
+                    return store.create(new JSONObject(body));
+                }
+            } else if ("GET".equals(method)) {
+                return store.get(id, ifNoneMatch);
+            } else if ("PUT".equals(method)) {
+                return store.replace(id, new JSONObject(body), ifMatch);
+            } else if ("PATCH".equals(method)) {
+                return store.patch(id, new JSONObject(body), ifMatch);
+            } else if ("DELETE".equals(method)) {
+                return store.delete(id, ifMatch);
+            }
+            return methodNotAllowed(method, path);
+        } catch (JSONException | RuntimeException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Invalid request: " + method + " " + path, e);
+            }
+            return error(400, "Invalid request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the operations of a bulk request in order, resolving bulkId references to the resources created by
+     * earlier operations of the same request.
+     */
+    private StandInResponse bulk(String body) throws JSONException {
+
+        if (body.length() > MAX_BULK_PAYLOAD_SIZE) {
+            return StandInResourceStore.error(413, "tooLarge", "Bulk request exceeds: " + MAX_BULK_PAYLOAD_SIZE +
+                    " bytes.");
+        }
+        JSONArray operations = new JSONObject(body).optJSONArray("Operations");
+        if (operations == null) {
+            return StandInResourceStore.error(400, "invalidSyntax", "Bulk request has no operations.");
+        }
+        if (operations.length() > MAX_BULK_OPERATIONS) {
+            return StandInResourceStore.error(413, "tooMany", "Bulk request exceeds: " + MAX_BULK_OPERATIONS +
+                    " operations.");
+        }
+        bulkOperations.addAndGet(operations.length());
+
+        Map<String, String> createdIds = new HashMap<>();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.optJSONObject(i);
+            if (operation == null) {
+                continue;
+            }
+            String method = operation.optString("method", "").toUpperCase(Locale.ENGLISH);
+            String bulkId = operation.optString("bulkId", null);
+            String path = resolveBulkIds(operation.optString("path", ""), createdIds);
+            Object data = operation.opt("data");
+            String operationBody = data != null ? resolveBulkIds(data.toString(), createdIds) : null;
+
+            StandInResponse response = handle(method, BASE_PATH + path, null, operation.optString("version", null),
+                    null, operationBody);
+            if (bulkId != null && response.isSuccess() && response.getLocation() != null) {
+                createdIds.put(bulkId, response.getLocation().substring(response.getLocation().lastIndexOf('/') +
+                        1));
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("method", method);
+            if (bulkId != null) {
+                result.put("bulkId", bulkId);
+            }
+            if (response.getLocation() != null) {
+                result.put("location", response.getLocation());
+            }
+            if (response.getVersion() != null) {
+                result.put("version", response.getVersion());
+            }
+            result.put("status", String.valueOf(response.getStatus()));
+            if (!response.isSuccess() && response.getBody() != null) {
+                result.put("response", new JSONObject(response.getBody()));
+            }
+            results.put(result);
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("schemas", new JSONArray().put(BULK_RESPONSE_SCHEMA));
+        response.put("Operations", results);
+        return new StandInResponse(200, response.toString());
+    }
+
+    private static String resolveBulkIds(String value, Map<String, String> createdIds) {
+
+        if (value.indexOf("bulkId:") < 0) {
+            return value;
+        }
+        Matcher matcher = BULK_ID_REFERENCE.matcher(value);
+        StringBuffer resolved = new StringBuffer();
+        while (matcher.find()) {
+            String id = createdIds.get(matcher.group(1));
+            matcher.appendReplacement(resolved, Matcher.quoteReplacement(id != null ? id : matcher.group()));
+        }
+        matcher.appendTail(resolved);
+        return resolved.toString();
+    }
+
+    private StandInResponse getServiceProviderConfig() throws JSONException {
+
+        JSONObject config = new JSONObject();
+        config.put("schemas", new JSONArray().put(SERVICE_PROVIDER_CONFIG_SCHEMA));
+        config.put("patch", new JSONObject().put("supported", true));
+        config.put("bulk", new JSONObject().put("supported", true).put("maxOperations", MAX_BULK_OPERATIONS)
+                .put("maxPayloadSize", MAX_BULK_PAYLOAD_SIZE));
+        config.put("filter", new JSONObject().put("supported", true).put("maxResults", DEFAULT_PAGE_SIZE));
+        config.put("etag", new JSONObject().put("supported", true));
+        return new StandInResponse(200, config.toString());
+    }
+
+    /**
+     * @param slowBody profile to trickle the body out with, null to write it at once
+     * @param gzip     whether the client accepts a gzip encoded body
+     */
+    private void write(OutputStream out, StandInResponse response, FaultProfile slowBody, boolean gzip,
+                       boolean keepAlive) throws IOException {
+
+        byte[] body = response.getBody() != null ? response.getBody().getBytes(StandardCharsets.UTF_8) : null;
+        gzip = gzip && body != null && body.length >= MIN_GZIP_RESPONSE_SIZE;
+        if (gzip) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream gzipOut = new GZIPOutputStream(encoded)) {
+                gzipOut.write(body);
+            }
+            body = encoded.toByteArray();
+        }
+        String reason = REASON_PHRASES.get(response.getStatus());
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(response.getStatus()).append(' ').append(reason != null ? reason :
+                "Unknown").append("\r\n");
+        if (body != null) {
+            head.append("Content-Type: ").append(CONTENT_TYPE).append("\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        } else if (response.getStatus() != 204 && response.getStatus() != 304) {
+            head.append("Content-Length: 0\r\n");
+        }
+        if (response.getVersion() != null) {
+            head.append("ETag: ").append(response.getVersion()).append("\r\n");
+        }
+        if (response.getLocation() != null && response.getStatus() == 201) {
+            head.append("Location: ").append(response.getLocation()).append("\r\n");
+        }
+        if (response.getRetryAfter() >= 0) {
+            head.append("Retry-After: ").append(response.getRetryAfter()).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (body != null && slowBody != null) {
+            out.flush();
+            int chunkSize = slowBody.getSlowBodyChunkSize();
+            for (int offset = 0; offset < body.length; offset += chunkSize) {
+                out.write(body, offset, Math.min(chunkSize, body.length - offset));
+                out.flush();
+                sleep(slowBody.getSlowBodyChunkDelay());
+            }
+        } else if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the resource path of the request path, e.g. /Users for /scim/v2/Users/{id}, null if it is not a SCIM
+     * resource
+     */
+    private static String getResource(String path) {
+
+        if (!path.startsWith(BASE_PATH)) {
+            return null;
+        }
+        String resourcePath = path.substring(BASE_PATH.length());
+        for (String resource : new String[]{USERS, GROUPS, BULK, SERVICE_PROVIDER_CONFIG}) {
+            if (resourcePath.equals(resource) || resourcePath.startsWith(resource + "/")) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    private void count(String key) {
+
+        AtomicLong count = requestCounts.get(key);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = requestCounts.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static StandInResponse error(int status, String detail) {
+
+        try {
+            return StandInResourceStore.error(status, null, detail);
+        } catch (JSONException e) {
+            return new StandInResponse(status, null);
+        }
+    }
+
+    private static StandInResponse methodNotAllowed(String method, String path) {
+        return error(405, "Method: " + method + " is not supported on: " + path);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void sleep(long millis) {
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while closing a connection of the SCIM stand-in server.", e);
+            }
+        }
+    }
+
+    /**
+     * An HTTP/1.1 request with a Content-Length delimited body, as sent by the connector.
+     */
+    private static final class HttpRequest {
+
+        private String method;
+        private String path;
+        private String query;
+        private final Map<String, String> headers = new HashMap<>();
+        private String body;
+
+        /**
+         * @return the next request of the connection, null if the client closed it
+         */
+        static HttpRequest read(InputStream in) throws IOException {
+
+            String requestLine = readLine(in);
+            while (requestLine != null && requestLine.isEmpty()) {
+                requestLine = readLine(in);
+            }
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Malformed HTTP request line: " + requestLine);
+            }
+            HttpRequest request = new HttpRequest();
+            request.method = parts[0].toUpperCase(Locale.ENGLISH);
+            int querySeparator = parts[1].indexOf('?');
+            request.path = querySeparator < 0 ? parts[1] : parts[1].substring(0, querySeparator);
+            request.query = querySeparator < 0 ? null : parts[1].substring(querySeparator + 1);
+
+            String header;
+            while ((header = readLine(in)) != null && !header.isEmpty()) {
+                int separator = header.indexOf(':');
+                if (separator > 0) {
+                    request.headers.put(header.substring(0, separator).trim().toLowerCase(Locale.ENGLISH),
+                            header.substring(separator + 1).trim());
+                }
+            }
+            if (request.headers.containsKey("transfer-encoding")) {
+                throw new IOException("Chunked request bodies are not supported by the SCIM stand-in server.");
+            }
+
+            int contentLength = parseInt(request.getHeader("content-length"), 0);
+            byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int count = in.read(body, read, contentLength - read);
+                if (count < 0) {
+                    throw new IOException("Connection closed before the request body was read.");
+                }
+                read += count;
+            }
+            if (request.isGzipEncoded()) {
+                body = gunzip(body);
+            }
+            request.body = new String(body, StandardCharsets.UTF_8);
+            return request;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        boolean isGzipEncoded() {
+            return "gzip".equalsIgnoreCase(getHeader("content-encoding"));
+        }
+
+        boolean acceptsGzip() {
+
+            String acceptEncoding = getHeader("accept-encoding");
+            return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ENGLISH).contains("gzip");
+        }
+
+        private static byte[] gunzip(byte[] body) throws IOException {
+
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(body.length * 4);
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    decoded.write(buffer, 0, count);
+                }
+            }
+            return decoded.toByteArray();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return c == -1 && line.length() == 0 ? null : line.toString();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.loadtest;
+
+import org.junit.Test;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnector;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Short runs of the harness, checking the connector keeps up with the stand-in server with and without faults.
+ */
+public class LoadHarnessTest {
+
+    private static final int CONCURRENCY = 4;
+    private static final int USERS = 50;
+    private static final int GROUPS = 5;
+    private static final int GROUP_SIZE = 20;
+    private static final long DURATION = 2000;
+    private static final int GZIP_USERS = 3;
+
+    @Test
+    public void testRunWithoutFaults() throws Exception {
+
+        LoadReport report = LoadTestRunner.run(FaultProfile.none(), OperationMix.parse(OperationMix.DEFAULT_MIX),
+                Collections.<String, String>emptyMap(), CONCURRENCY, USERS, GROUPS, GROUP_SIZE, 0, DURATION);
+
+        assertTrue("No operations were run.", report.getOperations() > 0);
+        assertEquals("Operations failed: " + report, 0, report.getFailures());
+        assertTrue("Unexpected request amplification: " + report,
+                report.getAmplification() > 0 && report.getAmplification() <= 4);
+    }
+
+    @Test
+    public void testRunWithThrottlingAndServerErrors() throws Exception {
+
+        FaultProfile faults = FaultProfile.none().setThrottleRate(0.05).setRetryAfterSeconds(0)
+                .setServerErrorRate(0.05);
+        LoadReport report = LoadTestRunner.run(faults, OperationMix.parse(OperationMix.DEFAULT_MIX),
+                Collections.<String, String>emptyMap(), CONCURRENCY, USERS, GROUPS, GROUP_SIZE, 0, DURATION);
+
+        assertTrue("No operations were run.", report.getOperations() > 0);
+        assertTrue("Retried operations failed: " + report, report.getFailures() * 100 <= report.getOperations());
+    }
+
+    @Test
+    public void testGzipRequestBodyResentUnencodedAfterRejection() throws Exception {
+
+        StandInSCIMServer server = new StandInSCIMServer(FaultProfile.none().setRejectGzipRequests(true));
+        server.start();
+        try {
+            Map<String, String> connectorProperties = new HashMap<>();
+            connectorProperties.put(SCIMProvisioningConnectorConstants.SCIM_GZIP_ENABLED, "true");
+            connectorProperties.put(SCIMProvisioningConnectorConstants.SCIM_GZIP_MIN_REQUEST_SIZE, "1");
+            SCIMProvisioningConnector connector = LoadTestRunner.createConnector(server, connectorProperties);
+            try {
+                for (int i = 0; i < GZIP_USERS; i++) {
+                    ProvisionedIdentifier identifier = connector.provision(LoadFixtures.user(
+                            ProvisioningOperation.POST, "gzip-user-" + i, 0, null));
+                    assertNotNull("User was not created.", identifier);
+                }
+            } finally {
+                connector.close(0);
+            }
+
+            assertEquals("Only the first encoded body should be sent.", 1, server.getRejectedGzipRequests());
+            assertEquals("Users were not created from the unencoded bodies.", GZIP_USERS, server.getUserCount());
+        } finally {
+            server.close();
+        }
+    }
+}
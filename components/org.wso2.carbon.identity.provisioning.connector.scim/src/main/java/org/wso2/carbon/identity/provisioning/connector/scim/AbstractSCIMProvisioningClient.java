@@ -0,0 +1,1103 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.bulk.BulkOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.cache.ResourceIdCache;
+import org.wso2.carbon.identity.provisioning.connector.scim.diff.AttributeDiff;
+import org.wso2.carbon.identity.provisioning.connector.scim.diff.AttributeFingerprintStore;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonReader;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.PatchMethod;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpResponse;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpStatusException;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+import org.wso2.charon.core.config.SCIMConfigConstants;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisions users and groups to a SCIM endpoint over the shared transport. Resolving and caching the ids the
+ * endpoint assigned, sending requests and retrying on stale ids are common to all SCIM versions; encoding the
+ * resources and filters is left to the version specific subclasses.
+ */
+public abstract class AbstractSCIMProvisioningClient {
+
+    private static final Log log = LogFactory.getLog(AbstractSCIMProvisioningClient.class);
+
+    protected static final String HTTP_POST = "POST";
+    protected static final String HTTP_PUT = "PUT";
+    protected static final String HTTP_PATCH = "PATCH";
+    protected static final String HTTP_DELETE = "DELETE";
+    protected static final String ID = "id";
+    protected static final String META = "meta";
+    protected static final String VERSION = "version";
+
+    private static final String RESOURCES = "Resources";
+    private static final String START_INDEX = "startIndex";
+    private static final String COUNT = "count";
+    private static final long MEMBER_CHUNK_WORKER_KEEP_ALIVE = 60;
+    // Characters of a group payload besides its members, e.g. schemas and the display name key.
+    private static final int GROUP_PAYLOAD_OVERHEAD = 128;
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String LOCATION_HEADER = "Location";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    protected final SCIMProvider scimProvider;
+    private final SCIMHttpTransport transport;
+    private final ResourceIdCache userIdCache;
+    private final ResourceIdCache groupIdCache;
+    private final AttributeFingerprintStore userAttributeStore;
+    private final boolean conditionalRequests;
+    private final int memberChunkSize;
+    private final ThreadPoolExecutor memberChunkExecutor;
+
+    protected AbstractSCIMProvisioningClient(SCIMProvider scimProvider, SCIMHttpTransport transport) {
+
+        this.scimProvider = scimProvider;
+        this.transport = transport;
+        this.userIdCache = createIdCache(scimProvider);
+        this.groupIdCache = createIdCache(scimProvider);
+        if (SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_ATTRIBUTE_DIFF_ENABLED, true)) {
+            this.userAttributeStore = new AttributeFingerprintStore(SCIMProvisioningConnectorUtil.getIntProperty(
+                    scimProvider, SCIMProvisioningConnectorConstants.SCIM_ATTRIBUTE_FINGERPRINT_CACHE_SIZE,
+                    SCIMProvisioningConnectorConstants.DEFAULT_ATTRIBUTE_FINGERPRINT_CACHE_SIZE));
+        } else {
+            this.userAttributeStore = null;
+        }
+
+        this.conditionalRequests = SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_CONDITIONAL_REQUESTS_ENABLED, true);
+
+        this.memberChunkSize = Math.max(1, SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_GROUP_MEMBER_CHUNK_SIZE,
+                SCIMProvisioningConnectorConstants.DEFAULT_GROUP_MEMBER_CHUNK_SIZE));
+        int chunkParallelism = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_GROUP_MEMBER_CHUNK_PARALLELISM,
+                SCIMProvisioningConnectorConstants.DEFAULT_GROUP_MEMBER_CHUNK_PARALLELISM);
+        if (chunkParallelism > 1) {
+            // Idle workers die, and the caller sends a chunk itself when all workers are busy.
+            this.memberChunkExecutor = new ThreadPoolExecutor(0, chunkParallelism, MEMBER_CHUNK_WORKER_KEEP_ALIVE,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new SCIMConnectorThreadFactory(
+                    "SCIMGroupMemberChunkSender"), new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            this.memberChunkExecutor = null;
+        }
+    }
+
+    /**
+     * @return schema URI of bulk requests of this SCIM version
+     */
+    public abstract String getBulkRequestSchema();
+
+    /**
+     * @return path of the service provider configuration relative to the SCIM base URL
+     */
+    public abstract String getServiceProviderConfigPath();
+
+    /**
+     * @param userName
+     * @param claims   single valued claims of the user in the SCIM claim dialect
+     * @param password password to set, null if not provisioned
+     * @return
+     * @throws IdentitySCIMException
+     */
+    protected abstract String encodeUser(String userName, Map<String, String> claims, String password) throws
+            IdentitySCIMException;
+
+    /**
+     * @param userName
+     * @param diff                  claims changed since the user was last provisioned
+     * @param provisioningOperation
+     * @return
+     * @throws IdentitySCIMException
+     */
+    protected abstract String encodeUserUpdate(String userName, AttributeDiff diff,
+                                               ProvisioningOperation provisioningOperation) throws
+            IdentitySCIMException;
+
+    /**
+     * @param groupName
+     * @param memberNames user names of the members
+     * @return
+     * @throws IdentitySCIMException
+     */
+    protected abstract String encodeGroup(String groupName, List<String> memberNames) throws IdentitySCIMException;
+
+    /**
+     * @param groupName
+     * @param addedMemberNames
+     * @param removedMemberNames
+     * @param provisioningOperation
+     * @param oldGroupName          previous display name of the group if it was renamed, null otherwise
+     * @return
+     * @throws IdentitySCIMException
+     */
+    protected abstract String encodeGroupUpdate(String groupName, List<String> addedMemberNames,
+                                                List<String> removedMemberNames,
+                                                ProvisioningOperation provisioningOperation,
+                                                String oldGroupName) throws IdentitySCIMException;
+
+    /**
+     * @param memberValue   id of the member or bulkId:{bulkId} reference
+     * @param memberDisplay user name of the member
+     * @return patch adding the member to a group
+     */
+    protected abstract String encodeAddGroupMember(String memberValue, String memberDisplay);
+
+    protected abstract String getUserFilter(String userName);
+
+    protected abstract String getGroupFilter(String groupName);
+
+    /**
+     * @param userName
+     * @param claims
+     * @param password
+     * @return id the SCIM endpoint assigned to the user, null if the endpoint did not report it
+     * @throws IdentitySCIMException
+     */
+    public String createUser(String userName, Map<String, String> claims, String password) throws
+            IdentitySCIMException {
+
+        SCIMHttpResponse response = send(buildCreateUserOperation(null, userName, claims, password),
+                "creating user: " + userName);
+        rememberUserAttributes(userName, claims);
+        return cacheCreatedResource(userIdCache, userName, response);
+    }
+
+    public void updateUser(String userName, Map<String, String> claims, ProvisioningOperation
+            provisioningOperation) throws IdentitySCIMException {
+
+        BulkOperation operation = buildUpdateUserOperation(null, userName, claims, provisioningOperation);
+        if (operation == null) {
+            return;
+        }
+        SCIMHttpResponse response;
+        try {
+            response = send(operation, "updating user: " + userName, getVersion(userIdCache, userName));
+        } catch (SCIMHttpStatusException e) {
+            // The cached id or version may be stale, refresh it and send all of the attributes of the user.
+            recoverStaleResource(e, userIdCache, userName, getUserEndpoint());
+            invalidateUserAttributes(userName);
+            response = send(buildUpdateUserOperation(null, userName, claims, provisioningOperation),
+                    "updating user: " + userName, getVersion(userIdCache, userName));
+        }
+        updateVersion(userIdCache, userName, response);
+        rememberUpdatedUserAttributes(userName, claims);
+    }
+
+    public void deleteUser(String userName) throws IdentitySCIMException {
+
+        BulkOperation operation = buildDeleteUserOperation(null, userName);
+        if (operation == null) {
+            return;
+        }
+        try {
+            send(operation, "deleting user: " + userName, getVersion(userIdCache, userName));
+        } catch (SCIMHttpStatusException e) {
+            recoverStaleResource(e, userIdCache, userName, getUserEndpoint());
+            operation = buildDeleteUserOperation(null, userName);
+            if (operation != null) {
+                send(operation, "deleting user: " + userName, getVersion(userIdCache, userName));
+            }
+        }
+        userIdCache.putAbsent(userName);
+        invalidateUserAttributes(userName);
+    }
+
+    /**
+     * @param groupName
+     * @param memberNames
+     * @return id the SCIM endpoint assigned to the group, null if the endpoint did not report it
+     * @throws IdentitySCIMException
+     */
+    public String createGroup(String groupName, List<String> memberNames) throws IdentitySCIMException {
+
+        if (!isChunked(memberNames, null)) {
+            SCIMHttpResponse response = send(buildCreateGroupOperation(null, groupName, memberNames),
+                    "creating group: " + groupName);
+            return cacheCreatedResource(groupIdCache, groupName, response);
+        }
+
+        // Create the group empty and fill it in chunks rather than sending all the members in one request.
+        SCIMHttpResponse response = send(buildCreateGroupOperation(null, groupName, null),
+                "creating group: " + groupName);
+        String groupId = cacheCreatedResource(groupIdCache, groupName, response);
+        updateMembersInChunks(groupName, memberNames, null);
+        return groupId;
+    }
+
+    /**
+     * @param groupName
+     * @param addedMemberNames
+     * @param removedMemberNames
+     * @param provisioningOperation PUT or PATCH
+     * @param oldGroupName          previous display name of the group if it was renamed, null otherwise
+     * @throws IdentitySCIMException
+     */
+    public void updateGroup(String groupName, List<String> addedMemberNames, List<String> removedMemberNames,
+                            ProvisioningOperation provisioningOperation, String oldGroupName) throws
+            IdentitySCIMException {
+
+        if (!isChunked(addedMemberNames, removedMemberNames)) {
+            sendGroupUpdate(groupName, addedMemberNames, removedMemberNames, provisioningOperation, oldGroupName,
+                    true);
+            groupRenamed(groupName, oldGroupName);
+            return;
+        }
+
+        if (StringUtils.isNotEmpty(oldGroupName) && !oldGroupName.equals(groupName)) {
+            sendGroupUpdate(groupName, null, null, provisioningOperation, oldGroupName, true);
+            groupRenamed(groupName, oldGroupName);
+        }
+        updateMembersInChunks(groupName, addedMemberNames, removedMemberNames);
+    }
+
+    /**
+     * @param addedMemberNames
+     * @param removedMemberNames
+     * @return true if the membership change is too large for a single request and is sent in chunks
+     */
+    public boolean isChunked(List<String> addedMemberNames, List<String> removedMemberNames) {
+        return size(addedMemberNames) + size(removedMemberNames) > memberChunkSize;
+    }
+
+    public void deleteGroup(String groupName) throws IdentitySCIMException {
+
+        BulkOperation operation = buildDeleteGroupOperation(null, groupName);
+        if (operation == null) {
+            return;
+        }
+        try {
+            send(operation, "deleting group: " + groupName, getVersion(groupIdCache, groupName));
+        } catch (SCIMHttpStatusException e) {
+            recoverStaleResource(e, groupIdCache, groupName, getGroupEndpoint());
+            operation = buildDeleteGroupOperation(null, groupName);
+            if (operation != null) {
+                send(operation, "deleting group: " + groupName, getVersion(groupIdCache, groupName));
+            }
+        }
+        groupIdCache.putAbsent(groupName);
+    }
+
+    /**
+     * Replaces all the attributes of the user in the SCIM endpoint with the given claims.
+     *
+     * @param userName
+     * @param claims
+     * @throws IdentitySCIMException
+     */
+    public void replaceUser(String userName, Map<String, String> claims) throws IdentitySCIMException {
+
+        SCIMHttpResponse response;
+        try {
+            response = send(buildReplaceUserOperation(userName, claims), "replacing user: " + userName,
+                    getVersion(userIdCache, userName));
+        } catch (SCIMHttpStatusException e) {
+            recoverStaleResource(e, userIdCache, userName, getUserEndpoint());
+            response = send(buildReplaceUserOperation(userName, claims), "replacing user: " + userName,
+                    getVersion(userIdCache, userName));
+        }
+        updateVersion(userIdCache, userName, response);
+        rememberUserAttributes(userName, claims);
+    }
+
+    private BulkOperation buildReplaceUserOperation(String userName, Map<String, String> claims) throws
+            IdentitySCIMException {
+
+        String userId = getUserId(userName);
+        if (userId == null) {
+            throw new IdentitySCIMException("User: " + userName + " does not exist in the SCIM endpoint.");
+        }
+        return new BulkOperation(HTTP_PUT, getUserPath() + "/" + userId, null, encodeUser(userName, claims, null));
+    }
+
+    /**
+     * @param startIndex 1-based index of the first user of the page
+     * @param count      maximum number of users in the page
+     * @return list response of the SCIM endpoint holding the page
+     * @throws IdentitySCIMException
+     */
+    public String listUsers(int startIndex, int count) throws IdentitySCIMException {
+        return listResources(getUserEndpoint(), startIndex, count);
+    }
+
+    /**
+     * @param startIndex 1-based index of the first group of the page
+     * @param count      maximum number of groups in the page
+     * @return list response of the SCIM endpoint holding the page
+     * @throws IdentitySCIMException
+     */
+    public String listGroups(int startIndex, int count) throws IdentitySCIMException {
+        return listResources(getGroupEndpoint(), startIndex, count);
+    }
+
+    /**
+     * Encodes the user resource the claims are provisioned as, without a password.
+     *
+     * @param userName
+     * @param claims
+     * @return
+     * @throws IdentitySCIMException
+     */
+    public String encodeUserResource(String userName, Map<String, String> claims) throws IdentitySCIMException {
+        return encodeUser(userName, claims, null);
+    }
+
+    /**
+     * Records an id known from a previous provisioning of the user, so it does not have to be looked up.
+     */
+    public void rememberUserId(String userName, String userId) {
+        userIdCache.put(userName, userId, null);
+    }
+
+    /**
+     * Records an id known from a previous provisioning of the group, so it does not have to be looked up.
+     */
+    public void rememberGroupId(String groupName, String groupId) {
+        groupIdCache.put(groupName, groupId, null);
+    }
+
+    /**
+     * Records the claims provisioned for the user, so that later updates send only the claims that changed.
+     *
+     * @param userName
+     * @param claims
+     */
+    public void rememberUserAttributes(String userName, Map<String, String> claims) {
+
+        if (userAttributeStore != null && userName != null) {
+            userAttributeStore.put(userName, claims);
+        }
+    }
+
+    /**
+     * Records the claims updated for the user on top of the ones provisioned before. Claims given without a value
+     * were removed, claims not given at all did not change.
+     *
+     * @param userName
+     * @param claims
+     */
+    public void rememberUpdatedUserAttributes(String userName, Map<String, String> claims) {
+
+        if (userAttributeStore != null && userName != null) {
+            userAttributeStore.merge(userName, claims);
+        }
+    }
+
+    /**
+     * Updates the id caches with the outcome of operations sent in a bulk request.
+     *
+     * @param entityName
+     * @param operation
+     * @param group      whether the operation is about a group
+     */
+    public void bulkOperationCompleted(String entityName, BulkOperation operation, boolean group) {
+
+        ResourceIdCache cache = group ? groupIdCache : userIdCache;
+        if (!group && (!operation.isSuccess() || HTTP_DELETE.equals(operation.getMethod()))) {
+            invalidateUserAttributes(entityName);
+        }
+        if (!operation.isSuccess()) {
+            if (operation.getStatus() == HTTP_NOT_FOUND) {
+                cache.invalidate(entityName);
+            }
+        } else if (HTTP_POST.equals(operation.getMethod())) {
+            if (operation.getResourceId() != null) {
+                cache.put(entityName, operation.getResourceId(), operation.getVersion());
+            } else {
+                cache.invalidate(entityName);
+            }
+        } else if (HTTP_DELETE.equals(operation.getMethod())) {
+            cache.putAbsent(entityName);
+        } else {
+            ResourceIdCache.Entry entry = cache.get(entityName);
+            if (entry != null && !entry.isNegative()) {
+                cache.put(entityName, entry.getId(), operation.getVersion());
+            }
+        }
+    }
+
+    /**
+     * Moves the cached id of a renamed group to its new name.
+     *
+     * @param groupName
+     * @param oldGroupName
+     */
+    public void groupRenamed(String groupName, String oldGroupName) {
+
+        if (StringUtils.isEmpty(oldGroupName) || oldGroupName.equals(groupName)) {
+            return;
+        }
+        ResourceIdCache.Entry entry = groupIdCache.get(oldGroupName);
+        groupIdCache.invalidate(oldGroupName);
+        if (entry != null && !entry.isNegative()) {
+            groupIdCache.put(groupName, entry.getId(), entry.getVersion());
+        } else {
+            groupIdCache.invalidate(groupName);
+        }
+    }
+
+    public BulkOperation buildCreateUserOperation(String bulkId, String userName, Map<String, String> claims,
+                                                  String password) throws IdentitySCIMException {
+        return new BulkOperation(HTTP_POST, getUserPath(), bulkId, encodeUser(userName, claims, password));
+    }
+
+    /**
+     * @param bulkId
+     * @param userName
+     * @param claims
+     * @param provisioningOperation
+     * @return null if none of the claims changed since the user was last provisioned
+     * @throws IdentitySCIMException
+     */
+    public BulkOperation buildUpdateUserOperation(String bulkId, String userName, Map<String, String> claims,
+                                                  ProvisioningOperation provisioningOperation) throws
+            IdentitySCIMException {
+
+        AttributeDiff diff = diffUserAttributes(userName, claims);
+        if (diff.isEmpty()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Attributes of user: " + userName + " did not change since last provisioned. Nothing to " +
+                        "update.");
+            }
+            return null;
+        }
+
+        String userId = getUserId(userName);
+        if (userId == null) {
+            throw new IdentitySCIMException("User: " + userName + " does not exist in the SCIM endpoint.");
+        }
+        return new BulkOperation(getUpdateMethod(provisioningOperation), getUserPath() + "/" + userId, bulkId,
+                encodeUserUpdate(userName, diff, provisioningOperation));
+    }
+
+    /**
+     * @param bulkId
+     * @param userName
+     * @return null if the user does not exist in the SCIM endpoint
+     * @throws IdentitySCIMException
+     */
+    public BulkOperation buildDeleteUserOperation(String bulkId, String userName) throws IdentitySCIMException {
+
+        String userId = getUserId(userName);
+        if (userId == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("User: " + userName + " does not exist in the SCIM endpoint. Nothing to delete.");
+            }
+            return null;
+        }
+        return new BulkOperation(HTTP_DELETE, getUserPath() + "/" + userId, bulkId, null);
+    }
+
+    public BulkOperation buildCreateGroupOperation(String bulkId, String groupName, List<String> memberNames) throws
+            IdentitySCIMException {
+        return new BulkOperation(HTTP_POST, getGroupPath(), bulkId, encodeGroup(groupName, memberNames));
+    }
+
+    public BulkOperation buildUpdateGroupOperation(String bulkId, String groupName, List<String> addedMemberNames,
+                                                   List<String> removedMemberNames,
+                                                   ProvisioningOperation provisioningOperation,
+                                                   String oldGroupName) throws IdentitySCIMException {
+
+        String currentGroupName = StringUtils.isEmpty(oldGroupName) ? groupName : oldGroupName;
+        String groupId = getGroupId(currentGroupName);
+        if (groupId == null) {
+            throw new IdentitySCIMException("Group: " + currentGroupName + " does not exist in the SCIM endpoint.");
+        }
+        // Only the added and removed members are sent, which a PUT would take as the full member list.
+        return new BulkOperation(HTTP_PATCH, getGroupPath() + "/" + groupId, bulkId, encodeGroupUpdate(groupName,
+                addedMemberNames, removedMemberNames, provisioningOperation, oldGroupName));
+    }
+
+    /**
+     * @param bulkId
+     * @param groupName
+     * @return null if the group does not exist in the SCIM endpoint
+     * @throws IdentitySCIMException
+     */
+    public BulkOperation buildDeleteGroupOperation(String bulkId, String groupName) throws IdentitySCIMException {
+
+        String groupId = getGroupId(groupName);
+        if (groupId == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Group: " + groupName + " does not exist in the SCIM endpoint. Nothing to delete.");
+            }
+            return null;
+        }
+        return new BulkOperation(HTTP_DELETE, getGroupPath() + "/" + groupId, bulkId, null);
+    }
+
+    /**
+     * Builds a PATCH adding a member to a group. The member value may be a bulkId reference to a user created in
+     * the same bulk request.
+     *
+     * @param bulkId
+     * @param groupName
+     * @param memberValue   id of the member or bulkId:{bulkId} reference
+     * @param memberDisplay user name of the member
+     * @return
+     * @throws IdentitySCIMException
+     */
+    public BulkOperation buildAddGroupMemberOperation(String bulkId, String groupName, String memberValue,
+                                                      String memberDisplay) throws IdentitySCIMException {
+
+        String groupId = getGroupId(groupName);
+        if (groupId == null) {
+            throw new IdentitySCIMException("Group: " + groupName + " does not exist in the SCIM endpoint.");
+        }
+        return new BulkOperation(HTTP_PATCH, getGroupPath() + "/" + groupId, bulkId,
+                encodeAddGroupMember(memberValue, memberDisplay));
+    }
+
+    protected String getUpdateMethod(ProvisioningOperation provisioningOperation) {
+        return ProvisioningOperation.PATCH.equals(provisioningOperation) ? HTTP_PATCH : HTTP_PUT;
+    }
+
+    /**
+     * @param userName
+     * @return id of the user in the SCIM endpoint or null if the user does not exist there
+     * @throws IdentitySCIMException
+     */
+    protected String getUserId(String userName) throws IdentitySCIMException {
+        return getResourceId(userIdCache, userName, getUserEndpoint(), getUserFilter(userName));
+    }
+
+    /**
+     * @param groupName
+     * @return id of the group in the SCIM endpoint or null if the group does not exist there
+     * @throws IdentitySCIMException
+     */
+    protected String getGroupId(String groupName) throws IdentitySCIMException {
+        return getResourceId(groupIdCache, groupName, getGroupEndpoint(), getGroupFilter(groupName));
+    }
+
+    private AttributeDiff diffUserAttributes(String userName, Map<String, String> claims) {
+
+        if (userAttributeStore == null) {
+            return AttributeFingerprintStore.fullDiff(claims);
+        }
+        return userAttributeStore.diff(userName, claims);
+    }
+
+    /**
+     * @param conditional whether to send the cached version of the group in If-Match. Chunks of a membership
+     *                    change are not, as they would fail each other when sent in parallel.
+     */
+    private void sendGroupUpdate(String groupName, List<String> addedMemberNames, List<String> removedMemberNames,
+                                 ProvisioningOperation provisioningOperation, String oldGroupName,
+                                 boolean conditional) throws IdentitySCIMException {
+
+        String currentGroupName = StringUtils.isEmpty(oldGroupName) ? groupName : oldGroupName;
+        SCIMHttpResponse response;
+        try {
+            response = send(buildUpdateGroupOperation(null, groupName, addedMemberNames, removedMemberNames,
+                    provisioningOperation, oldGroupName), "updating group: " + groupName, conditional ?
+                    getVersion(groupIdCache, currentGroupName) : null);
+        } catch (SCIMHttpStatusException e) {
+            recoverStaleResource(e, groupIdCache, currentGroupName, getGroupEndpoint());
+            response = send(buildUpdateGroupOperation(null, groupName, addedMemberNames, removedMemberNames,
+                    provisioningOperation, oldGroupName), "updating group: " + groupName, conditional ?
+                    getVersion(groupIdCache, currentGroupName) : null);
+        }
+        if (conditional) {
+            updateVersion(groupIdCache, currentGroupName, response);
+        } else {
+            forgetVersion(groupIdCache, currentGroupName);
+        }
+    }
+
+    /**
+     * Sends the membership change as PATCH requests of at most the configured chunk size each, removals first. The
+     * chunks are sent in parallel if configured so.
+     *
+     * @param groupName
+     * @param addedMemberNames
+     * @param removedMemberNames
+     * @throws IdentitySCIMException if any of the chunks failed, after all of them were attempted
+     */
+    private void updateMembersInChunks(final String groupName, List<String> addedMemberNames,
+                                       List<String> removedMemberNames) throws IdentitySCIMException {
+
+        List<MemberChunk> chunks = new ArrayList<>();
+        for (int i = 0; i < size(removedMemberNames); i += memberChunkSize) {
+            chunks.add(new MemberChunk(groupName, null, removedMemberNames.subList(i, Math.min(i + memberChunkSize,
+                    removedMemberNames.size()))));
+        }
+        for (int i = 0; i < size(addedMemberNames); i += memberChunkSize) {
+            chunks.add(new MemberChunk(groupName, addedMemberNames.subList(i, Math.min(i + memberChunkSize,
+                    addedMemberNames.size())), null));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Updating members of group: " + groupName + " in " + chunks.size() + " chunks. Added: " +
+                    size(addedMemberNames) + ", removed: " + size(removedMemberNames));
+        }
+
+        int failedChunks = 0;
+        IdentitySCIMException failure = null;
+        if (memberChunkExecutor == null) {
+            for (MemberChunk chunk : chunks) {
+                try {
+                    chunk.call();
+                } catch (IdentitySCIMException e) {
+                    failedChunks++;
+                    failure = e;
+                }
+            }
+        } else {
+            List<Future<Void>> results = new ArrayList<>(chunks.size());
+            for (MemberChunk chunk : chunks) {
+                results.add(memberChunkExecutor.submit(chunk));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IdentitySCIMException("Interrupted while updating members of group: " + groupName, e);
+                } catch (ExecutionException e) {
+                    failedChunks++;
+                    failure = e.getCause() instanceof IdentitySCIMException ? (IdentitySCIMException) e.getCause() :
+                            new IdentitySCIMException("Error while updating members of group: " + groupName,
+                                    e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw new IdentitySCIMException("Error while updating members of group: " + groupName + ". " +
+                    failedChunks + " of " + chunks.size() + " chunks failed.", failure);
+        }
+    }
+
+    private class MemberChunk implements Callable<Void> {
+
+        private final String groupName;
+        private final List<String> addedMemberNames;
+        private final List<String> removedMemberNames;
+
+        MemberChunk(String groupName, List<String> addedMemberNames, List<String> removedMemberNames) {
+
+            this.groupName = groupName;
+            this.addedMemberNames = addedMemberNames;
+            this.removedMemberNames = removedMemberNames;
+        }
+
+        @Override
+        public Void call() throws IdentitySCIMException {
+
+            sendGroupUpdate(groupName, addedMemberNames, removedMemberNames, ProvisioningOperation.PATCH, null,
+                    false);
+            return null;
+        }
+    }
+
+    private static int size(List<String> list) {
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Estimates the length of a group payload listing the given members, so that the buffer it is written to can
+     * be sized up front instead of growing and copying repeatedly for large groups.
+     *
+     * @param groupName
+     * @param addedMemberNames
+     * @param addedMemberOverhead   characters written per added member besides its name
+     * @param removedMemberNames
+     * @param removedMemberOverhead characters written per removed member besides its name
+     * @return
+     */
+    protected static int estimateGroupPayloadSize(String groupName, List<String> addedMemberNames,
+                                                  int addedMemberOverhead, List<String> removedMemberNames,
+                                                  int removedMemberOverhead) {
+
+        long estimate = GROUP_PAYLOAD_OVERHEAD + (groupName != null ? groupName.length() : 0);
+        estimate += estimateMembersSize(addedMemberNames, addedMemberOverhead);
+        estimate += estimateMembersSize(removedMemberNames, removedMemberOverhead);
+        return (int) Math.min(estimate, Integer.MAX_VALUE - 8);
+    }
+
+    private static long estimateMembersSize(List<String> memberNames, int memberOverhead) {
+
+        long estimate = 0;
+        if (memberNames != null) {
+            for (String memberName : memberNames) {
+                estimate += memberOverhead + memberName.length();
+            }
+        }
+        return estimate;
+    }
+
+    private void invalidateUserAttributes(String userName) {
+
+        if (userAttributeStore != null) {
+            userAttributeStore.invalidate(userName);
+        }
+    }
+
+    /**
+     * Sends a single operation directly, outside of a bulk request.
+     */
+    private SCIMHttpResponse send(BulkOperation operation, String action) throws IdentitySCIMException {
+        return send(operation, action, null);
+    }
+
+    /**
+     * @param version version of the resource the operation is conditional on, null to send it unconditionally
+     */
+    private SCIMHttpResponse send(BulkOperation operation, String action, String version) throws
+            IdentitySCIMException {
+
+        String url = getResourceUrl(operation.getPath());
+        HttpMethod method;
+        if (HTTP_DELETE.equals(operation.getMethod())) {
+            method = new DeleteMethod(url);
+        } else {
+            EntityEnclosingMethod entityMethod;
+            if (HTTP_POST.equals(operation.getMethod())) {
+                entityMethod = new PostMethod(url);
+            } else if (HTTP_PATCH.equals(operation.getMethod())) {
+                entityMethod = new PatchMethod(url);
+            } else {
+                entityMethod = new PutMethod(url);
+            }
+            try {
+                entityMethod.setRequestEntity(new StringRequestEntity(operation.getData(), CONTENT_TYPE_JSON,
+                        CHARSET_UTF8));
+            } catch (UnsupportedEncodingException e) {
+                throw new IdentitySCIMException("Error while encoding the SCIM request.", e);
+            }
+            method = entityMethod;
+        }
+        if (version != null) {
+            method.setRequestHeader(IF_MATCH_HEADER, version);
+        }
+        return execute(method, action);
+    }
+
+    /**
+     * Returns the cached id of the resource, looking it up by the filter if it is not cached. Concurrent lookups of
+     * the same name share one request.
+     */
+    private String getResourceId(ResourceIdCache cache, String name, final String endpoint, final String filter)
+            throws IdentitySCIMException {
+
+        ResourceIdCache.Entry entry = cache.get(name);
+        if (entry != null) {
+            return entry.getId();
+        }
+        return cache.load(name, new ResourceIdCache.Loader() {
+            @Override
+            public String[] load(String resourceName, ResourceIdCache.Entry expired) throws IdentitySCIMException {
+
+                if (expired != null && conditionalRequests) {
+                    String[] idAndVersion = revalidate(resourceName, endpoint, expired);
+                    if (idAndVersion != null) {
+                        return idAndVersion;
+                    }
+                }
+                return findResource(endpoint, filter);
+            }
+        }).getId();
+    }
+
+    /**
+     * Reads an expired resource by its cached id with If-None-Match, so the endpoint only sends the resource back
+     * if it changed.
+     *
+     * @return id and version of the resource if it still exists, null otherwise
+     */
+    private String[] revalidate(String name, String endpoint, ResourceIdCache.Entry entry)
+            throws IdentitySCIMException {
+
+        GetMethod getMethod = new GetMethod(getResourceLocation(endpoint, entry.getId()));
+        getMethod.setRequestHeader(IF_NONE_MATCH_HEADER, entry.getVersion());
+        SCIMHttpResponse response;
+        try {
+            response = execute(getMethod, "revalidating resource: " + name);
+        } catch (SCIMHttpStatusException e) {
+            if (e.getStatusCode() == HTTP_NOT_MODIFIED) {
+                return new String[]{entry.getId(), entry.getVersion()};
+            }
+            // The resource is gone or can not be read by id, look it up by name.
+            return null;
+        }
+        return new String[]{entry.getId(), readIdAndVersion(response)[1]};
+    }
+
+    /**
+     * @return version of the resource to send in If-Match, null if it is not known or conditional requests are
+     * disabled
+     */
+    private String getVersion(ResourceIdCache cache, String name) {
+
+        if (!conditionalRequests) {
+            return null;
+        }
+        ResourceIdCache.Entry entry = cache.get(name);
+        return entry != null ? entry.getVersion() : null;
+    }
+
+    /**
+     * Records the version the endpoint reported for an updated resource. The cached version is stale after an
+     * update, so it is dropped if the endpoint did not report the new one.
+     */
+    private void updateVersion(ResourceIdCache cache, String name, SCIMHttpResponse response) {
+
+        ResourceIdCache.Entry entry = cache.get(name);
+        if (entry != null && !entry.isNegative()) {
+            cache.put(name, entry.getId(), readIdAndVersion(response)[1]);
+        }
+    }
+
+    private void forgetVersion(ResourceIdCache cache, String name) {
+
+        ResourceIdCache.Entry entry = cache.get(name);
+        if (entry != null && entry.getVersion() != null) {
+            cache.put(name, entry.getId(), null);
+        }
+    }
+
+    /**
+     * Prepares the single retry of a request which failed because the cached id or version of the resource is
+     * stale: the id is looked up again on the retry, while the current version is read right away.
+     *
+     * @throws SCIMHttpStatusException the failure itself if it is not due to a stale id or version
+     */
+    private void recoverStaleResource(SCIMHttpStatusException e, ResourceIdCache cache, String name,
+                                      String endpoint) throws IdentitySCIMException {
+
+        if (e.getStatusCode() == HTTP_NOT_FOUND) {
+            cache.invalidate(name);
+            return;
+        }
+        if (e.getStatusCode() != HTTP_PRECONDITION_FAILED) {
+            throw e;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Resource: " + name + " changed in the SCIM endpoint since its version was cached. Reading " +
+                    "its current version.");
+        }
+        ResourceIdCache.Entry entry = cache.get(name);
+        if (entry == null || entry.isNegative()) {
+            cache.invalidate(name);
+            return;
+        }
+        try {
+            SCIMHttpResponse response = execute(new GetMethod(getResourceLocation(endpoint, entry.getId())),
+                    "reading resource: " + name);
+            cache.put(name, entry.getId(), readIdAndVersion(response)[1]);
+        } catch (SCIMHttpStatusException notFound) {
+            if (notFound.getStatusCode() != HTTP_NOT_FOUND) {
+                throw notFound;
+            }
+            cache.invalidate(name);
+        }
+    }
+
+    private String cacheCreatedResource(ResourceIdCache cache, String name, SCIMHttpResponse response) {
+
+        String[] idAndVersion = readIdAndVersion(response);
+        String id = idAndVersion[0];
+        String version = idAndVersion[1];
+        if (id == null && response.getHeader(LOCATION_HEADER) != null) {
+            id = StringUtils.substringAfterLast(StringUtils.removeEnd(response.getHeader(LOCATION_HEADER), "/"),
+                    "/");
+        }
+
+        if (id != null) {
+            cache.put(name, id, version);
+        } else {
+            cache.invalidate(name);
+        }
+        return id;
+    }
+
+    /**
+     * @param response response holding a single resource
+     * @return id and version of the resource, either of them null if the response does not report it
+     */
+    private String[] readIdAndVersion(SCIMHttpResponse response) {
+
+        String[] idAndVersion = new String[]{null, response.getHeader(ETAG_HEADER)};
+        try {
+            JsonReader reader = new JsonReader(response.getBody());
+            if (reader.beginObject()) {
+                readIdAndVersion(reader, idAndVersion);
+            }
+        } catch (RuntimeException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Could not decode the SCIM resource in response: " + response.getBody(), e);
+            }
+        }
+        return idAndVersion;
+    }
+
+    /**
+     * Reads the id and meta.version of the resource object the reader is in, stopping as soon as both are known.
+     */
+    private static void readIdAndVersion(JsonReader reader, String[] idAndVersion) {
+
+        String memberName;
+        while ((idAndVersion[0] == null || idAndVersion[1] == null) && (memberName = reader.nextName()) != null) {
+            if (ID.equals(memberName)) {
+                idAndVersion[0] = reader.nextString();
+            } else if (META.equals(memberName) && idAndVersion[1] == null && reader.beginObject()) {
+                if (reader.skipTo(VERSION)) {
+                    idAndVersion[1] = reader.nextString();
+                    reader.endObject();
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    private ResourceIdCache createIdCache(SCIMProvider scimProvider) {
+
+        return new ResourceIdCache(
+                SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_SIZE,
+                        SCIMProvisioningConnectorConstants.DEFAULT_ID_CACHE_SIZE),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_TTL,
+                        SCIMProvisioningConnectorConstants.DEFAULT_ID_CACHE_TTL),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_ID_CACHE_NEGATIVE_TTL,
+                        SCIMProvisioningConnectorConstants.DEFAULT_ID_CACHE_NEGATIVE_TTL));
+    }
+
+    /**
+     * Resolves the SCIM id and version of the first resource matching the given filter. Only the first resource is
+     * read from the response, the rest of it is not decoded.
+     *
+     * @param endpoint
+     * @param filter
+     * @return id and version of the matching resource, the id is null if there is no match
+     * @throws IdentitySCIMException
+     */
+    private String[] findResource(String endpoint, String filter) throws IdentitySCIMException {
+
+        GetMethod getMethod = new GetMethod(endpoint);
+        try {
+            getMethod.setQueryString("filter=" + URLEncoder.encode(filter, CHARSET_UTF8).replace("+", "%20"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IdentitySCIMException("Error while encoding the SCIM filter: " + filter, e);
+        }
+        SCIMHttpResponse response = execute(getMethod, "filtering resources with: " + filter);
+
+        String[] idAndVersion = new String[2];
+        try {
+            JsonReader reader = new JsonReader(response.getBody());
+            if (reader.beginObject() && reader.skipTo(RESOURCES) && reader.beginArray() && reader
+                    .hasNextElement() && reader.beginObject()) {
+                readIdAndVersion(reader, idAndVersion);
+            }
+        } catch (RuntimeException e) {
+            throw new IdentitySCIMException("Error while decoding the SCIM response of filter: " + filter, e);
+        }
+        if (idAndVersion[0] == null) {
+            idAndVersion[1] = null;
+        }
+        return idAndVersion;
+    }
+
+    private String listResources(String endpoint, int startIndex, int count) throws IdentitySCIMException {
+
+        GetMethod getMethod = new GetMethod(endpoint);
+        getMethod.setQueryString(START_INDEX + "=" + startIndex + "&" + COUNT + "=" + count);
+        return execute(getMethod, "listing resources of: " + endpoint + " from: " + startIndex).getBody();
+    }
+
+    private SCIMHttpResponse execute(HttpMethod method, String action) throws IdentitySCIMException {
+
+        SCIMHttpResponse response;
+        try {
+            response = transport.execute(method);
+        } catch (IOException e) {
+            throw new IdentitySCIMException("Error while " + action, e);
+        }
+
+        if (!response.isSuccess()) {
+            throw new SCIMHttpStatusException("Error while " + action + ". SCIM endpoint responded with status: " +
+                    response.getStatusCode(), response.getStatusCode());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("SCIM endpoint responded with status: " + response.getStatusCode() + " for " + action);
+        }
+        return response;
+    }
+
+    private String getResourceUrl(String path) {
+
+        String endpoint = StringUtils.isNotBlank(getGroupEndpoint()) && path.startsWith(getGroupPath()) ?
+                getGroupEndpoint() : getUserEndpoint();
+        return SCIMProvisioningConnectorUtil.getBaseUrl(endpoint) + path;
+    }
+
+    private String getResourceLocation(String endpoint, String id) {
+        return StringUtils.removeEnd(endpoint, "/") + "/" + id;
+    }
+
+    protected String getUserEndpoint() {
+        return scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT);
+    }
+
+    protected String getGroupEndpoint() {
+        return scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT);
+    }
+
+    private String getUserPath() {
+        return SCIMProvisioningConnectorUtil.getResourcePath(getUserEndpoint());
+    }
+
+    private String getGroupPath() {
+        return SCIMProvisioningConnectorUtil.getResourcePath(getGroupEndpoint());
+    }
+}
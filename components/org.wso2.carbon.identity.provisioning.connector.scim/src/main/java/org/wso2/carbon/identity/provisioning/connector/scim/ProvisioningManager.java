@@ -1,37 +1,376 @@
 package org.wso2.carbon.identity.provisioning.connector.scim;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
 import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
 import org.wso2.carbon.identity.provisioning.ProvisioningUtil;
+import org.wso2.carbon.identity.provisioning.connector.scim.bulk.BulkOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.bulk.SCIMBulkDispatcher;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpStatusException;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
 import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+import org.wso2.charon.core.config.SCIMConfigConstants;
 import org.wso2.charon.core.config.SCIMProvider;
-import org.wso2.charon.core.exceptions.CharonException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class ProvisioningManager {
 
+    private static final Log log = LogFactory.getLog(ProvisioningManager.class);
+    private static final int HTTP_NOT_FOUND = 404;
+
     private String scimVersion;
     private String userStoreDomainName;
+    private AbstractSCIMProvisioningClient provisioningClient;
+    private SCIMBulkDispatcher bulkDispatcher;
+    private SCIMHttpTransport transport;
+    // Whether bulk requests are only used for operations that would otherwise wait for a connection.
+    private boolean multiplexed;
 
-    ProvisioningManager(String scimVersion, String userStoreDomainName) {
+    ProvisioningManager(String scimVersion, String userStoreDomainName, SCIMProvider scimProvider,
+                        SCIMHttpTransport transport) {
 
         this.scimVersion = scimVersion;
         this.userStoreDomainName = userStoreDomainName;
+        this.transport = transport;
+        if (SCIMProvisioningConnectorConstants.SCIM_VERSION2.equals(scimVersion)) {
+            this.provisioningClient = new SCIM2ProvisioningClient(scimProvider, transport);
+        } else {
+            this.provisioningClient = new SCIM1ProvisioningClient(scimProvider, transport);
+        }
+
+        if (SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_BULK_ENABLED, false)) {
+            this.bulkDispatcher = createBulkDispatcher(scimProvider, transport,
+                    SCIMProvisioningConnectorConstants.DEFAULT_BULK_FLUSH_INTERVAL);
+        } else if (SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_REQUEST_MULTIPLEXING_ENABLED, false)) {
+            this.multiplexed = true;
+            this.bulkDispatcher = createBulkDispatcher(scimProvider, transport,
+                    SCIMProvisioningConnectorConstants.DEFAULT_MULTIPLEXED_FLUSH_INTERVAL);
+        }
+    }
+
+    public AbstractSCIMProvisioningClient getProvisioningClient() {
+        return provisioningClient;
+    }
+
+    /**
+     * @param userName
+     * @param claims   single valued claims of the user
+     * @param password password to provision, null if not provisioned
+     * @return identifier holding the id the SCIM endpoint assigned to the user
+     * @throws IdentitySCIMException
+     */
+    public ProvisionedIdentifier createUser(String userName, Map<String, String> claims, String password) throws
+            IdentitySCIMException {
+
+        if (isBulkAvailable()) {
+            BulkOperation operation = provisioningClient.buildCreateUserOperation(bulkDispatcher.nextBulkId(),
+                    userName, claims, password);
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(userName, operation, false);
+                checkBulkResult(operation, "creating user: " + userName);
+                provisioningClient.rememberUserAttributes(userName, claims);
+                return buildIdentifier(operation.getResourceId());
+            }
+        }
+        return buildIdentifier(provisioningClient.createUser(userName, claims, password));
     }
 
-    public void deleteUser(ProvisioningEntity userEntity, SCIMProvider scimProvider) throws CharonException, IdentitySCIMException {
+    /**
+     * Creates the user and adds it to the given groups in a single bulk request, with the group patches referring
+     * to the new user by its bulkId.
+     *
+     * @param userName
+     * @param claims
+     * @param password
+     * @param groupNames
+     * @return identifier holding the id the SCIM endpoint assigned to the user, if reported, or null if bulk requests
+     * are not available, in which case nothing has been provisioned
+     * @throws IdentitySCIMException if the user could not be created. Failing to add the created user to a group
+     *                               does not fail the operation, the user is then added to the group separately.
+     */
+    public ProvisionedIdentifier createUserWithGroups(String userName, Map<String, String> claims, String password,
+                                                      List<String> groupNames) throws IdentitySCIMException {
+
+        if (!isBulkAvailable()) {
+            return null;
+        }
+
+        List<BulkOperation> operations = new ArrayList<>();
+        BulkOperation createOperation = provisioningClient.buildCreateUserOperation(bulkDispatcher.nextBulkId(),
+                userName, claims, password);
+        operations.add(createOperation);
+        for (String groupName : groupNames) {
+            operations.add(provisioningClient.buildAddGroupMemberOperation(bulkDispatcher.nextBulkId(), groupName,
+                    SCIMProvisioningConnectorConstants.BULK_ID_REFERENCE_PREFIX + createOperation.getBulkId(),
+                    userName));
+        }
+        if (!executeInBulk(operations)) {
+            return null;
+        }
+
+        provisioningClient.bulkOperationCompleted(userName, createOperation, false);
+        for (int i = 0; i < groupNames.size(); i++) {
+            provisioningClient.bulkOperationCompleted(groupNames.get(i), operations.get(i + 1), true);
+        }
+        checkBulkResult(createOperation, "creating user: " + userName);
+        provisioningClient.rememberUserAttributes(userName, claims);
+        // The user exists from here on, so its identifier is returned even if adding it to a group failed. Failing
+        // the operation would have it created again on a retry or replay, which the SCIM endpoint rejects.
+        for (int i = 0; i < groupNames.size(); i++) {
+            BulkOperation operation = operations.get(i + 1);
+            if (!operation.isSuccess()) {
+                addGroupMember(groupNames.get(i), userName, operation);
+            }
+        }
+        ProvisionedIdentifier identifier = new ProvisionedIdentifier();
+        identifier.setIdentifier(createOperation.getResourceId());
+        return identifier;
+    }
+
+    /**
+     * Adds a created user to a group with an individual request after adding it in the bulk request failed. Errors
+     * are logged, the user is provisioned regardless.
+     *
+     * @param groupName
+     * @param userName
+     * @param failedOperation
+     */
+    private void addGroupMember(String groupName, String userName, BulkOperation failedOperation) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Adding created user: " + userName + " to group: " + groupName + " in the bulk request " +
+                    "failed with status: " + failedOperation.getStatus() + ". Retrying with an individual request.");
+        }
+        try {
+            provisioningClient.updateGroup(groupName, Collections.singletonList(userName), null,
+                    ProvisioningOperation.PATCH, null);
+        } catch (IdentitySCIMException e) {
+            log.error("Error while adding created user: " + userName + " to group: " + groupName + ". Bulk " +
+                    "operation failed with status: " + failedOperation.getStatus() + ". " + failedOperation
+                    .getError(), e);
+        }
+    }
+
+    public void updateUser(String userName, Map<String, String> claims, ProvisioningOperation
+            provisioningOperation) throws IdentitySCIMException {
+
+        if (isBulkAvailable()) {
+            BulkOperation operation = provisioningClient.buildUpdateUserOperation(bulkDispatcher.nextBulkId(),
+                    userName, claims, provisioningOperation);
+            if (operation == null) {
+                return;
+            }
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(userName, operation, false);
+                if (operation.getStatus() != HTTP_NOT_FOUND) {
+                    checkBulkResult(operation, "updating user: " + userName);
+                    provisioningClient.rememberUpdatedUserAttributes(userName, claims);
+                    return;
+                }
+            }
+        }
+        provisioningClient.updateUser(userName, claims, provisioningOperation);
+    }
+
+    public void deleteUser(ProvisioningEntity userEntity) throws IdentitySCIMException {
 
         String userName = getUserName(userEntity);
+        rememberUserIdentifier(userName, userEntity.getIdentifier());
 
-        if(this.scimVersion.equals(SCIMProvisioningConnectorConstants.SCIM_VERSION1)) {
-            SCIM1ProvisioningClient client = new SCIM1ProvisioningClient();
-            client.deleteUser(userName, scimProvider);
-        } else {
+        if (isBulkAvailable()) {
+            BulkOperation operation = provisioningClient.buildDeleteUserOperation(bulkDispatcher.nextBulkId(),
+                    userName);
+            if (operation == null) {
+                return;
+            }
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(userName, operation, false);
+                if (operation.getStatus() != HTTP_NOT_FOUND) {
+                    checkBulkResult(operation, "deleting user: " + userName);
+                    return;
+                }
+            }
+        }
+        provisioningClient.deleteUser(userName);
+    }
+
+    /**
+     * @param groupName
+     * @param memberNames user names of the members of the group
+     * @return identifier holding the id the SCIM endpoint assigned to the group
+     * @throws IdentitySCIMException
+     */
+    public ProvisionedIdentifier createGroup(String groupName, List<String> memberNames) throws
+            IdentitySCIMException {
+
+        // Large groups are sent in chunks by the client rather than as one huge bulk operation.
+        if (isBulkAvailable() && !provisioningClient.isChunked(memberNames, null)) {
+            BulkOperation operation = provisioningClient.buildCreateGroupOperation(bulkDispatcher.nextBulkId(),
+                    groupName, memberNames);
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(groupName, operation, true);
+                checkBulkResult(operation, "creating group: " + groupName);
+                return buildIdentifier(operation.getResourceId());
+            }
+        }
+        return buildIdentifier(provisioningClient.createGroup(groupName, memberNames));
+    }
+
+    /**
+     * @param groupName
+     * @param addedMemberNames
+     * @param removedMemberNames
+     * @param provisioningOperation
+     * @param oldGroupName          previous display name of the group if it was renamed, null otherwise
+     * @throws IdentitySCIMException
+     */
+    public void updateGroup(String groupName, List<String> addedMemberNames, List<String> removedMemberNames,
+                            ProvisioningOperation provisioningOperation, String oldGroupName) throws
+            IdentitySCIMException {
+
+        if (isBulkAvailable() && !provisioningClient.isChunked(addedMemberNames, removedMemberNames)) {
+            BulkOperation operation = provisioningClient.buildUpdateGroupOperation(bulkDispatcher.nextBulkId(),
+                    groupName, addedMemberNames, removedMemberNames, provisioningOperation, oldGroupName);
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(StringUtils.isEmpty(oldGroupName) ? groupName :
+                        oldGroupName, operation, true);
+                if (operation.getStatus() != HTTP_NOT_FOUND) {
+                    checkBulkResult(operation, "updating group: " + groupName);
+                    provisioningClient.groupRenamed(groupName, oldGroupName);
+                    return;
+                }
+            }
+        }
+        provisioningClient.updateGroup(groupName, addedMemberNames, removedMemberNames, provisioningOperation,
+                oldGroupName);
+    }
+
+    public void deleteGroup(String groupName) throws IdentitySCIMException {
+
+        if (isBulkAvailable()) {
+            BulkOperation operation = provisioningClient.buildDeleteGroupOperation(bulkDispatcher.nextBulkId(),
+                    groupName);
+            if (operation == null) {
+                return;
+            }
+            if (executeInBulk(Collections.singletonList(operation))) {
+                provisioningClient.bulkOperationCompleted(groupName, operation, true);
+                if (operation.getStatus() != HTTP_NOT_FOUND) {
+                    checkBulkResult(operation, "deleting group: " + groupName);
+                    return;
+                }
+            }
+        }
+        provisioningClient.deleteGroup(groupName);
+    }
+
+    /**
+     * Records the remote id of a user known from a previous provisioning, e.g. the identifier the provisioning
+     * framework kept for the entity, so that it does not have to be looked up.
+     *
+     * @param userName
+     * @param identifier
+     */
+    public void rememberUserIdentifier(String userName, ProvisionedIdentifier identifier) {
+
+        if (userName != null && identifier != null && StringUtils.isNotBlank(identifier
+                .getIdentifier())) {
+            provisioningClient.rememberUserId(userName, identifier.getIdentifier());
+        }
+    }
+
+    /**
+     * Records the remote id of a group known from a previous provisioning.
+     *
+     * @param groupName
+     * @param identifier
+     */
+    public void rememberGroupIdentifier(String groupName, ProvisionedIdentifier identifier) {
+
+        if (groupName != null && identifier != null && StringUtils.isNotBlank(identifier
+                .getIdentifier())) {
+            provisioningClient.rememberGroupId(groupName, identifier.getIdentifier());
+        }
+    }
+
+    /**
+     * Tells whether to send the next operation in a bulk request. When multiplexing, operations go out as individual
+     * requests while there are free connections, and share bulk requests once all of them are busy. Targets not
+     * supporting bulk requests always get individual requests.
+     */
+    private boolean isBulkAvailable() {
+
+        if (bulkDispatcher == null || multiplexed && !transport.isSaturated()) {
+            return false;
+        }
+        return bulkDispatcher.accepts(Collections.<BulkOperation>emptyList());
+    }
+
+    /**
+     * @param operations
+     * @return false if the operations do not fit into a bulk request and have to be sent individually
+     * @throws IdentitySCIMException
+     */
+    private boolean executeInBulk(List<BulkOperation> operations) throws IdentitySCIMException {
+
+        if (!bulkDispatcher.accepts(operations)) {
+            return false;
+        }
+        bulkDispatcher.execute(operations);
+        return true;
+    }
+
+    private void checkBulkResult(BulkOperation operation, String action) throws IdentitySCIMException {
+
+        if (!operation.isSuccess()) {
+            throw new SCIMHttpStatusException("Error while " + action + ". Bulk operation: " + operation
+                    .getMethod() + " " + operation.getPath() + " failed with status: " + operation.getStatus() +
+                    ". " + operation.getError(), operation.getStatus());
+        }
+    }
+
+    private ProvisionedIdentifier buildIdentifier(String id) {
+
+        if (id == null) {
+            return null;
+        }
+        ProvisionedIdentifier identifier = new ProvisionedIdentifier();
+        identifier.setIdentifier(id);
+        return identifier;
+    }
+
+    private SCIMBulkDispatcher createBulkDispatcher(SCIMProvider scimProvider, SCIMHttpTransport transport,
+                                                   long defaultFlushInterval) {
 
+        String baseUrl = SCIMProvisioningConnectorUtil.getBaseUrl(scimProvider.getProperty(SCIMConfigConstants
+                .ELEMENT_NAME_USER_ENDPOINT));
+        String bulkEndpoint = scimProvider.getProperty(SCIMProvisioningConnectorConstants.SCIM_BULK_EP);
+        if (StringUtils.isBlank(bulkEndpoint)) {
+            bulkEndpoint = baseUrl + SCIMProvisioningConnectorConstants.BULK_RESOURCE_PATH;
         }
 
+        return new SCIMBulkDispatcher(transport, bulkEndpoint,
+                baseUrl + provisioningClient.getServiceProviderConfigPath(),
+                provisioningClient.getBulkRequestSchema(),
+                SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_BULK_MAX_OPERATIONS,
+                        SCIMProvisioningConnectorConstants.DEFAULT_BULK_MAX_OPERATIONS),
+                SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_BULK_MAX_PAYLOAD_SIZE,
+                        SCIMProvisioningConnectorConstants.DEFAULT_BULK_MAX_PAYLOAD_SIZE),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_BULK_FLUSH_INTERVAL, defaultFlushInterval));
     }
 
     private String getUserName(ProvisioningEntity userEntity) {
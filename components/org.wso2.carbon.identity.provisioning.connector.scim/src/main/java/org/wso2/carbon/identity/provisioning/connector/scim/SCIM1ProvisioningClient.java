@@ -1,26 +1,219 @@
 package org.wso2.carbon.identity.provisioning.connector.scim;
 
-import org.wso2.carbon.identity.scim.common.impl.ProvisioningClient;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.diff.AttributeDiff;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonWriter;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan.MappedClaims;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
 import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
 import org.wso2.charon.core.config.SCIMProvider;
-import org.wso2.charon.core.exceptions.CharonException;
-import org.wso2.charon.core.objects.User;
 import org.wso2.charon.core.schema.SCIMConstants;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-public class SCIM1ProvisioningClient {
+public class SCIM1ProvisioningClient extends AbstractSCIMProvisioningClient {
 
-    public void deleteUser(String userName, SCIMProvider scimProvider) throws IdentitySCIMException,
-            CharonException {
+    private static final Log log = LogFactory.getLog(SCIM1ProvisioningClient.class);
 
-        int httpMethod = SCIMConstants.DELETE;
-        User user = new User();
-        user.setSchemaList(Arrays.asList(SCIMConstants.CORE_SCHEMA_URI));
-        user.setUserName(userName);
-        ProvisioningClient scimProvsioningClient = new ProvisioningClient(scimProvider, user,
-                httpMethod, null);
-        scimProvsioningClient.provisionDeleteUser();
+    private static final String USER_FILTER = "userName Eq ";
+    private static final String GROUP_FILTER = "displayName Eq ";
+    private static final String SCHEMAS = "schemas";
+    private static final String USER_NAME = "userName";
+    private static final String PASSWORD = "password";
+    private static final String ENTERPRISE_SCHEMA_URI = "urn:scim:schemas:extension:enterprise:1.0";
+    private static final String MEMBERS = "members";
+    private static final String VALUE = "value";
+    private static final String DISPLAY = SCIMConstants.CommonSchemaConstants.DISPLAY;
+    private static final String DISPLAY_NAME = "displayName";
+    private static final String OPERATION = SCIMConstants.CommonSchemaConstants.OPERATION;
+    private static final String OPERATION_DELETE = SCIMConstants.CommonSchemaConstants.OPERATION_DELETE;
+    // Characters written per member besides its name, mostly the id: {"value":"","display":""} when added and
+    // {"value":"","display":"","operation":"delete"} when removed.
+    private static final int ADDED_MEMBER_OVERHEAD = 64;
+    private static final int REMOVED_MEMBER_OVERHEAD = 88;
+    private static final String ATTRIBUTES = "attributes";
+    private static final String CORE_CLAIM_PREFIX = SCIMConstants.CORE_SCHEMA_URI + ":";
 
+    // Attributes which can not be removed through meta.attributes, either read only or multi-valued ones whose
+    // values are removed one by one.
+    private static final Set<String> NON_REMOVABLE_ATTRIBUTES = new HashSet<>(Arrays.asList(ID, META, USER_NAME,
+            PASSWORD, SCHEMAS, "emails", "phoneNumbers", "ims", "photos", "addresses", "groups", "entitlements",
+            "roles", "x509Certificates"));
+
+    // Attributes assigned by the SCIM endpoint or provisioned separately, never sent as user attributes.
+    private static final Set<String> SKIPPED_ATTRIBUTES = new HashSet<>(Arrays.asList(ID, USER_NAME, PASSWORD,
+            META, SCHEMAS, "groups"));
+
+    // Resolves claims to attributes once instead of walking the Charon schema through AttributeMapper per user.
+    private final ClaimMappingPlan claimMappingPlan = new ClaimMappingPlan(ENTERPRISE_SCHEMA_URI, SKIPPED_ATTRIBUTES);
+
+    public SCIM1ProvisioningClient(SCIMProvider scimProvider, SCIMHttpTransport transport) {
+        super(scimProvider, transport);
+    }
+
+    @Override
+    public String getBulkRequestSchema() {
+        return SCIMConstants.CORE_SCHEMA_URI;
+    }
+
+    @Override
+    public String getServiceProviderConfigPath() {
+        return SCIMProvisioningConnectorConstants.SCIM1_SERVICE_PROVIDER_CONFIG_PATH;
+    }
+
+    @Override
+    protected String encodeUser(String userName, Map<String, String> claims, String password) {
+        return encodeUser(userName, claimMappingPlan.map(claims), password, null);
+    }
+
+    /**
+     * Encodes the changed claims as a partial user resource, listing the removed attributes in meta.attributes.
+     */
+    @Override
+    protected String encodeUserUpdate(String userName, AttributeDiff diff,
+                                      ProvisioningOperation provisioningOperation) {
+
+        List<String> removedAttributes = new ArrayList<>();
+        for (String claimUri : diff.getRemovedAttributes()) {
+            String attribute = StringUtils.removeStart(claimUri, CORE_CLAIM_PREFIX);
+            if (attribute.equals(claimUri) || NON_REMOVABLE_ATTRIBUTES.contains(StringUtils.substringBefore(attribute,
+                    "."))) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Claim: " + claimUri + " of user: " + userName + " can not be removed through a SCIM " +
+                            "1.1 patch. Skip removing it.");
+                }
+                continue;
+            }
+            removedAttributes.add(attribute);
+        }
+        return encodeUser(userName, claimMappingPlan.map(diff.getChangedAttributes()), null, removedAttributes);
+    }
+
+    /**
+     * Writes a user resource straight from the mapped claims.
+     *
+     * @param userName
+     * @param attributes
+     * @param password          password of the user, null to leave it out
+     * @param removedAttributes attribute paths listed in meta.attributes to remove them, null or empty if none
+     * @return
+     */
+    private String encodeUser(String userName, MappedClaims attributes, String password,
+                              List<String> removedAttributes) {
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(SCIMConstants.CORE_SCHEMA_URI);
+        if (attributes.hasEnterpriseAttributes()) {
+            writer.value(ENTERPRISE_SCHEMA_URI);
+        }
+        writer.endArray();
+        writer.name(USER_NAME).value(userName);
+        if (password != null) {
+            writer.name(PASSWORD).value(password);
+        }
+        claimMappingPlan.write(writer, attributes);
+        if (CollectionUtils.isNotEmpty(removedAttributes)) {
+            writer.name(META).beginObject().name(ATTRIBUTES).beginArray();
+            for (String attribute : removedAttributes) {
+                writer.value(attribute);
+            }
+            writer.endArray().endObject();
+        }
+        return writer.endObject().toString();
+    }
+
+    @Override
+    protected String encodeGroup(String groupName, List<String> memberNames) throws IdentitySCIMException {
+        return encodeGroupUpdate(groupName, memberNames, null, null, null);
+    }
+
+    @Override
+    protected String encodeGroupUpdate(String groupName, List<String> addedMemberNames,
+                                       List<String> removedMemberNames, ProvisioningOperation provisioningOperation,
+                                       String oldGroupName) throws IdentitySCIMException {
+
+        // Members are written straight from the name lists and their cached ids, the added and removed ones told
+        // apart by the list they come from. Building a Charon group instead takes a map per member before it is
+        // serialized again.
+        JsonWriter writer = new JsonWriter(estimateGroupPayloadSize(groupName, addedMemberNames, ADDED_MEMBER_OVERHEAD,
+                removedMemberNames, REMOVED_MEMBER_OVERHEAD));
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(SCIMConstants.CORE_SCHEMA_URI).endArray();
+        writer.name(DISPLAY_NAME).value(groupName);
+        if (CollectionUtils.isNotEmpty(addedMemberNames) || CollectionUtils.isNotEmpty(removedMemberNames)) {
+            writer.name(MEMBERS).beginArray();
+            if (addedMemberNames != null) {
+                for (String userName : addedMemberNames) {
+                    writeMember(writer, groupName, userName, false);
+                }
+            }
+            if (removedMemberNames != null) {
+                for (String userName : removedMemberNames) {
+                    writeMember(writer, groupName, userName, true);
+                }
+            }
+            writer.endArray();
+        }
+        return writer.endObject().toString();
+    }
+
+    /**
+     * Writes a member referring to the user by the id the SCIM endpoint assigned to it, as SCIM 1.1 endpoints match
+     * members by value. Users which do not exist in the SCIM endpoint are skipped.
+     *
+     * @param writer
+     * @param groupName
+     * @param userName
+     * @param removed   whether the member is removed from the group
+     * @throws IdentitySCIMException
+     */
+    private void writeMember(JsonWriter writer, String groupName, String userName, boolean removed)
+            throws IdentitySCIMException {
+
+        String userId = getUserId(userName);
+        if (userId == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("User: " + userName + " does not exist in the SCIM endpoint. Skip " + (removed ?
+                        "removing it from" : "adding it to") + " group: " + groupName);
+            }
+            return;
+        }
+        writer.beginObject().name(VALUE).value(userId).name(DISPLAY).value(userName);
+        if (removed) {
+            writer.name(OPERATION).value(OPERATION_DELETE);
+        }
+        writer.endObject();
+    }
+
+    @Override
+    protected String encodeAddGroupMember(String memberValue, String memberDisplay) {
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(SCIMConstants.CORE_SCHEMA_URI).endArray();
+        writer.name(MEMBERS).beginArray().beginObject().name(VALUE).value(memberValue).name(DISPLAY)
+                .value(memberDisplay).endObject().endArray();
+        return writer.endObject().toString();
+    }
+
+    @Override
+    protected String getUserFilter(String userName) {
+        return USER_FILTER + userName;
+    }
+
+    @Override
+    protected String getGroupFilter(String groupName) {
+        return GROUP_FILTER + groupName;
     }
 }
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.diff.AttributeDiff;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonWriter;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan.MappedAttribute;
+import org.wso2.carbon.identity.provisioning.connector.scim.mapping.ClaimMappingPlan.MappedClaims;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SCIM 2.0 (RFC 7643, RFC 7644) client. Request bodies are written straight from the claim values with a streaming
+ * writer, without building an intermediate object model. Claims in the SCIM 1.1 dialect used by the provisioning
+ * framework are translated to the corresponding SCIM 2.0 attributes. Updates are sent as PATCH operations.
+ */
+public class SCIM2ProvisioningClient extends AbstractSCIMProvisioningClient {
+
+    private static final Log log = LogFactory.getLog(SCIM2ProvisioningClient.class);
+
+    private static final String USER_SCHEMA = "urn:ietf:params:scim:schemas:core:2.0:User";
+    private static final String GROUP_SCHEMA = "urn:ietf:params:scim:schemas:core:2.0:Group";
+    private static final String ENTERPRISE_USER_SCHEMA = "urn:ietf:params:scim:schemas:extension:enterprise:2.0:User";
+    private static final String PATCH_OP_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:PatchOp";
+    private static final String BULK_REQUEST_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+
+    private static final String SCHEMAS = "schemas";
+    private static final String USER_NAME = "userName";
+    private static final String PASSWORD = "password";
+    private static final String DISPLAY_NAME = "displayName";
+    private static final String MEMBERS = "members";
+    private static final String VALUE = "value";
+    private static final String DISPLAY = "display";
+    private static final String OPERATIONS = "Operations";
+    private static final String OP = "op";
+    private static final String PATH = "path";
+    private static final String OP_ADD = "add";
+    private static final String OP_REMOVE = "remove";
+    private static final String OP_REPLACE = "replace";
+
+    // Characters written per member besides its name, mostly the id: {"value":"","display":""} when added and
+    // {"op":"remove","path":"members[value eq \"\"]"} when removed.
+    private static final int ADDED_MEMBER_OVERHEAD = 64;
+    private static final int REMOVED_MEMBER_OVERHEAD = 64;
+
+    // Attributes assigned by the SCIM endpoint or provisioned separately, never sent as user attributes.
+    private static final Set<String> SKIPPED_ATTRIBUTES = new HashSet<>(Arrays.asList(ID, USER_NAME, PASSWORD,
+            META, SCHEMAS, "groups", "externalId"));
+
+    private final ClaimMappingPlan claimMappingPlan = new ClaimMappingPlan(ENTERPRISE_USER_SCHEMA,
+            SKIPPED_ATTRIBUTES);
+
+    public SCIM2ProvisioningClient(SCIMProvider scimProvider, SCIMHttpTransport transport) {
+        super(scimProvider, transport);
+    }
+
+    @Override
+    public String getBulkRequestSchema() {
+        return BULK_REQUEST_SCHEMA;
+    }
+
+    @Override
+    public String getServiceProviderConfigPath() {
+        return SCIMProvisioningConnectorConstants.SCIM2_SERVICE_PROVIDER_CONFIG_PATH;
+    }
+
+    @Override
+    protected String encodeUser(String userName, Map<String, String> claims, String password) {
+
+        MappedClaims attributes = claimMappingPlan.map(claims);
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(USER_SCHEMA);
+        if (attributes.hasEnterpriseAttributes()) {
+            writer.value(ENTERPRISE_USER_SCHEMA);
+        }
+        writer.endArray();
+        writer.name(USER_NAME).value(userName);
+        if (password != null) {
+            writer.name(PASSWORD).value(password);
+        }
+        claimMappingPlan.write(writer, attributes);
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /**
+     * Encodes the changes as PatchOp operations: an add for new attributes, replaces for changed ones, addressing
+     * the values of multi-valued attributes by their type, and a remove per removed attribute.
+     */
+    @Override
+    protected String encodeUserUpdate(String userName, AttributeDiff diff,
+                                      ProvisioningOperation provisioningOperation) {
+
+        JsonWriter writer = beginPatch();
+        boolean hasOperations = false;
+
+        MappedClaims addedAttributes = claimMappingPlan.map(diff.getAddedAttributes());
+        if (!addedAttributes.isEmpty()) {
+            writer.beginObject().name(OP).value(OP_ADD).name(VALUE).beginObject();
+            claimMappingPlan.write(writer, addedAttributes);
+            writer.endObject().endObject();
+            hasOperations = true;
+        }
+
+        Map<String, String> replacedAttributes = null;
+        for (Map.Entry<String, String> claim : diff.getReplacedAttributes().entrySet()) {
+            MappedAttribute attribute = claimMappingPlan.resolve(claim.getKey());
+            if (attribute == null) {
+                continue;
+            }
+            if (attribute.getValuePath() != null) {
+                writer.beginObject().name(OP).value(OP_REPLACE).name(PATH).value(attribute.getValuePath())
+                        .name(VALUE).value(claim.getValue()).endObject();
+                hasOperations = true;
+            } else {
+                if (replacedAttributes == null) {
+                    replacedAttributes = new HashMap<>();
+                }
+                replacedAttributes.put(claim.getKey(), claim.getValue());
+            }
+        }
+        MappedClaims replacedValues = claimMappingPlan.map(replacedAttributes);
+        if (!replacedValues.isEmpty()) {
+            writer.beginObject().name(OP).value(OP_REPLACE).name(VALUE).beginObject();
+            claimMappingPlan.write(writer, replacedValues);
+            writer.endObject().endObject();
+            hasOperations = true;
+        }
+
+        for (String claimUri : diff.getRemovedAttributes()) {
+            MappedAttribute attribute = claimMappingPlan.resolve(claimUri);
+            if (attribute != null) {
+                writer.beginObject().name(OP).value(OP_REMOVE).name(PATH).value(attribute.getEntryPath())
+                        .endObject();
+                hasOperations = true;
+            }
+        }
+
+        if (!hasOperations) {
+            // None of the changed claims map to an attribute, a patch needs at least one operation.
+            writer.beginObject().name(OP).value(OP_REPLACE).name(PATH).value(USER_NAME).name(VALUE).value(userName)
+                    .endObject();
+        }
+        return endPatch(writer);
+    }
+
+    @Override
+    protected String encodeGroup(String groupName, List<String> memberNames) throws IdentitySCIMException {
+
+        JsonWriter writer = new JsonWriter(estimateGroupPayloadSize(groupName, memberNames, ADDED_MEMBER_OVERHEAD,
+                null, 0));
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(GROUP_SCHEMA).endArray();
+        writer.name(DISPLAY_NAME).value(groupName);
+        if (CollectionUtils.isNotEmpty(memberNames)) {
+            writer.name(MEMBERS);
+            writeMembers(writer, memberNames);
+        }
+        writer.endObject();
+        return writer.toString();
+    }
+
+    @Override
+    protected String encodeGroupUpdate(String groupName, List<String> addedMemberNames,
+                                       List<String> removedMemberNames, ProvisioningOperation provisioningOperation,
+                                       String oldGroupName) throws IdentitySCIMException {
+
+        JsonWriter writer = beginPatch(new JsonWriter(estimateGroupPayloadSize(groupName, addedMemberNames,
+                ADDED_MEMBER_OVERHEAD, removedMemberNames, REMOVED_MEMBER_OVERHEAD)));
+        boolean renamed = StringUtils.isNotEmpty(oldGroupName) && !oldGroupName.equals(groupName);
+        boolean hasOperations = false;
+
+        if (CollectionUtils.isNotEmpty(addedMemberNames)) {
+            writer.beginObject().name(OP).value(OP_ADD).name(PATH).value(MEMBERS).name(VALUE);
+            hasOperations = writeMembers(writer, addedMemberNames) > 0;
+            writer.endObject();
+        }
+        if (CollectionUtils.isNotEmpty(removedMemberNames)) {
+            for (String userName : removedMemberNames) {
+                String userId = getUserId(userName);
+                if (userId == null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("User: " + userName + " does not exist in the SCIM endpoint. Nothing to remove " +
+                                "from group: " + groupName);
+                    }
+                    continue;
+                }
+                writer.beginObject().name(OP).value(OP_REMOVE).name(PATH).value(MEMBERS + "[" + VALUE + " eq " +
+                        quoteFilterValue(userId) + "]").endObject();
+                hasOperations = true;
+            }
+        }
+        if (renamed || !hasOperations) {
+            // A patch needs at least one operation, replacing the display name is harmless if it did not change.
+            writer.beginObject().name(OP).value(OP_REPLACE).name(PATH).value(DISPLAY_NAME).name(VALUE)
+                    .value(groupName).endObject();
+        }
+        return endPatch(writer);
+    }
+
+    @Override
+    protected String encodeAddGroupMember(String memberValue, String memberDisplay) {
+
+        JsonWriter writer = beginPatch();
+        writer.beginObject().name(OP).value(OP_ADD).name(PATH).value(MEMBERS).name(VALUE).beginArray()
+                .beginObject().name(VALUE).value(memberValue).name(DISPLAY).value(memberDisplay).endObject()
+                .endArray().endObject();
+        return endPatch(writer);
+    }
+
+    @Override
+    protected String getUpdateMethod(ProvisioningOperation provisioningOperation) {
+        // Updates carry the changed attributes and members only, never the full resource.
+        return HTTP_PATCH;
+    }
+
+    @Override
+    protected String getUserFilter(String userName) {
+        return USER_NAME + " eq " + quoteFilterValue(userName);
+    }
+
+    @Override
+    protected String getGroupFilter(String groupName) {
+        return DISPLAY_NAME + " eq " + quoteFilterValue(groupName);
+    }
+
+    private JsonWriter beginPatch() {
+        return beginPatch(new JsonWriter());
+    }
+
+    private JsonWriter beginPatch(JsonWriter writer) {
+
+        writer.beginObject();
+        writer.name(SCHEMAS).beginArray().value(PATCH_OP_SCHEMA).endArray();
+        writer.name(OPERATIONS).beginArray();
+        return writer;
+    }
+
+    private String endPatch(JsonWriter writer) {
+        return writer.endArray().endObject().toString();
+    }
+
+    /**
+     * Writes the members array, referring to each member by the id the SCIM endpoint assigned to it.
+     *
+     * @param writer
+     * @param memberNames
+     * @return number of members written
+     * @throws IdentitySCIMException
+     */
+    private int writeMembers(JsonWriter writer, List<String> memberNames) throws IdentitySCIMException {
+
+        int count = 0;
+        writer.beginArray();
+        for (String userName : memberNames) {
+            String userId = getUserId(userName);
+            if (userId == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("User: " + userName + " does not exist in the SCIM endpoint. Skip adding it as a " +
+                            "group member.");
+                }
+                continue;
+            }
+            writer.beginObject().name(VALUE).value(userId).name(DISPLAY).value(userName).endObject();
+            count++;
+        }
+        writer.endArray();
+        return count;
+    }
+
+    private String quoteFilterValue(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
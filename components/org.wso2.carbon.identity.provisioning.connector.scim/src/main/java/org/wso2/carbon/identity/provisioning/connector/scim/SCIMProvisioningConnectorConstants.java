@@ -18,6 +18,8 @@
 
 package org.wso2.carbon.identity.provisioning.connector.scim;
 
+import java.io.File;
+
 public class SCIMProvisioningConnectorConstants {
 
     private SCIMProvisioningConnectorConstants(){}
@@ -35,4 +37,158 @@ public class SCIMProvisioningConnectorConstants {
 
     public static final String SCIM_VERSION1 = "scim1";
     public static final String SCIM_VERSION2 = "scim2";
+
+    // HTTP transport properties.
+    public static final String SCIM_MAX_CONNECTIONS = "scim-max-connections";
+    public static final String SCIM_MAX_CONNECTIONS_PER_ENDPOINT = "scim-max-connections-per-endpoint";
+    public static final String SCIM_CONNECTION_TIMEOUT = "scim-connection-timeout";
+    public static final String SCIM_SOCKET_TIMEOUT = "scim-socket-timeout";
+    public static final String SCIM_CONNECTION_IDLE_TIMEOUT = "scim-connection-idle-timeout";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 40;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 20;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+    public static final int DEFAULT_CONNECTION_IDLE_TIMEOUT = 60000;
+
+    // Gzip encoding of request bodies above the threshold in bytes, and of responses if the endpoint supports it.
+    public static final String SCIM_GZIP_ENABLED = "scim-gzip-enabled";
+    public static final String SCIM_GZIP_MIN_REQUEST_SIZE = "scim-gzip-min-request-size";
+
+    public static final int DEFAULT_GZIP_MIN_REQUEST_SIZE = 16384;
+
+    // Retries of calls failing with timeouts, 429 or 5xx, and the per endpoint circuit breaker.
+    public static final String SCIM_MAX_RETRIES = "scim-max-retries";
+    public static final String SCIM_RETRY_INITIAL_BACKOFF = "scim-retry-initial-backoff";
+    public static final String SCIM_RETRY_MAX_BACKOFF = "scim-retry-max-backoff";
+    public static final String SCIM_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "scim-circuit-breaker-failure-threshold";
+    public static final String SCIM_CIRCUIT_BREAKER_OPEN_DURATION = "scim-circuit-breaker-open-duration";
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_INITIAL_BACKOFF = 200;
+    public static final long DEFAULT_RETRY_MAX_BACKOFF = 10000;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30000;
+
+    // Per endpoint rate limit in calls per second (0 disables it) and adaptive limit on the calls in flight.
+    public static final String SCIM_RATE_LIMIT = "scim-rate-limit";
+    public static final String SCIM_RATE_LIMIT_BURST = "scim-rate-limit-burst";
+    public static final String SCIM_ADAPTIVE_CONCURRENCY_ENABLED = "scim-adaptive-concurrency-enabled";
+    public static final String SCIM_CONCURRENCY_INITIAL_LIMIT = "scim-concurrency-initial-limit";
+    public static final String SCIM_CONCURRENCY_MIN_LIMIT = "scim-concurrency-min-limit";
+    public static final String SCIM_CONCURRENCY_MAX_LIMIT = "scim-concurrency-max-limit";
+
+    public static final int DEFAULT_RATE_LIMIT = 0;
+    public static final int DEFAULT_CONCURRENCY_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_CONCURRENCY_MIN_LIMIT = 1;
+
+    // Bulk provisioning properties.
+    public static final String SCIM_BULK_ENABLED = "scim-bulk-enabled";
+    public static final String SCIM_BULK_EP = "scim-bulk-ep";
+    public static final String SCIM_BULK_MAX_OPERATIONS = "scim-bulk-max-operations";
+    public static final String SCIM_BULK_MAX_PAYLOAD_SIZE = "scim-bulk-max-payload-size";
+    public static final String SCIM_BULK_FLUSH_INTERVAL = "scim-bulk-flush-interval";
+    // Sends operations individually while connections are free and in bulk requests once they are all busy.
+    public static final String SCIM_REQUEST_MULTIPLEXING_ENABLED = "scim-request-multiplexing-enabled";
+
+    public static final int DEFAULT_BULK_MAX_OPERATIONS = 100;
+    public static final int DEFAULT_BULK_MAX_PAYLOAD_SIZE = 1048576;
+    public static final long DEFAULT_BULK_FLUSH_INTERVAL = 200;
+    // Operations are only batched when they would otherwise wait for a connection, so they wait less for a batch.
+    public static final long DEFAULT_MULTIPLEXED_FLUSH_INTERVAL = 20;
+
+    public static final String BULK_RESOURCE_PATH = "/Bulk";
+    public static final String SCIM1_SERVICE_PROVIDER_CONFIG_PATH = "/ServiceProviderConfigs";
+    public static final String SCIM2_SERVICE_PROVIDER_CONFIG_PATH = "/ServiceProviderConfig";
+    public static final String BULK_ID_REFERENCE_PREFIX = "bulkId:";
+
+    // Maximum number of group membership updates sent in parallel.
+    public static final String SCIM_GROUP_UPDATE_PARALLELISM = "scim-group-update-parallelism";
+    public static final int DEFAULT_GROUP_UPDATE_PARALLELISM = 8;
+
+    // Membership changes larger than the chunk size are sent as several PATCH requests, optionally in parallel.
+    public static final String SCIM_GROUP_MEMBER_CHUNK_SIZE = "scim-group-member-chunk-size";
+    public static final String SCIM_GROUP_MEMBER_CHUNK_PARALLELISM = "scim-group-member-chunk-parallelism";
+
+    public static final int DEFAULT_GROUP_MEMBER_CHUNK_SIZE = 500;
+    public static final int DEFAULT_GROUP_MEMBER_CHUNK_PARALLELISM = 1;
+
+    // Asynchronous provisioning properties.
+    public static final String SCIM_ASYNC_ENABLED = "scim-async-enabled";
+    public static final String SCIM_ASYNC_WORKERS = "scim-async-workers";
+    public static final String SCIM_ASYNC_QUEUE_CAPACITY = "scim-async-queue-capacity";
+    // One of block, drop-oldest or reject.
+    public static final String SCIM_ASYNC_BACKPRESSURE = "scim-async-backpressure";
+
+    public static final int DEFAULT_ASYNC_WORKERS = 8;
+    public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 10000;
+    public static final long ASYNC_DRAIN_TIMEOUT = 30000;
+
+    // Runs the operations of all the tenants on node wide workers, shared by weight between the identity providers
+    // with queued operations. JIT provisioning goes before the configured priority (interactive, normal or bulk) of
+    // the other operations, outbox replays go last.
+    public static final String SCIM_FAIR_SCHEDULING_ENABLED = "scim-fair-scheduling-enabled";
+    public static final String SCIM_SCHEDULING_WEIGHT = "scim-scheduling-weight";
+    public static final String SCIM_SCHEDULING_MAX_CONCURRENCY = "scim-scheduling-max-concurrency";
+    public static final String SCIM_SCHEDULING_PRIORITY = "scim-scheduling-priority";
+    // Workers of the node, the largest number configured by any identity provider applies.
+    public static final String SCIM_SCHEDULER_WORKERS = "scim-scheduler-workers";
+
+    public static final int DEFAULT_SCHEDULING_WEIGHT = 1;
+    public static final int DEFAULT_SCHEDULER_WORKERS = 32;
+
+    // Time in milliseconds operations are held back to merge bursts of changes to the same entity, 0 disables it.
+    public static final String SCIM_COALESCING_WINDOW = "scim-coalescing-window";
+    public static final long DEFAULT_COALESCING_WINDOW = 0;
+
+    // Durable outbox of operations not yet provisioned, replayed after a restart.
+    public static final String SCIM_OUTBOX_ENABLED = "scim-outbox-enabled";
+    public static final String SCIM_OUTBOX_SEGMENT_SIZE = "scim-outbox-segment-size";
+
+    public static final int DEFAULT_OUTBOX_SEGMENT_SIZE = 16777216;
+    public static final String OUTBOX_DIRECTORY = "repository" + File.separator + "data" + File.separator +
+            "scim-outbox";
+
+    // Initial sync of the existing users and groups, resumed from a checkpoint after a restart.
+    public static final String SCIM_INITIAL_SYNC_ENABLED = "scim-initial-sync-enabled";
+    public static final String SCIM_INITIAL_SYNC_PAGE_SIZE = "scim-initial-sync-page-size";
+    public static final String SCIM_INITIAL_SYNC_PARALLELISM = "scim-initial-sync-parallelism";
+
+    public static final int DEFAULT_INITIAL_SYNC_PAGE_SIZE = 200;
+    public static final int DEFAULT_INITIAL_SYNC_PARALLELISM = 8;
+    public static final long INITIAL_SYNC_STOP_TIMEOUT = 30000;
+    public static final String INITIAL_SYNC_DIRECTORY = "repository" + File.separator + "data" + File.separator +
+            "scim-sync";
+    public static final String INITIAL_SYNC_CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // Periodic reconciliation of the users and groups which drifted apart in the SCIM endpoint. Deletes remove
+    // resources provisioned by anyone else, so they are only for endpoints this connector owns.
+    public static final String SCIM_RECONCILIATION_ENABLED = "scim-reconciliation-enabled";
+    public static final String SCIM_RECONCILIATION_INTERVAL = "scim-reconciliation-interval";
+    public static final String SCIM_RECONCILIATION_PAGE_SIZE = "scim-reconciliation-page-size";
+    public static final String SCIM_RECONCILIATION_RATE_LIMIT = "scim-reconciliation-rate-limit";
+    public static final String SCIM_RECONCILIATION_DELETE_ENABLED = "scim-reconciliation-delete-enabled";
+
+    public static final long DEFAULT_RECONCILIATION_INTERVAL = 3600000;
+    public static final int DEFAULT_RECONCILIATION_PAGE_SIZE = 100;
+    public static final int DEFAULT_RECONCILIATION_RATE_LIMIT = 5;
+
+    // Cache of local user and group names to the ids assigned by the SCIM endpoint.
+    public static final String SCIM_ID_CACHE_SIZE = "scim-id-cache-size";
+    public static final String SCIM_ID_CACHE_TTL = "scim-id-cache-ttl";
+    public static final String SCIM_ID_CACHE_NEGATIVE_TTL = "scim-id-cache-negative-ttl";
+
+    public static final int DEFAULT_ID_CACHE_SIZE = 10000;
+    public static final long DEFAULT_ID_CACHE_TTL = 3600000;
+    public static final long DEFAULT_ID_CACHE_NEGATIVE_TTL = 30000;
+
+    // Updates and deletes carry the cached version (ETag) of the resource in If-Match, and expired ids are
+    // revalidated with If-None-Match. Only applies to endpoints reporting versions.
+    public static final String SCIM_CONDITIONAL_REQUESTS_ENABLED = "scim-conditional-requests-enabled";
+
+    // Fingerprints of the last provisioned user attributes, used to send only the changed ones.
+    public static final String SCIM_ATTRIBUTE_DIFF_ENABLED = "scim-attribute-diff-enabled";
+    public static final String SCIM_ATTRIBUTE_FINGERPRINT_CACHE_SIZE = "scim-attribute-fingerprint-cache-size";
+
+    public static final int DEFAULT_ATTRIBUTE_FINGERPRINT_CACHE_SIZE = 10000;
 }
@@ -21,9 +21,17 @@ package org.wso2.carbon.identity.provisioning.connector.scim;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.application.common.model.Property;
+import org.wso2.carbon.identity.provisioning.AbstractOutboundProvisioningConnector;
 import org.wso2.carbon.identity.provisioning.AbstractProvisioningConnectorFactory;
 import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author
  */
@@ -32,13 +40,110 @@ public class SCIMProvisioningConnectorFactory extends AbstractProvisioningConnec
     public static final String SCIM = "scim";
     private static final Log log = LogFactory.getLog(SCIMProvisioningConnectorFactory.class);
 
+    private static final Comparator<Property> PROPERTY_NAME_ORDER = new Comparator<Property>() {
+        @Override
+        public int compare(Property property, Property other) {
+            return String.valueOf(property.getName()).compareTo(String.valueOf(other.getName()));
+        }
+    };
+
+    /**
+     * A connector with the digest of the provisioning properties it was built from.
+     */
+    private static class CachedConnector {
+
+        private final String configurationDigest;
+        private final SCIMProvisioningConnector connector;
+
+        CachedConnector(String configurationDigest, SCIMProvisioningConnector connector) {
+
+            this.configurationDigest = configurationDigest;
+            this.connector = connector;
+        }
+    }
+
+    // Connectors keep their connections, caches and queues between provisioning calls, so they are built once per
+    // tenant and identity provider and rebuilt only when its provisioning properties change.
+    private final Map<String, CachedConnector> connectors = new HashMap<>();
+
+    /**
+     * Returns the connector built for the identity provider in the tenant, building a new one if there is none or if
+     * the provisioning properties changed since it was built. A replaced connector is closed once the new one is in
+     * place, and the new one then takes over the outbox replay and initial sync the replaced one stopped.
+     *
+     * @param identityProviderName
+     * @param provisioningProperties
+     * @param tenantDomain
+     * @return
+     * @throws IdentityProvisioningException
+     */
+    @Override
+    public AbstractOutboundProvisioningConnector getConnector(String identityProviderName,
+                                                              Property[] provisioningProperties, String tenantDomain)
+            throws IdentityProvisioningException {
+
+        String cacheKey = tenantDomain + ":" + identityProviderName;
+        String configurationDigest = getConfigurationDigest(provisioningProperties);
+        CachedConnector previous;
+        SCIMProvisioningConnector connector;
+        synchronized (connectors) {
+            previous = connectors.get(cacheKey);
+            if (previous != null && previous.configurationDigest.equals(configurationDigest)) {
+                return previous.connector;
+            }
+            connector = buildConnector(provisioningProperties, tenantDomain, identityProviderName);
+            connectors.put(cacheKey, new CachedConnector(configurationDigest, connector));
+        }
+
+        if (previous != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Provisioning properties of identity provider: " + identityProviderName + " of tenant: " +
+                        tenantDomain + " changed. Closing the connector built from the previous properties.");
+            }
+            previous.connector.close(SCIMProvisioningConnectorConstants.ASYNC_DRAIN_TIMEOUT);
+            connector.resumeReplacedWork();
+        }
+        return connector;
+    }
+
+    /**
+     * Closes all the cached connectors, e.g. when the bundle is deactivated.
+     *
+     * @param timeoutMillis maximum time to wait for the held back and queued operations of each connector
+     */
+    public void closeConnectors(long timeoutMillis) {
+
+        List<CachedConnector> cachedConnectors;
+        synchronized (connectors) {
+            cachedConnectors = new ArrayList<>(connectors.values());
+            connectors.clear();
+        }
+        for (CachedConnector cachedConnector : cachedConnectors) {
+            cachedConnector.connector.close(timeoutMillis);
+        }
+    }
+
     @Override
     /**
      * @throws IdentityProvisioningException
      */
     protected SCIMProvisioningConnector buildConnector(Property[] provisioningProperties)
             throws IdentityProvisioningException {
+        return buildConnector(provisioningProperties, null, null);
+    }
+
+    /**
+     * @param provisioningProperties
+     * @param tenantDomain           null if unknown, the connector is not fairly scheduled then
+     * @param identityProviderName
+     * @return
+     * @throws IdentityProvisioningException
+     */
+    private SCIMProvisioningConnector buildConnector(Property[] provisioningProperties, String tenantDomain,
+                                                     String identityProviderName)
+            throws IdentityProvisioningException {
         SCIMProvisioningConnector scimProvisioningConnector = new SCIMProvisioningConnector();
+        scimProvisioningConnector.setIdentityProvider(tenantDomain, identityProviderName);
         scimProvisioningConnector.init(provisioningProperties);
 
         if (log.isDebugEnabled()) {
@@ -52,4 +157,23 @@ public class SCIMProvisioningConnectorFactory extends AbstractProvisioningConnec
         return SCIM;
     }
 
+    /**
+     * @param provisioningProperties
+     * @return digest of the property names and values, independent of the order of the properties
+     */
+    private String getConfigurationDigest(Property[] provisioningProperties) {
+
+        if (provisioningProperties == null) {
+            return SCIMProvisioningConnectorUtil.getDigest("");
+        }
+        Property[] properties = provisioningProperties.clone();
+        Arrays.sort(properties, PROPERTY_NAME_ORDER);
+        StringBuilder configuration = new StringBuilder();
+        for (Property property : properties) {
+            configuration.append(property.getName()).append('=').append(property.getValue()).append('|')
+                    .append(property.getDefaultValue()).append('\n');
+        }
+        return SCIMProvisioningConnectorUtil.getDigest(configuration.toString());
+    }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.charon.core.config.SCIMConfigConstants;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for reading the connector configuration stored in the {@link SCIMProvider}.
+ */
+public class SCIMProvisioningConnectorUtil {
+
+    private static final Log log = LogFactory.getLog(SCIMProvisioningConnectorUtil.class);
+
+    private static final String CARBON_HOME = "carbon.home";
+    private static final String JAVA_IO_TMPDIR = "java.io.tmpdir";
+
+    private SCIMProvisioningConnectorUtil() {
+    }
+
+    /**
+     * @param scimProvider
+     * @param propertyName
+     * @param defaultValue value used when the property is not set or is not a valid integer
+     * @return
+     */
+    public static int getIntProperty(SCIMProvider scimProvider, String propertyName, int defaultValue) {
+
+        String value = scimProvider.getProperty(propertyName);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value: " + value + " configured for property: " + propertyName + ". Using default " +
+                    "value: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param scimProvider
+     * @param propertyName
+     * @param defaultValue value used when the property is not set or is not a valid long
+     * @return
+     */
+    public static long getLongProperty(SCIMProvider scimProvider, String propertyName, long defaultValue) {
+
+        String value = scimProvider.getProperty(propertyName);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value: " + value + " configured for property: " + propertyName + ". Using default " +
+                    "value: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param scimProvider
+     * @param propertyName
+     * @param defaultValue value used when the property is not set
+     * @return
+     */
+    public static boolean getBooleanProperty(SCIMProvider scimProvider, String propertyName, boolean defaultValue) {
+
+        String value = scimProvider.getProperty(propertyName);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Returns the SCIM service base URL of a resource endpoint, e.g. https://host/scim for https://host/scim/Users.
+     *
+     * @param resourceEndpoint
+     * @return
+     */
+    public static String getBaseUrl(String resourceEndpoint) {
+
+        String endpoint = StringUtils.removeEnd(resourceEndpoint, "/");
+        return endpoint.substring(0, endpoint.lastIndexOf('/'));
+    }
+
+    /**
+     * Returns the resource path of a resource endpoint relative to the SCIM base URL, e.g. /Users for
+     * https://host/scim/Users.
+     *
+     * @param resourceEndpoint
+     * @return
+     */
+    public static String getResourcePath(String resourceEndpoint) {
+
+        String endpoint = StringUtils.removeEnd(resourceEndpoint, "/");
+        return endpoint.substring(endpoint.lastIndexOf('/'));
+    }
+
+    /**
+     * @return directory holding the outboxes of all the connectors
+     */
+    public static File getOutboxBaseDirectory() {
+
+        return new File(getCarbonHome(), SCIMProvisioningConnectorConstants.OUTBOX_DIRECTORY);
+    }
+
+    /**
+     * Returns the outbox directory of a connector. Connectors provisioning to the same endpoints as the same user
+     * share an outbox, so pending operations are replayed by whichever of them is initialized after a restart.
+     *
+     * @param scimProvider
+     * @return
+     */
+    public static File getOutboxDirectory(SCIMProvider scimProvider) {
+        return new File(getOutboxBaseDirectory(), getTargetId(scimProvider));
+    }
+
+    /**
+     * Returns the initial sync checkpoint file of a connector, shared the same way as the outbox.
+     *
+     * @param scimProvider
+     * @return
+     */
+    public static File getInitialSyncCheckpointFile(SCIMProvider scimProvider) {
+        return new File(new File(getCarbonHome(), SCIMProvisioningConnectorConstants.INITIAL_SYNC_DIRECTORY),
+                getTargetId(scimProvider) + SCIMProvisioningConnectorConstants.INITIAL_SYNC_CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * @param scimProvider
+     * @return file name safe id of the endpoints and the user provisioning to them
+     */
+    private static String getTargetId(SCIMProvider scimProvider) {
+
+        return getDigest(scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT) + "|" +
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT) + "|" +
+                scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USERNAME));
+    }
+
+    /**
+     * @param value
+     * @return hex encoded SHA-1 digest of the value
+     */
+    public static String getDigest(String value) {
+
+        StringBuilder digest = new StringBuilder();
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"))) {
+                digest.append(String.format("%02x", b));
+            }
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("Error while computing a SHA-1 digest.", e);
+        }
+        return digest.toString();
+    }
+
+    private static String getCarbonHome() {
+
+        String carbonHome = System.getProperty(CARBON_HOME);
+        return StringUtils.isNotBlank(carbonHome) ? carbonHome : System.getProperty(JAVA_IO_TMPDIR);
+    }
+}
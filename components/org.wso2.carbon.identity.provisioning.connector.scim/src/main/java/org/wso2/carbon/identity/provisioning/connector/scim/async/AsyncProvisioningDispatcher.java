@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs provisioning operations off the caller's thread.
+ * <p>
+ * Operations are spread over a fixed number of lanes by entity key. Each lane is a bounded FIFO queue drained by at
+ * most one worker at a time, so operations of the same user or group are executed in submission order while
+ * different entities proceed in parallel. Workers are only held while a lane has work, idle ones exit.
+ * <p>
+ * Given a {@link FairDispatchScheduler.Flow}, lanes run on the workers of the shared scheduler instead, one operation
+ * per turn, so the scheduler decides between the lanes of all the tenants after every operation.
+ */
+public class AsyncProvisioningDispatcher {
+
+    private static final Log log = LogFactory.getLog(AsyncProvisioningDispatcher.class);
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+    private static final long DRAIN_POLL_INTERVAL = 50;
+
+    // Live dispatchers, so that all of them can be drained when the bundle is deactivated.
+    private static final Map<AsyncProvisioningDispatcher, Boolean> dispatchers = Collections.synchronizedMap(new
+            WeakHashMap<AsyncProvisioningDispatcher, Boolean>());
+
+    /**
+     * What to do with a new operation when its lane is full.
+     */
+    public enum BackpressurePolicy {
+
+        /**
+         * Wait until the lane has room.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued operation of the same entity, failing the new operation if there is none. Other
+         * entities' operations are never discarded, later operations of theirs may depend on them.
+         */
+        DROP_OLDEST,
+        /**
+         * Fail the new operation.
+         */
+        REJECT;
+
+        public static BackpressurePolicy fromString(String value) {
+
+            if (value != null) {
+                for (BackpressurePolicy policy : values()) {
+                    if (policy.name().replace('_', '-').equalsIgnoreCase(value.trim())) {
+                        return policy;
+                    }
+                }
+            }
+            return BLOCK;
+        }
+    }
+
+    /**
+     * Told about operations discarded by the {@link BackpressurePolicy#DROP_OLDEST} policy.
+     */
+    public interface DropListener {
+
+        /**
+         * @param entityKey key of the user or group the operation is about
+         * @param operation the discarded operation, as submitted
+         */
+        void dropped(String entityKey, Runnable operation);
+    }
+
+    private final Lane[] lanes;
+    // Null if the lanes run on the shared scheduler.
+    private final ThreadPoolExecutor executor;
+    private final FairDispatchScheduler.Flow flow;
+    private final BackpressurePolicy backpressurePolicy;
+    private final DropListener dropListener;
+    private final AtomicLong droppedOperations = new AtomicLong();
+    private final AtomicLong rejectedOperations = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * @param workers            number of lanes, i.e. maximum number of operations executed in parallel
+     * @param queueCapacity      maximum number of queued operations across all lanes
+     * @param backpressurePolicy
+     */
+    public AsyncProvisioningDispatcher(int workers, int queueCapacity, BackpressurePolicy backpressurePolicy) {
+        this(workers, queueCapacity, backpressurePolicy, null, null);
+    }
+
+    /**
+     * @param workers            number of lanes, i.e. maximum number of operations executed in parallel
+     * @param queueCapacity      maximum number of queued operations across all lanes
+     * @param backpressurePolicy
+     * @param flow               flow of the shared scheduler to run the lanes on, null to run them on own workers
+     * @param dropListener       told about discarded operations, may be null
+     */
+    public AsyncProvisioningDispatcher(int workers, int queueCapacity, BackpressurePolicy backpressurePolicy,
+                                       FairDispatchScheduler.Flow flow, DropListener dropListener) {
+
+        int laneCount = Math.max(1, workers);
+        int laneCapacity = Math.max(1, queueCapacity / laneCount);
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity);
+        }
+        this.backpressurePolicy = backpressurePolicy;
+        this.dropListener = dropListener;
+        this.flow = flow;
+        if (flow == null) {
+            // At most one worker per lane, so the pool never needs to queue or reject.
+            this.executor = new ThreadPoolExecutor(0, laneCount, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new SCIMConnectorThreadFactory("SCIMAsyncProvisioningWorker"));
+        } else {
+            this.executor = null;
+        }
+        dispatchers.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * Queues an operation behind all the previously submitted operations with the same entity key.
+     *
+     * @param entityKey key of the user or group the operation is about
+     * @param operation
+     * @return false if the dispatcher is shut down and the operation has to be run by the caller
+     * @throws IdentityProvisioningException if the operation is rejected by the backpressure policy
+     */
+    public boolean submit(String entityKey, Runnable operation) throws IdentityProvisioningException {
+        return submit(entityKey, operation, FairDispatchScheduler.Priority.NORMAL);
+    }
+
+    /**
+     * Queues an operation behind all the previously submitted operations with the same entity key.
+     *
+     * @param entityKey key of the user or group the operation is about
+     * @param task
+     * @param priority  priority on the shared scheduler, ignored if the lanes run on own workers
+     * @return false if the dispatcher is shut down and the operation has to be run by the caller
+     * @throws IdentityProvisioningException if the operation is rejected by the backpressure policy
+     */
+    public boolean submit(String entityKey, Runnable task, FairDispatchScheduler.Priority priority)
+            throws IdentityProvisioningException {
+
+        if (shutdown) {
+            return false;
+        }
+
+        QueuedOperation operation = new QueuedOperation(entityKey, task, priority);
+        Lane lane = lanes[(entityKey.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        switch (backpressurePolicy) {
+            case DROP_OLDEST:
+                while (!lane.queue.offer(operation)) {
+                    QueuedOperation dropped = lane.removeOldest(entityKey);
+                    if (dropped == null) {
+                        // The lane may have been drained meanwhile, otherwise it only holds other entities.
+                        if (lane.queue.offer(operation)) {
+                            break;
+                        }
+                        rejectedOperations.incrementAndGet();
+                        throw new IdentityProvisioningException("Provisioning queue is full and holds no operation " +
+                                "of: " + entityKey + " to drop. Rejected the operation.");
+                    }
+                    droppedOperations.incrementAndGet();
+                    log.warn("Provisioning queue is full. Dropped the oldest queued operation of: " +
+                            dropped.entityKey + " to queue a newer one.");
+                    if (dropListener != null) {
+                        dropListener.dropped(dropped.entityKey, dropped.task);
+                    }
+                }
+                break;
+            case REJECT:
+                if (!lane.queue.offer(operation)) {
+                    rejectedOperations.incrementAndGet();
+                    throw new IdentityProvisioningException("Provisioning queue is full. Rejected the operation " +
+                            "of: " + entityKey);
+                }
+                break;
+            default:
+                try {
+                    lane.queue.put(operation);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IdentityProvisioningException("Interrupted while queueing the operation of: " +
+                            entityKey, e);
+                }
+        }
+        lane.schedule();
+        return true;
+    }
+
+    public long getQueuedOperations() {
+
+        long queued = 0;
+        for (Lane lane : lanes) {
+            queued += lane.queue.size();
+        }
+        return queued;
+    }
+
+    public long getDroppedOperations() {
+        return droppedOperations.get();
+    }
+
+    public long getRejectedOperations() {
+        return rejectedOperations.get();
+    }
+
+    /**
+     * Stops accepting operations and waits for the queued ones to complete.
+     *
+     * @param deadline time in milliseconds since the epoch until which to wait
+     * @return number of operations that were still queued at the deadline
+     */
+    public long shutdown(long deadline) {
+
+        shutdown = true;
+        try {
+            while (!isIdle() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(DRAIN_POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        dispatchers.remove(this);
+        return getQueuedOperations();
+    }
+
+    /**
+     * Drains all the live dispatchers, waiting at most the given time in total.
+     *
+     * @param timeoutMillis
+     */
+    public static void shutdownAll(long timeoutMillis) {
+
+        List<AsyncProvisioningDispatcher> liveDispatchers;
+        synchronized (dispatchers) {
+            liveDispatchers = new ArrayList<>(dispatchers.keySet());
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (AsyncProvisioningDispatcher dispatcher : liveDispatchers) {
+            long remaining = dispatcher.shutdown(deadline);
+            if (remaining > 0) {
+                log.warn(remaining + " queued provisioning operations were not completed before shutdown.");
+            }
+        }
+    }
+
+    private boolean isIdle() {
+
+        for (Lane lane : lanes) {
+            if (lane.scheduled.get() || !lane.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class QueuedOperation {
+
+        private final String entityKey;
+        private final Runnable task;
+        private final FairDispatchScheduler.Priority priority;
+
+        private QueuedOperation(String entityKey, Runnable task, FairDispatchScheduler.Priority priority) {
+
+            this.entityKey = entityKey;
+            this.task = task;
+            this.priority = priority;
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        private final BlockingQueue<QueuedOperation> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * @param entityKey
+         * @return the removed operation, null if no operation of the entity is queued
+         */
+        QueuedOperation removeOldest(String entityKey) {
+
+            Iterator<QueuedOperation> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                QueuedOperation operation = iterator.next();
+                if (operation.entityKey.equals(entityKey) && queue.remove(operation)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+
+        void schedule() {
+
+            if (scheduled.compareAndSet(false, true)) {
+                if (flow != null) {
+                    // The lane takes its turn at the priority of the operation at its head.
+                    QueuedOperation head = queue.peek();
+                    if (head == null) {
+                        // Drained meanwhile, an operation may have been queued again before the flag is cleared.
+                        scheduled.set(false);
+                        if (!queue.isEmpty()) {
+                            schedule();
+                        }
+                        return;
+                    }
+                    if (flow.submit(this, head.priority)) {
+                        return;
+                    }
+                } else {
+                    try {
+                        executor.execute(this);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // Handled below.
+                    }
+                }
+                scheduled.set(false);
+                log.warn(queue.size() + " queued provisioning operations are discarded as the dispatcher is " +
+                        "shut down.");
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                QueuedOperation operation;
+                while ((operation = queue.poll()) != null) {
+                    try {
+                        operation.task.run();
+                    } catch (Throwable e) {
+                        log.error("Error while executing queued provisioning operation.", e);
+                    }
+                    if (flow != null) {
+                        // Give the worker back, the lane queues again for its next operation.
+                        break;
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // An operation may have been queued after the last poll but before the flag was cleared.
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.SchedulingMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node wide pool of provisioning workers shared by the connectors of all the tenants, so that a burst of operations
+ * of one tenant, e.g. a bulk import, can not hold all the workers while the operations of the others wait.
+ * <p>
+ * Each tenant and identity provider is a {@link Flow} with a weight and a cap on the operations it runs at once.
+ * Operations are queued per flow and {@link Priority}. A free worker takes an operation of the highest priority
+ * queued, from the flow which received the least service relative to its weight so far, skipping flows at their cap.
+ * A flow becoming busy again starts from the service of the flows busy at that time, so it can not save up credit
+ * while idle and then starve the others.
+ * <p>
+ * Operations either run on a worker of the scheduler, see {@link Flow#submit(Runnable, Priority)}, or on the calling
+ * thread once the scheduler admits them, see {@link Flow#acquire(Priority)}, so synchronous provisioning competes
+ * for the same workers.
+ */
+public final class FairDispatchScheduler {
+
+    private static final Log log = LogFactory.getLog(FairDispatchScheduler.class);
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private static FairDispatchScheduler shared;
+
+    /**
+     * Priority of an operation. Queued operations of a higher priority always go first.
+     */
+    public enum Priority {
+
+        /**
+         * Operations a user waits for, e.g. JIT provisioning during a login.
+         */
+        INTERACTIVE,
+        /**
+         * Operations following changes in the user store.
+         */
+        NORMAL,
+        /**
+         * Operations nobody waits for, e.g. replayed from the outbox.
+         */
+        BULK;
+
+        public static Priority fromString(String value) {
+
+            if (value != null) {
+                for (Priority priority : values()) {
+                    if (priority.name().equalsIgnoreCase(value.trim())) {
+                        return priority;
+                    }
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    private final Object lock = new Object();
+    // Runs at most maxWorkers operations at a time, as counted by running rather than by the pool.
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new SCIMConnectorThreadFactory("SCIMFairDispatchWorker"));
+    private final Map<String, Flow> flows = new LinkedHashMap<>();
+    private int maxWorkers;
+    private int running;
+    // Service of the flow served last, flows becoming busy start from here.
+    private double virtualTime;
+    private boolean shutdown;
+
+    private FairDispatchScheduler() {
+    }
+
+    /**
+     * @return the scheduler shared by all the connectors of the node
+     */
+    public static synchronized FairDispatchScheduler getShared() {
+
+        if (shared == null) {
+            shared = new FairDispatchScheduler();
+        }
+        return shared;
+    }
+
+    /**
+     * Stops the shared scheduler. Operations still queued are discarded and callers waiting to be admitted proceed
+     * right away. Drain the connectors submitting to it first.
+     */
+    public static void shutdownShared() {
+
+        FairDispatchScheduler scheduler;
+        synchronized (FairDispatchScheduler.class) {
+            scheduler = shared;
+            shared = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Returns the flow of the identity provider of the tenant, updating its weight and cap if it already exists.
+     * Connectors replacing each other share the flow.
+     *
+     * @param tenantDomain
+     * @param identityProvider
+     * @param weight           share of the workers relative to the other flows while they compete for workers
+     * @param maxConcurrency   maximum number of operations of the flow run at once
+     * @param workers          workers the scheduler needs at least, the largest number asked for applies
+     * @return the flow to submit the operations of the identity provider to
+     */
+    public Flow register(String tenantDomain, String identityProvider, int weight, int maxConcurrency,
+                         int workers) {
+
+        String key = tenantDomain + ":" + identityProvider;
+        Flow flow;
+        synchronized (lock) {
+            flow = flows.get(key);
+            if (flow == null) {
+                flow = new Flow(ProvisioningMetrics.getSchedulingMetrics(tenantDomain, identityProvider));
+                flows.put(key, flow);
+            }
+            flow.weight = Math.max(1, weight);
+            flow.maxConcurrency = Math.max(1, maxConcurrency);
+            maxWorkers = Math.max(maxWorkers, workers);
+            if (log.isDebugEnabled()) {
+                log.debug("Registered scheduling flow: " + key + " with weight: " + flow.weight + " and max " +
+                        "concurrency: " + flow.maxConcurrency + ". Scheduler workers: " + maxWorkers);
+            }
+        }
+        // A raised cap may let queued operations start.
+        startQueued();
+        return flow;
+    }
+
+    private void shutdown() {
+
+        List<Task> waiting = new ArrayList<>();
+        int discarded = 0;
+        synchronized (lock) {
+            shutdown = true;
+            for (Flow flow : flows.values()) {
+                for (Deque<Task> queue : flow.queues) {
+                    for (Task task : queue) {
+                        if (task.operation == null) {
+                            waiting.add(task);
+                        } else {
+                            flow.metrics.rejected();
+                            discarded++;
+                        }
+                    }
+                    queue.clear();
+                }
+            }
+        }
+        for (Task task : waiting) {
+            task.flow.metrics.rejected();
+            task.admitted.countDown();
+        }
+        if (discarded > 0) {
+            log.warn(discarded + " queued provisioning operations are discarded as the scheduler is shut down.");
+        }
+        executor.shutdown();
+    }
+
+    private boolean enqueue(Task task, Priority priority) {
+
+        synchronized (lock) {
+            if (shutdown) {
+                return false;
+            }
+            Flow flow = task.flow;
+            if (flow.queued == 0 && flow.running == 0) {
+                flow.virtualTime = Math.max(flow.virtualTime, virtualTime);
+            }
+            flow.queues.get(priority.ordinal()).add(task);
+            flow.queued++;
+            flow.metrics.queued();
+        }
+        startQueued();
+        return true;
+    }
+
+    /**
+     * Starts queued operations while there are free workers. Operations running on a worker are handed to the pool,
+     * callers waiting to be admitted are released.
+     */
+    private void startQueued() {
+
+        List<Task> started = new ArrayList<>();
+        synchronized (lock) {
+            takeStartable(started);
+        }
+        for (Task task : started) {
+            execute(task);
+        }
+    }
+
+    /**
+     * Marks the operation completed and returns the next operation the calling worker should run, starting any
+     * further ones which can run now.
+     */
+    private Task complete(Task task) {
+
+        List<Task> started = new ArrayList<>();
+        synchronized (lock) {
+            running--;
+            task.flow.running--;
+            task.flow.metrics.completed();
+            takeStartable(started);
+        }
+        if (started.isEmpty()) {
+            return null;
+        }
+        for (int i = 1; i < started.size(); i++) {
+            execute(started.get(i));
+        }
+        return started.get(0);
+    }
+
+    /**
+     * Must hold the lock. Adds the started operations which run on a worker to the given list.
+     */
+    private void takeStartable(List<Task> started) {
+
+        Task task;
+        while (!shutdown && running < maxWorkers && (task = next()) != null) {
+            running++;
+            task.flow.running++;
+            task.flow.metrics.started(System.nanoTime() - task.queuedTime);
+            if (task.operation == null) {
+                task.admitted.countDown();
+            } else {
+                started.add(task);
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     *
+     * @return the next operation to start, null if none can start
+     */
+    private Task next() {
+
+        for (Priority priority : Priority.values()) {
+            Flow selected = null;
+            for (Flow flow : flows.values()) {
+                if (flow.running < flow.maxConcurrency && !flow.queues.get(priority.ordinal()).isEmpty() &&
+                        (selected == null || flow.virtualTime < selected.virtualTime)) {
+                    selected = flow;
+                }
+            }
+            if (selected != null) {
+                virtualTime = Math.max(virtualTime, selected.virtualTime);
+                selected.virtualTime += 1.0 / selected.weight;
+                selected.queued--;
+                return selected.queues.get(priority.ordinal()).poll();
+            }
+        }
+        return null;
+    }
+
+    private void execute(final Task first) {
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Task task = first;
+                while (task != null) {
+                    try {
+                        task.operation.run();
+                    } catch (Throwable e) {
+                        log.error("Error while executing scheduled provisioning operation.", e);
+                    }
+                    task = complete(task);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queued operations of one tenant and identity provider.
+     */
+    public final class Flow {
+
+        private final SchedulingMetrics metrics;
+        private final List<Deque<Task>> queues = new ArrayList<>(Priority.values().length);
+        private int weight;
+        private int maxConcurrency;
+        private int queued;
+        private int running;
+        // Operations started so far, each divided by the weight at the time.
+        private double virtualTime;
+
+        private Flow(SchedulingMetrics metrics) {
+
+            this.metrics = metrics;
+            for (int i = 0; i < Priority.values().length; i++) {
+                queues.add(new ArrayDeque<Task>());
+            }
+        }
+
+        /**
+         * Queues an operation to run on a worker of the scheduler.
+         *
+         * @param operation
+         * @param priority
+         * @return false if the scheduler is shut down and the operation is not run
+         */
+        public boolean submit(Runnable operation, Priority priority) {
+            return enqueue(new Task(this, operation), priority);
+        }
+
+        /**
+         * Waits until the scheduler admits an operation to run on the calling thread. Must be followed by
+         * {@link #release()} once the operation completed.
+         *
+         * @param priority
+         * @throws IdentityProvisioningException if interrupted while waiting
+         */
+        public void acquire(Priority priority) throws IdentityProvisioningException {
+
+            Task task = new Task(this, null);
+            if (!enqueue(task, priority)) {
+                // Shut down, run the operation without accounting for it.
+                return;
+            }
+            try {
+                task.admitted.await();
+            } catch (InterruptedException e) {
+                boolean dequeued;
+                synchronized (lock) {
+                    dequeued = queues.get(priority.ordinal()).remove(task);
+                    if (dequeued) {
+                        queued--;
+                        metrics.rejected();
+                    }
+                }
+                if (!dequeued) {
+                    // Admitted meanwhile, give the worker back.
+                    release();
+                }
+                Thread.currentThread().interrupt();
+                throw new IdentityProvisioningException("Interrupted while waiting to be scheduled.", e);
+            }
+        }
+
+        /**
+         * Gives back the worker of an operation admitted by {@link #acquire(Priority)}.
+         */
+        public void release() {
+
+            synchronized (lock) {
+                if (shutdown) {
+                    return;
+                }
+            }
+            Task next = complete(new Task(this, null));
+            if (next != null) {
+                execute(next);
+            }
+        }
+    }
+
+    private static final class Task {
+
+        private final Flow flow;
+        // Null if the operation runs on the thread that acquired it.
+        private final Runnable operation;
+        private final CountDownLatch admitted;
+        private final long queuedTime = System.nanoTime();
+
+        private Task(Flow flow, Runnable operation) {
+
+            this.flow = flow;
+            this.operation = operation;
+            this.admitted = operation == null ? new CountDownLatch(1) : null;
+        }
+    }
+}
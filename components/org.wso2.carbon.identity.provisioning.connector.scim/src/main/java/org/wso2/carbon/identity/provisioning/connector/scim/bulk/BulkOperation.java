@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.bulk;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single operation of a SCIM bulk request together with the result the server reported for it.
+ */
+public class BulkOperation {
+
+    private final String method;
+    private final String path;
+    private final String bulkId;
+    private final String data;
+
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile boolean dispatched;
+    private volatile int status;
+    private volatile String location;
+    private volatile String version;
+    private volatile String error;
+
+    /**
+     * @param method HTTP method of the operation
+     * @param path   resource path relative to the SCIM base URL, e.g. /Users or /Groups/{id}
+     * @param bulkId transient identifier of the operation, unique within a bulk request
+     * @param data   JSON encoded resource or patch, null for DELETE
+     */
+    public BulkOperation(String method, String path, String bulkId, String data) {
+
+        this.method = method;
+        this.path = path;
+        this.bulkId = bulkId;
+        this.data = data;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getBulkId() {
+        return bulkId;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return version of the resource reported by the server, if any
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return id of the resource the operation created or modified, derived from the reported location
+     */
+    public String getResourceId() {
+
+        if (StringUtils.isEmpty(location)) {
+            return null;
+        }
+        return StringUtils.substringAfterLast(StringUtils.removeEnd(location, "/"), "/");
+    }
+
+    int getEstimatedSize() {
+        // method, path, bulkId and the JSON punctuation around them.
+        return 64 + path.length() + bulkId.length() + (data != null ? data.length() : 0);
+    }
+
+    boolean isDispatched() {
+        return dispatched;
+    }
+
+    void setDispatched() {
+        dispatched = true;
+    }
+
+    synchronized void complete(int status, String location, String version, String error) {
+
+        if (completed.getCount() == 0) {
+            return;
+        }
+        this.status = status;
+        this.location = location;
+        this.version = version;
+        this.error = error;
+        completed.countDown();
+    }
+
+    boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    boolean await(long timeoutMillis) throws InterruptedException {
+        return completed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void await() throws InterruptedException {
+        completed.await();
+    }
+}
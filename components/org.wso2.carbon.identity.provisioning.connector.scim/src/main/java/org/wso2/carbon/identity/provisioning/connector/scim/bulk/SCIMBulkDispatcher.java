@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.bulk;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpResponse;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpTransport;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects provisioning operations of concurrent callers into SCIM bulk requests.
+ * <p>
+ * Callers hand over a unit of operations and block until the server has reported a result for each of them. A
+ * unit is never split across bulk requests, so operations inside a unit may reference each other by bulkId. The
+ * pending batch is sent as soon as it reaches the operation or payload limit, or by the first caller whose
+ * operations have waited for the flush interval. No background thread is involved.
+ */
+public class SCIMBulkDispatcher {
+
+    private static final Log log = LogFactory.getLog(SCIMBulkDispatcher.class);
+
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final String SCHEMAS = "schemas";
+    private static final String OPERATIONS = "Operations";
+    private static final String METHOD = "method";
+    private static final String PATH = "path";
+    private static final String BULK_ID = "bulkId";
+    private static final String DATA = "data";
+    private static final String LOCATION = "location";
+    private static final String VERSION = "version";
+    private static final String STATUS = "status";
+    private static final String CODE = "code";
+    private static final String RESPONSE = "response";
+    private static final String BULK = "bulk";
+    private static final String SUPPORTED = "supported";
+    private static final String MAX_OPERATIONS = "maxOperations";
+    private static final String MAX_PAYLOAD_SIZE = "maxPayloadSize";
+    // schemas array, Operations array and the separators between operations.
+    private static final int REQUEST_OVERHEAD = 128;
+
+    private final SCIMHttpTransport transport;
+    private final String bulkEndpoint;
+    private final String serviceProviderConfigEndpoint;
+    private final String requestSchema;
+    private final long flushInterval;
+    private final AtomicLong bulkIdSequence = new AtomicLong();
+
+    private volatile int maxOperations;
+    private volatile int maxPayloadSize;
+    private volatile boolean supported = true;
+    private volatile boolean limitsDiscovered;
+
+    private final Object lock = new Object();
+    private List<BulkOperation> pending = new ArrayList<>();
+    private int pendingPayloadSize = REQUEST_OVERHEAD;
+
+    /**
+     * @param transport
+     * @param bulkEndpoint                  URL of the /Bulk endpoint
+     * @param serviceProviderConfigEndpoint URL to read the advertised bulk limits from, may be null
+     * @param requestSchema                 schema URI of the bulk request message
+     * @param maxOperations                 configured maximum operations per request
+     * @param maxPayloadSize                configured maximum payload size per request in bytes
+     * @param flushInterval                 maximum time in milliseconds an operation waits for its batch to fill
+     */
+    public SCIMBulkDispatcher(SCIMHttpTransport transport, String bulkEndpoint, String serviceProviderConfigEndpoint,
+                              String requestSchema, int maxOperations, int maxPayloadSize, long flushInterval) {
+
+        this.transport = transport;
+        this.bulkEndpoint = bulkEndpoint;
+        this.serviceProviderConfigEndpoint = serviceProviderConfigEndpoint;
+        this.requestSchema = requestSchema;
+        this.maxOperations = maxOperations;
+        this.maxPayloadSize = maxPayloadSize;
+        this.flushInterval = flushInterval;
+    }
+
+    public String nextBulkId() {
+        return "op" + bulkIdSequence.incrementAndGet();
+    }
+
+    /**
+     * @param operations
+     * @return true if the target supports bulk requests and the operations fit into a single bulk request
+     */
+    public boolean accepts(List<BulkOperation> operations) {
+
+        discoverLimits();
+        return supported && operations.size() <= maxOperations && REQUEST_OVERHEAD + getPayloadSize(operations) <=
+                maxPayloadSize;
+    }
+
+    /**
+     * Sends the given operations as part of a bulk request and waits until the result of each operation is known.
+     * Check {@link BulkOperation#isSuccess()} of each operation afterwards.
+     *
+     * @param operations operations that must be sent in the same bulk request
+     * @throws IdentitySCIMException if interrupted while waiting for the results
+     */
+    public void execute(List<BulkOperation> operations) throws IdentitySCIMException {
+
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        int payloadSize = getPayloadSize(operations);
+        List<BulkOperation> fullBatch = null;
+        List<BulkOperation> batchToSend = null;
+        synchronized (lock) {
+            if (!pending.isEmpty() && (pending.size() + operations.size() > maxOperations ||
+                    pendingPayloadSize + payloadSize > maxPayloadSize)) {
+                fullBatch = takePending();
+            }
+            pending.addAll(operations);
+            pendingPayloadSize += payloadSize;
+            if (pending.size() >= maxOperations) {
+                batchToSend = takePending();
+            }
+        }
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+        if (batchToSend != null) {
+            send(batchToSend);
+        }
+
+        BulkOperation last = operations.get(operations.size() - 1);
+        try {
+            if (!last.await(flushInterval)) {
+                List<BulkOperation> batch = null;
+                synchronized (lock) {
+                    if (!last.isDispatched()) {
+                        batch = takePending();
+                    }
+                }
+                if (batch != null) {
+                    send(batch);
+                }
+                last.await();
+            }
+            for (BulkOperation operation : operations) {
+                operation.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdentitySCIMException("Interrupted while waiting for the bulk operation results.", e);
+        }
+    }
+
+    private List<BulkOperation> takePending() {
+
+        List<BulkOperation> batch = pending;
+        for (BulkOperation operation : batch) {
+            operation.setDispatched();
+        }
+        pending = new ArrayList<>();
+        pendingPayloadSize = REQUEST_OVERHEAD;
+        return batch;
+    }
+
+    private void send(List<BulkOperation> batch) {
+
+        try {
+            PostMethod postMethod = new PostMethod(bulkEndpoint);
+            postMethod.setRequestEntity(new StringRequestEntity(buildRequest(batch), CONTENT_TYPE_JSON,
+                    CHARSET_UTF8));
+            SCIMHttpResponse response = transport.execute(postMethod);
+
+            if (log.isDebugEnabled()) {
+                log.debug("SCIM bulk request with " + batch.size() + " operations responded with status: " +
+                        response.getStatusCode());
+            }
+            if (response.isSuccess()) {
+                completeOperations(batch, response.getBody());
+            } else {
+                failOperations(batch, response.getStatusCode(), "Bulk request failed with status: " +
+                        response.getStatusCode());
+            }
+        } catch (IOException e) {
+            log.error("Error while sending SCIM bulk request to: " + bulkEndpoint, e);
+            failOperations(batch, 0, "Error while sending bulk request: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Error while processing SCIM bulk response from: " + bulkEndpoint, e);
+            failOperations(batch, 0, "Error while processing bulk response: " + e.getMessage());
+        } finally {
+            // Never leave a caller waiting on an operation the server did not report.
+            failOperations(batch, 0, "No result reported for the operation in the bulk response.");
+        }
+    }
+
+    private String buildRequest(List<BulkOperation> batch) {
+
+        StringBuilder request = new StringBuilder(REQUEST_OVERHEAD + getPayloadSize(batch));
+        request.append('{').append(JSONObject.quote(SCHEMAS)).append(":[").append(JSONObject.quote(requestSchema))
+                .append("],").append(JSONObject.quote(OPERATIONS)).append(":[");
+        for (int i = 0; i < batch.size(); i++) {
+            BulkOperation operation = batch.get(i);
+            if (i > 0) {
+                request.append(',');
+            }
+            request.append('{').append(JSONObject.quote(METHOD)).append(':')
+                    .append(JSONObject.quote(operation.getMethod())).append(',')
+                    .append(JSONObject.quote(PATH)).append(':').append(JSONObject.quote(operation.getPath()))
+                    .append(',').append(JSONObject.quote(BULK_ID)).append(':')
+                    .append(JSONObject.quote(operation.getBulkId()));
+            if (operation.getData() != null) {
+                request.append(',').append(JSONObject.quote(DATA)).append(':').append(operation.getData());
+            }
+            request.append('}');
+        }
+        return request.append("]}").toString();
+    }
+
+    private void completeOperations(List<BulkOperation> batch, String responseBody) throws Exception {
+
+        Map<String, BulkOperation> operationsByBulkId = new HashMap<>();
+        for (BulkOperation operation : batch) {
+            operationsByBulkId.put(operation.getBulkId(), operation);
+        }
+
+        JSONArray results = new JSONObject(responseBody).optJSONArray(OPERATIONS);
+        if (results == null) {
+            return;
+        }
+        List<Integer> unmatchedResults = new ArrayList<>();
+        boolean bulkIdsEchoed = false;
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null) {
+                continue;
+            }
+            BulkOperation operation = operationsByBulkId.get(result.optString(BULK_ID, null));
+            if (operation != null) {
+                bulkIdsEchoed = true;
+                complete(operation, result);
+            } else {
+                unmatchedResults.add(i);
+            }
+        }
+
+        // Servers are not required to echo bulkIds of non POST operations, results are in request order.
+        for (int i : unmatchedResults) {
+            if (i >= batch.size()) {
+                continue;
+            }
+            BulkOperation operation = batch.get(i);
+            JSONObject result = results.getJSONObject(i);
+            if (!operation.isCompleted() && isResultOf(operation, result, bulkIdsEchoed)) {
+                complete(operation, result);
+            }
+        }
+    }
+
+    /**
+     * Checks a result without a known bulkId against the operation at its position in the request, as a server
+     * echoing only some bulkIds may leave out results and shift the positions of the others.
+     *
+     * @param operation
+     * @param result
+     * @param bulkIdsEchoed whether other results of the response were matched by their bulkId
+     * @return whether the result is the one of the operation
+     */
+    private boolean isResultOf(BulkOperation operation, JSONObject result, boolean bulkIdsEchoed) {
+
+        String method = result.optString(METHOD, null);
+        String location = result.optString(LOCATION, null);
+        if (method == null && location == null) {
+            // Nothing to check against, positions are only trusted if the server echoes no bulkIds at all.
+            return !bulkIdsEchoed;
+        }
+        if (method != null && !method.equalsIgnoreCase(operation.getMethod())) {
+            return false;
+        }
+        // The location of a created resource is below the path of the POST, the others are at the path.
+        return location == null || location.contains(operation.getPath());
+    }
+
+    private void complete(BulkOperation operation, JSONObject result) {
+
+        int status = getStatusCode(result.opt(STATUS));
+        String error = null;
+        if (status < 200 || status >= 300) {
+            Object response = result.opt(RESPONSE);
+            error = response != null ? response.toString() : "Operation failed with status: " + status;
+        }
+        operation.complete(status, result.optString(LOCATION, null), result.optString(VERSION, null), error);
+    }
+
+    private int getStatusCode(Object status) {
+
+        // SCIM 1.1 reports {"code": "201"} while SCIM 2.0 reports "201".
+        Object code = status instanceof JSONObject ? ((JSONObject) status).opt(CODE) : status;
+        if (code == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(code.toString().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void failOperations(List<BulkOperation> batch, int status, String error) {
+
+        for (BulkOperation operation : batch) {
+            if (!operation.isCompleted()) {
+                operation.complete(status, null, null, error);
+            }
+        }
+    }
+
+    /**
+     * Narrows the configured limits down to the ones advertised by the target, once per dispatcher. Concurrent
+     * callers wait until the limits are read, so no batch is built from limits larger than the advertised ones.
+     */
+    private void discoverLimits() {
+
+        if (limitsDiscovered || serviceProviderConfigEndpoint == null) {
+            return;
+        }
+        synchronized (this) {
+            if (limitsDiscovered) {
+                return;
+            }
+            try {
+                SCIMHttpResponse response = transport.execute(new GetMethod(serviceProviderConfigEndpoint));
+                if (!response.isSuccess()) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Could not read the service provider configuration from: " +
+                                serviceProviderConfigEndpoint + ". Status: " + response.getStatusCode() +
+                                ". Using the configured bulk limits.");
+                    }
+                    return;
+                }
+                JSONObject bulk = new JSONObject(response.getBody()).optJSONObject(BULK);
+                if (bulk == null) {
+                    return;
+                }
+                if (bulk.has(SUPPORTED) && !bulk.optBoolean(SUPPORTED)) {
+                    supported = false;
+                    log.info("SCIM endpoint: " + bulkEndpoint + " does not support bulk requests. Operations will " +
+                            "be sent individually.");
+                    return;
+                }
+                int advertisedMaxOperations = bulk.optInt(MAX_OPERATIONS, 0);
+                if (advertisedMaxOperations > 0 && advertisedMaxOperations < maxOperations) {
+                    maxOperations = advertisedMaxOperations;
+                }
+                int advertisedMaxPayloadSize = bulk.optInt(MAX_PAYLOAD_SIZE, 0);
+                if (advertisedMaxPayloadSize > 0 && advertisedMaxPayloadSize < maxPayloadSize) {
+                    maxPayloadSize = advertisedMaxPayloadSize;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Using bulk limits max operations: " + maxOperations + ", max payload size: " +
+                            maxPayloadSize + " for: " + bulkEndpoint);
+                }
+            } catch (Exception e) {
+                log.warn("Error while reading the bulk limits from: " + serviceProviderConfigEndpoint + ". Using " +
+                        "the configured bulk limits.", e);
+            } finally {
+                // Published only once the limits are applied, callers arriving meanwhile wait on the lock.
+                limitsDiscovered = true;
+            }
+        }
+    }
+
+    private int getPayloadSize(List<BulkOperation> operations) {
+
+        int size = 0;
+        for (BulkOperation operation : operations) {
+            size += operation.getEstimatedSize();
+        }
+        return size;
+    }
+}
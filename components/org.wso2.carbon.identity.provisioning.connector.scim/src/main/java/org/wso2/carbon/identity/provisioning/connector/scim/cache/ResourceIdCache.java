@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.cache;
+
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Bounded LRU cache of local resource names to the ids (and versions) the SCIM endpoint assigned to them.
+ * <p>
+ * Names known not to exist in the endpoint are cached as negative entries with their own, usually shorter, time to
+ * live, so that repeated operations on missing resources do not look them up again.
+ * <p>
+ * Names missing from the cache are looked up through {@link #load(String, Loader)} one at a time: concurrent misses
+ * of the same name, e.g. many members added to the same group at once, wait for the lookup already in flight rather
+ * than each sending their own. Storing or invalidating a name while it is being looked up discards the result of the
+ * lookup, so a lookup racing with a create, rename or delete does not cache an outdated id.
+ */
+public class ResourceIdCache {
+
+    /**
+     * A cached id, or a negative entry if the id is null.
+     */
+    public static class Entry {
+
+        private final String id;
+        private final String version;
+        private final long expiryTime;
+
+        Entry(String id, String version, long expiryTime) {
+
+            this.id = id;
+            this.version = version;
+            this.expiryTime = expiryTime;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public boolean isNegative() {
+            return id == null;
+        }
+    }
+
+    /**
+     * Looks up the id of a name missing from the cache in the SCIM endpoint.
+     */
+    public interface Loader {
+
+        /**
+         * @param name
+         * @param expired expired entry of the name with an id and a version, which may be revalidated instead of
+         *                looking the name up again, null if there is none
+         * @return id and version of the resource, the id null if the resource does not exist and the version null
+         * if it is not known
+         * @throws IdentitySCIMException
+         */
+        String[] load(String name, Entry expired) throws IdentitySCIMException;
+    }
+
+    private static class PendingLoad {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Entry entry;
+        private volatile Exception failure;
+    }
+
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private final Map<String, Entry> entries;
+    // Lookups in flight, by name.
+    private final Map<String, PendingLoad> pendingLoads = new HashMap<>();
+
+    /**
+     * @param maxSize            maximum number of cached names
+     * @param timeToLive         time to live of an id in milliseconds
+     * @param negativeTimeToLive time to live of a negative entry in milliseconds, 0 disables negative caching
+     */
+    public ResourceIdCache(final int maxSize, long timeToLive, long negativeTimeToLive) {
+
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param name
+     * @return cached entry or null if the name is not cached
+     */
+    public synchronized Entry get(String name) {
+
+        Entry entry = entries.get(name);
+        if (entry != null && entry.expiryTime < System.currentTimeMillis()) {
+            // Expired ids with a version are kept, they can be revalidated rather than looked up again.
+            if (entry.version == null) {
+                entries.remove(name);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param name
+     * @return the expired entry of the name if it has an id and a version, null otherwise
+     */
+    public synchronized Entry getExpired(String name) {
+
+        Entry entry = entries.get(name);
+        if (entry != null && entry.expiryTime < System.currentTimeMillis() && entry.id != null &&
+                entry.version != null) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached entry of the name, looking the name up if it is not cached. Only one lookup of a name is in
+     * flight at a time, concurrent callers wait for it and get its outcome.
+     *
+     * @param name
+     * @param loader
+     * @return entry of the name, negative if it does not exist in the SCIM endpoint
+     * @throws IdentitySCIMException if the lookup failed
+     */
+    public Entry load(String name, Loader loader) throws IdentitySCIMException {
+
+        PendingLoad load;
+        Entry expired = null;
+        boolean owner = false;
+        synchronized (this) {
+            Entry entry = get(name);
+            if (entry != null) {
+                return entry;
+            }
+            load = pendingLoads.get(name);
+            if (load == null) {
+                load = new PendingLoad();
+                pendingLoads.put(name, load);
+                expired = getExpired(name);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            try {
+                load.completed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IdentitySCIMException("Interrupted while waiting for the lookup of: " + name, e);
+            }
+            if (load.failure instanceof IdentitySCIMException) {
+                throw (IdentitySCIMException) load.failure;
+            } else if (load.failure != null) {
+                throw (RuntimeException) load.failure;
+            }
+            return load.entry;
+        }
+
+        try {
+            String[] idAndVersion = loader.load(name, expired);
+            synchronized (this) {
+                // Not cached if the name was stored or invalidated since, the result may predate that change.
+                if (pendingLoads.get(name) == load) {
+                    put(name, idAndVersion[0], idAndVersion[1]);
+                }
+            }
+            // Handed out to the waiters, which use it right away, so it does not need an expiry time.
+            load.entry = new Entry(idAndVersion[0], idAndVersion[1], 0);
+            return load.entry;
+        } catch (IdentitySCIMException | RuntimeException e) {
+            load.failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (pendingLoads.get(name) == load) {
+                    pendingLoads.remove(name);
+                }
+            }
+            load.completed.countDown();
+        }
+    }
+
+    public synchronized void put(String name, String id, String version) {
+
+        if (id == null) {
+            putAbsent(name);
+            return;
+        }
+        entries.put(name, new Entry(id, version, System.currentTimeMillis() + timeToLive));
+        pendingLoads.remove(name);
+    }
+
+    /**
+     * Records that the name does not exist in the SCIM endpoint.
+     *
+     * @param name
+     */
+    public synchronized void putAbsent(String name) {
+
+        if (negativeTimeToLive > 0) {
+            entries.put(name, new Entry(null, null, System.currentTimeMillis() + negativeTimeToLive));
+        } else {
+            entries.remove(name);
+        }
+        pendingLoads.remove(name);
+    }
+
+    public synchronized void invalidate(String name) {
+
+        entries.remove(name);
+        pendingLoads.remove(name);
+    }
+}
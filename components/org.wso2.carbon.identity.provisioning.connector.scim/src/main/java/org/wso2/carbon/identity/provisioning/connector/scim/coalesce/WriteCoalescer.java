@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.coalesce;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds provisioning operations back for a short window and merges the ones about the same user or group, so that
+ * a burst of changes reaches the SCIM endpoint as a single call.
+ * <p>
+ * Within the window an update is folded into the preceding create or update, a delete replaces the preceding
+ * updates and a create followed by a delete cancels out. Operations that can not be merged, e.g. a rename or a
+ * create after a delete, are kept and run in order. Operations of an entity are never run concurrently.
+ */
+public class WriteCoalescer {
+
+    private static final Log log = LogFactory.getLog(WriteCoalescer.class);
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    // Live coalescers, so that all of them can be flushed when the bundle is deactivated.
+    private static final Map<WriteCoalescer, Boolean> coalescers = Collections.synchronizedMap(new
+            WeakHashMap<WriteCoalescer, Boolean>());
+
+    /**
+     * Runs the merged operations.
+     */
+    public interface Provisioner {
+
+        /**
+         * @param entityKey
+         * @param provisioningEntity
+         * @param sequence           highest sequence number of the operations merged into this one
+         * @throws IdentityProvisioningException
+         */
+        void provision(String entityKey, ProvisioningEntity provisioningEntity, long sequence) throws
+                IdentityProvisioningException;
+
+        /**
+         * Called once the operations up to the sequence number were cancelled out and will never be run.
+         *
+         * @param entityKey
+         * @param sequence
+         */
+        void discarded(String entityKey, long sequence);
+    }
+
+    private static class PendingWrites {
+
+        private List<ProvisioningEntity> operations = new ArrayList<>();
+        private List<Long> sequences = new ArrayList<>();
+        private long discardedSequence = -1;
+        private boolean scheduled;
+        private boolean running;
+    }
+
+    private final Provisioner provisioner;
+    private final long window;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, PendingWrites> pendingWrites = new HashMap<>();
+    private final AtomicLong submittedOperations = new AtomicLong();
+    private final AtomicLong executedOperations = new AtomicLong();
+    private final AtomicLong savedCalls = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * @param provisioner
+     * @param window      time in milliseconds an operation is held back waiting for more of the same entity
+     * @param workers     maximum number of entities flushed in parallel
+     */
+    public WriteCoalescer(Provisioner provisioner, long window, int workers) {
+
+        this.provisioner = provisioner;
+        this.window = window;
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, workers), new SCIMConnectorThreadFactory(
+                "SCIMWriteCoalescer"));
+        this.executor.setKeepAliveTime(WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        // Shutdown flushes the pending operations itself, waiting out their windows would only delay it.
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        coalescers.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * @param entityKey          key of the user or group the operation is about
+     * @param provisioningEntity
+     * @param sequence           sequence number of the operation, handed back to the provisioner
+     * @return false if the coalescer is shut down and the operation has to be run by the caller
+     */
+    public boolean submit(String entityKey, ProvisioningEntity provisioningEntity, long sequence) {
+
+        if (shutdown) {
+            return false;
+        }
+        submittedOperations.incrementAndGet();
+
+        boolean schedule = false;
+        synchronized (pendingWrites) {
+            PendingWrites writes = pendingWrites.get(entityKey);
+            if (writes == null) {
+                writes = new PendingWrites();
+                pendingWrites.put(entityKey, writes);
+            }
+            int saved = merge(writes, provisioningEntity, sequence);
+            if (saved > 0) {
+                savedCalls.addAndGet(saved);
+                if (log.isDebugEnabled()) {
+                    log.debug("Merged " + provisioningEntity.getOperation() + " of: " + entityKey + " into the " +
+                            "pending operations. Remote calls saved: " + saved);
+                }
+            }
+            if (!writes.scheduled && !writes.running) {
+                writes.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            schedule(entityKey);
+        }
+        return true;
+    }
+
+    public long getSubmittedOperations() {
+        return submittedOperations.get();
+    }
+
+    public long getExecutedOperations() {
+        return executedOperations.get();
+    }
+
+    /**
+     * @return number of remote calls avoided by merging or cancelling operations
+     */
+    public long getSavedCalls() {
+        return savedCalls.get();
+    }
+
+    public int getPendingEntities() {
+
+        synchronized (pendingWrites) {
+            return pendingWrites.size();
+        }
+    }
+
+    /**
+     * Stops holding operations back, runs the pending ones and waits for them to complete.
+     *
+     * @param deadline time in milliseconds since the epoch until which to wait
+     * @return false if pending operations were still running at the deadline
+     */
+    public boolean shutdown(long deadline) {
+
+        shutdown = true;
+        List<String> entityKeys;
+        synchronized (pendingWrites) {
+            entityKeys = new ArrayList<>(pendingWrites.keySet());
+        }
+        // Delayed flushes keep their delay after shutdown, run them right away instead.
+        for (String entityKey : entityKeys) {
+            flush(entityKey);
+        }
+        executor.shutdown();
+        coalescers.remove(this);
+        try {
+            return executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Flushes all the live coalescers, waiting at most the given time in total.
+     *
+     * @param timeoutMillis
+     */
+    public static void shutdownAll(long timeoutMillis) {
+
+        List<WriteCoalescer> liveCoalescers;
+        synchronized (coalescers) {
+            liveCoalescers = new ArrayList<>(coalescers.keySet());
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (WriteCoalescer coalescer : liveCoalescers) {
+            if (!coalescer.shutdown(deadline)) {
+                log.warn("Coalesced provisioning operations were not completed before shutdown.");
+            }
+        }
+    }
+
+    private void schedule(final String entityKey) {
+
+        Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush(entityKey);
+            }
+        };
+        try {
+            if (shutdown) {
+                executor.execute(flush);
+            } else {
+                executor.schedule(flush, window, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down, the caller runs the operations.
+            flush.run();
+        }
+    }
+
+    private void flush(String entityKey) {
+
+        List<ProvisioningEntity> operations;
+        List<Long> sequences;
+        long discardedSequence;
+        synchronized (pendingWrites) {
+            PendingWrites writes = pendingWrites.get(entityKey);
+            if (writes == null || writes.running) {
+                return;
+            }
+            operations = writes.operations;
+            sequences = writes.sequences;
+            discardedSequence = writes.discardedSequence;
+            writes.operations = new ArrayList<>();
+            writes.sequences = new ArrayList<>();
+            writes.discardedSequence = -1;
+            writes.scheduled = false;
+            writes.running = true;
+        }
+
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ProvisioningEntity operation = operations.get(i);
+                executedOperations.incrementAndGet();
+                try {
+                    provisioner.provision(entityKey, operation, sequences.get(i));
+                } catch (Throwable e) {
+                    log.error("Error while provisioning " + operation.getEntityType() + ": " + operation
+                            .getEntityName(), e);
+                }
+            }
+            if (discardedSequence >= 0) {
+                provisioner.discarded(entityKey, discardedSequence);
+            }
+        } finally {
+            boolean schedule = false;
+            synchronized (pendingWrites) {
+                PendingWrites writes = pendingWrites.get(entityKey);
+                writes.running = false;
+                if (writes.operations.isEmpty()) {
+                    pendingWrites.remove(entityKey);
+                } else if (!writes.scheduled) {
+                    writes.scheduled = true;
+                    schedule = true;
+                }
+            }
+            if (schedule) {
+                schedule(entityKey);
+            }
+        }
+    }
+
+    /**
+     * Merges the operation into the last pending operation of the entity, if possible.
+     *
+     * @param writes
+     * @param next
+     * @param sequence
+     * @return number of remote calls saved
+     */
+    private int merge(PendingWrites writes, ProvisioningEntity next, long sequence) {
+
+        List<ProvisioningEntity> pending = writes.operations;
+        if (pending.isEmpty()) {
+            pending.add(next);
+            writes.sequences.add(sequence);
+            return 0;
+        }
+
+        int lastIndex = pending.size() - 1;
+        ProvisioningEntity last = pending.get(lastIndex);
+        if (last.isJitProvisioning() != next.isJitProvisioning() || last.getEntityType() != next.getEntityType()) {
+            pending.add(next);
+            writes.sequences.add(sequence);
+            return 0;
+        }
+
+        ProvisioningOperation lastOperation = last.getOperation();
+        ProvisioningOperation nextOperation = next.getOperation();
+        if (nextOperation == ProvisioningOperation.DELETE) {
+            if (lastOperation == ProvisioningOperation.POST) {
+                // Created and deleted within the window, the endpoint never needs to know.
+                pending.remove(lastIndex);
+                writes.sequences.remove(lastIndex);
+                writes.discardedSequence = sequence;
+                return 2;
+            }
+            if (lastOperation == ProvisioningOperation.DELETE || (isUpdate(lastOperation) && !isRename(last))) {
+                pending.set(lastIndex, next);
+                writes.sequences.set(lastIndex, sequence);
+                return 1;
+            }
+        } else if (isUpdate(nextOperation) && !isRename(next)) {
+            if (lastOperation == ProvisioningOperation.POST) {
+                mergeIntoCreate(last, next);
+                writes.sequences.set(lastIndex, sequence);
+                return 1;
+            }
+            if (isUpdate(lastOperation) && !isRename(last) && mergeUpdates(last, next)) {
+                writes.sequences.set(lastIndex, sequence);
+                return 1;
+            }
+        }
+        pending.add(next);
+        writes.sequences.add(sequence);
+        return 0;
+    }
+
+    private void mergeIntoCreate(ProvisioningEntity create, ProvisioningEntity update) {
+
+        Map<ClaimMapping, List<String>> attributes = create.getAttributes();
+        if (create.getEntityType() == ProvisioningEntityType.GROUP) {
+            applyMemberChanges(attributes, IdentityProvisioningConstants.USERNAME_CLAIM_URI, update.getAttributes(),
+                    IdentityProvisioningConstants.USERNAME_CLAIM_URI,
+                    IdentityProvisioningConstants.DELETED_USER_CLAIM_URI);
+        } else if (hasGroupChanges(update)) {
+            applyMemberChanges(attributes, IdentityProvisioningConstants.GROUP_CLAIM_URI, update.getAttributes(),
+                    IdentityProvisioningConstants.NEW_GROUP_CLAIM_URI,
+                    IdentityProvisioningConstants.DELETED_GROUP_CLAIM_URI);
+        } else {
+            attributes.putAll(update.getAttributes());
+        }
+    }
+
+    /**
+     * @return false if the updates are of different kinds, i.e. one changes the groups of a user and the other its
+     * attributes, which the connector provisions separately
+     */
+    private boolean mergeUpdates(ProvisioningEntity last, ProvisioningEntity next) {
+
+        Map<ClaimMapping, List<String>> attributes = last.getAttributes();
+        if (last.getEntityType() == ProvisioningEntityType.GROUP) {
+            mergeMemberChanges(attributes, next.getAttributes(), IdentityProvisioningConstants.USERNAME_CLAIM_URI,
+                    IdentityProvisioningConstants.DELETED_USER_CLAIM_URI);
+            return true;
+        }
+        if (hasGroupChanges(last) != hasGroupChanges(next)) {
+            return false;
+        }
+        if (hasGroupChanges(last)) {
+            mergeMemberChanges(attributes, next.getAttributes(), IdentityProvisioningConstants.NEW_GROUP_CLAIM_URI,
+                    IdentityProvisioningConstants.DELETED_GROUP_CLAIM_URI);
+        } else {
+            attributes.putAll(next.getAttributes());
+        }
+        return true;
+    }
+
+    /**
+     * Applies added and removed members of an update to the member list of a create.
+     */
+    private void applyMemberChanges(Map<ClaimMapping, List<String>> attributes, String memberClaim,
+                                    Map<ClaimMapping, List<String>> changes, String addedClaim,
+                                    String removedClaim) {
+
+        Set<String> members = new LinkedHashSet<>();
+        addAll(members, attributes.get(claim(memberClaim)));
+        addAll(members, changes.get(claim(addedClaim)));
+        List<String> removed = changes.get(claim(removedClaim));
+        if (removed != null) {
+            members.removeAll(removed);
+        }
+        setValues(attributes, memberClaim, new ArrayList<>(members));
+    }
+
+    /**
+     * Combines the added and removed members of two updates, the later change of a member wins.
+     */
+    private void mergeMemberChanges(Map<ClaimMapping, List<String>> attributes,
+                                    Map<ClaimMapping, List<String>> changes, String addedClaim,
+                                    String removedClaim) {
+
+        Map<String, Boolean> memberChanges = new LinkedHashMap<>();
+        putChanges(memberChanges, attributes.get(claim(addedClaim)), true);
+        putChanges(memberChanges, attributes.get(claim(removedClaim)), false);
+        putChanges(memberChanges, changes.get(claim(addedClaim)), true);
+        putChanges(memberChanges, changes.get(claim(removedClaim)), false);
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Boolean> memberChange : memberChanges.entrySet()) {
+            (memberChange.getValue() ? added : removed).add(memberChange.getKey());
+        }
+        setValues(attributes, addedClaim, added);
+        setValues(attributes, removedClaim, removed);
+    }
+
+    private void putChanges(Map<String, Boolean> memberChanges, List<String> members, boolean added) {
+
+        if (members != null) {
+            for (String member : members) {
+                memberChanges.remove(member);
+                memberChanges.put(member, added);
+            }
+        }
+    }
+
+    private void addAll(Set<String> members, List<String> values) {
+
+        if (values != null) {
+            members.addAll(values);
+        }
+    }
+
+    private void setValues(Map<ClaimMapping, List<String>> attributes, String claimUri, List<String> values) {
+
+        if (values.isEmpty()) {
+            attributes.remove(claim(claimUri));
+        } else {
+            attributes.put(claim(claimUri), values);
+        }
+    }
+
+    private boolean hasGroupChanges(ProvisioningEntity provisioningEntity) {
+
+        return CollectionUtils.isNotEmpty(provisioningEntity.getAttributes().get(claim(IdentityProvisioningConstants
+                .NEW_GROUP_CLAIM_URI))) || CollectionUtils.isNotEmpty(provisioningEntity.getAttributes().get(claim(
+                IdentityProvisioningConstants.DELETED_GROUP_CLAIM_URI)));
+    }
+
+    private boolean isRename(ProvisioningEntity provisioningEntity) {
+
+        List<String> oldNames = provisioningEntity.getAttributes().get(claim(IdentityProvisioningConstants
+                .OLD_GROUP_NAME_CLAIM_URI));
+        return CollectionUtils.isNotEmpty(oldNames) && StringUtils.isNotEmpty(oldNames.get(0));
+    }
+
+    private boolean isUpdate(ProvisioningOperation operation) {
+        return operation == ProvisioningOperation.PUT || operation == ProvisioningOperation.PATCH;
+    }
+
+    private ClaimMapping claim(String claimUri) {
+        return ClaimMapping.build(claimUri, null, null, false);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.diff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes of a resource that changed since it was last provisioned, keyed by claim URI.
+ */
+public class AttributeDiff {
+
+    private final Map<String, String> addedAttributes = new HashMap<>();
+    private final Map<String, String> replacedAttributes = new HashMap<>();
+    private final List<String> removedAttributes = new ArrayList<>();
+    private final boolean complete;
+
+    /**
+     * @param complete whether the diff was computed against a known previous state; if not, all the attributes are
+     *                 reported as added and nothing as removed
+     */
+    AttributeDiff(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @return attributes which had no value when the resource was last provisioned
+     */
+    public Map<String, String> getAddedAttributes() {
+        return addedAttributes;
+    }
+
+    /**
+     * @return attributes whose value changed since the resource was last provisioned
+     */
+    public Map<String, String> getReplacedAttributes() {
+        return replacedAttributes;
+    }
+
+    /**
+     * @return attributes which no longer have a value
+     */
+    public List<String> getRemovedAttributes() {
+        return removedAttributes;
+    }
+
+    /**
+     * @return added and replaced attributes together
+     */
+    public Map<String, String> getChangedAttributes() {
+
+        Map<String, String> changedAttributes = new HashMap<>(addedAttributes);
+        changedAttributes.putAll(replacedAttributes);
+        return changedAttributes;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isEmpty() {
+        return complete && addedAttributes.isEmpty() && replacedAttributes.isEmpty() && removedAttributes.isEmpty();
+    }
+}
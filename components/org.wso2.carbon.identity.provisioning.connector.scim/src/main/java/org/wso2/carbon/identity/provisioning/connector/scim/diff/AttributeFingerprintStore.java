@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.diff;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bounded LRU store of fingerprints of the attribute values last provisioned for each resource, used to work out
+ * which attributes an update actually changes.
+ * <p>
+ * A fingerprint keeps the sorted attribute names, which are claim URIs shared with the claim configuration, and a
+ * 64 bit hash per value instead of the values themselves.
+ * <p>
+ * Updates from the provisioning framework carry only the claims that changed, so a claim missing from an update is
+ * unchanged. A claim is only removed when the update carries it without a value.
+ */
+public class AttributeFingerprintStore {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static class Fingerprint {
+
+        private final String[] names;
+        private final long[] valueHashes;
+
+        Fingerprint(String[] names, long[] valueHashes) {
+
+            this.names = names;
+            this.valueHashes = valueHashes;
+        }
+    }
+
+    private final Map<String, Fingerprint> fingerprints;
+
+    /**
+     * @param maxSize maximum number of resources with a fingerprint
+     */
+    public AttributeFingerprintStore(final int maxSize) {
+
+        this.fingerprints = new LinkedHashMap<String, Fingerprint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fingerprint> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Compares the attributes with the ones last provisioned for the resource. Attributes with a null or empty value
+     * are removed, attributes not given at all are left as they are.
+     *
+     * @param name       name of the resource
+     * @param attributes attribute values keyed by claim URI
+     * @return the changes, or an incomplete diff reporting all the attributes as added if the resource has no
+     * fingerprint
+     */
+    public AttributeDiff diff(String name, Map<String, String> attributes) {
+
+        Fingerprint fingerprint;
+        synchronized (this) {
+            fingerprint = fingerprints.get(name);
+        }
+        return diff(fingerprint, attributes);
+    }
+
+    /**
+     * @param attributes
+     * @return an incomplete diff reporting all the attributes as added
+     */
+    public static AttributeDiff fullDiff(Map<String, String> attributes) {
+        return diff(null, attributes);
+    }
+
+    private static AttributeDiff diff(Fingerprint fingerprint, Map<String, String> attributes) {
+
+        AttributeDiff diff = new AttributeDiff(fingerprint != null);
+        if (attributes != null) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (attribute.getKey() == null) {
+                    continue;
+                }
+                int index = fingerprint != null ? Arrays.binarySearch(fingerprint.names, attribute.getKey()) : -1;
+                if (isEmpty(attribute.getValue())) {
+                    if (index >= 0) {
+                        diff.getRemovedAttributes().add(attribute.getKey());
+                    }
+                } else if (index < 0) {
+                    diff.getAddedAttributes().put(attribute.getKey(), attribute.getValue());
+                } else if (fingerprint.valueHashes[index] != hash(attribute.getValue())) {
+                    diff.getReplacedAttributes().put(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Records the attributes provisioned for the resource, replacing the ones recorded before. For resources
+     * provisioned in full, i.e. created or replaced.
+     *
+     * @param name
+     * @param attributes
+     */
+    public void put(String name, Map<String, String> attributes) {
+
+        Fingerprint fingerprint = toFingerprint(apply(new TreeMap<String, Long>(), attributes));
+        synchronized (this) {
+            fingerprints.put(name, fingerprint);
+        }
+    }
+
+    /**
+     * Records the attributes updated for the resource on top of the ones recorded before. Attributes with a null or
+     * empty value are removed, attributes not given at all keep their recorded value.
+     *
+     * @param name
+     * @param attributes
+     */
+    public synchronized void merge(String name, Map<String, String> attributes) {
+
+        TreeMap<String, Long> valueHashes = new TreeMap<>();
+        Fingerprint fingerprint = fingerprints.get(name);
+        if (fingerprint != null) {
+            for (int i = 0; i < fingerprint.names.length; i++) {
+                valueHashes.put(fingerprint.names[i], fingerprint.valueHashes[i]);
+            }
+        }
+        fingerprints.put(name, toFingerprint(apply(valueHashes, attributes)));
+    }
+
+    public synchronized void invalidate(String name) {
+        fingerprints.remove(name);
+    }
+
+    private static TreeMap<String, Long> apply(TreeMap<String, Long> valueHashes, Map<String, String> attributes) {
+
+        if (attributes != null) {
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (attribute.getKey() == null) {
+                    continue;
+                }
+                if (isEmpty(attribute.getValue())) {
+                    valueHashes.remove(attribute.getKey());
+                } else {
+                    valueHashes.put(attribute.getKey(), hash(attribute.getValue()));
+                }
+            }
+        }
+        return valueHashes;
+    }
+
+    private static Fingerprint toFingerprint(TreeMap<String, Long> valueHashes) {
+
+        // Sorted by name, as looked up with a binary search.
+        String[] names = new String[valueHashes.size()];
+        long[] hashes = new long[valueHashes.size()];
+        int index = 0;
+        for (Map.Entry<String, Long> valueHash : valueHashes.entrySet()) {
+            names[index] = valueHash.getKey();
+            hashes[index++] = valueHash.getValue();
+        }
+        return new Fingerprint(names, hashes);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the value.
+     */
+    private static long hash(String value) {
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
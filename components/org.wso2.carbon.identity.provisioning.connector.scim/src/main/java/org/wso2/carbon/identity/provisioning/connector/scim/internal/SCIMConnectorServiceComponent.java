@@ -22,8 +22,19 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.osgi.service.component.ComponentContext;
 import org.wso2.carbon.identity.provisioning.AbstractProvisioningConnectorFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorUtil;
+import org.wso2.carbon.identity.provisioning.connector.scim.async.AsyncProvisioningDispatcher;
+import org.wso2.carbon.identity.provisioning.connector.scim.async.FairDispatchScheduler;
+import org.wso2.carbon.identity.provisioning.connector.scim.coalesce.WriteCoalescer;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.outbox.ProvisioningOutbox;
+import org.wso2.carbon.identity.provisioning.connector.scim.reconcile.DriftReconciler;
+import org.wso2.carbon.identity.provisioning.connector.scim.sync.InitialSyncEngine;
 import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorFactory;
 
+import java.lang.management.ManagementFactory;
+
 /**
  * @scr.component name=
  * "org.wso2.carbon.identity.provisioning.connector.scim.internal.SCIMConnectorServiceComponent"
@@ -31,6 +42,7 @@ import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConn
  */
 public class SCIMConnectorServiceComponent {
     private static Log log = LogFactory.getLog(SCIMConnectorServiceComponent.class);
+    private SCIMProvisioningConnectorFactory scimProvisioningConnectorFactory;
 
     protected void activate(ComponentContext context) {
 
@@ -38,8 +50,15 @@ public class SCIMConnectorServiceComponent {
             log.debug("Activating SCIMConnectorServiceComponent");
         }
 
+        // Pending operations of a previous run are replayed once their connectors are initialized.
+        ProvisioningOutbox.recoverAll(SCIMProvisioningConnectorUtil.getOutboxBaseDirectory(),
+                SCIMProvisioningConnectorConstants.DEFAULT_OUTBOX_SEGMENT_SIZE);
+
+        // Operation latencies, outcomes and endpoint traffic of all the connectors.
+        ProvisioningMetrics.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+
         try {
-            SCIMProvisioningConnectorFactory scimProvisioningConnectorFactory = new SCIMProvisioningConnectorFactory();
+            scimProvisioningConnectorFactory = new SCIMProvisioningConnectorFactory();
             context.getBundleContext().registerService(AbstractProvisioningConnectorFactory.class.getName(), scimProvisioningConnectorFactory, null);
             if (log.isDebugEnabled()) {
                 log.debug("SCIM Provisioning Connector bundle is activated");
@@ -48,4 +67,25 @@ public class SCIMConnectorServiceComponent {
             log.error(" Error while activating SCIM Provisioning Connector ", e);
         }
     }
+
+    protected void deactivate(ComponentContext context) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Deactivating SCIMConnectorServiceComponent");
+        }
+
+        // Save the checkpoints of running initial syncs, they resume from there after a restart.
+        DriftReconciler.stopAll();
+        InitialSyncEngine.stopAll(SCIMProvisioningConnectorConstants.INITIAL_SYNC_STOP_TIMEOUT);
+        // Let held back and queued asynchronous operations reach the SCIM endpoints before the bundle goes away.
+        WriteCoalescer.shutdownAll(SCIMProvisioningConnectorConstants.ASYNC_DRAIN_TIMEOUT);
+        AsyncProvisioningDispatcher.shutdownAll(SCIMProvisioningConnectorConstants.ASYNC_DRAIN_TIMEOUT);
+        FairDispatchScheduler.shutdownShared();
+        if (scimProvisioningConnectorFactory != null) {
+            // Nothing is left to drain by now, this closes the pooled connections of the cached connectors.
+            scimProvisioningConnectorFactory.closeConnectors(SCIMProvisioningConnectorConstants.ASYNC_DRAIN_TIMEOUT);
+        }
+        ProvisioningOutbox.closeAll();
+        ProvisioningMetrics.unregisterMBeans();
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.json;
+
+/**
+ * Minimal lazy JSON reader. It walks the input on demand: values the caller is not interested in are skipped
+ * without being decoded, and reading can stop as soon as the wanted fields are found.
+ */
+public class JsonReader {
+
+    private final String json;
+    private int position;
+
+    public JsonReader(String json) {
+        this.json = json != null ? json : "";
+    }
+
+    /**
+     * Enters the object at the current position.
+     *
+     * @return false if the current value is not an object, in which case it is skipped
+     */
+    public boolean beginObject() {
+
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == '{') {
+            position++;
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Reads the name of the next member of the current object, leaving the position at its value.
+     *
+     * @return name of the member or null if the end of the object is reached, in which case the object is left
+     */
+    public String nextName() {
+
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == ',') {
+            position++;
+            skipWhitespace();
+        }
+        if (position >= json.length()) {
+            return null;
+        }
+        if (json.charAt(position) == '}') {
+            position++;
+            return null;
+        }
+        String name = readString();
+        skipWhitespace();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Enters the array at the current position.
+     *
+     * @return false if the current value is not an array, in which case it is skipped
+     */
+    public boolean beginArray() {
+
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == '[') {
+            position++;
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * @return true if the current array has another element, false if its end is reached, in which case the array
+     * is left
+     */
+    public boolean hasNextElement() {
+
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == ',') {
+            position++;
+            skipWhitespace();
+        }
+        if (position >= json.length()) {
+            return false;
+        }
+        if (json.charAt(position) == ']') {
+            position++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the first character of the value at the current position, e.g. '{' for an object, or 0 at the end of
+     * the input
+     */
+    public char peek() {
+
+        skipWhitespace();
+        return position < json.length() ? json.charAt(position) : 0;
+    }
+
+    /**
+     * Reads a string, number or boolean value as text.
+     *
+     * @return the value, or null for JSON null, objects and arrays (which are skipped)
+     */
+    public String nextString() {
+
+        skipWhitespace();
+        if (position >= json.length()) {
+            return null;
+        }
+        char c = json.charAt(position);
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        int start = position;
+        while (position < json.length() && !isDelimiter(json.charAt(position))) {
+            position++;
+        }
+        String literal = json.substring(start, position);
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Skips the value at the current position, including nested objects and arrays.
+     */
+    public void skipValue() {
+
+        skipWhitespace();
+        int nesting = 0;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                skipString();
+                if (nesting == 0) {
+                    return;
+                }
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                nesting++;
+            } else if (c == '}' || c == ']') {
+                if (nesting == 0) {
+                    return;
+                }
+                nesting--;
+                if (nesting == 0) {
+                    position++;
+                    return;
+                }
+            } else if (c == ',' && nesting == 0) {
+                return;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Reads the value of a member of the top level object, skipping all the other members.
+     *
+     * @param path member names leading to the value, e.g. "meta", "version"
+     * @return the value as text or null if there is no such member
+     */
+    public static String readString(String json, String... path) {
+
+        JsonReader reader = new JsonReader(json);
+        for (int i = 0; i < path.length; i++) {
+            if (!reader.beginObject() || !reader.skipTo(path[i])) {
+                return null;
+            }
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Moves to the value of the named member of the current object.
+     *
+     * @param name
+     * @return false if the object does not have such a member, in which case the object is left
+     */
+    public boolean skipTo(String name) {
+
+        String memberName;
+        while ((memberName = nextName()) != null) {
+            if (memberName.equals(name)) {
+                return true;
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Skips the remaining members of the current object and leaves it.
+     */
+    public void endObject() {
+
+        while (nextName() != null) {
+            skipValue();
+        }
+    }
+
+    private String readString() {
+
+        expect('"');
+        StringBuilder value = null;
+        int start = position;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                String result = value == null ? json.substring(start, position) : value.append(json, start,
+                        position).toString();
+                position++;
+                return result;
+            }
+            if (c == '\\') {
+                if (value == null) {
+                    value = new StringBuilder();
+                }
+                value.append(json, start, position);
+                position++;
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+                start = position;
+                continue;
+            }
+            position++;
+        }
+        throw new IllegalArgumentException("Unterminated JSON string at: " + start);
+    }
+
+    private void skipString() {
+
+        position++;
+        while (position < json.length()) {
+            char c = json.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private void expect(char expected) {
+
+        if (position >= json.length() || json.charAt(position) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at: " + position);
+        }
+        position++;
+    }
+
+    private boolean isDelimiter(char c) {
+        return c == ',' || c == '}' || c == ']' || Character.isWhitespace(c);
+    }
+}
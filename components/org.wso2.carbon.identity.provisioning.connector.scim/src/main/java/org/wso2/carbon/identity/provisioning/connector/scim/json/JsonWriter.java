@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.json;
+
+/**
+ * Minimal streaming JSON writer. Values are appended to a buffer as they are written, no intermediate object model
+ * is built. Separators are inserted automatically; the caller is responsible for balancing begin and end calls.
+ */
+public class JsonWriter {
+
+    private static final int MAX_DEPTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder buffer;
+    // Whether the object or array at each nesting level already has an element.
+    private final boolean[] hasElement = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter() {
+        this(256);
+    }
+
+    public JsonWriter(int initialCapacity) {
+        this.buffer = new StringBuilder(initialCapacity);
+    }
+
+    public JsonWriter beginObject() {
+
+        beforeValue();
+        buffer.append('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+
+        depth--;
+        buffer.append('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+
+        beforeValue();
+        buffer.append('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+
+        depth--;
+        buffer.append(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+
+        separate();
+        writeString(name);
+        buffer.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+
+        beforeValue();
+        if (value == null) {
+            buffer.append("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+
+        beforeValue();
+        buffer.append(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+
+        beforeValue();
+        buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Writes an already encoded JSON value as is.
+     *
+     * @param json
+     * @return
+     */
+    public JsonWriter rawValue(String json) {
+
+        beforeValue();
+        buffer.append(json);
+        return this;
+    }
+
+    public int length() {
+        return buffer.length();
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    private void push() {
+
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting deeper than " + MAX_DEPTH + " levels.");
+        }
+        hasElement[depth++] = false;
+    }
+
+    private void beforeValue() {
+
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() {
+
+        if (depth > 0) {
+            if (hasElement[depth - 1]) {
+                buffer.append(',');
+            }
+            hasElement[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String value) {
+
+        buffer.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        buffer.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        buffer.append(c);
+                    }
+            }
+        }
+        buffer.append('"');
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.mapping;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonWriter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Claim URIs resolved to the SCIM user attributes they are provisioned as. Each claim URI is parsed once, the first
+ * time it is seen, into its schema, attribute path and the way its value is written; after that mapping a set of
+ * claims is a map lookup per claim and a sort, and the attributes are written straight to a {@link JsonWriter}.
+ * <p>
+ * Claims in both the SCIM 1.1 dialect used by the provisioning framework and the SCIM 2.0 dialect are accepted, the
+ * enterprise extension attributes are written under the extension schema of the SCIM version the plan is built for.
+ * The resolution of a claim depends on its URI only, so resolved claims never go stale; a plan is built per client,
+ * which is rebuilt whenever the connector is initialized with a changed configuration.
+ */
+public class ClaimMappingPlan {
+
+    private static final Log log = LogFactory.getLog(ClaimMappingPlan.class);
+
+    private static final String SCIM1_CORE_CLAIM_PREFIX = "urn:scim:schemas:core:1.0:";
+    private static final String SCIM1_ENTERPRISE_CLAIM_PREFIX = "urn:scim:schemas:extension:enterprise:1.0:";
+    private static final String SCIM2_CORE_CLAIM_PREFIX = "urn:ietf:params:scim:schemas:core:2.0:User:";
+    private static final String SCIM2_ENTERPRISE_CLAIM_PREFIX =
+            "urn:ietf:params:scim:schemas:extension:enterprise:2.0:User:";
+
+    private static final String ACTIVE = "active";
+    private static final String ADDRESSES = "addresses";
+    private static final String TYPE = "type";
+    private static final String VALUE = "value";
+    private static final String FORMATTED = "formatted";
+
+    private static final Set<String> MULTI_VALUED_ATTRIBUTES = new HashSet<>(Arrays.asList("emails",
+            "phoneNumbers", "ims", "photos", "entitlements", "roles", "x509Certificates"));
+    private static final Set<String> ADDRESS_TYPES = new HashSet<>(Arrays.asList("work", "home", "other"));
+
+    // Claim URIs come from the claim dialect, this only guards against unbounded growth from unexpected ones.
+    private static final int MAX_RESOLVED_CLAIMS = 4096;
+
+    private static final MappedAttribute UNMAPPED = new MappedAttribute();
+    private static final MappedClaims NO_CLAIMS = new MappedClaims(new MappedValue[0], 0);
+
+    private enum Kind {
+        SIMPLE, BOOLEAN, COMPLEX, MULTI_VALUED, ADDRESS
+    }
+
+    /**
+     * A claim resolved to a SCIM user attribute.
+     */
+    public static final class MappedAttribute {
+
+        private final boolean enterprise;
+        private final String path;
+        private final String name;
+        private final String subPath;
+        private final Kind kind;
+        private final String addressType;
+        private final String addressSubAttribute;
+        private final String entryPath;
+        private final String valuePath;
+
+        private MappedAttribute() {
+
+            this.enterprise = false;
+            this.path = null;
+            this.name = null;
+            this.subPath = null;
+            this.kind = null;
+            this.addressType = null;
+            this.addressSubAttribute = null;
+            this.entryPath = null;
+            this.valuePath = null;
+        }
+
+        private MappedAttribute(boolean enterprise, String path, String enterpriseSchema) {
+
+            this.enterprise = enterprise;
+            this.path = path;
+            int separator = path.indexOf('.');
+            this.name = separator < 0 ? path : path.substring(0, separator);
+            this.subPath = separator < 0 || separator == path.length() - 1 ? null : path.substring(separator + 1);
+
+            String type = null;
+            String subAttribute = null;
+            String unqualifiedEntryPath = path;
+            String unqualifiedValuePath = null;
+            if (MULTI_VALUED_ATTRIBUTES.contains(name)) {
+                kind = Kind.MULTI_VALUED;
+                if (subPath != null) {
+                    unqualifiedEntryPath = name + "[" + TYPE + " eq " + quoteFilterValue(subPath) + "]";
+                    unqualifiedValuePath = unqualifiedEntryPath + "." + VALUE;
+                }
+            } else if (ADDRESSES.equals(name)) {
+                kind = Kind.ADDRESS;
+                if (subPath != null && subPath.indexOf('.') > 0) {
+                    type = subPath.substring(0, subPath.indexOf('.'));
+                    subAttribute = subPath.substring(subPath.indexOf('.') + 1);
+                    unqualifiedEntryPath = name + "[" + TYPE + " eq " + quoteFilterValue(type) + "]." + subAttribute;
+                    unqualifiedValuePath = unqualifiedEntryPath;
+                } else if (subPath != null && ADDRESS_TYPES.contains(subPath)) {
+                    type = subPath;
+                    subAttribute = FORMATTED;
+                    unqualifiedEntryPath = name + "[" + TYPE + " eq " + quoteFilterValue(type) + "]";
+                    unqualifiedValuePath = unqualifiedEntryPath + "." + FORMATTED;
+                } else {
+                    type = "";
+                    subAttribute = subPath;
+                }
+            } else if (subPath != null) {
+                kind = Kind.COMPLEX;
+            } else {
+                kind = ACTIVE.equals(name) ? Kind.BOOLEAN : Kind.SIMPLE;
+            }
+            this.addressType = type;
+            this.addressSubAttribute = subAttribute;
+            this.entryPath = qualify(unqualifiedEntryPath, enterprise, enterpriseSchema);
+            this.valuePath = unqualifiedValuePath == null ? null : qualify(unqualifiedValuePath, enterprise,
+                    enterpriseSchema);
+        }
+
+        /**
+         * @return whether the attribute belongs to the enterprise extension
+         */
+        public boolean isEnterprise() {
+            return enterprise;
+        }
+
+        /**
+         * @return attribute path, e.g. name.givenName or emails.work
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return patch path of the attribute, or of the typed entry of a multi-valued attribute, e.g.
+         * emails[type eq "work"], qualified with the extension schema for enterprise attributes
+         */
+        public String getEntryPath() {
+            return entryPath;
+        }
+
+        /**
+         * @return patch path of the value of a typed entry of a multi-valued attribute, null for other attributes
+         */
+        public String getValuePath() {
+            return valuePath;
+        }
+
+        private static String qualify(String path, boolean enterprise, String enterpriseSchema) {
+            return enterprise ? enterpriseSchema + ":" + path : path;
+        }
+    }
+
+    /**
+     * A claim value with the attribute it maps to, ordered by schema and attribute path.
+     */
+    private static final class MappedValue implements Comparable<MappedValue> {
+
+        private final MappedAttribute attribute;
+        private final String value;
+
+        private MappedValue(MappedAttribute attribute, String value) {
+
+            this.attribute = attribute;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(MappedValue other) {
+
+            if (attribute.enterprise != other.attribute.enterprise) {
+                return attribute.enterprise ? 1 : -1;
+            }
+            return attribute.path.compareTo(other.attribute.path);
+        }
+    }
+
+    /**
+     * Claims mapped by {@link #map(Map)}, ready to be written.
+     */
+    public static final class MappedClaims {
+
+        private final MappedValue[] values;
+        private final int size;
+
+        private MappedClaims(MappedValue[] values, int size) {
+
+            this.values = values;
+            this.size = size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return whether any of the claims maps to an enterprise extension attribute
+         */
+        public boolean hasEnterpriseAttributes() {
+            return size > 0 && values[size - 1].attribute.enterprise;
+        }
+    }
+
+    private final String enterpriseSchema;
+    private final Set<String> skippedAttributes;
+    private final ConcurrentMap<String, MappedAttribute> attributes = new ConcurrentHashMap<>();
+
+    /**
+     * @param enterpriseSchema  URI of the enterprise extension schema the enterprise attributes are written under
+     * @param skippedAttributes names of the attributes which are never written from claims, e.g. the ones
+     *                          assigned by the SCIM endpoint
+     */
+    public ClaimMappingPlan(String enterpriseSchema, Set<String> skippedAttributes) {
+
+        this.enterpriseSchema = enterpriseSchema;
+        this.skippedAttributes = skippedAttributes;
+    }
+
+    /**
+     * @param claimUri
+     * @return attribute the claim maps to, or null if it does not map to a user attribute that is provisioned
+     */
+    public MappedAttribute resolve(String claimUri) {
+
+        if (claimUri == null) {
+            return null;
+        }
+        MappedAttribute attribute = attributes.get(claimUri);
+        if (attribute == null) {
+            attribute = compile(claimUri);
+            if (attributes.size() < MAX_RESOLVED_CLAIMS) {
+                attributes.putIfAbsent(claimUri, attribute);
+            }
+        }
+        return attribute == UNMAPPED ? null : attribute;
+    }
+
+    /**
+     * Resolves the claims and orders them for writing. Claims without a value or without an attribute are left
+     * out, so are claims of an attribute path already mapped from another claim.
+     *
+     * @param claims claim values keyed by claim URI
+     * @return
+     */
+    public MappedClaims map(Map<String, String> claims) {
+
+        if (claims == null || claims.isEmpty()) {
+            return NO_CLAIMS;
+        }
+        MappedValue[] values = new MappedValue[claims.size()];
+        int size = 0;
+        for (Map.Entry<String, String> claim : claims.entrySet()) {
+            if (claim.getValue() == null) {
+                continue;
+            }
+            MappedAttribute attribute = resolve(claim.getKey());
+            if (attribute != null) {
+                values[size++] = new MappedValue(attribute, claim.getValue());
+            }
+        }
+        if (size == 0) {
+            return NO_CLAIMS;
+        }
+        Arrays.sort(values, 0, size);
+
+        // The same attribute may be claimed in both dialects, keep one value per path.
+        int unique = 1;
+        for (int i = 1; i < size; i++) {
+            if (values[i].compareTo(values[unique - 1]) != 0) {
+                values[unique++] = values[i];
+            }
+        }
+        return new MappedClaims(values, unique);
+    }
+
+    /**
+     * Writes the mapped claims as members of the current object, the enterprise attributes nested in an object
+     * named by the extension schema.
+     *
+     * @param writer
+     * @param claims
+     */
+    public void write(JsonWriter writer, MappedClaims claims) {
+
+        int enterpriseStart = 0;
+        while (enterpriseStart < claims.size && !claims.values[enterpriseStart].attribute.enterprise) {
+            enterpriseStart++;
+        }
+        writeAttributes(writer, claims.values, 0, enterpriseStart);
+        if (enterpriseStart < claims.size) {
+            writer.name(enterpriseSchema).beginObject();
+            writeAttributes(writer, claims.values, enterpriseStart, claims.size);
+            writer.endObject();
+        }
+    }
+
+    private MappedAttribute compile(String claimUri) {
+
+        boolean enterprise;
+        String path;
+        if (claimUri.startsWith(SCIM1_CORE_CLAIM_PREFIX)) {
+            enterprise = false;
+            path = claimUri.substring(SCIM1_CORE_CLAIM_PREFIX.length());
+        } else if (claimUri.startsWith(SCIM2_CORE_CLAIM_PREFIX)) {
+            enterprise = false;
+            path = claimUri.substring(SCIM2_CORE_CLAIM_PREFIX.length());
+        } else if (claimUri.startsWith(SCIM1_ENTERPRISE_CLAIM_PREFIX)) {
+            enterprise = true;
+            path = claimUri.substring(SCIM1_ENTERPRISE_CLAIM_PREFIX.length());
+        } else if (claimUri.startsWith(SCIM2_ENTERPRISE_CLAIM_PREFIX)) {
+            enterprise = true;
+            path = claimUri.substring(SCIM2_ENTERPRISE_CLAIM_PREFIX.length());
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Claim: " + claimUri + " does not map to a SCIM user attribute. Skip provisioning it.");
+            }
+            return UNMAPPED;
+        }
+        int separator = path.indexOf('.');
+        if (path.isEmpty() || skippedAttributes.contains(separator < 0 ? path : path.substring(0, separator))) {
+            return UNMAPPED;
+        }
+        return new MappedAttribute(enterprise, path, enterpriseSchema);
+    }
+
+    /**
+     * Writes the values in [from, to), sorted by path, so the sub-attributes of an attribute are adjacent.
+     */
+    private void writeAttributes(JsonWriter writer, MappedValue[] values, int from, int to) {
+
+        int start = from;
+        while (start < to) {
+            MappedAttribute attribute = values[start].attribute;
+            int end = start + 1;
+            while (end < to && values[end].attribute.name.equals(attribute.name)) {
+                end++;
+            }
+            writer.name(attribute.name);
+            if (attribute.kind == Kind.MULTI_VALUED) {
+                writer.beginArray();
+                for (int i = start; i < end; i++) {
+                    writer.beginObject();
+                    if (values[i].attribute.subPath != null) {
+                        writer.name(TYPE).value(values[i].attribute.subPath);
+                    }
+                    writer.name(VALUE).value(values[i].value).endObject();
+                }
+                writer.endArray();
+            } else if (attribute.kind == Kind.ADDRESS) {
+                writeAddresses(writer, values, start, end);
+            } else if (end - start == 1 && attribute.subPath == null) {
+                if (attribute.kind == Kind.BOOLEAN) {
+                    writer.value(Boolean.parseBoolean(values[start].value));
+                } else {
+                    writer.value(values[start].value);
+                }
+            } else {
+                writer.beginObject();
+                for (int i = start; i < end; i++) {
+                    if (values[i].attribute.subPath != null) {
+                        writer.name(values[i].attribute.subPath).value(values[i].value);
+                    }
+                }
+                writer.endObject();
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Writes address claims, either addresses.{type} holding the formatted address, addresses.{subAttribute} of
+     * an address without a type or addresses.{type}.{subAttribute}.
+     */
+    private void writeAddresses(JsonWriter writer, MappedValue[] values, int from, int to) {
+
+        Map<String, Map<String, String>> addresses = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            MappedAttribute attribute = values[i].attribute;
+            if (attribute.addressSubAttribute == null) {
+                continue;
+            }
+            Map<String, String> address = addresses.get(attribute.addressType);
+            if (address == null) {
+                address = new LinkedHashMap<>();
+                addresses.put(attribute.addressType, address);
+            }
+            address.put(attribute.addressSubAttribute, values[i].value);
+        }
+
+        writer.beginArray();
+        for (Map.Entry<String, Map<String, String>> address : addresses.entrySet()) {
+            writer.beginObject();
+            if (address.getKey().length() > 0) {
+                writer.name(TYPE).value(address.getKey());
+            }
+            for (Map.Entry<String, String> subAttribute : address.getValue().entrySet()) {
+                writer.name(subAttribute.getKey()).value(subAttribute.getValue());
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static String quoteFilterValue(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
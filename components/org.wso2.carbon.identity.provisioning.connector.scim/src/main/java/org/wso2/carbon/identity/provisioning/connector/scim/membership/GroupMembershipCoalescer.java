@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.membership;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges group membership changes into one update per group.
+ * <p>
+ * Changes submitted for a group while an update of that group is in flight are accumulated, and sent together as
+ * the next update once the in flight one completes. Adds and removes of the same group therefore end up in a single
+ * multi-member update, including changes coming from concurrently provisioned users. Updates of different groups
+ * are sent in parallel.
+ */
+public class GroupMembershipCoalescer {
+
+    private static final Log log = LogFactory.getLog(GroupMembershipCoalescer.class);
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Sends a merged membership update of a group to the SCIM endpoint.
+     */
+    public interface MembershipUpdater {
+
+        void updateMembers(String groupName, List<String> addedMembers, List<String> removedMembers) throws
+                IdentityProvisioningException;
+    }
+
+    private final MembershipUpdater membershipUpdater;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, GroupState> groups = new ConcurrentHashMap<>();
+
+    /**
+     * @param membershipUpdater
+     * @param parallelism       maximum number of groups updated in parallel
+     */
+    public GroupMembershipCoalescer(MembershipUpdater membershipUpdater, int parallelism) {
+
+        this.membershipUpdater = membershipUpdater;
+        // Workers die when idle, so a discarded connector does not leave threads behind. When all workers are busy
+        // updates wait in the queue, which holds at most one task per group. The submitting thread never sends an
+        // update itself, as it would then keep sending the changes other members make to a busy group.
+        int workers = Math.max(1, parallelism);
+        this.executor = new ThreadPoolExecutor(workers, workers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new SCIMConnectorThreadFactory("SCIMGroupMembershipUpdater"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Adds the member to and removes it from the given groups, and waits until all the affected groups are updated.
+     *
+     * @param memberName
+     * @param addedGroups   groups to add the member to, may be null
+     * @param removedGroups groups to remove the member from, may be null
+     * @throws IdentityProvisioningException if the update of any of the groups failed
+     */
+    public void updateMemberships(String memberName, List<String> addedGroups, List<String> removedGroups) throws
+            IdentityProvisioningException {
+
+        Map<String, PendingChanges> submitted = new LinkedHashMap<>();
+        if (addedGroups != null) {
+            for (String groupName : addedGroups) {
+                submitted.put(groupName, submit(groupName, memberName, true));
+            }
+        }
+        if (removedGroups != null) {
+            for (String groupName : removedGroups) {
+                submitted.put(groupName, submit(groupName, memberName, false));
+            }
+        }
+
+        List<String> failedGroups = new ArrayList<>();
+        Exception failure = null;
+        for (Map.Entry<String, PendingChanges> entry : submitted.entrySet()) {
+            PendingChanges changes = entry.getValue();
+            try {
+                changes.completed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IdentityProvisioningException("Interrupted while updating groups of: " + memberName, e);
+            }
+            if (changes.failure != null) {
+                failedGroups.add(entry.getKey());
+                failure = changes.failure;
+            }
+        }
+
+        if (failure != null) {
+            throw new IdentityProvisioningException("Error while updating groups: " + failedGroups + " of: " +
+                    memberName, failure);
+        }
+    }
+
+    private PendingChanges submit(String groupName, String memberName, boolean added) {
+
+        while (true) {
+            GroupState state = groups.get(groupName);
+            if (state == null) {
+                GroupState newState = new GroupState();
+                state = groups.putIfAbsent(groupName, newState);
+                if (state == null) {
+                    state = newState;
+                }
+            }
+
+            PendingChanges changes;
+            boolean startSending = false;
+            synchronized (state) {
+                if (state.retired) {
+                    // The state was dropped from the map after its last update, retry with a fresh one.
+                    continue;
+                }
+                if (state.pending == null) {
+                    state.pending = new PendingChanges();
+                }
+                // A later change of the same member overrides an earlier one.
+                state.pending.members.remove(memberName);
+                state.pending.members.put(memberName, added);
+                changes = state.pending;
+                if (!state.sending) {
+                    state.sending = true;
+                    startSending = true;
+                }
+            }
+
+            if (startSending) {
+                executor.execute(new GroupUpdateTask(groupName, state));
+            }
+            return changes;
+        }
+    }
+
+    private class GroupUpdateTask implements Runnable {
+
+        private final String groupName;
+        private final GroupState state;
+
+        GroupUpdateTask(String groupName, GroupState state) {
+
+            this.groupName = groupName;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                PendingChanges changes;
+                synchronized (state) {
+                    changes = state.pending;
+                    state.pending = null;
+                    if (changes == null) {
+                        state.sending = false;
+                        state.retired = true;
+                        groups.remove(groupName, state);
+                        return;
+                    }
+                }
+
+                List<String> addedMembers = new ArrayList<>();
+                List<String> removedMembers = new ArrayList<>();
+                for (Map.Entry<String, Boolean> member : changes.members.entrySet()) {
+                    if (member.getValue()) {
+                        addedMembers.add(member.getKey());
+                    } else {
+                        removedMembers.add(member.getKey());
+                    }
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Updating members of group: " + groupName + ". Added: " + addedMembers + ". Removed: " +
+                            removedMembers);
+                }
+                try {
+                    membershipUpdater.updateMembers(groupName, addedMembers, removedMembers);
+                } catch (Exception e) {
+                    changes.failure = e;
+                } finally {
+                    changes.completed.countDown();
+                }
+            }
+        }
+    }
+
+    private static class GroupState {
+
+        private PendingChanges pending;
+        private boolean sending;
+        private boolean retired;
+    }
+
+    private static class PendingChanges {
+
+        // member name -> true if added, false if removed
+        private final Map<String, Boolean> members = new LinkedHashMap<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Exception failure;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request, byte, retry and throttling counters of one SCIM endpoint, updated by the transport.
+ */
+public class EndpointMetrics implements EndpointMetricsMBean {
+
+    private final String endpoint;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong rawRequestBytes = new AtomicLong();
+    private final AtomicLong rawResponseBytes = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttledResponses = new AtomicLong();
+    private final AtomicLong circuitOpenRejections = new AtomicLong();
+
+    EndpointMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @param bytes    size of the request body as sent, 0 if it has none or its size is unknown
+     * @param rawBytes size of the request body before it was compressed, the same as bytes if it was not
+     */
+    public void requestSent(long bytes, long rawBytes) {
+
+        requests.incrementAndGet();
+        if (bytes > 0) {
+            requestBytes.addAndGet(bytes);
+            rawRequestBytes.addAndGet(rawBytes);
+        }
+        if (rawBytes != bytes) {
+            compressedRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param bytes    size of the response body as received
+     * @param rawBytes size of the response body after it was decompressed, the same as bytes if it was not
+     */
+    public void responseReceived(long bytes, long rawBytes) {
+
+        if (bytes > 0) {
+            responseBytes.addAndGet(bytes);
+            rawResponseBytes.addAndGet(rawBytes);
+        }
+        if (rawBytes != bytes) {
+            compressedResponses.incrementAndGet();
+        }
+    }
+
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    public void throttled() {
+        throttledResponses.incrementAndGet();
+    }
+
+    public void circuitOpen() {
+        circuitOpenRejections.incrementAndGet();
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    @Override
+    public long getRawRequestBytes() {
+        return rawRequestBytes.get();
+    }
+
+    @Override
+    public long getRawResponseBytes() {
+        return rawResponseBytes.get();
+    }
+
+    @Override
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    @Override
+    public long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getThrottledResponses() {
+        return throttledResponses.get();
+    }
+
+    @Override
+    public long getCircuitOpenRejections() {
+        return circuitOpenRejections.get();
+    }
+
+    @Override
+    public void reset() {
+
+        requests.set(0);
+        requestBytes.set(0);
+        responseBytes.set(0);
+        rawRequestBytes.set(0);
+        rawResponseBytes.set(0);
+        compressedRequests.set(0);
+        compressedResponses.set(0);
+        retries.set(0);
+        throttledResponses.set(0);
+        circuitOpenRejections.set(0);
+    }
+}
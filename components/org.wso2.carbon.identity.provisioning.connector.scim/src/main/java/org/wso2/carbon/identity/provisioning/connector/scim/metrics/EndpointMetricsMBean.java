@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+/**
+ * JMX view of the HTTP traffic to one SCIM endpoint. Every attempt is counted, including retries.
+ */
+public interface EndpointMetricsMBean {
+
+    String getEndpoint();
+
+    long getRequests();
+
+    /**
+     * @return request body bytes sent over the wire, compressed ones counted at their compressed size
+     */
+    long getRequestBytes();
+
+    /**
+     * @return response body bytes received over the wire, compressed ones counted at their compressed size
+     */
+    long getResponseBytes();
+
+    /**
+     * @return request body bytes before compression
+     */
+    long getRawRequestBytes();
+
+    /**
+     * @return response body bytes after decompression
+     */
+    long getRawResponseBytes();
+
+    /**
+     * @return requests sent with a gzip encoded body
+     */
+    long getCompressedRequests();
+
+    /**
+     * @return responses received with a gzip encoded body
+     */
+    long getCompressedResponses();
+
+    long getRetries();
+
+    /**
+     * @return responses with a 429 or 503 status
+     */
+    long getThrottledResponses();
+
+    /**
+     * @return calls not sent because the circuit breaker was open
+     */
+    long getCircuitOpenRejections();
+
+    void reset();
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.CircuitBreakerOpenException;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.SCIMHttpStatusException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histogram of one provisioning operation on one entity type and SCIM endpoint. A call is
+ * recorded with {@link #begin()} followed by {@link #succeeded(long)} or {@link #failed(long, Throwable)}.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Outcome of a provisioning operation.
+     */
+    public enum Outcome {
+        SUCCESS, CLIENT_ERROR, SERVER_ERROR, UNAVAILABLE, ERROR
+    }
+
+    private final String entityType;
+    private final String operation;
+    private final String endpoint;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    OperationMetrics(String entityType, String operation, String endpoint) {
+
+        this.entityType = entityType;
+        this.operation = operation;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return start time of the call, to be passed to {@link #succeeded(long)} or {@link #failed(long, Throwable)}
+     */
+    public long begin() {
+
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void succeeded(long startTime) {
+        end(startTime, Outcome.SUCCESS);
+    }
+
+    /**
+     * @param startTime
+     * @param failure   cause of the failure, classified by the SCIM status or transport error it wraps
+     */
+    public void failed(long startTime, Throwable failure) {
+        end(startTime, getOutcome(failure));
+    }
+
+    private void end(long startTime, Outcome outcome) {
+
+        latency.record(System.nanoTime() - startTime);
+        outcomes.incrementAndGet(outcome.ordinal());
+        inFlight.decrementAndGet();
+    }
+
+    static Outcome getOutcome(Throwable failure) {
+
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitBreakerOpenException) {
+                return Outcome.UNAVAILABLE;
+            }
+            if (cause instanceof SCIMHttpStatusException) {
+                int statusCode = ((SCIMHttpStatusException) cause).getStatusCode();
+                return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS ? Outcome.SERVER_ERROR :
+                        Outcome.CLIENT_ERROR;
+            }
+        }
+        return Outcome.ERROR;
+    }
+
+    @Override
+    public String getEntityType() {
+        return entityType;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getSuccesses() {
+        return outcomes.get(Outcome.SUCCESS.ordinal());
+    }
+
+    @Override
+    public long getClientErrors() {
+        return outcomes.get(Outcome.CLIENT_ERROR.ordinal());
+    }
+
+    @Override
+    public long getServerErrors() {
+        return outcomes.get(Outcome.SERVER_ERROR.ordinal());
+    }
+
+    @Override
+    public long getUnavailable() {
+        return outcomes.get(Outcome.UNAVAILABLE.ordinal());
+    }
+
+    @Override
+    public long getErrors() {
+        return outcomes.get(Outcome.ERROR.ordinal());
+    }
+
+    @Override
+    public long getLatencyMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getMean());
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.getMax());
+    }
+
+    /**
+     * Clears the counters and the histogram. Calls in flight are still tracked.
+     */
+    @Override
+    public void reset() {
+
+        for (int i = 0; i < outcomes.length(); i++) {
+            outcomes.set(i, 0);
+        }
+        latency.reset();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+/**
+ * JMX view of the metrics of one provisioning operation on one entity type and SCIM endpoint. Latencies cover the
+ * whole operation, including retries and waits for rate limits, and are reported in microseconds.
+ */
+public interface OperationMetricsMBean {
+
+    String getEntityType();
+
+    String getOperation();
+
+    String getEndpoint();
+
+    long getCount();
+
+    long getInFlight();
+
+    long getSuccesses();
+
+    /**
+     * @return operations rejected by the SCIM endpoint with a 4xx status
+     */
+    long getClientErrors();
+
+    /**
+     * @return operations failed with a 5xx or 429 status after the retries were exhausted
+     */
+    long getServerErrors();
+
+    /**
+     * @return operations not sent because the circuit breaker of the endpoint was open
+     */
+    long getUnavailable();
+
+    /**
+     * @return operations failed for other reasons, e.g. connection errors
+     */
+    long getErrors();
+
+    long getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the operation, endpoint and scheduling metrics of all the connectors, exposed as MBeans under
+ * {@value #DOMAIN} once {@link #registerMBeans(MBeanServer)} is called. Connectors provisioning to the same endpoint
+ * share its metrics. Looking metrics up goes through a concurrent map, callers on a hot path keep the instances they
+ * looked up.
+ */
+public final class ProvisioningMetrics {
+
+    private static final Log log = LogFactory.getLog(ProvisioningMetrics.class);
+
+    private static final String DOMAIN = "org.wso2.carbon.identity.provisioning.connector.scim";
+    private static final String OPERATION_TYPE = "ProvisioningOperation";
+    private static final String ENDPOINT_TYPE = "SCIMEndpoint";
+    private static final String SCHEDULING_TYPE = "SchedulingFlow";
+
+    private static final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, SchedulingMetrics> schedulingFlows = new ConcurrentHashMap<>();
+    // Guards registering MBeans, so metrics created while registering all of them are registered exactly once.
+    private static final Object lock = new Object();
+    private static MBeanServer mBeanServer;
+
+    private ProvisioningMetrics() {
+    }
+
+    /**
+     * @param entityType
+     * @param operation
+     * @param endpoint   URL of the SCIM endpoint the entities are provisioned to
+     * @return metrics of the operation, created on first use
+     */
+    public static OperationMetrics getOperationMetrics(String entityType, String operation, String endpoint) {
+
+        String key = entityType + "|" + operation + "|" + endpoint;
+        OperationMetrics metrics = operations.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        synchronized (lock) {
+            metrics = operations.get(key);
+            if (metrics == null) {
+                metrics = new OperationMetrics(entityType, operation, endpoint);
+                operations.put(key, metrics);
+                if (mBeanServer != null) {
+                    register(metrics, getObjectName(metrics));
+                }
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * @param endpoint URL of the SCIM endpoint
+     * @return metrics of the endpoint, created on first use
+     */
+    public static EndpointMetrics getEndpointMetrics(String endpoint) {
+
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics != null) {
+            return metrics;
+        }
+        synchronized (lock) {
+            metrics = endpoints.get(endpoint);
+            if (metrics == null) {
+                metrics = new EndpointMetrics(endpoint);
+                endpoints.put(endpoint, metrics);
+                if (mBeanServer != null) {
+                    register(metrics, getObjectName(metrics));
+                }
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * @param tenantDomain
+     * @param identityProvider
+     * @return scheduling metrics of the identity provider of the tenant, created on first use
+     */
+    public static SchedulingMetrics getSchedulingMetrics(String tenantDomain, String identityProvider) {
+
+        String key = tenantDomain + "|" + identityProvider;
+        SchedulingMetrics metrics = schedulingFlows.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        synchronized (lock) {
+            metrics = schedulingFlows.get(key);
+            if (metrics == null) {
+                metrics = new SchedulingMetrics(tenantDomain, identityProvider);
+                schedulingFlows.put(key, metrics);
+                if (mBeanServer != null) {
+                    register(metrics, getObjectName(metrics));
+                }
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Registers the MBeans of the existing metrics, and of the ones created from now on, with the given server.
+     *
+     * @param server
+     */
+    public static void registerMBeans(MBeanServer server) {
+
+        synchronized (lock) {
+            mBeanServer = server;
+            for (OperationMetrics metrics : operations.values()) {
+                register(metrics, getObjectName(metrics));
+            }
+            for (EndpointMetrics metrics : endpoints.values()) {
+                register(metrics, getObjectName(metrics));
+            }
+            for (SchedulingMetrics metrics : schedulingFlows.values()) {
+                register(metrics, getObjectName(metrics));
+            }
+        }
+    }
+
+    /**
+     * Unregisters all the MBeans. Metrics keep being recorded but are no longer exposed.
+     */
+    public static void unregisterMBeans() {
+
+        synchronized (lock) {
+            if (mBeanServer == null) {
+                return;
+            }
+            for (OperationMetrics metrics : operations.values()) {
+                unregister(getObjectName(metrics));
+            }
+            for (EndpointMetrics metrics : endpoints.values()) {
+                unregister(getObjectName(metrics));
+            }
+            for (SchedulingMetrics metrics : schedulingFlows.values()) {
+                unregister(getObjectName(metrics));
+            }
+            mBeanServer = null;
+        }
+    }
+
+    private static ObjectName getObjectName(OperationMetrics metrics) {
+
+        return getObjectName(OPERATION_TYPE + ",entityType=" + metrics.getEntityType() + ",operation=" +
+                metrics.getOperation() + ",endpoint=" + ObjectName.quote(String.valueOf(metrics.getEndpoint())));
+    }
+
+    private static ObjectName getObjectName(EndpointMetrics metrics) {
+        return getObjectName(ENDPOINT_TYPE + ",endpoint=" + ObjectName.quote(String.valueOf(metrics.getEndpoint())));
+    }
+
+    private static ObjectName getObjectName(SchedulingMetrics metrics) {
+
+        return getObjectName(SCHEDULING_TYPE + ",tenant=" + ObjectName.quote(String.valueOf(metrics
+                .getTenantDomain())) + ",identityProvider=" + ObjectName.quote(String.valueOf(metrics
+                .getIdentityProvider())));
+    }
+
+    private static ObjectName getObjectName(String properties) {
+
+        try {
+            return new ObjectName(DOMAIN + ":type=" + properties);
+        } catch (JMException e) {
+            // Endpoints, tenants and identity providers are quoted, the other property values are constants and enum
+            // names.
+            throw new IllegalArgumentException("Invalid MBean name properties: " + properties, e);
+        }
+    }
+
+    private static void register(Object mBean, ObjectName name) {
+
+        try {
+            if (!mBeanServer.isRegistered(name)) {
+                mBeanServer.registerMBean(mBean, name);
+            }
+        } catch (JMException e) {
+            log.warn("Error while registering provisioning metrics MBean: " + name, e);
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+
+        try {
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Error while unregistering provisioning metrics MBean: " + name, e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue depth, concurrency and queueing delay of the provisioning operations of one tenant and identity provider in
+ * the shared dispatch scheduler. Updated by the scheduler.
+ */
+public class SchedulingMetrics implements SchedulingMetricsMBean {
+
+    private final String tenantDomain;
+    private final String identityProvider;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong running = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    SchedulingMetrics(String tenantDomain, String identityProvider) {
+
+        this.tenantDomain = tenantDomain;
+        this.identityProvider = identityProvider;
+    }
+
+    public void queued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * @param waitNanos time the operation waited in the queue
+     */
+    public void started(long waitNanos) {
+
+        queued.decrementAndGet();
+        running.incrementAndGet();
+        waitTime.record(waitNanos);
+    }
+
+    public void completed() {
+
+        running.decrementAndGet();
+        completed.incrementAndGet();
+    }
+
+    /**
+     * Records an operation dropped from the queue without running it.
+     */
+    public void rejected() {
+
+        queued.decrementAndGet();
+        rejected.incrementAndGet();
+    }
+
+    @Override
+    public String getTenantDomain() {
+        return tenantDomain;
+    }
+
+    @Override
+    public String getIdentityProvider() {
+        return identityProvider;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public long getRunning() {
+        return running.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getWaitTimeMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitTime.getMean());
+    }
+
+    @Override
+    public long getWaitTimeP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitTime.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getWaitTimeP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitTime.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getWaitTimeP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitTime.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getWaitTimeMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitTime.getMax());
+    }
+
+    /**
+     * Clears the counters and the histogram. Queued and running operations are still tracked.
+     */
+    @Override
+    public void reset() {
+
+        completed.set(0);
+        rejected.set(0);
+        waitTime.reset();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.metrics;
+
+/**
+ * JMX view of the provisioning operations of one tenant and identity provider in the shared dispatch scheduler.
+ * Wait times are the time from submitting an operation until a worker picked it up, in microseconds.
+ */
+public interface SchedulingMetricsMBean {
+
+    String getTenantDomain();
+
+    String getIdentityProvider();
+
+    /**
+     * @return operations waiting for a worker
+     */
+    long getQueueDepth();
+
+    long getRunning();
+
+    long getCompleted();
+
+    /**
+     * @return queued operations dropped when the scheduler shut down
+     */
+    long getRejected();
+
+    long getWaitTimeMeanMicros();
+
+    long getWaitTimeP50Micros();
+
+    long getWaitTimeP99Micros();
+
+    long getWaitTimeP999Micros();
+
+    long getWaitTimeMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.outbox;
+
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+
+/**
+ * A pending operation recovered from the outbox.
+ */
+public class OutboxEntry {
+
+    private final long sequence;
+    private final String entityKey;
+    private final ProvisioningEntity provisioningEntity;
+
+    OutboxEntry(long sequence, String entityKey, ProvisioningEntity provisioningEntity) {
+
+        this.sequence = sequence;
+        this.entityKey = entityKey;
+        this.provisioningEntity = provisioningEntity;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getEntityKey() {
+        return entityKey;
+    }
+
+    public ProvisioningEntity getProvisioningEntity() {
+        return provisioningEntity;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size, memory-mapped file of the outbox log. Records are written as length, CRC32 and body; the zero
+ * filled remainder of the file or a record failing its checksum, i.e. a torn write, ends the segment.
+ */
+class OutboxSegment {
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File file;
+    private final long id;
+    private volatile MappedByteBuffer buffer;
+    // Operation records in the segment, and the ones still pending.
+    int totalOperations;
+    int liveOperations;
+
+    private OutboxSegment(File file, long id, MappedByteBuffer buffer) {
+
+        this.file = file;
+        this.id = id;
+        this.buffer = buffer;
+    }
+
+    static OutboxSegment create(File file, long id, int size) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // The log holds user attributes, keep it private to the server user.
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(false, false);
+            file.setWritable(true, true);
+            randomAccessFile.setLength(size);
+            return new OutboxSegment(file, id, randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static OutboxSegment open(File file, long id) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    randomAccessFile.length());
+            OutboxSegment segment = new OutboxSegment(file, id, buffer);
+            // Position after the last valid record, so the segment is never appended to over a torn write.
+            segment.readRecords();
+            return segment;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @param body
+     * @return false if the segment does not have room for the record
+     */
+    boolean write(byte[] body) {
+
+        if (buffer.remaining() < body.length + RECORD_HEADER_SIZE) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        return true;
+    }
+
+    /**
+     * Flushes the written records to the storage device.
+     */
+    void force() {
+
+        MappedByteBuffer mappedBuffer = buffer;
+        // The segment may have been reclaimed since it was last written.
+        if (mappedBuffer != null) {
+            mappedBuffer.force();
+        }
+    }
+
+    /**
+     * Reads the valid records from the start of the segment, leaving the write position after the last one.
+     *
+     * @return bodies of the records
+     */
+    List<byte[]> readRecords() {
+
+        List<byte[]> records = new ArrayList<>();
+        buffer.position(0);
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+            records.add(body);
+        }
+        return records;
+    }
+
+    void delete() {
+
+        // A mapping can not be released explicitly, it goes away with the buffer.
+        buffer = null;
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.outbox;
+
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisionedIdentifier;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of provisioning entities stored in the outbox. The password claim is left out, so user
+ * passwords are never written to disk; replayed users are provisioned without their password.
+ */
+public class ProvisioningEntitySerializer {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private ProvisioningEntitySerializer() {
+    }
+
+    public static byte[] serialize(ProvisioningEntity provisioningEntity) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(provisioningEntity.getEntityType().name());
+        writeString(out, provisioningEntity.getEntityName());
+        out.writeUTF(provisioningEntity.getOperation().name());
+        out.writeBoolean(provisioningEntity.isJitProvisioning());
+        writeString(out, provisioningEntity.getIdentifier() != null ? provisioningEntity.getIdentifier()
+                .getIdentifier() : null);
+
+        Map<ClaimMapping, List<String>> attributes = provisioningEntity.getAttributes();
+        int attributeCount = 0;
+        if (attributes != null) {
+            for (ClaimMapping claimMapping : attributes.keySet()) {
+                if (!isPasswordClaim(claimMapping)) {
+                    attributeCount++;
+                }
+            }
+        }
+        out.writeInt(attributeCount);
+        if (attributes != null) {
+            for (Map.Entry<ClaimMapping, List<String>> attribute : attributes.entrySet()) {
+                ClaimMapping claimMapping = attribute.getKey();
+                if (isPasswordClaim(claimMapping)) {
+                    continue;
+                }
+                writeString(out, claimMapping.getLocalClaim() != null ? claimMapping.getLocalClaim().getClaimUri() :
+                        null);
+                writeString(out, claimMapping.getRemoteClaim() != null ? claimMapping.getRemoteClaim()
+                        .getClaimUri() : null);
+                writeString(out, claimMapping.getDefaultValue());
+                out.writeBoolean(claimMapping.isRequested());
+                List<String> values = attribute.getValue();
+                out.writeInt(values != null ? values.size() : -1);
+                if (values != null) {
+                    for (String value : values) {
+                        writeString(out, value);
+                    }
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static ProvisioningEntity deserialize(byte[] data, int offset, int length) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported provisioning entity format: " + version);
+        }
+        ProvisioningEntityType entityType = ProvisioningEntityType.valueOf(in.readUTF());
+        String entityName = readString(in);
+        ProvisioningOperation operation = ProvisioningOperation.valueOf(in.readUTF());
+        boolean jitProvisioning = in.readBoolean();
+        String identifier = readString(in);
+
+        int attributeCount = in.readInt();
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            ClaimMapping claimMapping = ClaimMapping.build(readString(in), readString(in), readString(in),
+                    in.readBoolean());
+            int valueCount = in.readInt();
+            List<String> values = null;
+            if (valueCount >= 0) {
+                values = new ArrayList<>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(readString(in));
+                }
+            }
+            attributes.put(claimMapping, values);
+        }
+
+        ProvisioningEntity provisioningEntity = new ProvisioningEntity(entityType, entityName, operation, attributes);
+        provisioningEntity.setJitProvisioning(jitProvisioning);
+        if (identifier != null) {
+            ProvisionedIdentifier provisionedIdentifier = new ProvisionedIdentifier();
+            provisionedIdentifier.setIdentifier(identifier);
+            provisioningEntity.setIdentifier(provisionedIdentifier);
+        }
+        return provisioningEntity;
+    }
+
+    private static boolean isPasswordClaim(ClaimMapping claimMapping) {
+
+        return claimMapping != null && (claimMapping.getLocalClaim() != null && IdentityProvisioningConstants
+                .PASSWORD_CLAIM_URI.equals(claimMapping.getLocalClaim().getClaimUri()) || claimMapping
+                .getRemoteClaim() != null && IdentityProvisioningConstants.PASSWORD_CLAIM_URI.equals(claimMapping
+                .getRemoteClaim().getClaimUri()));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.outbox;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Durable log of provisioning operations which have not reached the SCIM endpoint yet.
+ * <p>
+ * Operations are appended to memory-mapped segment files and are durable when {@link #append} returns.
+ * Concurrent appends share a single flush of the segment (group commit). Operations are acknowledged per entity
+ * once they reached the endpoint; the acknowledgements themselves are not flushed, losing one only replays an
+ * operation that was already applied. A delete of an entity supersedes its earlier pending operations.
+ * <p>
+ * Segments are reclaimed oldest first in the background: a segment without pending operations is deleted and one
+ * with few of them has those copied to the active segment first. Keeping the reclaimed segments a prefix of the log
+ * guarantees that no acknowledgement is dropped while the operation it acknowledges is still on disk.
+ */
+public class ProvisioningOutbox {
+
+    private static final Log log = LogFactory.getLog(ProvisioningOutbox.class);
+
+    private static final byte OPERATION_RECORD = 1;
+    private static final byte ACKNOWLEDGEMENT_RECORD = 2;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final long COMPACTION_KEEP_ALIVE_SECONDS = 60;
+    private static final int REPLAY_LOCK_STRIPES = 64;
+
+    // Outboxes by directory, so that every connector writing to a directory shares the same instance.
+    private static final Map<String, ProvisioningOutbox> outboxes = new HashMap<>();
+
+    private static final ThreadPoolExecutor compactionExecutor = new ThreadPoolExecutor(0, 1,
+            COMPACTION_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new SCIMConnectorThreadFactory("SCIMOutboxCompaction"));
+
+    private final File directory;
+    private int segmentSize;
+    private final List<OutboxSegment> segments = new ArrayList<>();
+    // Pending operations by entity key and sequence, with the segment holding them.
+    private final Map<String, TreeMap<Long, OutboxSegment>> pendingOperations = new HashMap<>();
+    // Recovered operations not yet taken for replay by entity key, in the order the entities were first recovered.
+    private final Map<String, TreeMap<Long, OutboxEntry>> recoveredEntries = new LinkedHashMap<>();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final Object[] replayLocks = new Object[REPLAY_LOCK_STRIPES];
+    private final Object syncLock = new Object();
+    private OutboxSegment activeSegment;
+    private long nextSequence = 1;
+    private long nextSegmentId = 1;
+    private long durableSequence;
+    private boolean closed;
+
+    private ProvisioningOutbox(File directory, int segmentSize) {
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        for (int i = 0; i < replayLocks.length; i++) {
+            replayLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Opens the outbox in the given directory, recovering the operations left pending in it.
+     *
+     * @param directory
+     * @param segmentSize size of a segment file in bytes
+     * @return
+     * @throws IOException
+     */
+    public static ProvisioningOutbox open(File directory, int segmentSize) throws IOException {
+
+        String path = directory.getCanonicalPath();
+        synchronized (outboxes) {
+            ProvisioningOutbox outbox = outboxes.get(path);
+            if (outbox == null) {
+                outbox = new ProvisioningOutbox(directory, segmentSize);
+                outbox.recover();
+                outboxes.put(path, outbox);
+            } else {
+                outbox.setSegmentSize(segmentSize);
+            }
+            return outbox;
+        }
+    }
+
+    /**
+     * Recovers every outbox under the base directory, e.g. when the bundle is activated, so that their pending
+     * operations are ready to be replayed when the connectors writing to them are initialized.
+     *
+     * @param baseDirectory
+     * @param segmentSize
+     */
+    public static void recoverAll(File baseDirectory, int segmentSize) {
+
+        File[] directories = baseDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            try {
+                ProvisioningOutbox outbox = open(directory, segmentSize);
+                int pending = outbox.getRecoveredOperations();
+                if (pending > 0) {
+                    log.info("Recovered " + pending + " pending provisioning operations from outbox: " + directory);
+                }
+            } catch (IOException e) {
+                log.error("Error while recovering provisioning outbox: " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes all the open outboxes.
+     */
+    public static void closeAll() {
+
+        synchronized (outboxes) {
+            for (ProvisioningOutbox outbox : outboxes.values()) {
+                outbox.close();
+            }
+            outboxes.clear();
+        }
+    }
+
+    /**
+     * Appends an operation, returning once it is durable.
+     *
+     * @param entityKey          key of the user or group the operation is about
+     * @param provisioningEntity
+     * @return sequence number of the operation, used to acknowledge it
+     * @throws IOException
+     */
+    public long append(String entityKey, ProvisioningEntity provisioningEntity) throws IOException {
+
+        byte[] entity = ProvisioningEntitySerializer.serialize(provisioningEntity);
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Provisioning outbox: " + directory + " is closed.");
+            }
+            sequence = nextSequence++;
+            OutboxSegment segment = write(encodeRecord(OPERATION_RECORD, sequence, entityKey, entity));
+            if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
+                removePending(entityKey, sequence - 1);
+            }
+            addPending(entityKey, sequence, segment);
+        }
+        sync(sequence);
+        return sequence;
+    }
+
+    /**
+     * Acknowledges the operations of the entity up to the given sequence number, which no longer need replaying.
+     *
+     * @param entityKey
+     * @param sequence
+     */
+    public synchronized void acknowledge(String entityKey, long sequence) {
+
+        if (closed || !removePending(entityKey, sequence)) {
+            return;
+        }
+        try {
+            write(encodeRecord(ACKNOWLEDGEMENT_RECORD, sequence, entityKey, new byte[0]));
+        } catch (IOException e) {
+            log.warn("Error while acknowledging provisioning operation: " + sequence + " of: " + entityKey +
+                    ". It may be replayed after a restart.", e);
+        }
+        if (segments.size() > 1 && segments.get(0).liveOperations == 0) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Lock to hold while taking and dispatching the recovered operations of the entity, shared by every connector
+     * writing to the outbox so that new operations of the entity wait for the recovered ones to be dispatched.
+     *
+     * @param entityKey
+     * @return
+     */
+    public Object getReplayLock(String entityKey) {
+        return replayLocks[(entityKey.hashCode() & Integer.MAX_VALUE) % replayLocks.length];
+    }
+
+    /**
+     * @return whether operations recovered from a previous run are still waiting to be taken for replay
+     */
+    public synchronized boolean hasRecoveredEntries() {
+        return !recoveredEntries.isEmpty();
+    }
+
+    /**
+     * @return keys of the entities with recovered operations waiting to be taken for replay, in the order they were
+     * first recovered
+     */
+    public synchronized List<String> getRecoveredEntityKeys() {
+        return new ArrayList<>(recoveredEntries.keySet());
+    }
+
+    /**
+     * Takes the operations of the entity which were pending when the outbox was recovered and are still pending.
+     * They are returned only once.
+     *
+     * @param entityKey
+     * @return operations in the order they were appended, empty if there are none
+     */
+    public synchronized List<OutboxEntry> takeRecoveredEntries(String entityKey) {
+
+        TreeMap<Long, OutboxEntry> entries = recoveredEntries.remove(entityKey);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @param entityKey
+     * @param sequence
+     * @return false if the operation was acknowledged or superseded by a delete of the entity
+     */
+    public synchronized boolean isPending(String entityKey, long sequence) {
+
+        TreeMap<Long, OutboxSegment> operations = pendingOperations.get(entityKey);
+        return operations != null && operations.containsKey(sequence);
+    }
+
+    private synchronized void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public synchronized int getRecoveredOperations() {
+
+        int recovered = 0;
+        for (TreeMap<Long, OutboxEntry> entries : recoveredEntries.values()) {
+            recovered += entries.size();
+        }
+        return recovered;
+    }
+
+    public synchronized int getPendingOperations() {
+
+        int pending = 0;
+        for (TreeMap<Long, OutboxSegment> operations : pendingOperations.values()) {
+            pending += operations.size();
+        }
+        return pending;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void recover() throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create provisioning outbox directory: " + directory);
+        }
+
+        TreeMap<Long, File> segmentFiles = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    try {
+                        segmentFiles.put(Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length()
+                                - SEGMENT_FILE_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file in provisioning outbox: " + file);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Long, File> segmentFile : segmentFiles.entrySet()) {
+            OutboxSegment segment = OutboxSegment.open(segmentFile.getValue(), segmentFile.getKey());
+            segments.add(segment);
+            nextSegmentId = segmentFile.getKey() + 1;
+            for (byte[] record : segment.readRecords()) {
+                replayRecord(record, segment);
+            }
+        }
+
+        // Appends always go to a new segment, never after a possibly torn tail.
+        activeSegment = createSegment(segmentSize);
+        if (!segments.isEmpty()) {
+            scheduleCompaction();
+        }
+    }
+
+    private void replayRecord(byte[] record, OutboxSegment segment) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        String entityKey = in.readUTF();
+        nextSequence = Math.max(nextSequence, sequence + 1);
+
+        if (type == ACKNOWLEDGEMENT_RECORD) {
+            removePending(entityKey, sequence);
+            return;
+        }
+        int offset = record.length - in.available();
+        ProvisioningEntity provisioningEntity;
+        try {
+            provisioningEntity = ProvisioningEntitySerializer.deserialize(record, offset, record.length - offset);
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Discarding unreadable provisioning operation: " + sequence + " of: " + entityKey, e);
+            return;
+        }
+        if (provisioningEntity.getOperation() == ProvisioningOperation.DELETE) {
+            removePending(entityKey, sequence - 1);
+        }
+        addPending(entityKey, sequence, segment);
+        TreeMap<Long, OutboxEntry> entries = recoveredEntries.get(entityKey);
+        if (entries == null) {
+            entries = new TreeMap<>();
+            recoveredEntries.put(entityKey, entries);
+        }
+        entries.put(sequence, new OutboxEntry(sequence, entityKey, provisioningEntity));
+    }
+
+    private void addPending(String entityKey, long sequence, OutboxSegment segment) {
+
+        TreeMap<Long, OutboxSegment> operations = pendingOperations.get(entityKey);
+        if (operations == null) {
+            operations = new TreeMap<>();
+            pendingOperations.put(entityKey, operations);
+        }
+        OutboxSegment previous = operations.put(sequence, segment);
+        if (previous != null) {
+            // A copy left behind by an interrupted compaction.
+            previous.liveOperations--;
+        } else {
+            segment.totalOperations++;
+        }
+        segment.liveOperations++;
+    }
+
+    /**
+     * @return false if the entity had no pending operations up to the sequence
+     */
+    private boolean removePending(String entityKey, long sequence) {
+
+        TreeMap<Long, OutboxSegment> operations = pendingOperations.get(entityKey);
+        if (operations == null) {
+            return false;
+        }
+        Map<Long, OutboxSegment> removed = operations.headMap(sequence, true);
+        if (removed.isEmpty()) {
+            return false;
+        }
+        for (Iterator<Map.Entry<Long, OutboxSegment>> iterator = removed.entrySet().iterator(); iterator
+                .hasNext(); ) {
+            Map.Entry<Long, OutboxSegment> operation = iterator.next();
+            operation.getValue().liveOperations--;
+            iterator.remove();
+        }
+        if (operations.isEmpty()) {
+            pendingOperations.remove(entityKey);
+        }
+        TreeMap<Long, OutboxEntry> recovered = recoveredEntries.get(entityKey);
+        if (recovered != null) {
+            recovered.headMap(sequence, true).clear();
+            if (recovered.isEmpty()) {
+                recoveredEntries.remove(entityKey);
+            }
+        }
+        return true;
+    }
+
+    private byte[] encodeRecord(byte type, long sequence, String entityKey, byte[] entity) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entity.length + entityKey.length() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeUTF(entityKey);
+        out.write(entity);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a record to the active segment, rolling over to a new segment if it is full.
+     *
+     * @return segment the record was written to
+     */
+    private OutboxSegment write(byte[] record) throws IOException {
+
+        if (!activeSegment.write(record)) {
+            activeSegment.force();
+            activeSegment = createSegment(Math.max(segmentSize, record.length + 64));
+            scheduleCompaction();
+            activeSegment.write(record);
+        }
+        return activeSegment;
+    }
+
+    private OutboxSegment createSegment(int size) throws IOException {
+
+        long id = nextSegmentId++;
+        OutboxSegment segment = OutboxSegment.create(new File(directory, String.format("%s%020d%s",
+                SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX)), id, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Makes the operations up to the sequence durable. A caller finding its operation already flushed by another
+     * one returns right away, so a single flush covers all the appends made while the previous flush was running.
+     */
+    private void sync(long sequence) {
+
+        synchronized (syncLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            OutboxSegment segment;
+            long lastSequence;
+            synchronized (this) {
+                segment = activeSegment;
+                lastSequence = nextSequence - 1;
+            }
+            // Segments are flushed when rolled over, so only the active one can hold unflushed records.
+            segment.force();
+            durableSequence = lastSequence;
+        }
+    }
+
+    private void scheduleCompaction() {
+
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactionScheduled.set(false);
+                    try {
+                        compact();
+                    } catch (Throwable e) {
+                        log.error("Error while compacting provisioning outbox: " + directory, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reclaims the oldest segments which no longer hold pending operations, or only a few of them.
+     */
+    private synchronized void compact() throws IOException {
+
+        while (!closed && segments.size() > 1) {
+            OutboxSegment segment = segments.get(0);
+            if (segment == activeSegment) {
+                break;
+            }
+            if (segment.liveOperations > 0) {
+                if (segment.liveOperations * 2 > segment.totalOperations) {
+                    break;
+                }
+                copyPendingOperations(segment);
+                activeSegment.force();
+            }
+            segments.remove(0);
+            segment.delete();
+            if (log.isDebugEnabled()) {
+                log.debug("Reclaimed provisioning outbox segment: " + segment.getId() + " of: " + directory);
+            }
+        }
+    }
+
+    private void copyPendingOperations(OutboxSegment segment) throws IOException {
+
+        for (byte[] record : segment.readRecords()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if (in.readByte() != OPERATION_RECORD) {
+                continue;
+            }
+            long sequence = in.readLong();
+            String entityKey = in.readUTF();
+            TreeMap<Long, OutboxSegment> operations = pendingOperations.get(entityKey);
+            if (operations != null && operations.get(sequence) == segment) {
+                OutboxSegment target = write(record);
+                operations.put(sequence, target);
+                target.totalOperations++;
+                target.liveOperations++;
+                segment.liveOperations--;
+            }
+        }
+    }
+
+    private synchronized void close() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (activeSegment != null) {
+            activeSegment.force();
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+import org.wso2.carbon.identity.provisioning.connector.scim.AbstractSCIMProvisioningClient;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonReader;
+import org.wso2.carbon.identity.provisioning.connector.scim.sync.DirectorySource;
+import org.wso2.carbon.identity.provisioning.connector.scim.sync.InitialSyncEngine;
+import org.wso2.carbon.identity.provisioning.connector.scim.sync.SyncTarget;
+import org.wso2.carbon.identity.provisioning.connector.scim.transport.TokenBucket;
+import org.wso2.carbon.identity.scim.common.utils.IdentitySCIMException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically compares the users and groups in a SCIM endpoint with the local ones and sends only the operations
+ * correcting the drift, e.g. after missed events or changes made directly in the endpoint.
+ * <p>
+ * The endpoint is read a page at a time with startIndex and count, and each resource is matched by name against
+ * the sorted local names, marking the matched ones. Users are compared by the fingerprints of their managed
+ * attributes and replaced if they differ; groups are compared by their members and patched with the missing and
+ * extra ones. A resource missing from the local names is looked up locally, since the local listing may be capped,
+ * and if it does not exist it is deleted while its page is read if deletes are enabled. Once all the pages are read,
+ * local resources which were not matched are created. Only the local names and one page of the endpoint are held
+ * in memory.
+ * <p>
+ * Requests to the endpoint are rate limited, so a reconciliation can run continuously next to regular
+ * provisioning. Resources created or deleted in the endpoint while it is paged through may be skipped by a run,
+ * they are picked up by the next one. Runs are skipped while an initial sync to the endpoint is running.
+ */
+public class DriftReconciler implements Runnable {
+
+    private static final Log log = LogFactory.getLog(DriftReconciler.class);
+    private static final String USER_NAME = "userName";
+    private static final String DISPLAY_NAME = "displayName";
+    private static final String RESOURCES = "Resources";
+    private static final String TOTAL_RESULTS = "totalResults";
+    private static final String PLACEHOLDER_USER_NAME = "scim-reconciliation";
+    private static final String PLACEHOLDER_VALUE = "0";
+
+    // Scheduled reconcilers by SCIM endpoint.
+    private static final Map<String, DriftReconciler> scheduledReconcilers = new HashMap<>();
+
+    private final String targetName;
+    private final DirectorySource source;
+    private final AbstractSCIMProvisioningClient client;
+    private final SyncTarget target;
+    private final boolean reconcileGroups;
+    private final int pageSize;
+    private final TokenBucket rateLimit;
+    private final boolean deleteEnabled;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean stopped;
+
+    private DriftReconciler(String targetName, DirectorySource source, AbstractSCIMProvisioningClient client,
+                            SyncTarget target, boolean reconcileGroups, int pageSize, double rateLimit,
+                            boolean deleteEnabled) {
+
+        this.targetName = targetName;
+        this.source = source;
+        this.client = client;
+        this.target = target;
+        this.reconcileGroups = reconcileGroups;
+        this.pageSize = Math.max(1, pageSize);
+        this.rateLimit = new TokenBucket(rateLimit, 1);
+        this.deleteEnabled = deleteEnabled;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new SCIMConnectorThreadFactory(
+                "SCIMDriftReconciler"));
+    }
+
+    /**
+     * Schedules reconciliations of a SCIM endpoint, replacing the reconciler previously scheduled for it.
+     *
+     * @param targetName      name of the SCIM endpoint, used in messages
+     * @param source          local users and groups
+     * @param client          client of the SCIM endpoint
+     * @param target          provisions the local resources missing in the endpoint
+     * @param reconcileGroups whether groups are reconciled as well as users
+     * @param interval        time in milliseconds between the end of a run and the start of the next one
+     * @param pageSize        resources read from the endpoint per request
+     * @param rateLimit       requests per second sent to the endpoint, 0 or less for no limit
+     * @param deleteEnabled   whether resources only in the endpoint are deleted
+     * @return the scheduled reconciler
+     */
+    public static DriftReconciler schedule(String targetName, DirectorySource source,
+                                           AbstractSCIMProvisioningClient client, SyncTarget target,
+                                           boolean reconcileGroups, long interval, int pageSize, double rateLimit,
+                                           boolean deleteEnabled) {
+
+        DriftReconciler reconciler = new DriftReconciler(targetName, source, client, target, reconcileGroups,
+                pageSize, rateLimit, deleteEnabled);
+        DriftReconciler previous;
+        synchronized (scheduledReconcilers) {
+            previous = scheduledReconcilers.put(targetName, reconciler);
+        }
+        if (previous != null) {
+            previous.stop();
+        }
+        reconciler.scheduler.scheduleWithFixedDelay(reconciler, interval, interval, TimeUnit.MILLISECONDS);
+        return reconciler;
+    }
+
+    /**
+     * Stops all the scheduled reconcilers, interrupting running reconciliations.
+     */
+    public static void stopAll() {
+
+        List<DriftReconciler> reconcilers;
+        synchronized (scheduledReconcilers) {
+            reconcilers = new ArrayList<>(scheduledReconcilers.values());
+        }
+        for (DriftReconciler reconciler : reconcilers) {
+            reconciler.stop();
+        }
+    }
+
+    /**
+     * Cancels further runs and stops the running one.
+     */
+    public void stop() {
+
+        stopped = true;
+        scheduler.shutdownNow();
+        synchronized (scheduledReconcilers) {
+            if (scheduledReconcilers.get(targetName) == this) {
+                scheduledReconcilers.remove(targetName);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+
+        if (InitialSyncEngine.isRunning(targetName)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Initial sync to: " + targetName + " is running. Skip reconciling it.");
+            }
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            Counts counts = reconcile(sort(source.listUserNames()), true, new ResourceFingerprinter(USER_NAME,
+                    getManagedPaths()));
+            log.info("Reconciled users of: " + targetName + " in " + (System.currentTimeMillis() - startTime) +
+                    " ms. " + counts);
+
+            if (reconcileGroups && !stopped) {
+                startTime = System.currentTimeMillis();
+                counts = reconcile(sort(source.listGroupNames()), false, new ResourceFingerprinter(DISPLAY_NAME,
+                        null));
+                log.info("Reconciled groups of: " + targetName + " in " + (System.currentTimeMillis() -
+                        startTime) + " ms. " + counts);
+            }
+        } catch (IdentityProvisioningException | IdentitySCIMException e) {
+            log.error("Error while reconciling: " + targetName + ". The next run starts over.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // An exception escaping the task would cancel all the further runs.
+            log.error("Error while reconciling: " + targetName + ". The next run starts over.", e);
+        }
+    }
+
+    /**
+     * Pages through the users or groups of the endpoint and corrects the ones which drifted.
+     *
+     * @param names sorted local names
+     */
+    private Counts reconcile(List<String> names, boolean users, ResourceFingerprinter fingerprinter) throws
+            IdentitySCIMException, InterruptedException {
+
+        Counts counts = new Counts();
+        BitSet matched = new BitSet(names.size());
+        long totalResults = Long.MAX_VALUE;
+        int startIndex = 1;
+        while (!stopped && startIndex <= totalResults) {
+            rateLimit.acquire();
+            JsonReader reader = new JsonReader(users ? client.listUsers(startIndex, pageSize) :
+                    client.listGroups(startIndex, pageSize));
+            int read = 0;
+            int deleted = 0;
+            if (reader.beginObject()) {
+                String memberName;
+                while ((memberName = reader.nextName()) != null) {
+                    if (TOTAL_RESULTS.equals(memberName)) {
+                        totalResults = parseTotalResults(reader.nextString(), totalResults);
+                    } else if (RESOURCES.equals(memberName) && reader.beginArray()) {
+                        while (reader.hasNextElement()) {
+                            read++;
+                            RemoteResource resource = fingerprinter.read(reader);
+                            if (resource == null) {
+                                continue;
+                            }
+                            int index = Collections.binarySearch(names, resource.getName());
+                            if (index >= 0) {
+                                matched.set(index);
+                            } else {
+                                Boolean existing = isExisting(resource.getName(), users, counts);
+                                if (existing == null) {
+                                    continue;
+                                }
+                                if (!existing) {
+                                    counts.unmatched++;
+                                    if (deleteEnabled && delete(resource.getName(), users, counts)) {
+                                        deleted++;
+                                    }
+                                    continue;
+                                }
+                            }
+                            counts.compared++;
+                            if (users) {
+                                reconcileUser(resource, fingerprinter, counts);
+                            } else {
+                                reconcileGroup(resource, counts);
+                            }
+                        }
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+            }
+            // Endpoints without paging return all the resources at once.
+            if (read == 0 || read >= totalResults) {
+                break;
+            }
+            // The resources after the deleted ones moved up by as many places.
+            startIndex += read - deleted;
+        }
+        if (stopped) {
+            // The endpoint was not read to the end, so unmatched local names may well exist there.
+            return counts;
+        }
+
+        for (int i = matched.nextClearBit(0); i < names.size() && !stopped; i = matched.nextClearBit(i + 1)) {
+            rateLimit.acquire();
+            String name = names.get(i);
+            try {
+                if (users) {
+                    target.provisionUser(name, source.getUserClaims(name));
+                } else {
+                    target.provisionGroup(name, source.getGroupMembers(name));
+                }
+                counts.created++;
+            } catch (IdentityProvisioningException | RuntimeException e) {
+                failed(counts, "creating", users, name, e);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Looks up a resource missing from the local names, which may have been left out of a capped listing.
+     *
+     * @return whether the resource exists locally, null if it could not be looked up
+     */
+    private Boolean isExisting(String name, boolean users, Counts counts) {
+
+        try {
+            return users ? source.isExistingUser(name) : source.isExistingGroup(name);
+        } catch (IdentityProvisioningException | RuntimeException e) {
+            failed(counts, "looking up", users, name, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the resource was deleted from the endpoint
+     */
+    private boolean delete(String name, boolean users, Counts counts) throws InterruptedException {
+
+        rateLimit.acquire();
+        try {
+            if (users) {
+                client.deleteUser(name);
+            } else {
+                client.deleteGroup(name);
+            }
+            counts.deleted++;
+            return true;
+        } catch (IdentitySCIMException | RuntimeException e) {
+            failed(counts, "deleting", users, name, e);
+            return false;
+        }
+    }
+
+    private void reconcileUser(RemoteResource resource, ResourceFingerprinter fingerprinter, Counts counts) throws
+            InterruptedException {
+
+        String userName = resource.getName();
+        if (resource.getId() != null) {
+            client.rememberUserId(userName, resource.getId());
+        }
+        try {
+            Map<String, String> claims = source.getUserClaims(userName);
+            if (fingerprinter.fingerprint(client.encodeUserResource(userName, claims)) ==
+                    resource.getFingerprint()) {
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Attributes of user: " + userName + " in: " + targetName + " drifted. Replacing them.");
+            }
+            rateLimit.acquire();
+            client.replaceUser(userName, claims);
+            counts.updated++;
+        } catch (IdentityProvisioningException | IdentitySCIMException | RuntimeException e) {
+            failed(counts, "updating", true, userName, e);
+        }
+    }
+
+    private void reconcileGroup(RemoteResource resource, Counts counts) throws InterruptedException {
+
+        String groupName = resource.getName();
+        if (resource.getId() != null) {
+            client.rememberGroupId(groupName, resource.getId());
+        }
+        try {
+            Set<String> memberNames = new HashSet<>(source.getGroupMembers(groupName));
+            Set<String> remoteMemberNames = resource.getMemberNames() != null ?
+                    new HashSet<>(resource.getMemberNames()) : Collections.<String>emptySet();
+            List<String> addedMemberNames = new ArrayList<>();
+            for (String memberName : memberNames) {
+                if (!remoteMemberNames.contains(memberName)) {
+                    addedMemberNames.add(memberName);
+                }
+            }
+            List<String> removedMemberNames = new ArrayList<>();
+            for (String memberName : remoteMemberNames) {
+                if (!memberNames.contains(memberName)) {
+                    removedMemberNames.add(memberName);
+                }
+            }
+            if (addedMemberNames.isEmpty() && removedMemberNames.isEmpty()) {
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Members of group: " + groupName + " in: " + targetName + " drifted. Adding: " +
+                        addedMemberNames + " and removing: " + removedMemberNames);
+            }
+            rateLimit.acquire();
+            client.updateGroup(groupName, addedMemberNames, removedMemberNames, ProvisioningOperation.PATCH, null);
+            counts.updated++;
+        } catch (IdentityProvisioningException | IdentitySCIMException | RuntimeException e) {
+            failed(counts, "updating", false, groupName, e);
+        }
+    }
+
+    /**
+     * Collects the paths the user claims are provisioned as by encoding each claim on its own. Claims which can not
+     * be encoded from a placeholder value, such as dates, are not compared.
+     */
+    private Set<String> getManagedPaths() {
+
+        Set<String> paths = new HashSet<>();
+        for (String claimUri : source.getUserClaimUris()) {
+            try {
+                paths.addAll(ResourceFingerprinter.getPaths(client.encodeUserResource(PLACEHOLDER_USER_NAME,
+                        Collections.singletonMap(claimUri, PLACEHOLDER_VALUE))));
+            } catch (IdentitySCIMException | RuntimeException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Claim: " + claimUri + " can not be encoded on its own. It is not reconciled.", e);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private void failed(Counts counts, String action, boolean user, String name, Exception e) {
+
+        counts.failed++;
+        log.error("Error while " + action + (user ? " user: " : " group: ") + name + " reconciling: " + targetName,
+                e);
+    }
+
+    private static long parseTotalResults(String value, long defaultValue) {
+
+        try {
+            return value != null ? Long.parseLong(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static List<String> sort(List<String> names) {
+        return names == null ? new ArrayList<String>() : new ArrayList<>(new TreeSet<>(names));
+    }
+
+    private static class Counts {
+
+        private int compared;
+        private int unmatched;
+        private int created;
+        private int updated;
+        private int deleted;
+        private int failed;
+
+        @Override
+        public String toString() {
+            return "Compared: " + compared + ", created: " + created + ", updated: " + updated + ", deleted: " +
+                    deleted + ", only in the endpoint: " + unmatched + ", failed: " + failed;
+        }
+    }
+}
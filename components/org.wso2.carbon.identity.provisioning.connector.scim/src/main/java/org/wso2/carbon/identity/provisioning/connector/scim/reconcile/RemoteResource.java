@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import java.util.List;
+
+/**
+ * A resource read from a SCIM endpoint, reduced to what a reconciliation compares.
+ */
+public class RemoteResource {
+
+    private final String id;
+    private final String name;
+    private final long fingerprint;
+    private final List<String> memberNames;
+
+    RemoteResource(String id, String name, long fingerprint, List<String> memberNames) {
+
+        this.id = id;
+        this.name = name;
+        this.fingerprint = fingerprint;
+        this.memberNames = memberNames;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return fingerprint of the managed attributes
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return display names of the members of a group, null if the resource has no members attribute
+     */
+    public List<String> getMemberNames() {
+        return memberNames;
+    }
+}
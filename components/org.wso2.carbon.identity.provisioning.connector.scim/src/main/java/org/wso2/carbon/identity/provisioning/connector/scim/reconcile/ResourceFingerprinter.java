@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.reconcile;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.json.JsonReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Reduces SCIM resources to compact fingerprints, so the users in the SCIM endpoint can be compared with the local
+ * ones without keeping either of them around.
+ * <p>
+ * A resource is flattened into its leaf values keyed by path, e.g. name/givenname or emails/work/value, where the
+ * entries of multi-valued attributes are addressed by their type. Only the managed paths, the ones the connector
+ * provisions, are part of the fingerprint, so attributes the endpoint adds itself, such as meta, do not count as
+ * drift. Attribute names are case insensitive in SCIM and are compared in lower case.
+ */
+public class ResourceFingerprinter {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char PATH_SEPARATOR = '/';
+    private static final char VALUE_SEPARATOR = '=';
+    private static final String ID = "id";
+    private static final String TYPE = "type";
+    private static final String MEMBERS = "members";
+    private static final String DISPLAY = "display";
+    // Attributes assigned by the endpoint or compared otherwise, never part of a fingerprint.
+    private static final Set<String> UNMANAGED_ATTRIBUTES = new HashSet<>(Arrays.asList(ID, "externalid", "meta",
+            "schemas", "password", "groups", MEMBERS));
+
+    private final String nameAttribute;
+    private final Set<String> managedPaths;
+
+    /**
+     * @param nameAttribute attribute holding the name resources are matched by, e.g. userName
+     * @param managedPaths  paths compared, as reported by {@link #getPaths(String)}
+     */
+    public ResourceFingerprinter(String nameAttribute, Set<String> managedPaths) {
+
+        this.nameAttribute = nameAttribute.toLowerCase(Locale.ENGLISH);
+        this.managedPaths = managedPaths;
+    }
+
+    /**
+     * Reads the resource at the current position of the reader, e.g. an element of the Resources of a list
+     * response.
+     *
+     * @param reader
+     * @return the resource, null if the value is not a resource with a name
+     */
+    public RemoteResource read(JsonReader reader) {
+
+        if (!reader.beginObject()) {
+            return null;
+        }
+        String id = null;
+        String name = null;
+        List<String> memberNames = null;
+        List<String> values = new ArrayList<>();
+        String memberName;
+        while ((memberName = reader.nextName()) != null) {
+            String path = memberName.toLowerCase(Locale.ENGLISH);
+            if (ID.equals(path)) {
+                id = reader.nextString();
+            } else if (nameAttribute.equals(path)) {
+                name = reader.nextString();
+            } else if (MEMBERS.equals(path)) {
+                memberNames = readMemberNames(reader);
+            } else if (UNMANAGED_ATTRIBUTES.contains(path)) {
+                reader.skipValue();
+            } else {
+                flatten(reader, path, values);
+            }
+        }
+        return name != null ? new RemoteResource(id, name, fingerprint(values), memberNames) : null;
+    }
+
+    /**
+     * @param json encoded resource
+     * @return fingerprint of the managed attributes of the resource
+     */
+    public long fingerprint(String json) {
+
+        RemoteResource resource = read(new JsonReader(json));
+        return resource != null ? resource.getFingerprint() : fingerprint(new ArrayList<String>());
+    }
+
+    /**
+     * @param json encoded resource
+     * @return paths of all the leaf values of the resource, except the ones of the unmanaged attributes
+     */
+    public static Set<String> getPaths(String json) {
+
+        Set<String> paths = new HashSet<>();
+        List<String> values = new ArrayList<>();
+        JsonReader reader = new JsonReader(json);
+        if (!reader.beginObject()) {
+            return paths;
+        }
+        String memberName;
+        while ((memberName = reader.nextName()) != null) {
+            String path = memberName.toLowerCase(Locale.ENGLISH);
+            if (UNMANAGED_ATTRIBUTES.contains(path)) {
+                reader.skipValue();
+            } else {
+                flatten(reader, path, values);
+            }
+        }
+        for (String value : values) {
+            paths.add(value.substring(0, value.indexOf(VALUE_SEPARATOR)));
+        }
+        return paths;
+    }
+
+    /**
+     * Members are matched by their display name, which is the user name of members added by this connector.
+     * Members without one are left out.
+     */
+    private List<String> readMemberNames(JsonReader reader) {
+
+        List<String> memberNames = new ArrayList<>();
+        if (!reader.beginArray()) {
+            return memberNames;
+        }
+        while (reader.hasNextElement()) {
+            if (reader.beginObject()) {
+                if (reader.skipTo(DISPLAY)) {
+                    String display = reader.nextString();
+                    if (display != null) {
+                        memberNames.add(display);
+                    }
+                    reader.endObject();
+                }
+            }
+        }
+        return memberNames;
+    }
+
+    /**
+     * Adds the leaf values of the value at the current position as path=value entries.
+     */
+    private static void flatten(JsonReader reader, String path, List<String> values) {
+
+        char next = reader.peek();
+        if (next == '{') {
+            reader.beginObject();
+            String memberName;
+            while ((memberName = reader.nextName()) != null) {
+                flatten(reader, path + PATH_SEPARATOR + memberName.toLowerCase(Locale.ENGLISH), values);
+            }
+        } else if (next == '[') {
+            reader.beginArray();
+            while (reader.hasNextElement()) {
+                if (reader.peek() == '{') {
+                    flattenEntry(reader, path, values);
+                } else {
+                    flatten(reader, path, values);
+                }
+            }
+        } else {
+            String value = reader.nextString();
+            if (value != null) {
+                values.add(path + VALUE_SEPARATOR + value);
+            }
+        }
+    }
+
+    /**
+     * Adds the values of an entry of a multi-valued attribute under its type, as the position of an entry in the
+     * array carries no meaning.
+     */
+    private static void flattenEntry(JsonReader reader, String path, List<String> values) {
+
+        List<String> entryValues = new ArrayList<>();
+        String type = "";
+        reader.beginObject();
+        String memberName;
+        while ((memberName = reader.nextName()) != null) {
+            String subPath = memberName.toLowerCase(Locale.ENGLISH);
+            if (TYPE.equals(subPath)) {
+                String value = reader.nextString();
+                type = value != null ? value.toLowerCase(Locale.ENGLISH) : "";
+            } else {
+                flatten(reader, subPath, entryValues);
+            }
+        }
+        for (String value : entryValues) {
+            values.add(path + PATH_SEPARATOR + type + PATH_SEPARATOR + value);
+        }
+    }
+
+    private long fingerprint(List<String> values) {
+
+        Collections.sort(values);
+        long hash = FNV_OFFSET_BASIS;
+        for (String value : values) {
+            if (managedPaths != null && !managedPaths.contains(value.substring(0, value.indexOf(VALUE_SEPARATOR)))) {
+                continue;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                hash ^= c & 0xff;
+                hash *= FNV_PRIME;
+                hash ^= c >>> 8;
+                hash *= FNV_PRIME;
+            }
+            // Separates the values, so that "ab", "c" and "a", "bc" differ.
+            hash ^= '\n';
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Users and groups an initial sync or a reconciliation reads from.
+ */
+public interface DirectorySource {
+
+    /**
+     * @return names of all the users to provision
+     * @throws IdentityProvisioningException
+     */
+    List<String> listUserNames() throws IdentityProvisioningException;
+
+    /**
+     * Lists the users to provision a page at a time. Pages are taken from an order which stays the same as long as
+     * users are not added or deleted.
+     *
+     * @param offset users before the page
+     * @param limit  maximum users in the page
+     * @return names of the users in the page, fewer than the limit only for the last page
+     * @throws IdentityProvisioningException also if the page can not be listed completely
+     */
+    List<String> listUserNames(int offset, int limit) throws IdentityProvisioningException;
+
+    /**
+     * @param userName
+     * @return whether the user exists, also if it was left out of a listing
+     * @throws IdentityProvisioningException
+     */
+    boolean isExistingUser(String userName) throws IdentityProvisioningException;
+
+    /**
+     * @param userName
+     * @return claims of the user keyed by the claim URIs of the SCIM dialect
+     * @throws IdentityProvisioningException
+     */
+    Map<String, String> getUserClaims(String userName) throws IdentityProvisioningException;
+
+    /**
+     * @return URIs of the claims read for each user
+     */
+    List<String> getUserClaimUris();
+
+    /**
+     * @return names of all the groups to provision
+     * @throws IdentityProvisioningException
+     */
+    List<String> listGroupNames() throws IdentityProvisioningException;
+
+    /**
+     * Lists the groups to provision a page at a time, like {@link #listUserNames(int, int)}.
+     *
+     * @param offset groups before the page
+     * @param limit  maximum groups in the page
+     * @return names of the groups in the page, fewer than the limit only for the last page
+     * @throws IdentityProvisioningException also if the page can not be listed completely
+     */
+    List<String> listGroupNames(int offset, int limit) throws IdentityProvisioningException;
+
+    /**
+     * @param groupName
+     * @return whether the group exists, also if it was left out of a listing
+     * @throws IdentityProvisioningException
+     */
+    boolean isExistingGroup(String groupName) throws IdentityProvisioningException;
+
+    /**
+     * @param groupName
+     * @return user names of the members of the group
+     * @throws IdentityProvisioningException
+     */
+    List<String> getGroupMembers(String groupName) throws IdentityProvisioningException;
+}
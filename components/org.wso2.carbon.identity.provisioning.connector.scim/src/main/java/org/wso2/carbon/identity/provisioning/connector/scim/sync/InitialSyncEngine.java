@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMConnectorThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provisions all the existing users and then all the existing groups of a directory to a SCIM endpoint, e.g. when
+ * the endpoint is first connected. Users go first so that group members always refer to provisioned users.
+ * <p>
+ * Names are read from the directory a page at a time, with the users or groups of a page provisioned in parallel,
+ * and a phase completes only once the directory returned a short page. The checkpoint is saved after every page,
+ * so a sync stopped by a crash or restart resumes after the last completed page. Users or groups added or deleted
+ * while a sync is stopped shift the pages, so a resumed sync may skip or repeat a few of them; reconciliation picks
+ * up the skipped ones. Only one sync runs per checkpoint file.
+ */
+public class InitialSyncEngine implements Runnable {
+
+    private static final Log log = LogFactory.getLog(InitialSyncEngine.class);
+    private static final long PROGRESS_REPORT_INTERVAL = 10000;
+
+    // Running syncs by checkpoint file.
+    private static final Map<String, InitialSyncEngine> runningSyncs = new HashMap<>();
+
+    private final String checkpointPath;
+    private final String targetName;
+    private final DirectorySource source;
+    private final SyncTarget target;
+    private final SyncCheckpoint checkpoint;
+    private final int pageSize;
+    private final ExecutorService workers;
+    private final AtomicLong syncedInRun = new AtomicLong();
+    private final Thread thread;
+
+    private volatile boolean stopped;
+    private volatile long totalUsers = -1;
+    private volatile long totalGroups = -1;
+    private volatile long startTime;
+    private long lastReport;
+
+    private InitialSyncEngine(String checkpointPath, String targetName, DirectorySource source, SyncTarget target,
+                              SyncCheckpoint checkpoint, int pageSize, int parallelism) {
+
+        this.checkpointPath = checkpointPath;
+        this.targetName = targetName;
+        this.source = source;
+        this.target = target;
+        this.checkpoint = checkpoint;
+        this.pageSize = Math.max(1, pageSize);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism), new SCIMConnectorThreadFactory(
+                "SCIMInitialSyncWorker"));
+        this.thread = new SCIMConnectorThreadFactory("SCIMInitialSync").newThread(this);
+    }
+
+    /**
+     * Starts a sync in the background, resuming from the checkpoint file if one exists.
+     *
+     * @param targetName     name of the SCIM endpoint, used in messages
+     * @param source
+     * @param target
+     * @param checkpointFile
+     * @param restart        start from the beginning even if a previous sync completed or stopped halfway
+     * @param pageSize       users or groups provisioned between two checkpoints
+     * @param parallelism    users or groups provisioned in parallel
+     * @return the started sync, null if a sync of the checkpoint file is already running or has completed
+     * @throws IOException
+     */
+    public static InitialSyncEngine start(String targetName, DirectorySource source, SyncTarget target,
+                                          File checkpointFile, boolean restart, int pageSize, int parallelism)
+            throws IOException {
+
+        String checkpointPath = checkpointFile.getCanonicalPath();
+        synchronized (runningSyncs) {
+            if (runningSyncs.containsKey(checkpointPath)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Initial sync to: " + targetName + " is already running.");
+                }
+                return null;
+            }
+            if (restart && checkpointFile.exists() && !checkpointFile.delete()) {
+                throw new IOException("Could not delete initial sync checkpoint: " + checkpointFile);
+            }
+            SyncCheckpoint checkpoint = SyncCheckpoint.load(checkpointFile);
+            if (checkpoint.getPhase() == SyncCheckpoint.Phase.COMPLETED) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Initial sync to: " + targetName + " has already completed.");
+                }
+                return null;
+            }
+
+            InitialSyncEngine engine = new InitialSyncEngine(checkpointPath, targetName, source, target, checkpoint,
+                    pageSize, parallelism);
+            runningSyncs.put(checkpointPath, engine);
+            engine.thread.start();
+            return engine;
+        }
+    }
+
+    /**
+     * Stops all running syncs after their current page and waits for them to save their checkpoints.
+     *
+     * @param timeout maximum time in milliseconds to wait for all the syncs together
+     */
+    public static void stopAll(long timeout) {
+
+        List<InitialSyncEngine> engines;
+        synchronized (runningSyncs) {
+            engines = new ArrayList<>(runningSyncs.values());
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (InitialSyncEngine engine : engines) {
+            engine.stop();
+        }
+        for (InitialSyncEngine engine : engines) {
+            try {
+                engine.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param targetName
+     * @return whether a sync to the SCIM endpoint is running
+     */
+    public static boolean isRunning(String targetName) {
+
+        synchronized (runningSyncs) {
+            for (InitialSyncEngine engine : runningSyncs.values()) {
+                if (engine.targetName.equals(targetName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the sync after its current page.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Stops the sync after its current page and waits for it to save its checkpoint, so that a sync started again
+     * for the same checkpoint file resumes from there.
+     *
+     * @param timeout maximum time in milliseconds to wait
+     * @return whether the sync stopped within the timeout
+     */
+    public boolean stopAndWait(long timeout) {
+
+        stop();
+        try {
+            thread.join(Math.max(1, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    public SyncProgress getProgress() {
+
+        long elapsed = startTime > 0 ? System.currentTimeMillis() - startTime : 0;
+        double throughput = elapsed > 0 ? syncedInRun.get() * 1000d / elapsed : 0;
+        return new SyncProgress(checkpoint.getPhase(), checkpoint.getSyncedUsers(), totalUsers,
+                checkpoint.getSyncedGroups(), totalGroups, checkpoint.getFailed(), elapsed, throughput);
+    }
+
+    @Override
+    public void run() {
+
+        startTime = System.currentTimeMillis();
+        lastReport = startTime;
+        log.info("Starting initial sync to: " + targetName + " from phase: " + checkpoint.getPhase() +
+                (checkpoint.getPosition() > 0 ? " after: " + checkpoint.getPosition() + " entries" : ""));
+        try {
+            if (checkpoint.getPhase() == SyncCheckpoint.Phase.USERS) {
+                syncPages(true);
+            }
+            if (!stopped && checkpoint.getPhase() == SyncCheckpoint.Phase.GROUPS) {
+                syncPages(false);
+            }
+            if (stopped) {
+                log.info("Stopped initial sync to: " + targetName + ". " + getProgress());
+            } else {
+                log.info("Completed initial sync to: " + targetName + ". " + getProgress());
+            }
+        } catch (IdentityProvisioningException | IOException e) {
+            log.error("Error while syncing to: " + targetName + ". The sync resumes from its last checkpoint " +
+                    "when started again.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted initial sync to: " + targetName + ". " + getProgress());
+        } finally {
+            workers.shutdownNow();
+            synchronized (runningSyncs) {
+                runningSyncs.remove(checkpointPath);
+            }
+        }
+    }
+
+    /**
+     * Provisions the users or groups after the checkpoint position page by page and moves the checkpoint to the next
+     * phase once the directory has no more of them.
+     */
+    private void syncPages(boolean users) throws IdentityProvisioningException, IOException, InterruptedException {
+
+        int offset = (int) checkpoint.getPosition();
+        while (!stopped) {
+            List<String> page = users ? source.listUserNames(offset, pageSize) : source.listGroupNames(offset,
+                    pageSize);
+            if (page.isEmpty()) {
+                break;
+            }
+            List<Callable<Boolean>> tasks = new ArrayList<>(page.size());
+            for (String name : page) {
+                tasks.add(new SyncTask(name, users));
+            }
+
+            int synced = 0;
+            int failed = 0;
+            for (Future<Boolean> result : workers.invokeAll(tasks)) {
+                try {
+                    if (result.get()) {
+                        synced++;
+                    } else {
+                        failed++;
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                }
+            }
+            checkpoint.pageCompleted(page.size(), synced, failed);
+            checkpoint.save();
+            syncedInRun.addAndGet(synced);
+            offset += page.size();
+            reportProgress();
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        if (stopped) {
+            return;
+        }
+
+        if (users) {
+            totalUsers = offset;
+        } else {
+            totalGroups = offset;
+        }
+        checkpoint.nextPhase();
+        checkpoint.save();
+    }
+
+    private void reportProgress() {
+
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= PROGRESS_REPORT_INTERVAL) {
+            lastReport = now;
+            log.info("Initial sync to: " + targetName + " in progress. " + getProgress());
+        } else if (log.isDebugEnabled()) {
+            log.debug("Initial sync to: " + targetName + " in progress. " + getProgress());
+        }
+    }
+
+    private class SyncTask implements Callable<Boolean> {
+
+        private final String name;
+        private final boolean user;
+
+        SyncTask(String name, boolean user) {
+
+            this.name = name;
+            this.user = user;
+        }
+
+        @Override
+        public Boolean call() {
+
+            try {
+                if (user) {
+                    target.provisionUser(name, source.getUserClaims(name));
+                } else {
+                    target.provisionGroup(name, source.getGroupMembers(name));
+                }
+                return true;
+            } catch (IdentityProvisioningException | RuntimeException e) {
+                log.error("Error while syncing " + (user ? "user: " : "group: ") + name + " to: " + targetName, e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Position of an initial sync, persisted after every completed page so that a restarted sync resumes after the last
+ * completed page. Users and groups are provisioned in the order the directory lists them, the position is the
+ * number of users or groups of the current phase in the completed pages.
+ */
+public class SyncCheckpoint {
+
+    private static final Log log = LogFactory.getLog(SyncCheckpoint.class);
+
+    private static final String PHASE = "phase";
+    private static final String POSITION = "position";
+    private static final String SYNCED_USERS = "synced.users";
+    private static final String SYNCED_GROUPS = "synced.groups";
+    private static final String FAILED = "failed";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Phases of a sync, in order.
+     */
+    public enum Phase {
+        USERS, GROUPS, COMPLETED
+    }
+
+    private final File file;
+    private Phase phase = Phase.USERS;
+    private long position;
+    private long syncedUsers;
+    private long syncedGroups;
+    private long failed;
+
+    private SyncCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the checkpoint from the file, or starts a new one if there is none or it can not be read.
+     *
+     * @param file
+     * @return
+     */
+    public static SyncCheckpoint load(File file) {
+
+        SyncCheckpoint checkpoint = new SyncCheckpoint(file);
+        if (!file.isFile()) {
+            return checkpoint;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            checkpoint.phase = Phase.valueOf(properties.getProperty(PHASE, Phase.USERS.name()));
+            checkpoint.position = Long.parseLong(properties.getProperty(POSITION, "0"));
+            checkpoint.syncedUsers = Long.parseLong(properties.getProperty(SYNCED_USERS, "0"));
+            checkpoint.syncedGroups = Long.parseLong(properties.getProperty(SYNCED_GROUPS, "0"));
+            checkpoint.failed = Long.parseLong(properties.getProperty(FAILED, "0"));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Error while reading initial sync checkpoint: " + file + ". Starting the sync from the " +
+                    "beginning.", e);
+            return new SyncCheckpoint(file);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and moves it over the previous one, so a crash while saving leaves
+     * either the previous or the new checkpoint behind.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+
+        Properties properties = new Properties();
+        properties.setProperty(PHASE, phase.name());
+        properties.setProperty(POSITION, Long.toString(position));
+        properties.setProperty(SYNCED_USERS, Long.toString(syncedUsers));
+        properties.setProperty(SYNCED_GROUPS, Long.toString(syncedGroups));
+        properties.setProperty(FAILED, Long.toString(failed));
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Records a completed page.
+     *
+     * @param size   users or groups in the page
+     * @param synced users or groups provisioned in the page
+     * @param failed users or groups of the page which could not be provisioned
+     */
+    public synchronized void pageCompleted(int size, int synced, int failed) {
+
+        this.position += size;
+        if (phase == Phase.USERS) {
+            syncedUsers += synced;
+        } else {
+            syncedGroups += synced;
+        }
+        this.failed += failed;
+    }
+
+    /**
+     * Moves on to the next phase, starting it from its first user or group.
+     */
+    public synchronized void nextPhase() {
+
+        phase = Phase.values()[Math.min(phase.ordinal() + 1, Phase.COMPLETED.ordinal())];
+        position = 0;
+    }
+
+    public synchronized Phase getPhase() {
+        return phase;
+    }
+
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public synchronized long getSyncedUsers() {
+        return syncedUsers;
+    }
+
+    public synchronized long getSyncedGroups() {
+        return syncedGroups;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+/**
+ * Snapshot of the progress of an initial sync.
+ */
+public class SyncProgress {
+
+    private final SyncCheckpoint.Phase phase;
+    private final long syncedUsers;
+    private final long totalUsers;
+    private final long syncedGroups;
+    private final long totalGroups;
+    private final long failed;
+    private final long elapsedMillis;
+    private final double throughput;
+
+    SyncProgress(SyncCheckpoint.Phase phase, long syncedUsers, long totalUsers, long syncedGroups, long totalGroups,
+                 long failed, long elapsedMillis, double throughput) {
+
+        this.phase = phase;
+        this.syncedUsers = syncedUsers;
+        this.totalUsers = totalUsers;
+        this.syncedGroups = syncedGroups;
+        this.totalGroups = totalGroups;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+        this.throughput = throughput;
+    }
+
+    public SyncCheckpoint.Phase getPhase() {
+        return phase;
+    }
+
+    public long getSyncedUsers() {
+        return syncedUsers;
+    }
+
+    /**
+     * @return users to provision, -1 until they are listed
+     */
+    public long getTotalUsers() {
+        return totalUsers;
+    }
+
+    public long getSyncedGroups() {
+        return syncedGroups;
+    }
+
+    /**
+     * @return groups to provision, -1 until they are listed
+     */
+    public long getTotalGroups() {
+        return totalGroups;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return time the current run of the sync took so far
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return users and groups provisioned per second in the current run
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+
+        return "phase: " + phase + ", users: " + syncedUsers + "/" + (totalUsers < 0 ? "?" : totalUsers) +
+                ", groups: " + syncedGroups + "/" + (totalGroups < 0 ? "?" : totalGroups) + ", failed: " + failed +
+                ", throughput: " + String.format("%.1f", throughput) + "/s, elapsed: " + elapsedMillis / 1000 + "s";
+    }
+}
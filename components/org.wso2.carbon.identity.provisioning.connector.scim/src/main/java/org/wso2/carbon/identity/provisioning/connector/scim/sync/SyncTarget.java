@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provisions the users and groups read by an initial sync. A resource which already exists in the SCIM endpoint is
+ * brought up to date instead of failing the sync.
+ */
+public interface SyncTarget {
+
+    /**
+     * @param userName
+     * @param claims   claims of the user keyed by the claim URIs of the SCIM dialect
+     * @throws IdentityProvisioningException
+     */
+    void provisionUser(String userName, Map<String, String> claims) throws IdentityProvisioningException;
+
+    /**
+     * @param groupName
+     * @param memberNames
+     * @throws IdentityProvisioningException
+     */
+    void provisionGroup(String groupName, List<String> memberNames) throws IdentityProvisioningException;
+}
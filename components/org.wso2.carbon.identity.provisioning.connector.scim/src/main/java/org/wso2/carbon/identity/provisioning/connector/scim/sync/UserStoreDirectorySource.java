@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.sync;
+
+import org.apache.commons.lang.StringUtils;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningException;
+import org.wso2.carbon.user.api.ClaimMapping;
+import org.wso2.carbon.user.api.RealmConfiguration;
+import org.wso2.carbon.user.api.UserRealm;
+import org.wso2.carbon.user.core.UserCoreConstants;
+import org.wso2.carbon.user.core.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the users and groups (roles) of a user store domain, or of all the domains if none is given. Names are
+ * listed through the user store manager, so a store with more users than its MaxUserNameListLength setting is only
+ * partially listed by {@link #listUserNames()}.
+ * <p>
+ * Pages of users are read with the paginated listUsers(filter, limit, offset) of the user store manager on user
+ * core versions which have it. Otherwise, and for groups, the names are listed at the start of a pass and paged
+ * from the sorted list; listing fails if a domain returned as many names as its MaxUserNameListLength or
+ * MaxRoleNameListLength setting, since further names may have been left out.
+ */
+public class UserStoreDirectorySource implements DirectorySource {
+
+    private static final String DOMAIN_SEPARATOR = "/";
+    private static final String WILDCARD = "*";
+    private static final int NO_LIMIT = -1;
+    private static final String PAGINATED_LIST_USERS = "listUsers";
+
+    private final UserStoreManager userStoreManager;
+    private final String filter;
+    private final String[] claimUris;
+    // listUsers(String, int, int) of user core versions with paginated listing, null if not available.
+    private final Method paginatedListUsers;
+
+    // Sorted names listed at the start of the current pass, for paging without a paginated listing.
+    private List<String> listedUserNames;
+    private List<String> listedGroupNames;
+
+    /**
+     * @param userRealm
+     * @param userStoreDomainName domain to read from, null to read from all the domains
+     * @param claimDialectUri     dialect of the claims read for each user
+     * @throws IdentityProvisioningException
+     */
+    public UserStoreDirectorySource(UserRealm userRealm, String userStoreDomainName, String claimDialectUri) throws
+            IdentityProvisioningException {
+
+        try {
+            this.userStoreManager = (UserStoreManager) userRealm.getUserStoreManager();
+            ClaimMapping[] claimMappings = userRealm.getClaimManager().getAllClaimMappings(claimDialectUri);
+            this.claimUris = new String[claimMappings.length];
+            for (int i = 0; i < claimMappings.length; i++) {
+                claimUris[i] = claimMappings[i].getClaim().getClaimUri();
+            }
+        } catch (org.wso2.carbon.user.api.UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the claims of dialect: " +
+                    claimDialectUri, e);
+        }
+        this.filter = StringUtils.isNotBlank(userStoreDomainName) ? userStoreDomainName + DOMAIN_SEPARATOR +
+                WILDCARD : WILDCARD;
+        this.paginatedListUsers = findPaginatedListUsers(userStoreManager);
+    }
+
+    @Override
+    public List<String> listUserNames() throws IdentityProvisioningException {
+
+        try {
+            return Arrays.asList(userStoreManager.listUsers(filter, NO_LIMIT));
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while listing users with filter: " + filter, e);
+        }
+    }
+
+    @Override
+    public synchronized List<String> listUserNames(int offset, int limit) throws IdentityProvisioningException {
+
+        if (paginatedListUsers != null) {
+            return listPaginatedUserNames(offset, limit);
+        }
+        if (offset == 0 || listedUserNames == null) {
+            listedUserNames = sortCompleteListing(listUserNames(), UserCoreConstants.RealmConfig
+                    .PROPERTY_MAX_USER_LIST, "users");
+        }
+        return getPage(listedUserNames, offset, limit);
+    }
+
+    @Override
+    public boolean isExistingUser(String userName) throws IdentityProvisioningException {
+
+        try {
+            return userStoreManager.isExistingUser(userName);
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while checking the existence of user: " + userName, e);
+        }
+    }
+
+    @Override
+    public Map<String, String> getUserClaims(String userName) throws IdentityProvisioningException {
+
+        try {
+            return userStoreManager.getUserClaimValues(userName, claimUris, null);
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while reading the claims of user: " + userName, e);
+        }
+    }
+
+    @Override
+    public List<String> getUserClaimUris() {
+        return Arrays.asList(claimUris);
+    }
+
+    @Override
+    public List<String> listGroupNames() throws IdentityProvisioningException {
+
+        try {
+            // Internal, system and shared roles are not provisioned as groups.
+            return Arrays.asList(userStoreManager.getRoleNames(filter, NO_LIMIT, true, true, true));
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while listing groups with filter: " + filter, e);
+        }
+    }
+
+    @Override
+    public synchronized List<String> listGroupNames(int offset, int limit) throws IdentityProvisioningException {
+
+        if (offset == 0 || listedGroupNames == null) {
+            listedGroupNames = sortCompleteListing(listGroupNames(), UserCoreConstants.RealmConfig
+                    .PROPERTY_MAX_ROLE_LIST, "groups");
+        }
+        return getPage(listedGroupNames, offset, limit);
+    }
+
+    @Override
+    public boolean isExistingGroup(String groupName) throws IdentityProvisioningException {
+
+        try {
+            return userStoreManager.isExistingRole(groupName);
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while checking the existence of group: " + groupName, e);
+        }
+    }
+
+    @Override
+    public List<String> getGroupMembers(String groupName) throws IdentityProvisioningException {
+
+        try {
+            return new ArrayList<>(Arrays.asList(userStoreManager.getUserListOfRole(groupName)));
+        } catch (UserStoreException e) {
+            throw new IdentityProvisioningException("Error while listing the members of group: " + groupName, e);
+        }
+    }
+
+    /**
+     * Reads a page with the paginated listing, which returns at most MaxUserNameListLength names per call.
+     */
+    private List<String> listPaginatedUserNames(int offset, int limit) throws IdentityProvisioningException {
+
+        List<String> names = new ArrayList<>(limit);
+        try {
+            while (names.size() < limit) {
+                // The offset of the paginated listing is one based, like the SCIM startIndex.
+                String[] page = (String[]) paginatedListUsers.invoke(userStoreManager, filter, limit - names.size(),
+                        offset + names.size() + 1);
+                if (page == null || page.length == 0) {
+                    break;
+                }
+                names.addAll(Arrays.asList(page));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IdentityProvisioningException("Error while listing users with filter: " + filter, e);
+        } catch (InvocationTargetException e) {
+            throw new IdentityProvisioningException("Error while listing users with filter: " + filter,
+                    e.getCause());
+        }
+        return names.size() > limit ? names.subList(0, limit) : names;
+    }
+
+    /**
+     * Sorts the listed names, failing if a domain returned as many names as it lists at most.
+     *
+     * @param maxListLengthProperty user store property limiting the names listed per domain
+     */
+    private List<String> sortCompleteListing(List<String> names, String maxListLengthProperty, String type) throws
+            IdentityProvisioningException {
+
+        Map<String, Integer> domainCounts = new HashMap<>();
+        for (String name : names) {
+            int separatorIndex = name.indexOf(DOMAIN_SEPARATOR);
+            String domain = separatorIndex > 0 ? name.substring(0, separatorIndex).toUpperCase(Locale.ENGLISH) :
+                    null;
+            Integer count = domainCounts.get(domain);
+            domainCounts.put(domain, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> domainCount : domainCounts.entrySet()) {
+            int maxListLength = getMaxListLength(domainCount.getKey(), maxListLengthProperty);
+            if (maxListLength > 0 && domainCount.getValue() >= maxListLength) {
+                String domain = domainCount.getKey() != null ? domainCount.getKey() :
+                        UserCoreConstants.PRIMARY_DEFAULT_DOMAIN_NAME;
+                throw new IdentityProvisioningException("Listing " + type + " with filter: " + filter + " returned " +
+                        domainCount.getValue() + " names of domain: " + domain + ", the most it lists. Increase its " +
+                        maxListLengthProperty + " setting to list all of them.");
+            }
+        }
+        List<String> sortedNames = new ArrayList<>(names);
+        Collections.sort(sortedNames);
+        return sortedNames;
+    }
+
+    private int getMaxListLength(String domain, String maxListLengthProperty) {
+
+        UserStoreManager domainUserStoreManager = domain != null ?
+                userStoreManager.getSecondaryUserStoreManager(domain) : null;
+        RealmConfiguration realmConfiguration = (domainUserStoreManager != null ? domainUserStoreManager :
+                userStoreManager).getRealmConfiguration();
+        String value = realmConfiguration != null ? realmConfiguration.getUserStoreProperty(maxListLengthProperty) :
+                null;
+        try {
+            return StringUtils.isNotBlank(value) ? Integer.parseInt(value.trim()) : NO_LIMIT;
+        } catch (NumberFormatException e) {
+            return NO_LIMIT;
+        }
+    }
+
+    private static List<String> getPage(List<String> names, int offset, int limit) {
+
+        if (offset >= names.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(names.subList(offset, Math.min(offset + limit, names.size())));
+    }
+
+    private static Method findPaginatedListUsers(UserStoreManager userStoreManager) {
+
+        try {
+            return userStoreManager.getClass().getMethod(PAGINATED_LIST_USERS, String.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import java.util.Arrays;
+
+/**
+ * Limit on the calls in flight to a SCIM endpoint that adapts to how the endpoint copes (AIMD). While the limit is
+ * fully used and latency stays flat it grows by about one call per round trip. It is halved when the endpoint
+ * throttles and cut back when the p99 latency of the recent calls rises well above what the endpoint used to
+ * deliver.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final int WINDOW_SIZE = 100;
+    // p99 latency above this multiple of the baseline is taken as queueing at the endpoint.
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double THROTTLED_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.9;
+    private static final double BASELINE_SMOOTHING = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long[] window = new long[WINDOW_SIZE];
+
+    private double limit;
+    private int inFlight;
+    private int windowCount;
+    private long baselineLatency;
+    private long lastDecrease;
+    private long lastLatency;
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * Waits until a call may be sent without exceeding the limit. Every acquire must be followed by one of the
+     * release methods.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Releases a call the endpoint answered normally.
+     *
+     * @param latency time in nanoseconds the call took
+     */
+    public synchronized void release(long latency) {
+
+        boolean limited = inFlight >= (int) limit;
+        inFlight--;
+        lastLatency = latency;
+        window[windowCount++] = latency;
+        if (windowCount == WINDOW_SIZE) {
+            evaluateWindow();
+        } else if (limited) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases a call the endpoint throttled or timed out on.
+     */
+    public synchronized void releaseThrottled() {
+
+        inFlight--;
+        decrease(THROTTLED_DECREASE);
+        notifyAll();
+    }
+
+    /**
+     * Releases a call that says nothing about the load of the endpoint, e.g. one that could not connect.
+     */
+    public synchronized void releaseWithoutSample() {
+
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    private void evaluateWindow() {
+
+        long[] latencies = Arrays.copyOf(window, WINDOW_SIZE);
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) Math.ceil(WINDOW_SIZE * 0.99) - 1];
+        windowCount = 0;
+
+        if (baselineLatency == 0) {
+            baselineLatency = p99;
+            return;
+        }
+        if (p99 > baselineLatency * LATENCY_TOLERANCE) {
+            decrease(LATENCY_DECREASE);
+        }
+        // Follow lasting changes of the endpoint latency, so that a slower but healthy endpoint is not starved.
+        baselineLatency += (long) ((p99 - baselineLatency) * BASELINE_SMOOTHING);
+    }
+
+    private void decrease(double ratio) {
+
+        long now = System.nanoTime();
+        // Calls that were in flight together report the same congestion, cut back once per round trip.
+        if (now - lastDecrease < lastLatency) {
+            return;
+        }
+        limit = Math.max(minLimit, limit * ratio);
+        lastDecrease = now;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+/**
+ * Circuit breaker guarding a SCIM endpoint. After a number of consecutive failures the circuit opens and calls
+ * fail fast without reaching the endpoint. Once the open duration has passed a single probe call is let through;
+ * its outcome closes the circuit again or keeps it open for another period.
+ */
+public class CircuitBreaker {
+
+    /**
+     * States of the circuit.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openDuration;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    /**
+     * @param endpoint         endpoint guarded by the breaker, used in messages
+     * @param failureThreshold consecutive failures that open the circuit, 0 or less disables the breaker
+     * @param openDuration     time in milliseconds the circuit stays open before a probe call is let through
+     */
+    public CircuitBreaker(String endpoint, int failureThreshold, long openDuration) {
+
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks whether a call may go to the endpoint. A caller that is allowed through must report the outcome with
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return false if the call has to fail fast
+     */
+    public synchronized boolean allowRequest() {
+
+        if (failureThreshold <= 0 || state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        if (probeInFlight) {
+            return false;
+        }
+        probeInFlight = true;
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * @return true if this failure opened the circuit
+     */
+    public synchronized boolean recordFailure() {
+
+        probeInFlight = false;
+        if (failureThreshold <= 0) {
+            return false;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
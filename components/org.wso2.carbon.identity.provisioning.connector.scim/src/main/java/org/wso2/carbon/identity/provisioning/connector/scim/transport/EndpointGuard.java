@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.EndpointMetrics;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Circuit breaker, rate limit and adaptive concurrency limit of one configured SCIM endpoint.
+ */
+class EndpointGuard {
+
+    private final String endpoint;
+    private final CircuitBreaker circuitBreaker;
+    private final TokenBucket tokenBucket;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final EndpointMetrics metrics;
+
+    /**
+     * @param endpoint
+     * @param circuitBreaker
+     * @param tokenBucket
+     * @param concurrencyLimit null if the calls in flight are only limited by the connection pool
+     * @param metrics
+     */
+    EndpointGuard(String endpoint, CircuitBreaker circuitBreaker, TokenBucket tokenBucket,
+                  AdaptiveConcurrencyLimit concurrencyLimit, EndpointMetrics metrics) {
+
+        this.endpoint = endpoint;
+        this.circuitBreaker = circuitBreaker;
+        this.tokenBucket = tokenBucket;
+        this.concurrencyLimit = concurrencyLimit;
+        this.metrics = metrics;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    EndpointMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Waits for a token and a free slot below the concurrency limit. Must be followed by one of the release
+     * methods.
+     *
+     * @throws InterruptedIOException
+     */
+    void acquire() throws InterruptedIOException {
+
+        try {
+            tokenBucket.acquire();
+            if (concurrencyLimit != null) {
+                concurrencyLimit.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call SCIM endpoint: " + endpoint);
+        }
+    }
+
+    void release(long latency) {
+
+        if (concurrencyLimit != null) {
+            concurrencyLimit.release(latency);
+        }
+    }
+
+    void releaseThrottled() {
+
+        if (concurrencyLimit != null) {
+            concurrencyLimit.releaseThrottled();
+        }
+    }
+
+    void releaseWithoutSample() {
+
+        if (concurrencyLimit != null) {
+            concurrencyLimit.releaseWithoutSample();
+        }
+    }
+}
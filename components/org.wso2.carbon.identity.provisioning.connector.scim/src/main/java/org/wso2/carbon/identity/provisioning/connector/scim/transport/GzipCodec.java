@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Gzip encoding and decoding of HTTP bodies. Each thread reuses its own deflater, inflater and buffers, rather than
+ * allocating them per call as GZIPOutputStream and GZIPInputStream do.
+ */
+final class GzipCodec {
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int CHUNK_SIZE = 8192;
+    // An output buffer grown beyond this by a large body is dropped after use rather than kept by the thread.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1048576;
+
+    private static final ThreadLocal<GzipCodec> CODECS = new ThreadLocal<GzipCodec>() {
+        @Override
+        protected GzipCodec initialValue() {
+            return new GzipCodec();
+        }
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private ByteArrayOutputStream output = new ByteArrayOutputStream(CHUNK_SIZE);
+
+    private GzipCodec() {
+    }
+
+    /**
+     * @return codec of the calling thread
+     */
+    static GzipCodec get() {
+        return CODECS.get();
+    }
+
+    /**
+     * @param data
+     * @return data as a gzip member
+     */
+    byte[] encode(byte[] data) {
+
+        output.reset();
+        output.write(HEADER, 0, HEADER_SIZE);
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.write(chunk, 0, deflater.deflate(chunk));
+        }
+        crc.reset();
+        crc.update(data);
+        writeInt(output, (int) crc.getValue());
+        writeInt(output, data.length);
+        return takeOutput();
+    }
+
+    /**
+     * @param data a gzip member, anything after it is ignored
+     * @return decompressed data
+     * @throws ZipException if the data is not valid gzip
+     */
+    byte[] decode(byte[] data) throws ZipException {
+
+        int offset = skipHeader(data);
+        output.reset();
+        crc.reset();
+        inflater.reset();
+        inflater.setInput(data, offset, data.length - offset);
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated gzip body.");
+                }
+                crc.update(chunk, 0, length);
+                output.write(chunk, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid gzip body. " + e.getMessage());
+        }
+
+        int trailer = data.length - inflater.getRemaining();
+        if (trailer + TRAILER_SIZE > data.length || readInt(data, trailer) != (int) crc.getValue() ||
+                readInt(data, trailer + 4) != output.size()) {
+            throw new ZipException("Corrupt gzip trailer.");
+        }
+        return takeOutput();
+    }
+
+    /**
+     * @return offset of the compressed data following the header
+     */
+    private static int skipHeader(byte[] data) throws ZipException {
+
+        if (data.length < HEADER_SIZE + TRAILER_SIZE || data[0] != HEADER[0] || data[1] != HEADER[1] ||
+                data[2] != Deflater.DEFLATED) {
+            throw new ZipException("Not a gzip body.");
+        }
+        int flags = data[3] & 0xff;
+        int offset = HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            offset += 2 + ((data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            offset = skipZeroTerminated(data, offset);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            offset = skipZeroTerminated(data, offset);
+        }
+        if ((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        if (offset > data.length) {
+            throw new ZipException("Truncated gzip header.");
+        }
+        return offset;
+    }
+
+    private static int skipZeroTerminated(byte[] data, int offset) throws ZipException {
+
+        while (offset < data.length && data[offset] != 0) {
+            offset++;
+        }
+        if (offset == data.length) {
+            throw new ZipException("Truncated gzip header.");
+        }
+        return offset + 1;
+    }
+
+    private byte[] takeOutput() {
+
+        byte[] bytes = output.toByteArray();
+        if (bytes.length > MAX_RETAINED_BUFFER_SIZE) {
+            output = new ByteArrayOutputStream(CHUNK_SIZE);
+        }
+        return bytes;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 |
+                (data[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.lang.StringUtils;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Decides which failed SCIM calls are retried and how long to wait before each retry. Delays grow exponentially
+ * with full jitter, so callers failing together do not retry together, and a Retry-After sent by the endpoint is
+ * honored.
+ */
+public class RetryPolicy {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final String HTTP_POST = "POST";
+
+    private final Random random = new Random();
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    /**
+     * @param maxRetries     retries after the first attempt, 0 disables retrying
+     * @param initialBackoff upper bound in milliseconds of the delay before the first retry
+     * @param maxBackoff     upper bound in milliseconds of any delay, including one asked for with Retry-After
+     */
+    public RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff) {
+
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 429 and 5xx responses are retryable, other statuses are final. A create is retried only when the endpoint
+     * did not process it, i.e. on 429 and 503, so that a retry can not create the resource twice.
+     *
+     * @param httpMethod
+     * @param statusCode
+     * @return
+     */
+    public boolean isRetryable(String httpMethod, int statusCode) {
+
+        if (statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE) {
+            return true;
+        }
+        return statusCode >= 500 && !HTTP_POST.equalsIgnoreCase(httpMethod);
+    }
+
+    /**
+     * Connection failures and timeouts are retryable. A create is retried only when the connection could not be
+     * established, since a request that timed out may still have been processed.
+     *
+     * @param httpMethod
+     * @param e
+     * @return
+     */
+    public boolean isRetryable(String httpMethod, IOException e) {
+
+        if (e instanceof CircuitBreakerOpenException || e instanceof UnknownHostException ||
+                e instanceof SSLHandshakeException) {
+            return false;
+        }
+        if (e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+        if (HTTP_POST.equalsIgnoreCase(httpMethod)) {
+            return false;
+        }
+        // Timeouts are the only interruptions worth retrying.
+        return e instanceof SocketTimeoutException || !(e instanceof InterruptedIOException);
+    }
+
+    /**
+     * @param retry      number of the retry, starting from 1
+     * @param retryAfter value of the Retry-After header of the failed response, may be null
+     * @return delay in milliseconds before the retry, -1 if the endpoint asked for a longer wait than allowed
+     */
+    public long getDelay(int retry, String retryAfter) {
+
+        long requested = parseRetryAfter(retryAfter);
+        if (requested > maxBackoff) {
+            return -1;
+        }
+        long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(retry - 1, 30));
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * ceiling);
+        }
+        return Math.max(delay, requested);
+    }
+
+    /**
+     * @param retryAfter delay in seconds or an HTTP date
+     * @return delay in milliseconds, 0 if not given or not valid
+     */
+    private long parseRetryAfter(String retryAfter) {
+
+        if (StringUtils.isBlank(retryAfter)) {
+            return 0;
+        }
+        String value = retryAfter.trim();
+        if (StringUtils.isNumeric(value)) {
+            try {
+                return Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+        try {
+            return Math.max(0, DateUtil.parseDate(value).getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+}
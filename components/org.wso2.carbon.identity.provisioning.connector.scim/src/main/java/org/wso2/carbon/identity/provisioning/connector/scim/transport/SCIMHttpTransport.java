@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.EncodingUtil;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorConstants;
+import org.wso2.carbon.identity.provisioning.connector.scim.SCIMProvisioningConnectorUtil;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.EndpointMetrics;
+import org.wso2.carbon.identity.provisioning.connector.scim.metrics.ProvisioningMetrics;
+import org.wso2.charon.core.config.SCIMConfigConstants;
+import org.wso2.charon.core.config.SCIMProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP transport shared by all the SCIM calls of a connector instance. Connections are kept alive and pooled per
+ * target host, so consecutive provisioning operations against the same endpoint reuse the established (TLS)
+ * connection instead of opening a new one per call.
+ * <p>
+ * Calls failing with a retryable error are retried with backoff. Each configured endpoint has a circuit breaker
+ * that stops calls to it while it keeps failing, an optional rate limit and an optional adaptive limit on the calls
+ * in flight.
+ * <p>
+ * With gzip enabled, request bodies above a size threshold are sent gzip encoded and gzip encoded responses are
+ * accepted. An endpoint rejecting an encoded body with 415 gets it again unencoded, and no encoded bodies after
+ * that.
+ */
+public class SCIMHttpTransport {
+
+    private static final Log log = LogFactory.getLog(SCIMHttpTransport.class);
+
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String GZIP = "gzip";
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final long idleTimeout;
+    private final int maxConnectionsPerEndpoint;
+    // Calls holding a connection right now.
+    private final AtomicInteger callsInFlight = new AtomicInteger();
+    private final boolean gzipEnabled;
+    private final int gzipMinRequestSize;
+    // Set once the endpoint rejected a gzip encoded request body.
+    private volatile boolean gzipRequestsRejected;
+    private final AtomicLong lastIdleEviction = new AtomicLong(System.currentTimeMillis());
+    private final RetryPolicy retryPolicy;
+    private final EndpointGuard userEndpointGuard;
+    private final EndpointGuard groupEndpointGuard;
+
+    public SCIMHttpTransport(SCIMProvider scimProvider) {
+
+        int maxConnections = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_MAX_CONNECTIONS,
+                SCIMProvisioningConnectorConstants.DEFAULT_MAX_CONNECTIONS);
+        maxConnectionsPerEndpoint = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_MAX_CONNECTIONS_PER_ENDPOINT,
+                SCIMProvisioningConnectorConstants.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT);
+        int connectionTimeout = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_CONNECTION_TIMEOUT,
+                SCIMProvisioningConnectorConstants.DEFAULT_CONNECTION_TIMEOUT);
+        int socketTimeout = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_SOCKET_TIMEOUT,
+                SCIMProvisioningConnectorConstants.DEFAULT_SOCKET_TIMEOUT);
+        idleTimeout = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_CONNECTION_IDLE_TIMEOUT,
+                SCIMProvisioningConnectorConstants.DEFAULT_CONNECTION_IDLE_TIMEOUT);
+
+        gzipEnabled = SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_GZIP_ENABLED, false);
+        gzipMinRequestSize = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_GZIP_MIN_REQUEST_SIZE,
+                SCIMProvisioningConnectorConstants.DEFAULT_GZIP_MIN_REQUEST_SIZE);
+
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(maxConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerEndpoint);
+        params.setConnectionTimeout(connectionTimeout);
+        params.setSoTimeout(socketTimeout);
+        params.setStaleCheckingEnabled(true);
+
+        httpClient = new HttpClient(connectionManager);
+        // Do not block forever on an exhausted pool.
+        httpClient.getParams().setConnectionManagerTimeout(connectionTimeout);
+
+        String userName = scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USERNAME);
+        String password = scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_PASSWORD);
+        if (StringUtils.isNotEmpty(userName)) {
+            httpClient.getParams().setAuthenticationPreemptive(true);
+            httpClient.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(userName, password));
+        }
+
+        retryPolicy = new RetryPolicy(
+                SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_MAX_RETRIES,
+                        SCIMProvisioningConnectorConstants.DEFAULT_MAX_RETRIES),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_RETRY_INITIAL_BACKOFF,
+                        SCIMProvisioningConnectorConstants.DEFAULT_RETRY_INITIAL_BACKOFF),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_RETRY_MAX_BACKOFF,
+                        SCIMProvisioningConnectorConstants.DEFAULT_RETRY_MAX_BACKOFF));
+
+        String userEndpoint = scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_USER_ENDPOINT);
+        String groupEndpoint = scimProvider.getProperty(SCIMConfigConstants.ELEMENT_NAME_GROUP_ENDPOINT);
+        userEndpointGuard = createEndpointGuard(scimProvider, userEndpoint, maxConnectionsPerEndpoint);
+        groupEndpointGuard = StringUtils.isNotBlank(groupEndpoint) ? createEndpointGuard(scimProvider,
+                groupEndpoint, maxConnectionsPerEndpoint) : userEndpointGuard;
+
+        if (log.isDebugEnabled()) {
+            log.debug("Initialized SCIM HTTP transport with max connections: " + maxConnections + ", max " +
+                    "connections per endpoint: " + maxConnectionsPerEndpoint + ", connection timeout: " +
+                    connectionTimeout + "ms, socket timeout: " + socketTimeout + "ms, idle timeout: " + idleTimeout
+                    + "ms, gzip: " + gzipEnabled);
+        }
+    }
+
+    /**
+     * Executes the given method on a pooled connection, retrying it on retryable errors. The response body is fully
+     * read and the connection is released back to the pool before returning.
+     *
+     * @param method
+     * @return last response received, which is unsuccessful if the retries were exhausted
+     * @throws IOException                 if the endpoint could not be reached
+     * @throws CircuitBreakerOpenException if the circuit breaker of the endpoint is open
+     */
+    public SCIMHttpResponse execute(HttpMethod method) throws IOException {
+
+        EndpointGuard endpointGuard = getEndpointGuard(method);
+        CircuitBreaker circuitBreaker = endpointGuard.getCircuitBreaker();
+        EndpointMetrics metrics = endpointGuard.getMetrics();
+        long rawRequestBytes = getRequestBytes(method);
+        RequestEntity rawEntity = null;
+        long requestBytes = rawRequestBytes;
+        if (gzipEnabled) {
+            method.setRequestHeader(ACCEPT_ENCODING_HEADER, GZIP);
+            if (rawRequestBytes > 0) {
+                rawEntity = ((EntityEnclosingMethod) method).getRequestEntity();
+                requestBytes = compressRequest(method, rawRequestBytes);
+            }
+        }
+        int retries = 0;
+        while (true) {
+            endpointGuard.acquire();
+            if (!circuitBreaker.allowRequest()) {
+                endpointGuard.releaseWithoutSample();
+                metrics.circuitOpen();
+                throw new CircuitBreakerOpenException("Circuit breaker of SCIM endpoint: " + endpointGuard
+                        .getEndpoint() + " is open after repeated failures. The call was not sent.");
+            }
+
+            SCIMHttpResponse response;
+            long start = System.nanoTime();
+            metrics.requestSent(requestBytes, rawRequestBytes);
+            try {
+                response = executeOnce(method, metrics);
+            } catch (IOException e) {
+                recordFailure(endpointGuard);
+                if (e instanceof SocketTimeoutException) {
+                    endpointGuard.releaseThrottled();
+                } else {
+                    endpointGuard.releaseWithoutSample();
+                }
+                if (retries >= retryPolicy.getMaxRetries() || !retryPolicy.isRetryable(method.getName(), e)) {
+                    throw e;
+                }
+                retries++;
+                metrics.retried();
+                backOff(method, retries, retryPolicy.getDelay(retries, null), e.getMessage());
+                continue;
+            } catch (RuntimeException e) {
+                // Release a half-open circuit's probe slot.
+                recordFailure(endpointGuard);
+                endpointGuard.releaseWithoutSample();
+                throw e;
+            }
+
+            int statusCode = response.getStatusCode();
+            if (statusCode == UNSUPPORTED_MEDIA_TYPE && requestBytes != rawRequestBytes) {
+                // The endpoint does not take encoded bodies, send this one and all the following ones unencoded.
+                endpointGuard.release(System.nanoTime() - start);
+                circuitBreaker.recordSuccess();
+                if (!gzipRequestsRejected) {
+                    gzipRequestsRejected = true;
+                    log.warn("SCIM endpoint: " + endpointGuard.getEndpoint() + " rejected a gzip encoded request " +
+                            "body. Request bodies are sent unencoded from now on.");
+                }
+                ((EntityEnclosingMethod) method).setRequestEntity(rawEntity);
+                method.removeRequestHeader(CONTENT_ENCODING_HEADER);
+                // Set for the encoded body by the first execution, it is set again for the restored one.
+                method.removeRequestHeader(CONTENT_LENGTH_HEADER);
+                requestBytes = rawRequestBytes;
+                continue;
+            }
+            if (statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE) {
+                endpointGuard.releaseThrottled();
+                metrics.throttled();
+            } else {
+                endpointGuard.release(System.nanoTime() - start);
+            }
+            if (statusCode != TOO_MANY_REQUESTS && statusCode < 500) {
+                circuitBreaker.recordSuccess();
+                return response;
+            }
+            recordFailure(endpointGuard);
+            if (retries >= retryPolicy.getMaxRetries() || !retryPolicy.isRetryable(method.getName(), statusCode)) {
+                return response;
+            }
+            long delay = retryPolicy.getDelay(retries + 1, response.getHeader(RETRY_AFTER_HEADER));
+            if (delay < 0) {
+                // The endpoint asked for a longer wait than we hold a thread for.
+                return response;
+            }
+            retries++;
+            metrics.retried();
+            backOff(method, retries, delay, "status " + statusCode);
+        }
+    }
+
+    private SCIMHttpResponse executeOnce(HttpMethod method, EndpointMetrics metrics) throws IOException {
+
+        evictIdleConnections();
+        callsInFlight.incrementAndGet();
+        try {
+            int statusCode = httpClient.executeMethod(method);
+            // Read the raw body to count its bytes, decoding it the same way getResponseBodyAsString does.
+            byte[] body = method.getResponseBody();
+            String decodedBody = null;
+            if (body != null) {
+                Header contentEncoding = method.getResponseHeader(CONTENT_ENCODING_HEADER);
+                if (contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.getValue().trim()) &&
+                        body.length > 0) {
+                    byte[] encodedBody = body;
+                    body = GzipCodec.get().decode(encodedBody);
+                    metrics.responseReceived(encodedBody.length, body.length);
+                } else {
+                    metrics.responseReceived(body.length, body.length);
+                }
+                decodedBody = method instanceof HttpMethodBase ? EncodingUtil.getString(body, ((HttpMethodBase)
+                        method).getResponseCharSet()) : EncodingUtil.getAsciiString(body);
+            }
+            return new SCIMHttpResponse(statusCode, method.getResponseHeaders(), decodedBody);
+        } finally {
+            method.releaseConnection();
+            callsInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Tells whether a further call would have to wait for a pooled connection. The user, group and bulk endpoints
+     * of a connector are expected to be served by the same host, so the calls in flight to all of them count
+     * against the connections of one endpoint.
+     *
+     * @return true if as many calls are in flight as there are connections to an endpoint
+     */
+    public boolean isSaturated() {
+        return callsInFlight.get() >= maxConnectionsPerEndpoint;
+    }
+
+    /**
+     * Replaces a request body above the size threshold with its gzip encoding, unless encoding does not make it
+     * smaller.
+     *
+     * @param method
+     * @param rawBytes size of the request body, which must have one
+     * @return size of the body to send
+     * @throws IOException if the body could not be read
+     */
+    private long compressRequest(HttpMethod method, long rawBytes) throws IOException {
+
+        if (rawBytes < gzipMinRequestSize || gzipRequestsRejected || method.getRequestHeader(
+                CONTENT_ENCODING_HEADER) != null) {
+            return rawBytes;
+        }
+        EntityEnclosingMethod entityMethod = (EntityEnclosingMethod) method;
+        RequestEntity entity = entityMethod.getRequestEntity();
+        if (!entity.isRepeatable()) {
+            return rawBytes;
+        }
+
+        ByteArrayOutputStream rawBody = new ByteArrayOutputStream((int) rawBytes);
+        entity.writeRequest(rawBody);
+        byte[] encodedBody = GzipCodec.get().encode(rawBody.toByteArray());
+        if (encodedBody.length >= rawBytes) {
+            return rawBytes;
+        }
+        entityMethod.setRequestEntity(new ByteArrayRequestEntity(encodedBody, entity.getContentType()));
+        method.setRequestHeader(CONTENT_ENCODING_HEADER, GZIP);
+        return encodedBody.length;
+    }
+
+    /**
+     * @param method
+     * @return size of the request body in bytes, 0 if there is none or its size is not known upfront
+     */
+    private long getRequestBytes(HttpMethod method) {
+
+        if (method instanceof EntityEnclosingMethod && ((EntityEnclosingMethod) method).getRequestEntity() != null) {
+            return Math.max(0, ((EntityEnclosingMethod) method).getRequestEntity().getContentLength());
+        }
+        return 0;
+    }
+
+    /**
+     * Closes all pooled connections. The transport must not be used afterwards.
+     */
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    private EndpointGuard createEndpointGuard(SCIMProvider scimProvider, String endpoint,
+                                              int maxConnectionsPerEndpoint) {
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(endpoint,
+                SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                        SCIMProvisioningConnectorConstants.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD),
+                SCIMProvisioningConnectorUtil.getLongProperty(scimProvider,
+                        SCIMProvisioningConnectorConstants.SCIM_CIRCUIT_BREAKER_OPEN_DURATION,
+                        SCIMProvisioningConnectorConstants.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION));
+
+        int rateLimit = SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT,
+                SCIMProvisioningConnectorConstants.DEFAULT_RATE_LIMIT);
+        TokenBucket tokenBucket = new TokenBucket(rateLimit, SCIMProvisioningConnectorUtil.getIntProperty(
+                scimProvider, SCIMProvisioningConnectorConstants.SCIM_RATE_LIMIT_BURST, rateLimit));
+
+        AdaptiveConcurrencyLimit concurrencyLimit = null;
+        if (SCIMProvisioningConnectorUtil.getBooleanProperty(scimProvider,
+                SCIMProvisioningConnectorConstants.SCIM_ADAPTIVE_CONCURRENCY_ENABLED, false)) {
+            // More calls in flight than pooled connections would only queue for a connection.
+            int maxLimit = Math.min(maxConnectionsPerEndpoint, SCIMProvisioningConnectorUtil.getIntProperty(
+                    scimProvider, SCIMProvisioningConnectorConstants.SCIM_CONCURRENCY_MAX_LIMIT,
+                    maxConnectionsPerEndpoint));
+            concurrencyLimit = new AdaptiveConcurrencyLimit(
+                    SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                            SCIMProvisioningConnectorConstants.SCIM_CONCURRENCY_INITIAL_LIMIT,
+                            SCIMProvisioningConnectorConstants.DEFAULT_CONCURRENCY_INITIAL_LIMIT),
+                    SCIMProvisioningConnectorUtil.getIntProperty(scimProvider,
+                            SCIMProvisioningConnectorConstants.SCIM_CONCURRENCY_MIN_LIMIT,
+                            SCIMProvisioningConnectorConstants.DEFAULT_CONCURRENCY_MIN_LIMIT), maxLimit);
+        }
+        return new EndpointGuard(endpoint, circuitBreaker, tokenBucket, concurrencyLimit,
+                ProvisioningMetrics.getEndpointMetrics(endpoint));
+    }
+
+    private EndpointGuard getEndpointGuard(HttpMethod method) throws IOException {
+
+        if (groupEndpointGuard != userEndpointGuard && method.getURI().toString().startsWith(groupEndpointGuard
+                .getEndpoint())) {
+            return groupEndpointGuard;
+        }
+        return userEndpointGuard;
+    }
+
+    private void recordFailure(EndpointGuard endpointGuard) {
+
+        if (endpointGuard.getCircuitBreaker().recordFailure()) {
+            log.warn("Opened the circuit breaker of SCIM endpoint: " + endpointGuard.getEndpoint() + " after " +
+                    "repeated failures.");
+        }
+    }
+
+    private void backOff(HttpMethod method, int retry, long delay, String cause) throws IOException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Retrying " + method.getName() + " " + method.getPath() + " failed with " + cause + " in " +
+                    delay + "ms. Retry: " + retry + " of " + retryPolicy.getMaxRetries());
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + method.getName() + " " +
+                    method.getPath());
+        }
+    }
+
+    private void evictIdleConnections() {
+
+        long lastEviction = lastIdleEviction.get();
+        long now = System.currentTimeMillis();
+        // Piggyback eviction on outgoing calls rather than running a reaper thread per connector.
+        if (now - lastEviction >= idleTimeout && lastIdleEviction.compareAndSet(lastEviction, now)) {
+            connectionManager.closeIdleConnections(idleTimeout);
+            connectionManager.deleteClosedConnections();
+        }
+    }
+}
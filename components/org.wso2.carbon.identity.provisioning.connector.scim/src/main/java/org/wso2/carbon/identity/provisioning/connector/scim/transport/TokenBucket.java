@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of calls to a SCIM endpoint. Up to the burst size calls go through at once, after
+ * that callers are spaced out to the configured rate. Callers reserve their token up front, so concurrent callers
+ * wait in turn rather than all waking up together.
+ */
+public class TokenBucket {
+
+    private final double nanosPerToken;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate  calls per second, 0 or less disables the limit
+     * @param burst calls that may go through at once after the bucket filled up
+     */
+    public TokenBucket(double rate, int burst) {
+
+        this.nanosPerToken = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting until one is available.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+
+        if (nanosPerToken <= 0) {
+            return;
+        }
+        long waitTime;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) / nanosPerToken);
+            lastRefill = now;
+            // A negative balance is the queue of callers already waiting for a token.
+            tokens -= 1;
+            waitTime = tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+        }
+        if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitTime);
+        }
+    }
+}
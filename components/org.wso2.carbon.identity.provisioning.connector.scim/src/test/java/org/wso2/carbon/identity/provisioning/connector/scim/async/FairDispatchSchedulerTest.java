@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.async;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order and concurrency of the operations the shared scheduler starts. With a single worker the order operations
+ * start in is the order the scheduler picks them in.
+ */
+public class FairDispatchSchedulerTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int OPERATIONS = 40;
+
+    @After
+    public void tearDown() {
+        FairDispatchScheduler.shutdownShared();
+    }
+
+    @Test
+    public void testWorkersSharedByWeight() throws Exception {
+
+        FairDispatchScheduler scheduler = FairDispatchScheduler.getShared();
+        FairDispatchScheduler.Flow heavy = scheduler.register("weighted.com", "heavy", 3, 1, 1);
+        FairDispatchScheduler.Flow light = scheduler.register("weighted.com", "light", 1, 1, 1);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        heavy.submit(new Blocker(blocked), FairDispatchScheduler.Priority.NORMAL);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2 * OPERATIONS);
+        for (int i = 0; i < OPERATIONS; i++) {
+            heavy.submit(new Recorder("heavy", order, done), FairDispatchScheduler.Priority.NORMAL);
+            light.submit(new Recorder("light", order, done), FairDispatchScheduler.Priority.NORMAL);
+        }
+        blocked.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // While both flows are busy, the heavy one gets three operations for every one of the light one.
+        int heavyStarted = Collections.frequency(order.subList(0, 20), "heavy");
+        assertTrue("Unexpected share of the heavy flow: " + order, heavyStarted >= 14 && heavyStarted <= 16);
+    }
+
+    @Test
+    public void testHigherPriorityGoesFirst() throws Exception {
+
+        FairDispatchScheduler scheduler = FairDispatchScheduler.getShared();
+        FairDispatchScheduler.Flow flow = scheduler.register("priority.com", "idp", 1, 1, 1);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        flow.submit(new Blocker(blocked), FairDispatchScheduler.Priority.NORMAL);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(3);
+        flow.submit(new Recorder("bulk", order, done), FairDispatchScheduler.Priority.BULK);
+        flow.submit(new Recorder("normal", order, done), FairDispatchScheduler.Priority.NORMAL);
+        flow.submit(new Recorder("interactive", order, done), FairDispatchScheduler.Priority.INTERACTIVE);
+        blocked.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        List<String> expected = new ArrayList<>();
+        Collections.addAll(expected, "interactive", "normal", "bulk");
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void testConcurrencyCappedPerFlow() throws Exception {
+
+        FairDispatchScheduler scheduler = FairDispatchScheduler.getShared();
+        FairDispatchScheduler.Flow capped = scheduler.register("capped.com", "idp", 1, 2, 8);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(OPERATIONS);
+        for (int i = 0; i < OPERATIONS; i++) {
+            capped.submit(new Runnable() {
+                @Override
+                public void run() {
+
+                    int now = running.incrementAndGet();
+                    synchronized (peak) {
+                        peak.set(Math.max(peak.get(), now));
+                    }
+                    try {
+                        release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }, FairDispatchScheduler.Priority.NORMAL);
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (running.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give the free workers the chance to start more than the cap, if the scheduler let them.
+        Thread.sleep(200);
+        assertEquals(2, running.get());
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, peak.get());
+    }
+
+    @Test
+    public void testCallerWaitsForAdmission() throws Exception {
+
+        FairDispatchScheduler scheduler = FairDispatchScheduler.getShared();
+        final FairDispatchScheduler.Flow flow = scheduler.register("admission.com", "idp", 1, 1, 1);
+
+        flow.acquire(FairDispatchScheduler.Priority.NORMAL);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flow.acquire(FairDispatchScheduler.Priority.NORMAL);
+                    admitted.countDown();
+                    flow.release();
+                } catch (Exception e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waiter.start();
+        assertFalse("Admitted beyond the cap.", admitted.await(200, TimeUnit.MILLISECONDS));
+        flow.release();
+        assertTrue(admitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Holds the only worker until released, so that the operations submitted meanwhile queue up.
+     */
+    private static class Blocker implements Runnable {
+
+        private final CountDownLatch release;
+
+        Blocker(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Recorder implements Runnable {
+
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch done;
+
+        Recorder(String name, List<String> order, CountDownLatch done) {
+
+            this.name = name;
+            this.order = order;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+
+            order.add(name);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.coalesce;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging of the operations submitted within a window. The window is longer than the tests, so the operations are
+ * only run by the shutdown flushing them.
+ */
+public class WriteCoalescerTest {
+
+    private static final long WINDOW = 60000;
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+    private static final String USER_KEY = "user:alice";
+    private static final String GROUP_KEY = "group:engineering";
+    private static final String TITLE_CLAIM_URI = "http://wso2.org/claims/title";
+    private static final String DEPARTMENT_CLAIM_URI = "http://wso2.org/claims/department";
+
+    private RecordingProvisioner provisioner;
+    private WriteCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+
+        provisioner = new RecordingProvisioner();
+        coalescer = new WriteCoalescer(provisioner, WINDOW, 2);
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT);
+    }
+
+    @Test
+    public void testCreateAndDeleteCancelOut() {
+
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.POST, TITLE_CLAIM_URI, "Engineer"), 1);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PUT, TITLE_CLAIM_URI, "Manager"), 2);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.DELETE, null, null), 3);
+        assertTrue(coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT));
+
+        assertTrue("Nothing should reach the endpoint: " + provisioner.operations, provisioner.operations
+                .isEmpty());
+        assertEquals(Long.valueOf(3), provisioner.discarded.get(USER_KEY));
+        assertEquals(3, coalescer.getSavedCalls());
+        assertEquals(0, coalescer.getPendingEntities());
+    }
+
+    @Test
+    public void testUpdatesFoldIntoCreate() {
+
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.POST, TITLE_CLAIM_URI, "Engineer"), 1);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PUT, TITLE_CLAIM_URI, "Manager"), 2);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PATCH, DEPARTMENT_CLAIM_URI, "Sales"), 3);
+        assertTrue(coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT));
+
+        assertEquals(1, provisioner.operations.size());
+        ProvisioningEntity create = provisioner.operations.get(0);
+        assertEquals(ProvisioningOperation.POST, create.getOperation());
+        assertEquals(Long.valueOf(3), provisioner.sequences.get(0));
+        assertEquals(Collections.singletonList("Manager"), create.getAttributes().get(claim(TITLE_CLAIM_URI)));
+        assertEquals(Collections.singletonList("Sales"), create.getAttributes().get(claim(DEPARTMENT_CLAIM_URI)));
+        assertEquals(2, coalescer.getSavedCalls());
+    }
+
+    @Test
+    public void testUpdatesFoldTogether() {
+
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PUT, TITLE_CLAIM_URI, "Engineer"), 1);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PUT, TITLE_CLAIM_URI, "Manager"), 2);
+        assertTrue(coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT));
+
+        assertEquals(1, provisioner.operations.size());
+        assertEquals(ProvisioningOperation.PUT, provisioner.operations.get(0).getOperation());
+        assertEquals(Long.valueOf(2), provisioner.sequences.get(0));
+        assertEquals(Collections.singletonList("Manager"), provisioner.operations.get(0).getAttributes().get(
+                claim(TITLE_CLAIM_URI)));
+    }
+
+    @Test
+    public void testGroupMemberChangesFoldTogether() {
+
+        coalescer.submit(GROUP_KEY, group(Arrays.asList("alice", "bob"), null), 1);
+        coalescer.submit(GROUP_KEY, group(Collections.singletonList("carol"), Collections.singletonList("alice")), 2);
+        assertTrue(coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT));
+
+        assertEquals(1, provisioner.operations.size());
+        Map<ClaimMapping, List<String>> attributes = provisioner.operations.get(0).getAttributes();
+        assertEquals("The later removal of a member wins.", Arrays.asList("bob", "carol"), attributes.get(claim(
+                IdentityProvisioningConstants.USERNAME_CLAIM_URI)));
+        assertEquals(Collections.singletonList("alice"), attributes.get(claim(
+                IdentityProvisioningConstants.DELETED_USER_CLAIM_URI)));
+    }
+
+    @Test
+    public void testDeleteAfterUpdateReplacesIt() {
+
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.PUT, TITLE_CLAIM_URI, "Engineer"), 1);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.DELETE, null, null), 2);
+        coalescer.submit(USER_KEY, user(ProvisioningOperation.POST, TITLE_CLAIM_URI, "Manager"), 3);
+        assertTrue(coalescer.shutdown(System.currentTimeMillis() + SHUTDOWN_TIMEOUT));
+
+        assertEquals("A create after a delete is kept apart.", 2, provisioner.operations.size());
+        assertEquals(ProvisioningOperation.DELETE, provisioner.operations.get(0).getOperation());
+        assertEquals(ProvisioningOperation.POST, provisioner.operations.get(1).getOperation());
+        assertEquals(Arrays.asList(2L, 3L), provisioner.sequences);
+        assertNull(provisioner.discarded.get(USER_KEY));
+    }
+
+    private static ProvisioningEntity user(ProvisioningOperation operation, String claimUri, String value) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(claim(IdentityProvisioningConstants.USERNAME_CLAIM_URI), Collections.singletonList("alice"));
+        if (claimUri != null) {
+            attributes.put(claim(claimUri), Collections.singletonList(value));
+        }
+        return new ProvisioningEntity(ProvisioningEntityType.USER, "alice", operation, attributes);
+    }
+
+    private static ProvisioningEntity group(List<String> addedMembers, List<String> removedMembers) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(claim(IdentityProvisioningConstants.GROUP_CLAIM_URI), Collections.singletonList(
+                "engineering"));
+        if (addedMembers != null) {
+            attributes.put(claim(IdentityProvisioningConstants.USERNAME_CLAIM_URI), new ArrayList<>(addedMembers));
+        }
+        if (removedMembers != null) {
+            attributes.put(claim(IdentityProvisioningConstants.DELETED_USER_CLAIM_URI), new ArrayList<>(
+                    removedMembers));
+        }
+        return new ProvisioningEntity(ProvisioningEntityType.GROUP, "engineering", ProvisioningOperation.PUT,
+                attributes);
+    }
+
+    private static ClaimMapping claim(String claimUri) {
+        return ClaimMapping.build(claimUri, null, null, false);
+    }
+
+    private static class RecordingProvisioner implements WriteCoalescer.Provisioner {
+
+        private final List<ProvisioningEntity> operations = Collections.synchronizedList(
+                new ArrayList<ProvisioningEntity>());
+        private final List<Long> sequences = Collections.synchronizedList(new ArrayList<Long>());
+        private final Map<String, Long> discarded = Collections.synchronizedMap(new HashMap<String, Long>());
+
+        @Override
+        public void provision(String entityKey, ProvisioningEntity provisioningEntity, long sequence) {
+
+            operations.add(provisioningEntity);
+            sequences.add(sequence);
+        }
+
+        @Override
+        public void discarded(String entityKey, long sequence) {
+            discarded.put(entityKey, sequence);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.json;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writing SCIM resources with {@link JsonWriter} and reading them back with {@link JsonReader}.
+ */
+public class JsonReaderWriterTest {
+
+    private static final String LIST_RESPONSE = "{\"totalResults\": 2, \"itemsPerPage\": 2,\n" +
+            "  \"Resources\": [\n" +
+            "    {\"id\": \"1\", \"meta\": {\"version\": \"W/\\\"a\\\"\"}, \"emails\": [{\"value\": \"a@x.com\"}]," +
+            " \"userName\": \"alice\"},\n" +
+            "    {\"id\": \"2\", \"active\": true, \"userName\": \"bob\", \"nickName\": null}\n" +
+            "  ]}";
+
+    @Test
+    public void testWriter() {
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject()
+                .name("schemas").beginArray().value("urn:ietf:params:scim:schemas:core:2.0:User").endArray()
+                .name("userName").value("alice")
+                .name("active").value(true)
+                .name("count").value(42L)
+                .name("nickName").value((String) null)
+                .name("emails").beginArray()
+                .beginObject().name("value").value("a@x.com").endObject()
+                .beginObject().name("value").value("b@x.com").endObject()
+                .endArray()
+                .name("raw").rawValue("{\"a\":1}")
+                .endObject();
+
+        assertEquals("{\"schemas\":[\"urn:ietf:params:scim:schemas:core:2.0:User\"],\"userName\":\"alice\"," +
+                "\"active\":true,\"count\":42,\"nickName\":null,\"emails\":[{\"value\":\"a@x.com\"},{\"value\":" +
+                "\"b@x.com\"}],\"raw\":{\"a\":1}}", writer.toString());
+        assertEquals(writer.toString().length(), writer.length());
+    }
+
+    @Test
+    public void testEscapedStringsRoundTrip() {
+
+        String value = "quote \" backslash \\ slash / newline \n tab \t control \u0001 unicode \u00e9";
+        String json = new JsonWriter().beginObject().name("displayName").value(value).endObject().toString();
+
+        assertFalse("Control characters must be escaped.", json.contains("\u0001") || json.contains("\n"));
+        assertEquals(value, JsonReader.readString(json, "displayName"));
+        assertEquals("/", JsonReader.readString("{\"a\":\"\\/\"}", "a"));
+        assertEquals("\u00e9", JsonReader.readString("{\"a\":\"\\u00E9\"}", "a"));
+    }
+
+    @Test
+    public void testReadPath() {
+
+        assertEquals("W/\"a\"", JsonReader.readString("{\"id\":\"1\",\"meta\":{\"version\":\"W/\\\"a\\\"\"}}",
+                "meta", "version"));
+        assertEquals("2", JsonReader.readString(LIST_RESPONSE, "totalResults"));
+        assertNull(JsonReader.readString(LIST_RESPONSE, "startIndex"));
+        assertNull(JsonReader.readString(LIST_RESPONSE, "totalResults", "value"));
+        assertNull(JsonReader.readString("[1, 2]", "totalResults"));
+        assertNull(JsonReader.readString(null, "totalResults"));
+    }
+
+    @Test
+    public void testStreamingThroughResources() {
+
+        JsonReader reader = new JsonReader(LIST_RESPONSE);
+        assertTrue(reader.beginObject());
+        assertTrue(reader.skipTo("Resources"));
+        assertEquals('[', reader.peek());
+        assertTrue(reader.beginArray());
+
+        List<String> userNames = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        while (reader.hasNextElement()) {
+            assertTrue(reader.beginObject());
+            String name;
+            while ((name = reader.nextName()) != null) {
+                if ("userName".equals(name)) {
+                    userNames.add(reader.nextString());
+                } else if ("id".equals(name)) {
+                    ids.add(reader.nextString());
+                } else if ("active".equals(name)) {
+                    assertEquals("true", reader.nextString());
+                } else if ("nickName".equals(name)) {
+                    assertNull(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+        assertEquals("1", ids.get(0));
+        assertEquals("2", ids.get(1));
+        assertEquals("alice", userNames.get(0));
+        assertEquals("bob", userNames.get(1));
+        assertNull("The object should be left after the array.", reader.nextName());
+        assertEquals(0, reader.peek());
+    }
+
+    @Test
+    public void testStopEarlyAndSkipRest() {
+
+        JsonReader reader = new JsonReader("{\"id\":\"1\",\"groups\":[{\"value\":\"g\"}],\"userName\":\"alice\"}," +
+                "{\"id\":\"2\"}");
+        assertTrue(reader.beginObject());
+        assertEquals("id", reader.nextName());
+        assertEquals("1", reader.nextString());
+        reader.endObject();
+
+        assertEquals(',', reader.peek());
+        assertFalse("An array is not an object.", new JsonReader("[1]").beginObject());
+        assertNull("Objects are not read as strings.", new JsonReader("{\"a\":{\"b\":1}}").nextString());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.outbox;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wso2.carbon.identity.application.common.model.ClaimMapping;
+import org.wso2.carbon.identity.provisioning.IdentityProvisioningConstants;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntity;
+import org.wso2.carbon.identity.provisioning.ProvisioningEntityType;
+import org.wso2.carbon.identity.provisioning.ProvisioningOperation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery of the outbox from its segment files, after a crash tore the last write or after compaction moved
+ * pending operations between segments.
+ */
+public class ProvisioningOutboxTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    // Holds about a dozen operations, so that a few pending ones are copied rather than keeping their segment.
+    private static final int SMALL_SEGMENT_SIZE = 2048;
+    private static final int USERS = 60;
+    private static final long COMPACTION_TIMEOUT = 10000;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String TITLE_CLAIM_URI = "http://wso2.org/claims/title";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ProvisioningOutbox.closeAll();
+    }
+
+    @Test
+    public void testReplayAfterTornTail() throws Exception {
+
+        File directory = folder.newFolder("torn");
+        ProvisioningOutbox outbox = ProvisioningOutbox.open(directory, SEGMENT_SIZE);
+        long created = outbox.append("user:alice", user(ProvisioningOperation.POST, "alice", "Engineer"));
+        outbox.append("user:bob", user(ProvisioningOperation.POST, "bob", "Manager"));
+        ProvisioningOutbox.closeAll();
+
+        // A crash halfway through the last write leaves a record failing its checksum.
+        tearLastRecord(directory);
+
+        outbox = ProvisioningOutbox.open(directory, SEGMENT_SIZE);
+        assertEquals("Only the intact operation should be recovered.", 1, outbox.getRecoveredOperations());
+        assertEquals(Collections.singletonList("user:alice"), outbox.getRecoveredEntityKeys());
+        List<OutboxEntry> entries = outbox.takeRecoveredEntries("user:alice");
+        assertEquals(1, entries.size());
+        assertEquals(created, entries.get(0).getSequence());
+        assertEquals("alice", entries.get(0).getProvisioningEntity().getEntityName());
+        assertEquals("Engineer", getTitle(entries.get(0).getProvisioningEntity()));
+
+        // Appends after the recovery must survive the next one, they never go after the torn record.
+        long updated = outbox.append("user:carol", user(ProvisioningOperation.POST, "carol", "Architect"));
+        assertTrue("Sequence numbers must not be reused.", updated > created);
+        ProvisioningOutbox.closeAll();
+
+        outbox = ProvisioningOutbox.open(directory, SEGMENT_SIZE);
+        assertEquals(2, outbox.getRecoveredOperations());
+        assertEquals(created, outbox.takeRecoveredEntries("user:alice").get(0).getSequence());
+        assertEquals(updated, outbox.takeRecoveredEntries("user:carol").get(0).getSequence());
+    }
+
+    @Test
+    public void testReplayAfterCompaction() throws Exception {
+
+        File directory = folder.newFolder("compacted");
+        ProvisioningOutbox outbox = ProvisioningOutbox.open(directory, SMALL_SEGMENT_SIZE);
+        Map<String, Long> sequences = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            String userName = "user" + i;
+            sequences.put(userName, outbox.append("user:" + userName, user(ProvisioningOperation.POST, userName,
+                    "Title" + i)));
+        }
+        assertTrue("Operations should span several segments.", outbox.getSegmentCount() > 2);
+        for (int i = 0; i < USERS; i++) {
+            if (i != 3 && i != 45) {
+                outbox.acknowledge("user:user" + i, sequences.get("user" + i));
+            }
+        }
+
+        // Roll over with acknowledged operations until the background compaction reclaimed all the old segments,
+        // copying the two pending operations to the active segment.
+        long deadline = System.currentTimeMillis() + COMPACTION_TIMEOUT;
+        while (outbox.getSegmentCount() > 1 && System.currentTimeMillis() < deadline) {
+            long sequence = outbox.append("user:filler", user(ProvisioningOperation.PUT, "filler", "Filler"));
+            outbox.acknowledge("user:filler", sequence);
+            Thread.sleep(1);
+        }
+        assertEquals("Old segments were not reclaimed.", 1, outbox.getSegmentCount());
+        assertEquals(2, outbox.getPendingOperations());
+        ProvisioningOutbox.closeAll();
+
+        outbox = ProvisioningOutbox.open(directory, SMALL_SEGMENT_SIZE);
+        assertEquals("Acknowledged operations must not be replayed.", 2, outbox.getRecoveredOperations());
+        Map<String, Long> recovered = new TreeMap<>();
+        for (String entityKey : outbox.getRecoveredEntityKeys()) {
+            for (OutboxEntry entry : outbox.takeRecoveredEntries(entityKey)) {
+                recovered.put(entry.getProvisioningEntity().getEntityName(), entry.getSequence());
+                assertEquals("Title" + entry.getProvisioningEntity().getEntityName().substring(4),
+                        getTitle(entry.getProvisioningEntity()));
+            }
+        }
+        Map<String, Long> expected = new TreeMap<>();
+        expected.put("user3", sequences.get("user3"));
+        expected.put("user45", sequences.get("user45"));
+        assertEquals(expected, recovered);
+    }
+
+    @Test
+    public void testDeleteSupersedesRecoveredOperations() throws Exception {
+
+        File directory = folder.newFolder("deleted");
+        ProvisioningOutbox outbox = ProvisioningOutbox.open(directory, SEGMENT_SIZE);
+        outbox.append("user:dave", user(ProvisioningOperation.POST, "dave", "Engineer"));
+        outbox.append("user:dave", user(ProvisioningOperation.PUT, "dave", "Manager"));
+        long deleted = outbox.append("user:dave", user(ProvisioningOperation.DELETE, "dave", null));
+        ProvisioningOutbox.closeAll();
+
+        outbox = ProvisioningOutbox.open(directory, SEGMENT_SIZE);
+        List<OutboxEntry> entries = outbox.takeRecoveredEntries("user:dave");
+        assertEquals(1, entries.size());
+        assertEquals(deleted, entries.get(0).getSequence());
+        assertEquals(ProvisioningOperation.DELETE, entries.get(0).getProvisioningEntity().getOperation());
+    }
+
+    private static ProvisioningEntity user(ProvisioningOperation operation, String userName, String title) {
+
+        Map<ClaimMapping, List<String>> attributes = new HashMap<>();
+        attributes.put(ClaimMapping.build(IdentityProvisioningConstants.USERNAME_CLAIM_URI, null, null, false),
+                Collections.singletonList(userName));
+        if (title != null) {
+            attributes.put(ClaimMapping.build(TITLE_CLAIM_URI, null, null, false), Collections.singletonList(title));
+        }
+        return new ProvisioningEntity(ProvisioningEntityType.USER, userName, operation, attributes);
+    }
+
+    private static String getTitle(ProvisioningEntity provisioningEntity) {
+        return provisioningEntity.getAttributes().get(ClaimMapping.build(TITLE_CLAIM_URI, null, null, false)).get(0);
+    }
+
+    /**
+     * Flips a byte in the body of the last record of the last segment holding records.
+     */
+    private static void tearLastRecord(File directory) throws IOException {
+
+        File[] files = directory.listFiles();
+        TreeMap<String, File> segmentFiles = new TreeMap<>();
+        for (File file : files) {
+            if (file.getName().startsWith(SEGMENT_FILE_PREFIX)) {
+                segmentFiles.put(file.getName(), file);
+            }
+        }
+        for (File file : segmentFiles.descendingMap().values()) {
+            try (RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+                long lastRecord = -1;
+                long position = 0;
+                while (position + 8 <= segment.length()) {
+                    segment.seek(position);
+                    int length = segment.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    lastRecord = position;
+                    position += 8 + length;
+                }
+                if (lastRecord >= 0) {
+                    segment.seek(lastRecord + 8);
+                    int firstByte = segment.read();
+                    segment.seek(lastRecord + 8);
+                    segment.write(firstByte ^ 0xff);
+                    return;
+                }
+            }
+        }
+        throw new IOException("No records in: " + directory);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.wso2.carbon.identity.provisioning.connector.scim.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through the codec and interoperability with the JDK gzip streams.
+ */
+public class GzipCodecTest {
+
+    private static final String BODY = "{\"schemas\":[\"urn:ietf:params:scim:schemas:core:2.0:User\"],\"userName\":" +
+            "\"alice\",\"name\":{\"givenName\":\"Alice\",\"familyName\":\"Smith\"}}";
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        GzipCodec codec = GzipCodec.get();
+        for (byte[] data : new byte[][]{new byte[0], BODY.getBytes(StandardCharsets.UTF_8), repeated(100000),
+                random(3 * 1048576)}) {
+            byte[] encoded = codec.encode(data);
+            assertArrayEquals("Round trip of " + data.length + " bytes.", data, codec.decode(encoded));
+        }
+    }
+
+    @Test
+    public void testEncodedBodyReadByJdk() throws Exception {
+
+        byte[] data = repeated(50000);
+        byte[] encoded = GzipCodec.get().encode(data);
+        assertTrue("Repetitive data should shrink.", encoded.length < data.length / 10);
+        assertArrayEquals(data, gunzip(encoded));
+    }
+
+    @Test
+    public void testJdkBodyDecoded() throws Exception {
+
+        byte[] data = BODY.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(data, GzipCodec.get().decode(gzip(data)));
+    }
+
+    @Test
+    public void testHeaderWithFileNameDecoded() throws Exception {
+
+        byte[] data = BODY.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = GzipCodec.get().encode(data);
+        byte[] name = "body.json\0".getBytes(StandardCharsets.US_ASCII);
+        // Set FNAME and insert the zero terminated name after the 10 byte header.
+        byte[] named = new byte[encoded.length + name.length];
+        System.arraycopy(encoded, 0, named, 0, 10);
+        named[3] = 8;
+        System.arraycopy(name, 0, named, 10, name.length);
+        System.arraycopy(encoded, 10, named, 10 + name.length, encoded.length - 10);
+        assertArrayEquals(data, GzipCodec.get().decode(named));
+    }
+
+    @Test
+    public void testCorruptBodiesRejected() throws Exception {
+
+        byte[] encoded = GzipCodec.get().encode(BODY.getBytes(StandardCharsets.UTF_8));
+
+        byte[] corruptTrailer = encoded.clone();
+        corruptTrailer[corruptTrailer.length - 5] ^= 0xff;
+        assertRejected(corruptTrailer);
+        assertRejected(Arrays.copyOf(encoded, encoded.length - 12));
+        assertRejected(BODY.getBytes(StandardCharsets.UTF_8));
+
+        // The codec of the thread must still work after rejecting bodies.
+        byte[] data = repeated(1000);
+        assertArrayEquals(data, GzipCodec.get().decode(GzipCodec.get().encode(data)));
+    }
+
+    private static void assertRejected(byte[] body) {
+
+        try {
+            GzipCodec.get().decode(body);
+            fail("Invalid gzip body of " + body.length + " bytes was decoded.");
+        } catch (ZipException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] repeated(int size) {
+
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = body[i % body.length];
+        }
+        return data;
+    }
+
+    private static byte[] random(int size) {
+
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(encoded)) {
+            out.write(data);
+        }
+        return encoded.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                decoded.write(buffer, 0, count);
+            }
+        }
+        return decoded.toByteArray();
+    }
+}